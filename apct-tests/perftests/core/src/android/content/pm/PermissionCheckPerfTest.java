@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content.pm;
+
+import android.Manifest;
+import android.content.Context;
+import android.os.Process;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Measures permission checks going all the way to the package manager.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class PermissionCheckPerfTest {
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private Context mContext;
+    private PackageManager mPackageManager;
+    private String mPackageName;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mPackageManager = mContext.getPackageManager();
+        mPackageName = mContext.getPackageName();
+    }
+
+    @Test
+    public void testCheckPermissionGranted() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mPackageManager.checkPermission(Manifest.permission.INTERNET, mPackageName);
+        }
+    }
+
+    @Test
+    public void testCheckPermissionDenied() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mPackageManager.checkPermission(Manifest.permission.READ_CONTACTS, mPackageName);
+        }
+    }
+
+    @Test
+    public void testCheckUidPermission() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final int pid = Process.myPid();
+        final int uid = Process.myUid();
+        while (state.keepRunning()) {
+            mContext.checkPermission(Manifest.permission.INTERNET, pid, uid);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Measures the batch list operations alarm scheduling is made of with 10k pending batches.
+ *
+ * <p>Lives in the services package so it can reach {@link AlarmBatchList}; the unit tests for
+ * it are in FrameworksServicesTests.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class AlarmBatchListPerfTest {
+    private static final int BATCH_COUNT = 10000;
+
+    // Alarms spread over a day, with windows of up to an hour.
+    private static final long RANGE = 24 * 60 * 60 * 1000L;
+    private static final long MAX_WINDOW = 60 * 60 * 1000L;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private static final class TestBatch implements AlarmBatchList.Window {
+        final long start;
+        final long end;
+        final boolean standalone;
+        final boolean wakeup;
+
+        TestBatch(long start, long end, boolean standalone, boolean wakeup) {
+            this.start = start;
+            this.end = end;
+            this.standalone = standalone;
+            this.wakeup = wakeup;
+        }
+
+        @Override
+        public long getStart() {
+            return start;
+        }
+
+        @Override
+        public long getEnd() {
+            return end;
+        }
+
+        @Override
+        public boolean isCoalescable() {
+            return !standalone;
+        }
+
+        @Override
+        public boolean hasWakeups() {
+            return wakeup;
+        }
+    }
+
+    private final Random mRandom = new Random(0);
+    private final AlarmBatchList<TestBatch> mList = new AlarmBatchList<>();
+
+    @Before
+    public void setUp() {
+        for (int i = 0; i < BATCH_COUNT; i++) {
+            mList.add(newBatch());
+        }
+    }
+
+    @Test
+    public void testSet() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final TestBatch batch = newBatch();
+            final int index = mList.findFirstCoalescable(batch.start, batch.end);
+            if (index >= 0) {
+                mList.add(mList.remove(index));
+            } else {
+                mList.add(batch);
+                mList.remove(mRandom.nextInt(mList.size()));
+            }
+        }
+    }
+
+    @Test
+    public void testRemoveAndAdd() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mList.add(mList.remove(mRandom.nextInt(mList.size())));
+        }
+    }
+
+    @Test
+    public void testRebatch() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final ArrayList<TestBatch> batches = new ArrayList<>(BATCH_COUNT);
+        while (state.keepRunning()) {
+            batches.clear();
+            mList.toList(batches);
+            mList.clear();
+            for (int i = 0; i < batches.size(); i++) {
+                final TestBatch batch = batches.get(i);
+                final int index = mList.findFirstCoalescable(batch.start, batch.end);
+                if (index >= 0) {
+                    // Coalescing takes the batch out and adds it back once its window changed.
+                    mList.add(mList.remove(index));
+                }
+                // Keep the batch count stable across iterations.
+                mList.add(batch);
+            }
+        }
+    }
+
+    @Test
+    public void testFindFirstWakeup() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mList.findFirstWithWakeups();
+        }
+    }
+
+    private TestBatch newBatch() {
+        final long start = (long) (mRandom.nextDouble() * RANGE);
+        return new TestBatch(start, start + (long) (mRandom.nextDouble() * MAX_WINDOW),
+                mRandom.nextInt(20) == 0, mRandom.nextInt(4) == 0);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Measures finding and moving a process in the LRU process list, at the list sizes seen on a
+ * typical device (~100 processes) and a heavily loaded one (~300).
+ *
+ * <p>Finding is what {@link ActivityManagerService#getLruProcessIndexLocked} does, either by
+ * scanning the whole list or by looking around the index hint first. Moving is the ArrayList
+ * remove and insert that every LRU update still pays.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class LruProcessListPerfTest {
+    private static final int TYPICAL_SIZE = 100;
+    private static final int LOADED_SIZE = 300;
+
+    // How far a process usually drifts from its hint between two updates.
+    private static final int DRIFT = 3;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private final Random mRandom = new Random(0);
+
+    @Test
+    public void testLastIndexOf_typical() {
+        lastIndexOf(TYPICAL_SIZE);
+    }
+
+    @Test
+    public void testLastIndexOf_loaded() {
+        lastIndexOf(LOADED_SIZE);
+    }
+
+    @Test
+    public void testIndexOfNear_typical() {
+        indexOfNear(TYPICAL_SIZE);
+    }
+
+    @Test
+    public void testIndexOfNear_loaded() {
+        indexOfNear(LOADED_SIZE);
+    }
+
+    @Test
+    public void testMove_typical() {
+        move(TYPICAL_SIZE);
+    }
+
+    @Test
+    public void testMove_loaded() {
+        move(LOADED_SIZE);
+    }
+
+    private void lastIndexOf(int size) {
+        final ArrayList<Object> list = createList(size);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            list.lastIndexOf(list.get(mRandom.nextInt(size)));
+        }
+    }
+
+    private void indexOfNear(int size) {
+        final ArrayList<Object> list = createList(size);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final int index = mRandom.nextInt(size);
+            final int hint = index + mRandom.nextInt(2 * DRIFT + 1) - DRIFT;
+            ActivityManagerService.indexOfNear(list, list.get(index), hint);
+        }
+    }
+
+    private void move(int size) {
+        final ArrayList<Object> list = createList(size);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            // Processes mostly move to the top of the list, past the cached ones at the bottom.
+            list.add(list.remove(mRandom.nextInt(size)));
+        }
+    }
+
+    private static ArrayList<Object> createList(int size) {
+        final ArrayList<Object> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(new Object());
+        }
+        return list;
+    }
+}
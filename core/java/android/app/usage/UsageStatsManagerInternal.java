@@ -135,4 +135,14 @@ public abstract class UsageStatsManagerInternal {
      */
     public abstract List<UsageStats> queryUsageStatsForUser(
             int userId, int interval, long beginTime, long endTime, boolean obfuscateInstantApps);
+
+    /**
+     * Return the events recorded for {@code userId} between {@code beginTime} and
+     * {@code endTime}, or {@code null} if the range is invalid.
+     *
+     * @param obfuscateInstantApps whether instant app package names need to be obfuscated in the
+     *     result.
+     */
+    public abstract UsageEvents queryEventsForUser(
+            int userId, long beginTime, long endTime, boolean obfuscateInstantApps);
 }
@@ -108,6 +108,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.NioUtils;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
@@ -125,6 +131,8 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.ZipEntry;
@@ -253,6 +261,28 @@ public class PackageParser {
      */
     public static final AtomicInteger sCachedPackageReadCount = new AtomicInteger();
 
+    /** Magic number at the start of each package cache entry ("PKGC"). */
+    private static final int CACHE_ENTRY_MAGIC = 0x504b4743;
+    /**
+     * Version of the package cache entry layout. Entries written with a different version are
+     * ignored and regenerated.
+     */
+    private static final int CACHE_ENTRY_VERSION = 2;
+    /** Header: magic, version, payload length. */
+    private static final int CACHE_ENTRY_HEADER_SIZE = 12;
+
+    /**
+     * While non-null, cache entries are read into buffers recycled through this pool rather
+     * than a new array per package. See {@link #setCacheSharingEnabled}.
+     */
+    private static volatile ArrayBlockingQueue<byte[]> sCacheReadBuffers;
+
+    /**
+     * While non-null, strings read from cache entries are shared across packages through this
+     * pool. See {@link #setCacheSharingEnabled}.
+     */
+    private static volatile ConcurrentHashMap<String, String> sCacheStringPool;
+
     // Set of broadcast actions that are safe for manifest receivers
     private static final Set<String> SAFE_BROADCASTS = new ArraySet<>();
     static {
@@ -1051,19 +1081,41 @@ public class PackageParser {
         return sb.toString();
     }
 
+    /**
+     * Enables or disables sharing of read buffers and strings across packages read from the
+     * cache. This is meant to be enabled while the package manager scans all packages at boot,
+     * where most packages come from the cache and declare the same permissions, actions and
+     * categories. Disabling releases the buffers and the string pool; strings already shared
+     * remain shared.
+     */
+    public static void setCacheSharingEnabled(boolean enabled) {
+        if (enabled) {
+            sCacheReadBuffers = new ArrayBlockingQueue<>(
+                    Runtime.getRuntime().availableProcessors() + 1);
+            sCacheStringPool = new ConcurrentHashMap<>();
+        } else {
+            sCacheReadBuffers = null;
+            sCacheStringPool = null;
+        }
+    }
+
     @VisibleForTesting
-    protected Package fromCacheEntry(byte[] bytes) {
-        return fromCacheEntryStatic(bytes);
+    protected Package fromCacheEntry(byte[] bytes, int offset, int length) {
+        return fromCacheEntryStatic(bytes, offset, length);
     }
 
     /** static version of {@link #fromCacheEntry} for unit tests. */
     @VisibleForTesting
     public static Package fromCacheEntryStatic(byte[] bytes) {
+        return fromCacheEntryStatic(bytes, 0, bytes.length);
+    }
+
+    private static Package fromCacheEntryStatic(byte[] bytes, int offset, int length) {
         final Parcel p = Parcel.obtain();
-        p.unmarshall(bytes, 0, bytes.length);
+        p.unmarshall(bytes, offset, length);
         p.setDataPosition(0);
 
-        final ReadHelper helper = new ReadHelper(p);
+        final ReadHelper helper = new ReadHelper(p, sCacheStringPool);
         helper.startAndInstall();
 
         PackageParser.Package pkg = new PackageParser.Package(p);
@@ -1146,8 +1198,12 @@ public class PackageParser {
                 return null;
             }
 
-            final byte[] bytes = IoUtils.readFileAsByteArray(cacheFile.getAbsolutePath());
-            Package p = fromCacheEntry(bytes);
+            Package p = readCacheEntry(cacheFile);
+            if (p == null) {
+                // Written with an older layout, regenerate it.
+                cacheFile.delete();
+                return null;
+            }
             if (mCallback != null) {
                 String[] overlayApks = mCallback.getOverlayApks(p.packageName);
                 if (overlayApks != null && overlayApks.length > 0) {
@@ -1170,6 +1226,49 @@ public class PackageParser {
         }
     }
 
+    /**
+     * Reads a cache entry by mapping {@code cacheFile} and copying its payload into a buffer,
+     * recycled across entries while the boot scan shares them. Parcel can only unmarshall
+     * from an array, hence the copy.
+     *
+     * @return the cached package, or {@code null} if the entry has an unknown layout.
+     */
+    private Package readCacheEntry(File cacheFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(cacheFile.toPath(),
+                StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size < CACHE_ENTRY_HEADER_SIZE || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            final MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            try {
+                map.order(ByteOrder.BIG_ENDIAN);
+                final int magic = map.getInt();
+                final int version = map.getInt();
+                final int length = map.getInt();
+                if (magic != CACHE_ENTRY_MAGIC || version != CACHE_ENTRY_VERSION
+                        || length != size - CACHE_ENTRY_HEADER_SIZE) {
+                    return null;
+                }
+                final ArrayBlockingQueue<byte[]> buffers = sCacheReadBuffers;
+                byte[] buffer = buffers != null ? buffers.poll() : null;
+                if (buffer == null || buffer.length < length) {
+                    buffer = new byte[length];
+                }
+                map.get(buffer, 0, length);
+                try {
+                    return fromCacheEntry(buffer, 0, length);
+                } finally {
+                    if (buffers != null) {
+                        buffers.offer(buffer);
+                    }
+                }
+            } finally {
+                NioUtils.freeDirectBuffer(map);
+            }
+        }
+    }
+
     /**
      * Caches the parse result for {@code packageFile} with flags {@code flags}.
      */
@@ -1194,7 +1293,14 @@ public class PackageParser {
                 return;
             }
 
+            final ByteBuffer header = ByteBuffer.allocate(CACHE_ENTRY_HEADER_SIZE);
+            header.order(ByteOrder.BIG_ENDIAN);
+            header.putInt(CACHE_ENTRY_MAGIC);
+            header.putInt(CACHE_ENTRY_VERSION);
+            header.putInt(cacheEntry.length);
+
             try (FileOutputStream fos = new FileOutputStream(cacheFile)) {
+                fos.write(header.array());
                 fos.write(cacheEntry);
             } catch (IOException ioe) {
                 Slog.w(TAG, "Error writing cache entry.", ioe);
@@ -21,6 +21,7 @@ import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Helper classes to read from and write to Parcel with pooled strings.
@@ -41,9 +42,20 @@ public class PackageParserCacheHelper {
         private final ArrayList<String> mStrings = new ArrayList<>();
 
         private final Parcel mParcel;
+        private final ConcurrentHashMap<String, String> mSharedPool;
 
         public ReadHelper(Parcel p) {
+            this(p, null);
+        }
+
+        /**
+         * @param sharedPool if non-null, strings in the pool of this parcel are replaced by
+         *     identical instances from {@code sharedPool} (and added to it if missing), so that
+         *     strings common to multiple packages are only held once.
+         */
+        public ReadHelper(Parcel p, ConcurrentHashMap<String, String> sharedPool) {
             mParcel = p;
+            mSharedPool = sharedPool;
         }
 
         /**
@@ -62,6 +74,18 @@ public class PackageParserCacheHelper {
             mParcel.setDataPosition(poolPosition);
             mParcel.readStringList(mStrings);
 
+            if (mSharedPool != null) {
+                for (int i = 0; i < mStrings.size(); i++) {
+                    final String s = mStrings.get(i);
+                    if (s != null) {
+                        final String shared = mSharedPool.putIfAbsent(s, s);
+                        if (shared != null) {
+                            mStrings.set(i, shared);
+                        }
+                    }
+                }
+            }
+
             // Then move back.
             mParcel.setDataPosition(startPosition);
 
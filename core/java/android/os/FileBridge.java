@@ -65,6 +65,8 @@ public class FileBridge extends Thread {
 
     private volatile boolean mClosed;
 
+    private ParcelFileDescriptor.OnCloseListener mOnCloseListener;
+
     public FileBridge() {
         try {
             Os.socketpair(AF_UNIX, SOCK_STREAM, 0, mServer, mClient);
@@ -88,6 +90,14 @@ public class FileBridge extends Thread {
         mTarget = target;
     }
 
+    /**
+     * Set a listener invoked once the client has closed its end of the bridge,
+     * with a non-null exception if the bridge failed.
+     */
+    public void setOnCloseListener(ParcelFileDescriptor.OnCloseListener onCloseListener) {
+        mOnCloseListener = onCloseListener;
+    }
+
     public FileDescriptor getClientSocket() {
         return mClient;
     }
@@ -95,6 +105,8 @@ public class FileBridge extends Thread {
     @Override
     public void run() {
         final byte[] temp = new byte[8192];
+        IOException failure = null;
+        boolean closedByClient = false;
         try {
             while (IoBridge.read(mServer, temp, 0, MSG_LENGTH) == MSG_LENGTH) {
                 final int cmd = Memory.peekInt(temp, 0, ByteOrder.BIG_ENDIAN);
@@ -122,15 +134,26 @@ public class FileBridge extends Thread {
                     Os.close(mTarget);
                     mClosed = true;
                     IoBridge.write(mServer, temp, 0, MSG_LENGTH);
+                    closedByClient = true;
                     break;
                 }
             }
 
-        } catch (ErrnoException | IOException e) {
+        } catch (ErrnoException e) {
             Log.wtf(TAG, "Failed during bridge", e);
+            failure = new IOException(e);
+        } catch (IOException e) {
+            Log.wtf(TAG, "Failed during bridge", e);
+            failure = e;
         } finally {
             forceClose();
         }
+        if (failure == null && !closedByClient) {
+            failure = new IOException("Client went away without closing");
+        }
+        if (mOnCloseListener != null) {
+            mOnCloseListener.onClose(failure);
+        }
     }
 
     public static class FileBridgeOutputStream extends OutputStream {
@@ -1030,6 +1030,11 @@ public class Process {
          * True if the process was started with a wrapper attached.
          */
         public boolean usingWrapper;
+
+        /**
+         * True if the process was specialized from a child the zygote forked ahead of time.
+         */
+        public boolean usedPool;
     }
 
     /**
@@ -48,6 +48,8 @@ public class RevocableFileDescriptor {
 
     private volatile boolean mRevoked;
 
+    private ParcelFileDescriptor.OnCloseListener mOnCloseListener;
+
     /** {@hide} */
     public RevocableFileDescriptor() {
     }
@@ -101,6 +103,16 @@ public class RevocableFileDescriptor {
         return mRevoked;
     }
 
+    /**
+     * Set a listener invoked once the client has closed the
+     * {@link ParcelFileDescriptor} returned by {@link #getRevocableFileDescriptor()}.
+     *
+     * {@hide}
+     */
+    public void setOnCloseListener(ParcelFileDescriptor.OnCloseListener onCloseListener) {
+        mOnCloseListener = onCloseListener;
+    }
+
     private final ProxyFileDescriptorCallback mCallback = new ProxyFileDescriptorCallback() {
         private void checkRevoked() throws ErrnoException {
             if (mRevoked) {
@@ -156,6 +168,9 @@ public class RevocableFileDescriptor {
             if (DEBUG) Slog.v(TAG, "onRelease()");
             mRevoked = true;
             IoUtils.closeQuietly(mInner);
+            if (mOnCloseListener != null) {
+                mOnCloseListener.onClose(null);
+            }
         }
     };
 }
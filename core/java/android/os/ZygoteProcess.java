@@ -27,6 +27,7 @@ import java.io.BufferedWriter;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -156,6 +157,18 @@ public class ZygoteProcess {
      */
     private ZygoteState secondaryZygoteState;
 
+    /**
+     * Reply latencies of the starts served by a child from a zygote's pool. A pooled child
+     * replies before it specializes, while a fork replies after forking, so these don't compare
+     * launch latency; see the attach latencies dumped by the activity manager for that.
+     */
+    @GuardedBy("mLock")
+    private final StartLatency mPoolStartLatency = new StartLatency();
+
+    /** Reply latencies of the starts that forked a new child. */
+    @GuardedBy("mLock")
+    private final StartLatency mForkStartLatency = new StartLatency();
+
     /**
      * Start a new process.
      *
@@ -274,7 +287,8 @@ public class ZygoteProcess {
              *
              * After the zygote process reads these it will write the pid of
              * the child or -1 on failure, followed by boolean to
-             * indicate whether a wrapper process was used.
+             * indicate whether a wrapper process was used and one to indicate
+             * whether the child was taken from the zygote's pool.
              */
             final BufferedWriter writer = zygoteState.writer;
             final DataInputStream inputStream = zygoteState.inputStream;
@@ -298,6 +312,7 @@ public class ZygoteProcess {
             // upon.
             result.pid = inputStream.readInt();
             result.usingWrapper = inputStream.readBoolean();
+            result.usedPool = inputStream.readBoolean();
 
             if (result.pid < 0) {
                 throw new ZygoteStartFailedEx("fork() failed");
@@ -434,7 +449,53 @@ public class ZygoteProcess {
         }
 
         synchronized(mLock) {
-            return zygoteSendArgsAndGetResult(openZygoteSocketIfNeeded(abi), argsForZygote);
+            final ZygoteState zygoteState = openZygoteSocketIfNeeded(abi);
+            final long startTime = SystemClock.elapsedRealtimeNanos();
+            final Process.ProcessStartResult result =
+                    zygoteSendArgsAndGetResult(zygoteState, argsForZygote);
+            final long latencyMicros = (SystemClock.elapsedRealtimeNanos() - startTime) / 1000;
+            if (result.usedPool) {
+                mPoolStartLatency.add(latencyMicros);
+            } else {
+                mForkStartLatency.add(latencyMicros);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Dumps how long the zygotes took to reply to start requests, for requests served by a
+     * pre-forked child and for requests that forked a new one. This is only the reply latency:
+     * it doesn't include the specialization a pooled child does after replying.
+     */
+    public void dumpStartLatency(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.print(prefix); pw.print("Zygote reply latency (pool): ");
+            pw.println(mPoolStartLatency);
+            pw.print(prefix); pw.print("Zygote reply latency (fork): ");
+            pw.println(mForkStartLatency);
+        }
+    }
+
+    /**
+     * Count, mean and max of zygote reply latencies.
+     */
+    private static final class StartLatency {
+        private long mCount;
+        private long mTotalMicros;
+        private long mMaxMicros;
+
+        void add(long micros) {
+            mCount++;
+            mTotalMicros += micros;
+            mMaxMicros = Math.max(mMaxMicros, micros);
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + mCount
+                    + " meanUs=" + (mCount > 0 ? mTotalMicros / mCount : 0)
+                    + " maxUs=" + mMaxMicros;
         }
     }
 
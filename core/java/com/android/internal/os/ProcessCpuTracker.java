@@ -31,7 +31,6 @@ import com.android.internal.util.FastPrintWriter;
 import libcore.io.IoUtils;
 import libcore.io.Libcore;
 
-import java.io.File;
 import java.io.FileInputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
@@ -175,6 +174,15 @@ public class ProcessCpuTracker {
     private final ArrayList<Stats> mWorkingProcs = new ArrayList<Stats>();
     private boolean mWorkingProcsSorted;
 
+    // Processes that used CPU in the last sample, in pid order. Filled while sampling so that
+    // callers only interested in the deltas don't need to walk all processes or sort them.
+    private final ArrayList<Stats> mUnsortedWorkingProcs = new ArrayList<Stats>();
+
+    // Scratch lists the sorted pid lists are merged into on each sample, so that processes
+    // coming and going don't shift the whole stats list around.
+    private final ArrayList<Stats> mMergedProcStats = new ArrayList<Stats>();
+    private final ArrayList<Stats> mMergedThreadStats = new ArrayList<Stats>();
+
     private boolean mFirst = true;
 
     private byte[] mBuffer = new byte[4096];
@@ -248,10 +256,10 @@ public class ProcessCpuTracker {
         Stats(int _pid, int parentPid, boolean includeThreads) {
             pid = _pid;
             if (parentPid < 0) {
-                final File procDir = new File("/proc", Integer.toString(pid));
-                statFile = new File(procDir, "stat").toString();
-                cmdlineFile = new File(procDir, "cmdline").toString();
-                threadsDir = (new File(procDir, "task")).toString();
+                final String procDir = "/proc/" + pid;
+                statFile = procDir + "/stat";
+                cmdlineFile = procDir + "/cmdline";
+                threadsDir = procDir + "/task";
                 if (includeThreads) {
                     threadStats = new ArrayList<Stats>();
                     workingThreads = new ArrayList<Stats>();
@@ -260,17 +268,13 @@ public class ProcessCpuTracker {
                     workingThreads = null;
                 }
             } else {
-                final File procDir = new File("/proc", Integer.toString(
-                        parentPid));
-                final File taskDir = new File(
-                        new File(procDir, "task"), Integer.toString(pid));
-                statFile = new File(taskDir, "stat").toString();
+                statFile = "/proc/" + parentPid + "/task/" + pid + "/stat";
                 cmdlineFile = null;
                 threadsDir = null;
                 threadStats = null;
                 workingThreads = null;
             }
-            uid = FileUtils.getUid(statFile.toString());
+            uid = FileUtils.getUid(statFile);
         }
     }
 
@@ -385,7 +389,9 @@ public class ProcessCpuTracker {
 
         final StrictMode.ThreadPolicy savedPolicy = StrictMode.allowThreadDiskReads();
         try {
-            mCurPids = collectStats("/proc", -1, mFirst, mCurPids, mProcStats);
+            mUnsortedWorkingProcs.clear();
+            mCurPids = collectStats("/proc", -1, mFirst, mCurPids, mProcStats,
+                    mMergedProcStats);
         } finally {
             StrictMode.setThreadPolicy(savedPolicy);
         }
@@ -411,13 +417,19 @@ public class ProcessCpuTracker {
         mFirst = false;
     }
 
+    /**
+     * Merges the sorted pids currently in {@code statsFile} with the sorted {@code allProcs},
+     * updating the stats of the processes that are still around. The result is built into
+     * {@code merged} and copied back, which keeps this linear in the number of processes.
+     */
     private int[] collectStats(String statsFile, int parentPid, boolean first,
-            int[] curPids, ArrayList<Stats> allProcs) {
+            int[] curPids, ArrayList<Stats> allProcs, ArrayList<Stats> merged) {
 
         int[] pids = Process.getPids(statsFile, curPids);
         int NP = (pids == null) ? 0 : pids.length;
-        int NS = allProcs.size();
+        final int NS = allProcs.size();
         int curStatsIndex = 0;
+        merged.clear();
         for (int i=0; i<NP; i++) {
             int pid = pids[i];
             if (pid < 0) {
@@ -431,6 +443,7 @@ public class ProcessCpuTracker {
                 st.added = false;
                 st.working = false;
                 curStatsIndex++;
+                merged.add(st);
                 if (DEBUG) Slog.v(TAG, "Existing "
                         + (parentPid < 0 ? "process" : "thread")
                         + " pid " + pid + ": " + st);
@@ -439,7 +452,7 @@ public class ProcessCpuTracker {
                     final long uptime = SystemClock.uptimeMillis();
 
                     final long[] procStats = mProcessStatsData;
-                    if (!Process.readProcFile(st.statFile.toString(),
+                    if (!Process.readProcFile(st.statFile,
                             PROCESS_STATS_FORMAT, null, procStats, null)) {
                         continue;
                     }
@@ -468,7 +481,7 @@ public class ProcessCpuTracker {
                         getName(st, st.cmdlineFile);
                         if (st.threadStats != null) {
                             mCurThreadPids = collectStats(st.threadsDir, pid, false,
-                                    mCurThreadPids, st.threadStats);
+                                    mCurThreadPids, st.threadStats, mMergedThreadStats);
                         }
                     }
 
@@ -489,6 +502,9 @@ public class ProcessCpuTracker {
                     st.base_minfaults = minfaults;
                     st.base_majfaults = majfaults;
                     st.working = true;
+                    if (parentPid < 0) {
+                        mUnsortedWorkingProcs.add(st);
+                    }
                 }
 
                 continue;
@@ -497,9 +513,7 @@ public class ProcessCpuTracker {
             if (st == null || st.pid > pid) {
                 // We have a new process!
                 st = new Stats(pid, parentPid, mIncludeThreads);
-                allProcs.add(curStatsIndex, st);
-                curStatsIndex++;
-                NS++;
+                merged.add(st);
                 if (DEBUG) Slog.v(TAG, "New "
                         + (parentPid < 0 ? "process" : "thread")
                         + " pid " + pid + ": " + st);
@@ -507,9 +521,8 @@ public class ProcessCpuTracker {
                 final String[] procStatsString = mProcessFullStatsStringData;
                 final long[] procStats = mProcessFullStatsData;
                 st.base_uptime = SystemClock.uptimeMillis();
-                String path = st.statFile.toString();
-                //Slog.d(TAG, "Reading proc file: " + path);
-                if (Process.readProcFile(path, PROCESS_FULL_STATS_FORMAT, procStatsString,
+                //Slog.d(TAG, "Reading proc file: " + st.statFile);
+                if (Process.readProcFile(st.statFile, PROCESS_FULL_STATS_FORMAT, procStatsString,
                         procStats, null)) {
                     // This is a possible way to filter out processes that
                     // are actually kernel threads...  do we want to?  Some
@@ -539,7 +552,7 @@ public class ProcessCpuTracker {
                     getName(st, st.cmdlineFile);
                     if (st.threadStats != null) {
                         mCurThreadPids = collectStats(st.threadsDir, pid, true,
-                                mCurThreadPids, st.threadStats);
+                                mCurThreadPids, st.threadStats, mMergedThreadStats);
                     }
                 } else if (st.interesting) {
                     st.name = st.baseName;
@@ -557,6 +570,9 @@ public class ProcessCpuTracker {
                 st.added = true;
                 if (!first && st.interesting) {
                     st.working = true;
+                    if (parentPid < 0) {
+                        mUnsortedWorkingProcs.add(st);
+                    }
                 }
                 continue;
             }
@@ -568,8 +584,7 @@ public class ProcessCpuTracker {
             st.rel_majfaults = 0;
             st.removed = true;
             st.working = true;
-            allProcs.remove(curStatsIndex);
-            NS--;
+            curStatsIndex++;
             if (DEBUG) Slog.v(TAG, "Removed "
                     + (parentPid < 0 ? "process" : "thread")
                     + " pid " + pid + ": " + st);
@@ -588,11 +603,17 @@ public class ProcessCpuTracker {
             st.rel_majfaults = 0;
             st.removed = true;
             st.working = true;
-            allProcs.remove(curStatsIndex);
-            NS--;
+            curStatsIndex++;
             if (localLOGV) Slog.v(TAG, "Removed pid " + st.pid + ": " + st);
         }
 
+        allProcs.clear();
+        final int NM = merged.size();
+        for (int i=0; i<NM; i++) {
+            allProcs.add(merged.get(i));
+        }
+        merged.clear();
+
         return pids;
     }
 
@@ -723,6 +744,22 @@ public class ProcessCpuTracker {
         return mWorkingProcs.get(index);
     }
 
+    /**
+     * Returns the number of processes that used CPU in the last sample. Unlike
+     * {@link #countWorkingStats}, this doesn't sort them by load, and is cheap enough to be
+     * called after every {@link #update}.
+     */
+    final public int countUnsortedWorkingStats() {
+        return mUnsortedWorkingProcs.size();
+    }
+
+    /**
+     * Returns a process that used CPU in the last sample, in pid order.
+     */
+    final public Stats getUnsortedWorkingStats(int index) {
+        return mUnsortedWorkingProcs.get(index);
+    }
+
     final public String printCurrentLoad() {
         StringWriter sw = new StringWriter();
         PrintWriter pw = new FastPrintWriter(sw, false, 128);
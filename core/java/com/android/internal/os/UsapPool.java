@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import static android.system.OsConstants.O_CLOEXEC;
+
+import android.os.Process;
+import android.os.SystemProperties;
+import android.os.Trace;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.IntArray;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+
+/**
+ * Pool of unspecialized app processes (USAPs): zygote children forked ahead of time, which
+ * wait for the arguments of a process start before specializing into an app process.
+ *
+ * <p>When a start request can be served from the pool, the zygote hands its arguments to a
+ * pooled child over a pipe and replies to the client with that child's pid right away, so the
+ * fork is no longer on the launch critical path. The pool is refilled from the zygote's select
+ * loop once its command sockets have been idle for {@link #REFILL_DELAY_MILLIS}.
+ */
+public final class UsapPool {
+    private static final String TAG = "UsapPool";
+
+    /** Number of children each zygote keeps in its pool, 0 disables the pool. */
+    private static final String POOL_SIZE_PROPERTY = "persist.sys.zygote.usap_pool_size";
+    private static final int MAX_POOL_SIZE = 10;
+
+    /** How long the command sockets must be idle before a child is added to the pool. */
+    static final int REFILL_DELAY_MILLIS = 100;
+
+    private final int mSize;
+
+    /** Pids of the pooled children, oldest first. */
+    private final IntArray mPids = new IntArray();
+
+    /** Write end of the command pipe of each pooled child, in the same order as mPids. */
+    private final ArrayList<FileDescriptor> mCommandFds = new ArrayList<>();
+
+    private UsapPool(int size) {
+        mSize = size;
+    }
+
+    /**
+     * @return the pool configured for this device, or {@code null} if it is disabled.
+     */
+    static UsapPool create() {
+        final int size = Math.min(SystemProperties.getInt(POOL_SIZE_PROPERTY, 0), MAX_POOL_SIZE);
+        if (size <= 0) {
+            return null;
+        }
+        Log.i(TAG, "Keeping " + size + " unspecialized app processes");
+        return new UsapPool(size);
+    }
+
+    boolean needsRefill() {
+        return mPids.size() < mSize;
+    }
+
+    /**
+     * @return the file descriptors of the command pipes held by the zygote. Children forked by
+     *         the zygote must close them, and they aren't part of its file descriptor table.
+     */
+    int[] getCommandFds() {
+        final int[] fds = new int[mCommandFds.size()];
+        for (int i = 0; i < fds.length; i++) {
+            fds[i] = mCommandFds.get(i).getInt$();
+        }
+        return fds;
+    }
+
+    /**
+     * Forks a child into the pool. Returns {@code null} in the zygote. In the child, only
+     * returns once it has been handed a start request and specialized, with a {@code Runnable}
+     * that calls the child's main method.
+     *
+     * @param fdsToClose the file descriptors of the zygote sockets.
+     */
+    Runnable forkChild(ZygoteServer zygoteServer, int[] fdsToClose) {
+        final FileDescriptor readFd;
+        final FileDescriptor writeFd;
+        try {
+            final FileDescriptor[] pipeFds = Os.pipe2(O_CLOEXEC);
+            readFd = pipeFds[0];
+            writeFd = pipeFds[1];
+        } catch (ErrnoException ex) {
+            Log.e(TAG, "Unable to create command pipe", ex);
+            return null;
+        }
+
+        final int[] commandFds = getCommandFds();
+        final int[] newFds = { readFd.getInt$(), writeFd.getInt$() };
+        final int pid = Zygote.forkUsap(
+                concatFds(concatFds(fdsToClose, commandFds), new int[] { writeFd.getInt$() }),
+                concatFds(commandFds, newFds));
+
+        if (pid == 0) {
+            // in child
+            zygoteServer.setForkChild();
+            zygoteServer.closeServerSocket();
+            IoUtils.closeQuietly(writeFd);
+            return waitForCommand(readFd);
+        }
+
+        IoUtils.closeQuietly(readFd);
+        if (pid < 0) {
+            Log.w(TAG, "Unable to fork a pooled child");
+            IoUtils.closeQuietly(writeFd);
+            return null;
+        }
+        mPids.add(pid);
+        mCommandFds.add(writeFd);
+        return null;
+    }
+
+    /**
+     * Hands a start request to a pooled child.
+     *
+     * @return the pid of the child that will specialize into the app process, or -1 if no
+     *         child is available.
+     */
+    int handOff(ZygoteConnection.Arguments args, int[][] rlimits) {
+        final byte[] command;
+        try {
+            command = Command.fromArguments(args, rlimits).toByteArray();
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to write pooled child command", ex);
+        }
+
+        while (mPids.size() > 0) {
+            final int pid = mPids.get(0);
+            final FileDescriptor fd = mCommandFds.remove(0);
+            mPids.remove(0);
+            try {
+                int offset = 0;
+                while (offset < command.length) {
+                    offset += Os.write(fd, command, offset, command.length - offset);
+                }
+                return pid;
+            } catch (ErrnoException | InterruptedIOException ex) {
+                // The child died since it was forked.
+                Log.w(TAG, "Pooled child " + pid + " is gone", ex);
+            } finally {
+                IoUtils.closeQuietly(fd);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Lets go of all the pooled children, which exit when they see their command pipe closed.
+     * Called when the zygote state they inherited is stale.
+     */
+    void drain() {
+        for (int i = 0; i < mCommandFds.size(); i++) {
+            IoUtils.closeQuietly(mCommandFds.get(i));
+        }
+        mCommandFds.clear();
+        mPids.clear();
+    }
+
+    /**
+     * Blocks the pooled child until it is handed a start request, then specializes it.
+     */
+    private static Runnable waitForCommand(FileDescriptor readFd) {
+        final Command command;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(readFd)))) {
+            command = Command.readFrom(in);
+        } catch (IOException ex) {
+            // The zygote let go of this child, or died.
+            System.exit(0);
+            return null;
+        }
+
+        Zygote.specializeAppProcess(command.uid, command.gid, command.gids, command.debugFlags,
+                command.rlimits, command.mountExternal, command.seInfo, command.niceName,
+                command.instructionSet, command.appDataDir);
+
+        if (command.niceName != null) {
+            Process.setArgV0(command.niceName);
+        }
+
+        // End of the postFork event.
+        Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
+        return ZygoteInit.zygoteInit(command.targetSdkVersion, command.remainingArgs,
+                null /* classLoader */);
+    }
+
+    static int[] concatFds(int[] a, int[] b) {
+        if (a == null || a.length == 0) {
+            return b;
+        }
+        if (b == null || b.length == 0) {
+            return a;
+        }
+        final int[] result = new int[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    /**
+     * The arguments a pooled child needs to specialize, after the zygote has applied its
+     * security policy to the start request.
+     */
+    @VisibleForTesting
+    public static final class Command {
+        public int uid;
+        public int gid;
+        public int[] gids;
+        public int debugFlags;
+        public int[][] rlimits;
+        public int mountExternal;
+        public String seInfo;
+        public String niceName;
+        public String instructionSet;
+        public String appDataDir;
+        public int targetSdkVersion;
+        public String[] remainingArgs;
+
+        static Command fromArguments(ZygoteConnection.Arguments args, int[][] rlimits) {
+            final Command command = new Command();
+            command.uid = args.uid;
+            command.gid = args.gid;
+            command.gids = args.gids;
+            command.debugFlags = args.debugFlags;
+            command.rlimits = rlimits;
+            command.mountExternal = args.mountExternal;
+            command.seInfo = args.seInfo;
+            command.niceName = args.niceName;
+            command.instructionSet = args.instructionSet;
+            command.appDataDir = args.appDataDir;
+            command.targetSdkVersion = args.targetSdkVersion;
+            command.remainingArgs = args.remainingArgs;
+            return command;
+        }
+
+        public byte[] toByteArray() throws IOException {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(uid);
+            out.writeInt(gid);
+            writeIntArray(out, gids);
+            out.writeInt(debugFlags);
+            if (rlimits == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(rlimits.length);
+                for (int[] rlimit : rlimits) {
+                    writeIntArray(out, rlimit);
+                }
+            }
+            out.writeInt(mountExternal);
+            writeString(out, seInfo);
+            writeString(out, niceName);
+            writeString(out, instructionSet);
+            writeString(out, appDataDir);
+            out.writeInt(targetSdkVersion);
+            if (remainingArgs == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(remainingArgs.length);
+                for (String arg : remainingArgs) {
+                    writeString(out, arg);
+                }
+            }
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        public static Command readFrom(DataInputStream in) throws IOException {
+            final Command command = new Command();
+            command.uid = in.readInt();
+            command.gid = in.readInt();
+            command.gids = readIntArray(in);
+            command.debugFlags = in.readInt();
+            final int rlimitCount = in.readInt();
+            if (rlimitCount >= 0) {
+                command.rlimits = new int[rlimitCount][];
+                for (int i = 0; i < rlimitCount; i++) {
+                    command.rlimits[i] = readIntArray(in);
+                }
+            }
+            command.mountExternal = in.readInt();
+            command.seInfo = readString(in);
+            command.niceName = readString(in);
+            command.instructionSet = readString(in);
+            command.appDataDir = readString(in);
+            command.targetSdkVersion = in.readInt();
+            final int argCount = in.readInt();
+            if (argCount >= 0) {
+                command.remainingArgs = new String[argCount];
+                for (int i = 0; i < argCount; i++) {
+                    command.remainingArgs[i] = readString(in);
+                }
+            }
+            return command;
+        }
+
+        private static void writeIntArray(DataOutputStream out, int[] values) throws IOException {
+            if (values == null) {
+                out.writeInt(-1);
+                return;
+            }
+            out.writeInt(values.length);
+            for (int value : values) {
+                out.writeInt(value);
+            }
+        }
+
+        private static int[] readIntArray(DataInputStream in) throws IOException {
+            final int length = in.readInt();
+            if (length < 0) {
+                return null;
+            }
+            final int[] values = new int[length];
+            for (int i = 0; i < length; i++) {
+                values[i] = in.readInt();
+            }
+            return values;
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            out.writeBoolean(value != null);
+            if (value != null) {
+                out.writeUTF(value);
+            }
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            return in.readBoolean() ? in.readUTF() : null;
+        }
+    }
+}
@@ -120,6 +120,58 @@ public final class Zygote {
           int[][] rlimits, int mountExternal, String seInfo, String niceName, int[] fdsToClose,
           int[] fdsToIgnore, String instructionSet, String appDataDir);
 
+    /**
+     * Forks a new VM instance that is left unspecialized: the child keeps running with the
+     * zygote's uid, capabilities and security context until it is handed the arguments of an
+     * app process and calls {@link #specializeAppProcess}.
+     *
+     * @param fdsToClose an array of ints, holding one or more POSIX
+     * file descriptor numbers that are to be closed by the child
+     * (and replaced by /dev/null) after forking.  An integer value
+     * of -1 in any entry in the array means "ignore this one".
+     * @param fdsToIgnore null-ok an array of ints, either null or holding
+     * one or more POSIX file descriptor numbers that are to be ignored
+     * in the file descriptor table check.
+     *
+     * @return 0 if this is the child, pid of the child
+     * if this is the parent, or -1 on error.
+     */
+    static int forkUsap(int[] fdsToClose, int[] fdsToIgnore) {
+        VM_HOOKS.preFork();
+        // Resets nice priority for zygote process.
+        resetNicePriority();
+        int pid = nativeForkUsap(fdsToClose, fdsToIgnore);
+        if (pid != 0) {
+            // The child only restarts the runtime daemons once it is specialized, since it
+            // must still be single threaded when it changes its security context.
+            VM_HOOKS.postForkCommon();
+        }
+        return pid;
+    }
+
+    native private static int nativeForkUsap(int[] fdsToClose, int[] fdsToIgnore);
+
+    /**
+     * Specializes a child forked by {@link #forkUsap} into an app process. Takes the same
+     * arguments as {@link #forkAndSpecialize}, less the file descriptors handled at fork time.
+     */
+    static void specializeAppProcess(int uid, int gid, int[] gids, int debugFlags,
+            int[][] rlimits, int mountExternal, String seInfo, String niceName,
+            String instructionSet, String appDataDir) {
+        nativeSpecializeAppProcess(uid, gid, gids, debugFlags, rlimits, mountExternal, seInfo,
+                niceName, instructionSet, appDataDir);
+        // Enable tracing as soon as possible for the child process.
+        Trace.setTracingEnabled(true, debugFlags);
+
+        // Note that this event ends at the end of handleChildProc,
+        Trace.traceBegin(Trace.TRACE_TAG_ACTIVITY_MANAGER, "PostFork");
+        VM_HOOKS.postForkCommon();
+    }
+
+    native private static void nativeSpecializeAppProcess(int uid, int gid, int[] gids,
+            int debugFlags, int[][] rlimits, int mountExternal, String seInfo, String niceName,
+            String instructionSet, String appDataDir);
+
     /**
      * Called to do any initialization before starting an application.
      */
@@ -192,8 +192,24 @@ class ZygoteConnection {
             }
         }
 
+        final UsapPool usapPool = zygoteServer.getUsapPool();
         if (parsedArgs.refreshFont) {
             Typeface.recreateDefaults();
+            if (usapPool != null) {
+                // The pooled children were forked with the old fonts.
+                usapPool.drain();
+            }
+        }
+
+        // Hand the request to a pooled child if there is one. Requests that need a wrapper or
+        // new stdio descriptors are always forked.
+        if (usapPool != null && parsedArgs.invokeWith == null && descriptors == null) {
+            pid = usapPool.handOff(parsedArgs, rlimits);
+            if (pid > 0) {
+                handleParentProc(pid, null /* descriptors */, null /* pipeFd */,
+                        true /* usedPool */);
+                return null;
+            }
         }
 
         /**
@@ -224,6 +240,13 @@ class ZygoteConnection {
 
         fd = null;
 
+        if (usapPool != null) {
+            // The command pipes of the pooled children must not leak into the new process.
+            final int[] commandFds = usapPool.getCommandFds();
+            fdsToClose = UsapPool.concatFds(fdsToClose, commandFds);
+            fdsToIgnore = UsapPool.concatFds(fdsToIgnore, commandFds);
+        }
+
         pid = Zygote.forkAndSpecialize(parsedArgs.uid, parsedArgs.gid, parsedArgs.gids,
                 parsedArgs.debugFlags, rlimits, parsedArgs.mountExternal, parsedArgs.seInfo,
                 parsedArgs.niceName, fdsToClose, fdsToIgnore, parsedArgs.instructionSet,
@@ -244,7 +267,7 @@ class ZygoteConnection {
                 // handleParentProc.
                 IoUtils.closeQuietly(childPipeFd);
                 childPipeFd = null;
-                handleParentProc(pid, descriptors, serverPipeFd);
+                handleParentProc(pid, descriptors, serverPipeFd, false /* usedPool */);
                 return null;
             }
         } finally {
@@ -820,8 +843,10 @@ class ZygoteConnection {
      * @param descriptors null-ok; file descriptors for child's new stdio if
      * specified.
      * @param pipeFd null-ok; pipe for communication with child.
+     * @param usedPool whether the child was taken from the pool of pre-forked children.
      */
-    private void handleParentProc(int pid, FileDescriptor[] descriptors, FileDescriptor pipeFd) {
+    private void handleParentProc(int pid, FileDescriptor[] descriptors, FileDescriptor pipeFd,
+            boolean usedPool) {
         if (pid > 0) {
             setChildPgid(pid);
         }
@@ -912,6 +937,7 @@ class ZygoteConnection {
         try {
             mSocketOutStream.writeInt(pid);
             mSocketOutStream.writeBoolean(usingWrapper);
+            mSocketOutStream.writeBoolean(usedPool);
         } catch (IOException ex) {
             throw new IllegalStateException("Error writing to command socket", ex);
         }
@@ -789,6 +789,8 @@ public class ZygoteInit {
                 }
             }
 
+            zygoteServer.setUsapPool(UsapPool.create());
+
             Log.i(TAG, "Accepting command socket connections");
 
             // The select loop returns early in the child process after a fork and
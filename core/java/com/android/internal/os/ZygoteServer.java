@@ -51,6 +51,9 @@ class ZygoteServer {
      */
     private boolean mIsForkChild;
 
+    /** Pool of pre-forked children, or null if this zygote doesn't keep one. */
+    private UsapPool mUsapPool;
+
     ZygoteServer() {
     }
 
@@ -58,6 +61,14 @@ class ZygoteServer {
         mIsForkChild = true;
     }
 
+    void setUsapPool(UsapPool usapPool) {
+        mUsapPool = usapPool;
+    }
+
+    UsapPool getUsapPool() {
+        return mUsapPool;
+    }
+
     /**
      * Registers a server socket for zygote command connections
      *
@@ -154,11 +165,31 @@ class ZygoteServer {
                 pollFds[i].fd = fds.get(i);
                 pollFds[i].events = (short) POLLIN;
             }
+            final boolean refillPool = mUsapPool != null && mUsapPool.needsRefill()
+                    && ZygoteInit.isPreloadComplete();
+            final int readyCount;
             try {
-                Os.poll(pollFds, -1);
+                readyCount = Os.poll(pollFds, refillPool ? UsapPool.REFILL_DELAY_MILLIS : -1);
             } catch (ErrnoException ex) {
                 throw new RuntimeException("poll failed", ex);
             }
+            if (readyCount == 0) {
+                // No command for a while, add a child to the pool. The child must close all
+                // the zygote sockets.
+                int[] fdsToClose = new int[fds.size()];
+                for (int i = 0; i < fdsToClose.length; i++) {
+                    fdsToClose[i] = fds.get(i).getInt$();
+                }
+                final Runnable command = mUsapPool.forkChild(this, fdsToClose);
+                if (mIsForkChild) {
+                    // We're in the pooled child, which has now been specialized.
+                    if (command == null) {
+                        throw new IllegalStateException("command == null");
+                    }
+                    return command;
+                }
+                continue;
+            }
             for (int i = pollFds.length - 1; i >= 0; --i) {
                 if ((pollFds[i].revents & POLLIN) == 0) {
                     continue;
@@ -57,6 +57,25 @@ public class ExponentiallyBucketedHistogram {
         }
     }
 
+    /**
+     * @return The number of buckets of the histogram
+     */
+    public int getBucketCount() {
+        return mData.length;
+    }
+
+    /**
+     * Get the number of values in a bucket.
+     *
+     * Bucket {@code i} contains the values < 2<sup>i</sup> that are not in a lower bucket, the
+     * last bucket contains all remaining values
+     *
+     * @param bucket The index of the bucket
+     */
+    public int getCount(int bucket) {
+        return mData[bucket];
+    }
+
     /**
      * Clear all data from the histogram
      */
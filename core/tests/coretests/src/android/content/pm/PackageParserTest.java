@@ -19,6 +19,7 @@ package android.content.pm;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import android.content.Context;
@@ -367,6 +368,24 @@ public class PackageParserTest {
                 PackageParser.fromCacheEntryStatic(PackageParser.toCacheEntryStatic(p)));
     }
 
+    @Test
+    public void testPackageWithComponents_cachedWithSharedStrings() throws Exception {
+        final Package[] read = new Package[2];
+        PackageParser.setCacheSharingEnabled(true);
+        try {
+            checkPackageWithComponents(p -> {
+                final byte[] entry = PackageParser.toCacheEntryStatic(p);
+                read[0] = PackageParser.fromCacheEntryStatic(entry);
+                read[1] = PackageParser.fromCacheEntryStatic(entry);
+                return read[1];
+            });
+        } finally {
+            PackageParser.setCacheSharingEnabled(false);
+        }
+        // Strings read from separate cache entries are shared.
+        assertSame(read[0].packageName, read[1].packageName);
+    }
+
     private void checkPackageWithComponents(
             Function<Package, Package> converter) throws Exception {
         Package p = parsePackage(
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+
+/**
+ * Tests for {@link UsapPool.Command}
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class UsapPoolTest {
+
+    private static UsapPool.Command roundTrip(UsapPool.Command command) throws Exception {
+        final DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(command.toByteArray()));
+        final UsapPool.Command read = UsapPool.Command.readFrom(in);
+        assertEquals(-1, in.read());
+        return read;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final UsapPool.Command command = new UsapPool.Command();
+        command.uid = 10042;
+        command.gid = 10042;
+        command.gids = new int[] { 3003, 9997, 50042 };
+        command.debugFlags = 0x4;
+        command.rlimits = new int[][] { { 7, 1024, 4096 }, { 4, 0, 0 } };
+        command.mountExternal = 2;
+        command.seInfo = "default:targetSdkVersion=26:complete";
+        command.niceName = "com.example.app:remote";
+        command.instructionSet = "arm64";
+        command.appDataDir = "/data/user/0/com.example.app";
+        command.targetSdkVersion = 26;
+        command.remainingArgs = new String[] { "android.app.ActivityThread", "seq=7", "é" };
+
+        final UsapPool.Command read = roundTrip(command);
+        assertEquals(command.uid, read.uid);
+        assertEquals(command.gid, read.gid);
+        assertArrayEquals(command.gids, read.gids);
+        assertEquals(command.debugFlags, read.debugFlags);
+        assertEquals(command.rlimits.length, read.rlimits.length);
+        for (int i = 0; i < command.rlimits.length; i++) {
+            assertArrayEquals(command.rlimits[i], read.rlimits[i]);
+        }
+        assertEquals(command.mountExternal, read.mountExternal);
+        assertEquals(command.seInfo, read.seInfo);
+        assertEquals(command.niceName, read.niceName);
+        assertEquals(command.instructionSet, read.instructionSet);
+        assertEquals(command.appDataDir, read.appDataDir);
+        assertEquals(command.targetSdkVersion, read.targetSdkVersion);
+        assertArrayEquals(command.remainingArgs, read.remainingArgs);
+    }
+
+    @Test
+    public void testRoundTripNulls() throws Exception {
+        final UsapPool.Command command = new UsapPool.Command();
+        command.uid = 10042;
+        command.gids = new int[0];
+
+        final UsapPool.Command read = roundTrip(command);
+        assertEquals(command.uid, read.uid);
+        assertArrayEquals(command.gids, read.gids);
+        assertNull(read.rlimits);
+        assertNull(read.seInfo);
+        assertNull(read.niceName);
+        assertNull(read.instructionSet);
+        assertNull(read.appDataDir);
+        assertNull(read.remainingArgs);
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import java.util.ArrayList;
+
+/**
+ * List of alarm batches sorted by the start of their delivery window, indexed so that finding
+ * the batch an alarm can be coalesced into, or the first batch with wakeup alarms, doesn't
+ * require walking all batches.
+ *
+ * <p>Batches are kept in a treap ordered by start time, where each node also tracks the latest
+ * window end of the coalescable batches below it. All operations, including positional
+ * access, are O(log n) expected. Batches with the same start time are kept in insertion order.
+ *
+ * <p>The window and wakeup state of a batch are captured when it is added: a batch that is
+ * changed while in the list must be removed and added again, or the list rebuilt, before the
+ * list is searched again.
+ */
+final class AlarmBatchList<B extends AlarmBatchList.Window> {
+
+    interface Window {
+        /** Start of the delivery window, in elapsed realtime. */
+        long getStart();
+
+        /** End of the delivery window, in elapsed realtime. */
+        long getEnd();
+
+        /** Whether other alarms may be added to this batch. */
+        boolean isCoalescable();
+
+        /** Whether this batch contains alarms that wake up the device. */
+        boolean hasWakeups();
+    }
+
+    private static final class Node<B> {
+        final B batch;
+        final long start;
+        final long end;
+        final boolean coalescable;
+        final boolean wakeup;
+        final int priority;
+        Node<B> left;
+        Node<B> right;
+
+        // Aggregates over this subtree.
+        int size;
+        long maxCoalescableEnd;
+        boolean anyWakeup;
+
+        Node(B batch, long start, long end, boolean coalescable, boolean wakeup, int priority) {
+            this.batch = batch;
+            this.start = start;
+            this.end = end;
+            this.coalescable = coalescable;
+            this.wakeup = wakeup;
+            this.priority = priority;
+        }
+    }
+
+    private Node<B> mRoot;
+
+    // Results of the last split.
+    private Node<B> mSplitLeft;
+    private Node<B> mSplitRight;
+
+    private int mSeed = 0x2545F491;
+
+    int size() {
+        return mRoot != null ? mRoot.size : 0;
+    }
+
+    B get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("index=" + index + " size=" + size());
+        }
+        Node<B> node = mRoot;
+        while (true) {
+            final int leftSize = size(node.left);
+            if (index < leftSize) {
+                node = node.left;
+            } else if (index == leftSize) {
+                return node.batch;
+            } else {
+                index -= leftSize + 1;
+                node = node.right;
+            }
+        }
+    }
+
+    /**
+     * Adds a batch after all the batches that don't start later than it.
+     *
+     * @return the index of the batch.
+     */
+    int add(B batch) {
+        final Node<B> node = new Node<>(batch, batch.getStart(), batch.getEnd(),
+                batch.isCoalescable(), batch.hasWakeups(), nextPriority());
+        update(node);
+        splitByStart(mRoot, node.start);
+        final Node<B> right = mSplitRight;
+        final int index = size(mSplitLeft);
+        mRoot = merge(merge(mSplitLeft, node), right);
+        mSplitLeft = mSplitRight = null;
+        return index;
+    }
+
+    B remove(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("index=" + index + " size=" + size());
+        }
+        splitByIndex(mRoot, index);
+        final Node<B> left = mSplitLeft;
+        splitByIndex(mSplitRight, 1);
+        final Node<B> removed = mSplitLeft;
+        mRoot = merge(left, mSplitRight);
+        mSplitLeft = mSplitRight = null;
+        return removed.batch;
+    }
+
+    /**
+     * Removes {@code batch}, whose window must not have changed since it was added.
+     *
+     * @return whether the batch was in the list.
+     */
+    boolean remove(B batch) {
+        final int index = indexOf(batch);
+        if (index < 0) {
+            return false;
+        }
+        remove(index);
+        return true;
+    }
+
+    /**
+     * @return the index of {@code batch}, whose window must not have changed since it was
+     *         added, or -1 if it isn't in the list.
+     */
+    int indexOf(B batch) {
+        return indexOf(mRoot, 0, batch, batch.getStart());
+    }
+
+    void clear() {
+        mRoot = null;
+    }
+
+    /**
+     * @return the index of the first coalescable batch whose window overlaps
+     *         [{@code whenElapsed}, {@code maxWhen}], or -1 if there is none.
+     */
+    int findFirstCoalescable(long whenElapsed, long maxWhen) {
+        return findFirstCoalescable(mRoot, 0, whenElapsed, maxWhen);
+    }
+
+    /**
+     * @return the first batch containing wakeup alarms, or {@code null} if there is none.
+     */
+    B findFirstWithWakeups() {
+        Node<B> node = mRoot;
+        while (node != null && node.anyWakeup) {
+            if (node.left != null && node.left.anyWakeup) {
+                node = node.left;
+            } else if (node.wakeup) {
+                return node.batch;
+            } else {
+                node = node.right;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Appends all batches, in order, to {@code out}.
+     */
+    void toList(ArrayList<B> out) {
+        out.ensureCapacity(out.size() + size());
+        addAll(mRoot, out);
+    }
+
+    private static <B> void addAll(Node<B> node, ArrayList<B> out) {
+        while (node != null) {
+            addAll(node.left, out);
+            out.add(node.batch);
+            node = node.right;
+        }
+    }
+
+    private static <B> int indexOf(Node<B> node, int offset, B batch, long start) {
+        while (node != null) {
+            final int leftSize = size(node.left);
+            if (start < node.start) {
+                node = node.left;
+            } else if (start > node.start) {
+                offset += leftSize + 1;
+                node = node.right;
+            } else if (node.batch == batch) {
+                return offset + leftSize;
+            } else {
+                // Batches with the same start can be on either side.
+                final int found = indexOf(node.left, offset, batch, start);
+                if (found >= 0) {
+                    return found;
+                }
+                offset += leftSize + 1;
+                node = node.right;
+            }
+        }
+        return -1;
+    }
+
+    private static <B> int findFirstCoalescable(Node<B> node, int offset, long whenElapsed,
+            long maxWhen) {
+        if (node == null || node.maxCoalescableEnd < whenElapsed) {
+            return -1;
+        }
+        final int leftSize = size(node.left);
+        final int found = findFirstCoalescable(node.left, offset, whenElapsed, maxWhen);
+        if (found >= 0) {
+            return found;
+        }
+        if (node.start > maxWhen) {
+            // This batch and all the ones after it start too late.
+            return -1;
+        }
+        if (node.coalescable && node.end >= whenElapsed) {
+            return offset + leftSize;
+        }
+        return findFirstCoalescable(node.right, offset + leftSize + 1, whenElapsed, maxWhen);
+    }
+
+    /**
+     * Splits {@code node} into {@link #mSplitLeft}, with the batches starting at or before
+     * {@code start}, and {@link #mSplitRight}.
+     */
+    private void splitByStart(Node<B> node, long start) {
+        if (node == null) {
+            mSplitLeft = mSplitRight = null;
+            return;
+        }
+        if (node.start <= start) {
+            splitByStart(node.right, start);
+            node.right = mSplitLeft;
+            update(node);
+            mSplitLeft = node;
+        } else {
+            splitByStart(node.left, start);
+            node.left = mSplitRight;
+            update(node);
+            mSplitRight = node;
+        }
+    }
+
+    /**
+     * Splits {@code node} into {@link #mSplitLeft}, with its first {@code count} batches, and
+     * {@link #mSplitRight}.
+     */
+    private void splitByIndex(Node<B> node, int count) {
+        if (node == null) {
+            mSplitLeft = mSplitRight = null;
+            return;
+        }
+        final int leftSize = size(node.left);
+        if (count <= leftSize) {
+            splitByIndex(node.left, count);
+            node.left = mSplitRight;
+            update(node);
+            mSplitRight = node;
+        } else {
+            splitByIndex(node.right, count - leftSize - 1);
+            node.right = mSplitLeft;
+            update(node);
+            mSplitLeft = node;
+        }
+    }
+
+    /**
+     * Merges two treaps where all the batches of {@code left} come before the ones of
+     * {@code right}.
+     */
+    private static <B> Node<B> merge(Node<B> left, Node<B> right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            update(left);
+            return left;
+        } else {
+            right.left = merge(left, right.left);
+            update(right);
+            return right;
+        }
+    }
+
+    private static <B> void update(Node<B> node) {
+        node.size = 1 + size(node.left) + size(node.right);
+        long maxEnd = node.coalescable ? node.end : Long.MIN_VALUE;
+        boolean anyWakeup = node.wakeup;
+        if (node.left != null) {
+            maxEnd = Math.max(maxEnd, node.left.maxCoalescableEnd);
+            anyWakeup |= node.left.anyWakeup;
+        }
+        if (node.right != null) {
+            maxEnd = Math.max(maxEnd, node.right.maxCoalescableEnd);
+            anyWakeup |= node.right.anyWakeup;
+        }
+        node.maxCoalescableEnd = maxEnd;
+        node.anyWakeup = anyWakeup;
+    }
+
+    private static int size(Node<?> node) {
+        return node != null ? node.size : 0;
+    }
+
+    private int nextPriority() {
+        // xorshift32
+        int x = mSeed;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        mSeed = x;
+        return x;
+    }
+}
@@ -54,6 +54,7 @@ import android.provider.Settings;
 import android.text.TextUtils;
 import android.text.format.DateFormat;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.KeyValueListParser;
 import android.util.Log;
 import android.util.Slog;
@@ -89,6 +90,7 @@ import static android.app.AlarmManager.ELAPSED_REALTIME_WAKEUP;
 import static android.app.AlarmManager.ELAPSED_REALTIME;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.DumpUtils;
 import com.android.internal.util.LocalLog;
 
@@ -211,6 +213,7 @@ class AlarmManagerService extends SystemService {
             new SparseArray<>();
     private final SparseArray<AlarmManager.AlarmClockInfo> mTmpSparseAlarmClockArray =
             new SparseArray<>();
+    private final ArrayList<Batch> mTmpBatches = new ArrayList<>();
     private final SparseBooleanArray mPendingSendNextAlarmClockChangedForUser =
             new SparseBooleanArray();
     private boolean mNextAlarmClockMayChange;
@@ -404,7 +407,7 @@ class AlarmManagerService extends SystemService {
     final LinkedList<WakeupEvent> mRecentWakeups = new LinkedList<WakeupEvent>();
     final long RECENT_WAKEUP_PERIOD = 1000L * 60 * 60 * 24; // one day
 
-    final class Batch {
+    final class Batch implements AlarmBatchList.Window {
         long start;     // These endpoints are always in ELAPSED
         long end;
         int flags;      // Flags for alarms, such as FLAG_STANDALONE.
@@ -422,6 +425,7 @@ class AlarmManagerService extends SystemService {
             end = seed.maxWhenElapsed;
             flags = seed.flags;
             alarms.add(seed);
+            seed.batch = this;
         }
 
         int size() {
@@ -444,6 +448,7 @@ class AlarmManagerService extends SystemService {
                 index = 0 - index - 1;
             }
             alarms.add(index, alarm);
+            alarm.batch = this;
             if (DEBUG_BATCH) {
                 Slog.v(TAG, "Adding " + alarm + " to " + this);
             }
@@ -462,26 +467,20 @@ class AlarmManagerService extends SystemService {
             return newStart;
         }
 
-        boolean remove(final PendingIntent operation, final IAlarmListener listener) {
-            if (operation == null && listener == null) {
-                if (localLOGV) {
-                    Slog.w(TAG, "requested remove() of null operation",
-                            new RuntimeException("here"));
-                }
-                return false;
-            }
+        /**
+         * Drops the given alarms and widens the window to fit the ones left.
+         */
+        boolean remove(ArraySet<Alarm> removed) {
             boolean didRemove = false;
             long newStart = 0;  // recalculate endpoints as we go
             long newEnd = Long.MAX_VALUE;
             int newFlags = 0;
             for (int i = 0; i < alarms.size(); ) {
                 Alarm alarm = alarms.get(i);
-                if (alarm.matches(operation, listener)) {
+                if (removed.contains(alarm)) {
                     alarms.remove(i);
+                    alarm.batch = null;
                     didRemove = true;
-                    if (alarm.alarmClock != null) {
-                        mNextAlarmClockMayChange = true;
-                    }
                 } else {
                     if (alarm.whenElapsed > newStart) {
                         newStart = alarm.whenElapsed;
@@ -502,123 +501,23 @@ class AlarmManagerService extends SystemService {
             return didRemove;
         }
 
-        boolean remove(final String packageName) {
-            if (packageName == null) {
-                if (localLOGV) {
-                    Slog.w(TAG, "requested remove() of null packageName",
-                            new RuntimeException("here"));
-                }
-                return false;
-            }
-            boolean didRemove = false;
-            long newStart = 0;  // recalculate endpoints as we go
-            long newEnd = Long.MAX_VALUE;
-            int newFlags = 0;
-            for (int i = alarms.size()-1; i >= 0; i--) {
-                Alarm alarm = alarms.get(i);
-                if (alarm.matches(packageName)) {
-                    alarms.remove(i);
-                    didRemove = true;
-                    if (alarm.alarmClock != null) {
-                        mNextAlarmClockMayChange = true;
-                    }
-                } else {
-                    if (alarm.whenElapsed > newStart) {
-                        newStart = alarm.whenElapsed;
-                    }
-                    if (alarm.maxWhenElapsed < newEnd) {
-                        newEnd = alarm.maxWhenElapsed;
-                    }
-                    newFlags |= alarm.flags;
-                }
-            }
-            if (didRemove) {
-                // commit the new batch bounds
-                start = newStart;
-                end = newEnd;
-                flags = newFlags;
-            }
-            return didRemove;
-        }
-
-        boolean removeForStopped(final int uid) {
-            boolean didRemove = false;
-            long newStart = 0;  // recalculate endpoints as we go
-            long newEnd = Long.MAX_VALUE;
-            int newFlags = 0;
-            for (int i = alarms.size()-1; i >= 0; i--) {
-                Alarm alarm = alarms.get(i);
-                try {
-                    if (alarm.uid == uid && ActivityManager.getService().isAppStartModeDisabled(
-                            uid, alarm.packageName)) {
-                        alarms.remove(i);
-                        didRemove = true;
-                        if (alarm.alarmClock != null) {
-                            mNextAlarmClockMayChange = true;
-                        }
-                    } else {
-                        if (alarm.whenElapsed > newStart) {
-                            newStart = alarm.whenElapsed;
-                        }
-                        if (alarm.maxWhenElapsed < newEnd) {
-                            newEnd = alarm.maxWhenElapsed;
-                        }
-                        newFlags |= alarm.flags;
-                    }
-                } catch (RemoteException e) {
-                }
-            }
-            if (didRemove) {
-                // commit the new batch bounds
-                start = newStart;
-                end = newEnd;
-                flags = newFlags;
-            }
-            return didRemove;
+        @Override
+        public long getStart() {
+            return start;
         }
 
-        boolean remove(final int userHandle) {
-            boolean didRemove = false;
-            long newStart = 0;  // recalculate endpoints as we go
-            long newEnd = Long.MAX_VALUE;
-            for (int i = 0; i < alarms.size(); ) {
-                Alarm alarm = alarms.get(i);
-                if (UserHandle.getUserId(alarm.creatorUid) == userHandle) {
-                    alarms.remove(i);
-                    didRemove = true;
-                    if (alarm.alarmClock != null) {
-                        mNextAlarmClockMayChange = true;
-                    }
-                } else {
-                    if (alarm.whenElapsed > newStart) {
-                        newStart = alarm.whenElapsed;
-                    }
-                    if (alarm.maxWhenElapsed < newEnd) {
-                        newEnd = alarm.maxWhenElapsed;
-                    }
-                    i++;
-                }
-            }
-            if (didRemove) {
-                // commit the new batch bounds
-                start = newStart;
-                end = newEnd;
-            }
-            return didRemove;
+        @Override
+        public long getEnd() {
+            return end;
         }
 
-        boolean hasPackage(final String packageName) {
-            final int N = alarms.size();
-            for (int i = 0; i < N; i++) {
-                Alarm a = alarms.get(i);
-                if (a.matches(packageName)) {
-                    return true;
-                }
-            }
-            return false;
+        @Override
+        public boolean isCoalescable() {
+            return (flags&AlarmManager.FLAG_STANDALONE) == 0;
         }
 
-        boolean hasWakeups() {
+        @Override
+        public boolean hasWakeups() {
             final int N = alarms.size();
             for (int i = 0; i < N; i++) {
                 Alarm a = alarms.get(i);
@@ -646,17 +545,110 @@ class AlarmManagerService extends SystemService {
         }
     }
 
-    static class BatchTimeOrder implements Comparator<Batch> {
-        public int compare(Batch b1, Batch b2) {
-            long when1 = b1.start;
-            long when2 = b2.start;
-            if (when1 > when2) {
-                return 1;
+    /**
+     * Indexes of the alarms in {@link #mAlarmBatches}, so that finding the alarms to remove for
+     * a PendingIntent, listener, package, uid or user doesn't require walking all batches.
+     */
+    @VisibleForTesting
+    static final class AlarmIndex {
+        // Keyed by the PendingIntent of the alarm, or the binder of its listener.
+        private final ArrayMap<Object, ArraySet<Alarm>> mByTarget = new ArrayMap<>();
+        private final ArrayMap<String, ArraySet<Alarm>> mByPackage = new ArrayMap<>();
+        private final SparseArray<ArraySet<Alarm>> mByUid = new SparseArray<>();
+        private final SparseArray<ArraySet<Alarm>> mByUser = new SparseArray<>();
+        private int mSize;
+
+        void add(Alarm a) {
+            add(mByTarget, a.getTargetKey(), a);
+            if (a.targetPackage != null) {
+                add(mByPackage, a.targetPackage, a);
             }
-            if (when1 < when2) {
-                return -1;
+            add(mByUid, a.uid, a);
+            add(mByUser, UserHandle.getUserId(a.creatorUid), a);
+            mSize++;
+        }
+
+        void remove(Alarm a) {
+            remove(mByTarget, a.getTargetKey(), a);
+            if (a.targetPackage != null) {
+                remove(mByPackage, a.targetPackage, a);
+            }
+            remove(mByUid, a.uid, a);
+            remove(mByUser, UserHandle.getUserId(a.creatorUid), a);
+            mSize--;
+        }
+
+        void clear() {
+            mByTarget.clear();
+            mByPackage.clear();
+            mByUid.clear();
+            mByUser.clear();
+            mSize = 0;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        boolean contains(Alarm a) {
+            final ArraySet<Alarm> alarms = mByTarget.get(a.getTargetKey());
+            return alarms != null && alarms.contains(a);
+        }
+
+        ArraySet<Alarm> getForTarget(Object key) {
+            return key != null ? mByTarget.get(key) : null;
+        }
+
+        ArraySet<Alarm> getForPackage(String packageName) {
+            return mByPackage.get(packageName);
+        }
+
+        ArraySet<Alarm> getForUid(int uid) {
+            return mByUid.get(uid);
+        }
+
+        ArraySet<Alarm> getForUser(int userId) {
+            return mByUser.get(userId);
+        }
+
+        void dump(PrintWriter pw, String prefix) {
+            pw.print(prefix); pw.print("alarms="); pw.print(mSize);
+            pw.print(" targets="); pw.print(mByTarget.size());
+            pw.print(" packages="); pw.print(mByPackage.size());
+            pw.print(" uids="); pw.print(mByUid.size());
+            pw.print(" users="); pw.println(mByUser.size());
+        }
+
+        private static <K> void add(ArrayMap<K, ArraySet<Alarm>> index, K key, Alarm a) {
+            ArraySet<Alarm> alarms = index.get(key);
+            if (alarms == null) {
+                alarms = new ArraySet<>();
+                index.put(key, alarms);
+            }
+            alarms.add(a);
+        }
+
+        private static void add(SparseArray<ArraySet<Alarm>> index, int key, Alarm a) {
+            ArraySet<Alarm> alarms = index.get(key);
+            if (alarms == null) {
+                alarms = new ArraySet<>();
+                index.put(key, alarms);
+            }
+            alarms.add(a);
+        }
+
+        private static <K> void remove(ArrayMap<K, ArraySet<Alarm>> index, K key, Alarm a) {
+            final ArraySet<Alarm> alarms = index.get(key);
+            if (alarms != null && alarms.remove(a) && alarms.isEmpty()) {
+                index.remove(key);
+            }
+        }
+
+        private static void remove(SparseArray<ArraySet<Alarm>> index, int key, Alarm a) {
+            final ArraySet<Alarm> alarms = index.get(key);
+            if (alarms != null && alarms.remove(a) && alarms.isEmpty()) {
+                index.remove(key);
             }
-            return 0;
         }
     }
 
@@ -725,8 +717,14 @@ class AlarmManagerService extends SystemService {
 
     // minimum recurrence period or alarm futurity for us to be able to fuzz it
     static final long MIN_FUZZABLE_INTERVAL = 10000;
-    static final BatchTimeOrder sBatchOrder = new BatchTimeOrder();
-    final ArrayList<Batch> mAlarmBatches = new ArrayList<>();
+    // Pending batches, sorted by start time. Batches must be removed from the list while
+    // they're changed, or the list rebuilt afterwards.
+    final AlarmBatchList<Batch> mAlarmBatches = new AlarmBatchList<>();
+    final AlarmIndex mAlarmIndex = new AlarmIndex();
+
+    // Alarms being removed, and the batches holding them.
+    private final ArraySet<Alarm> mTmpRemovedAlarms = new ArraySet<>();
+    private final ArraySet<Batch> mTmpChangedBatches = new ArraySet<>();
 
     // set to null if in idle mode; while in this mode, any alarms we don't want
     // to run during this time are placed in mPendingWhileIdleAlarms
@@ -763,26 +761,9 @@ class AlarmManagerService extends SystemService {
         return triggerAtTime + (long)(.75 * futurity);
     }
 
-    // returns true if the batch was added at the head
-    static boolean addBatchLocked(ArrayList<Batch> list, Batch newBatch) {
-        int index = Collections.binarySearch(list, newBatch, sBatchOrder);
-        if (index < 0) {
-            index = 0 - index - 1;
-        }
-        list.add(index, newBatch);
-        return (index == 0);
-    }
-
     // Return the index of the matching batch, or -1 if none found.
     int attemptCoalesceLocked(long whenElapsed, long maxWhen) {
-        final int N = mAlarmBatches.size();
-        for (int i = 0; i < N; i++) {
-            Batch b = mAlarmBatches.get(i);
-            if ((b.flags&AlarmManager.FLAG_STANDALONE) == 0 && b.canHold(whenElapsed, maxWhen)) {
-                return i;
-            }
-        }
-        return -1;
+        return mAlarmBatches.findFirstCoalescable(whenElapsed, maxWhen);
     }
 
     // The RTC clock has moved arbitrarily, so we need to recalculate all the batching
@@ -793,18 +774,27 @@ class AlarmManagerService extends SystemService {
     }
 
     void rebatchAllAlarmsLocked(boolean doValidate) {
-        ArrayList<Batch> oldSet = (ArrayList<Batch>) mAlarmBatches.clone();
+        final ArrayList<Batch> oldSet = mTmpBatches;
+        mAlarmBatches.toList(oldSet);
         mAlarmBatches.clear();
+        mAlarmIndex.clear();
         Alarm oldPendingIdleUntil = mPendingIdleUntil;
         final long nowElapsed = SystemClock.elapsedRealtime();
+        final ArraySet<Alarm> removed = mTmpRemovedAlarms;
         final int oldBatches = oldSet.size();
         for (int batchNum = 0; batchNum < oldBatches; batchNum++) {
             Batch batch = oldSet.get(batchNum);
             final int N = batch.size();
             for (int i = 0; i < N; i++) {
-                reAddAlarmLocked(batch.get(i), nowElapsed, doValidate);
+                final Alarm a = batch.get(i);
+                if (removed.size() > 0 && removed.contains(a)) {
+                    continue;
+                }
+                reAddAlarmLocked(a, nowElapsed, doValidate);
             }
         }
+        oldSet.clear();
+        removed.clear();
         if (oldPendingIdleUntil != null && oldPendingIdleUntil != mPendingIdleUntil) {
             Slog.wtf(TAG, "Rebatching: idle until changed from " + oldPendingIdleUntil
                     + " to " + mPendingIdleUntil);
@@ -1314,16 +1304,15 @@ class AlarmManagerService extends SystemService {
                 ? -1 : attemptCoalesceLocked(a.whenElapsed, a.maxWhenElapsed);
         if (whichBatch < 0) {
             Batch batch = new Batch(a);
-            addBatchLocked(mAlarmBatches, batch);
+            mAlarmBatches.add(batch);
         } else {
-            Batch batch = mAlarmBatches.get(whichBatch);
-            if (batch.add(a)) {
-                // The start time of this batch advanced, so batch ordering may
-                // have just been broken.  Move it to where it now belongs.
-                mAlarmBatches.remove(whichBatch);
-                addBatchLocked(mAlarmBatches, batch);
-            }
+            // The window of the batch may narrow and its start time advance, so take it out
+            // while it changes and put it back where it now belongs.
+            Batch batch = mAlarmBatches.remove(whichBatch);
+            batch.add(a);
+            mAlarmBatches.add(batch);
         }
+        mAlarmIndex.add(a);
 
         if (a.alarmClock != null) {
             mNextAlarmClockMayChange = true;
@@ -1615,7 +1604,12 @@ class AlarmManagerService extends SystemService {
                 pw.println();
                 pw.print("  Pending alarm batches: ");
                 pw.println(mAlarmBatches.size());
-                for (Batch b : mAlarmBatches) {
+                pw.println("  Pending alarm index:");
+                mAlarmIndex.dump(pw, "    ");
+                final ArrayList<Batch> batches = new ArrayList<>(mAlarmBatches.size());
+                mAlarmBatches.toList(batches);
+                for (int i = 0; i < batches.size(); i++) {
+                    final Batch b = batches.get(i);
                     pw.print(b); pw.println(':');
                     dumpAlarmList(pw, b.alarms, "    ", nowELAPSED, nowRTC, sdf);
                 }
@@ -1836,9 +1830,11 @@ class AlarmManagerService extends SystemService {
         PrintWriter pw = new PrintWriter(bs);
         final long nowRTC = System.currentTimeMillis();
         final long nowELAPSED = SystemClock.elapsedRealtime();
-        final int NZ = mAlarmBatches.size();
+        final ArrayList<Batch> batches = new ArrayList<>(mAlarmBatches.size());
+        mAlarmBatches.toList(batches);
+        final int NZ = batches.size();
         for (int iz = 0; iz < NZ; iz++) {
-            Batch bz = mAlarmBatches.get(iz);
+            Batch bz = batches.get(iz);
             pw.append("Batch "); pw.print(iz); pw.append(": "); pw.println(bz);
             dumpAlarmList(pw, bz.alarms, "  ", nowELAPSED, nowRTC, sdf);
             pw.flush();
@@ -1850,9 +1846,11 @@ class AlarmManagerService extends SystemService {
     private boolean validateConsistencyLocked() {
         if (DEBUG_VALIDATE) {
             long lastTime = Long.MIN_VALUE;
-            final int N = mAlarmBatches.size();
+            final ArrayList<Batch> batches = new ArrayList<>(mAlarmBatches.size());
+            mAlarmBatches.toList(batches);
+            final int N = batches.size();
             for (int i = 0; i < N; i++) {
-                Batch b = mAlarmBatches.get(i);
+                Batch b = batches.get(i);
                 if (b.start >= lastTime) {
                     // duplicate start times are okay because of standalone batches
                     lastTime = b.start;
@@ -1863,19 +1861,28 @@ class AlarmManagerService extends SystemService {
                     return false;
                 }
             }
+            int numAlarms = 0;
+            for (int i = 0; i < N; i++) {
+                final Batch b = batches.get(i);
+                numAlarms += b.size();
+                for (int j = b.size() - 1; j >= 0; j--) {
+                    if (!mAlarmIndex.contains(b.get(j))) {
+                        Slog.e(TAG, "CONSISTENCY FAILURE: " + b.get(j) + " isn't indexed");
+                        return false;
+                    }
+                }
+            }
+            if (numAlarms != mAlarmIndex.size()) {
+                Slog.e(TAG, "CONSISTENCY FAILURE: " + mAlarmIndex.size() + " alarms indexed, "
+                        + numAlarms + " batched");
+                return false;
+            }
         }
         return true;
     }
 
     private Batch findFirstWakeupBatchLocked() {
-        final int N = mAlarmBatches.size();
-        for (int i = 0; i < N; i++) {
-            Batch b = mAlarmBatches.get(i);
-            if (b.hasWakeups()) {
-                return b;
-            }
-        }
-        return null;
+        return mAlarmBatches.findFirstWithWakeups();
     }
 
     long getNextWakeFromIdleTimeImpl() {
@@ -1908,9 +1915,11 @@ class AlarmManagerService extends SystemService {
         SparseArray<AlarmManager.AlarmClockInfo> nextForUser = mTmpSparseAlarmClockArray;
         nextForUser.clear();
 
-        final int N = mAlarmBatches.size();
+        final ArrayList<Batch> batches = new ArrayList<>(mAlarmBatches.size());
+        mAlarmBatches.toList(batches);
+        final int N = batches.size();
         for (int i = 0; i < N; i++) {
-            ArrayList<Alarm> alarms = mAlarmBatches.get(i).alarms;
+            ArrayList<Alarm> alarms = batches.get(i).alarms;
             final int M = alarms.size();
 
             for (int j = 0; j < M; j++) {
@@ -2052,13 +2061,19 @@ class AlarmManagerService extends SystemService {
     }
 
     private void removeLocked(PendingIntent operation, IAlarmListener directReceiver) {
-        boolean didRemove = false;
-        for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-            Batch b = mAlarmBatches.get(i);
-            didRemove |= b.remove(operation, directReceiver);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
+        if (operation == null && directReceiver == null) {
+            if (localLOGV) {
+                Slog.w(TAG, "requested remove() of null operation",
+                        new RuntimeException("here"));
             }
+            return;
+        }
+        boolean didRemove = markForRemovalLocked(mAlarmIndex.getForTarget(operation),
+                operation, directReceiver);
+        if (directReceiver != null) {
+            didRemove |= markForRemovalLocked(
+                    mAlarmIndex.getForTarget(directReceiver.asBinder()),
+                    operation, directReceiver);
         }
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
             if (mPendingWhileIdleAlarms.get(i).matches(operation, directReceiver)) {
@@ -2069,7 +2084,7 @@ class AlarmManagerService extends SystemService {
 
         if (didRemove) {
             if (DEBUG_BATCH) {
-                Slog.v(TAG, "remove(operation) changed bounds; rebatching");
+                Slog.v(TAG, "remove(operation) changed bounds");
             }
             boolean restorePending = false;
             if (mPendingIdleUntil != null && mPendingIdleUntil.matches(operation, directReceiver)) {
@@ -2078,8 +2093,13 @@ class AlarmManagerService extends SystemService {
             }
             if (mNextWakeFromIdle != null && mNextWakeFromIdle.matches(operation, directReceiver)) {
                 mNextWakeFromIdle = null;
+                // The idle until alarm may have been pulled in for it, and the next wake from
+                // idle alarm needs to be found again, so everything is rebatched.
+                rebatchAllAlarmsLocked(true);
+            } else {
+                removeMarkedAlarmsLocked();
+                rescheduleKernelAlarmsLocked();
             }
-            rebatchAllAlarmsLocked(true);
             if (restorePending) {
                 restorePendingWhileIdleAlarmsLocked();
             }
@@ -2088,12 +2108,18 @@ class AlarmManagerService extends SystemService {
     }
 
     void removeLocked(String packageName) {
+        if (packageName == null) {
+            if (localLOGV) {
+                Slog.w(TAG, "requested remove() of null packageName",
+                        new RuntimeException("here"));
+            }
+            return;
+        }
         boolean didRemove = false;
-        for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-            Batch b = mAlarmBatches.get(i);
-            didRemove |= b.remove(packageName);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
+        final ArraySet<Alarm> alarms = mAlarmIndex.getForPackage(packageName);
+        if (alarms != null) {
+            for (int i = alarms.size() - 1; i >= 0; i--) {
+                didRemove |= markForRemovalLocked(alarms.valueAt(i));
             }
         }
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
@@ -2106,9 +2132,9 @@ class AlarmManagerService extends SystemService {
 
         if (didRemove) {
             if (DEBUG_BATCH) {
-                Slog.v(TAG, "remove(package) changed bounds; rebatching");
+                Slog.v(TAG, "remove(package) changed bounds");
             }
-            rebatchAllAlarmsLocked(true);
+            removeMarkedAlarmsLocked();
             rescheduleKernelAlarmsLocked();
             updateNextAlarmClockLocked();
         }
@@ -2116,11 +2142,17 @@ class AlarmManagerService extends SystemService {
 
     void removeForStoppedLocked(int uid) {
         boolean didRemove = false;
-        for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-            Batch b = mAlarmBatches.get(i);
-            didRemove |= b.removeForStopped(uid);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
+        final ArraySet<Alarm> alarms = mAlarmIndex.getForUid(uid);
+        if (alarms != null) {
+            for (int i = alarms.size() - 1; i >= 0; i--) {
+                final Alarm alarm = alarms.valueAt(i);
+                try {
+                    if (ActivityManager.getService().isAppStartModeDisabled(
+                            uid, alarm.packageName)) {
+                        didRemove |= markForRemovalLocked(alarm);
+                    }
+                } catch (RemoteException e) {
+                }
             }
         }
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
@@ -2133,9 +2165,9 @@ class AlarmManagerService extends SystemService {
 
         if (didRemove) {
             if (DEBUG_BATCH) {
-                Slog.v(TAG, "remove(package) changed bounds; rebatching");
+                Slog.v(TAG, "remove(package) changed bounds");
             }
-            rebatchAllAlarmsLocked(true);
+            removeMarkedAlarmsLocked();
             rescheduleKernelAlarmsLocked();
             updateNextAlarmClockLocked();
         }
@@ -2143,11 +2175,10 @@ class AlarmManagerService extends SystemService {
 
     void removeUserLocked(int userHandle) {
         boolean didRemove = false;
-        for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-            Batch b = mAlarmBatches.get(i);
-            didRemove |= b.remove(userHandle);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
+        final ArraySet<Alarm> alarms = mAlarmIndex.getForUser(userHandle);
+        if (alarms != null) {
+            for (int i = alarms.size() - 1; i >= 0; i--) {
+                didRemove |= markForRemovalLocked(alarms.valueAt(i));
             }
         }
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
@@ -2165,14 +2196,81 @@ class AlarmManagerService extends SystemService {
 
         if (didRemove) {
             if (DEBUG_BATCH) {
-                Slog.v(TAG, "remove(user) changed bounds; rebatching");
+                Slog.v(TAG, "remove(user) changed bounds");
             }
-            rebatchAllAlarmsLocked(true);
+            removeMarkedAlarmsLocked();
             rescheduleKernelAlarmsLocked();
             updateNextAlarmClockLocked();
         }
     }
 
+    private boolean markForRemovalLocked(ArraySet<Alarm> alarms, PendingIntent operation,
+            IAlarmListener directReceiver) {
+        boolean didRemove = false;
+        if (alarms != null) {
+            for (int i = alarms.size() - 1; i >= 0; i--) {
+                final Alarm alarm = alarms.valueAt(i);
+                if (alarm.matches(operation, directReceiver)) {
+                    didRemove |= markForRemovalLocked(alarm);
+                }
+            }
+        }
+        return didRemove;
+    }
+
+    /**
+     * Takes a batched alarm out of the index; it's dropped from its batch by the
+     * {@link #removeMarkedAlarmsLocked()} or rebatch that must follow.
+     */
+    private boolean markForRemovalLocked(Alarm alarm) {
+        if (!mTmpRemovedAlarms.add(alarm)) {
+            return false;
+        }
+        mAlarmIndex.remove(alarm);
+        if (alarm.alarmClock != null) {
+            mNextAlarmClockMayChange = true;
+        }
+        return true;
+    }
+
+    /**
+     * Drops the alarms marked for removal from their batches. Only the batches holding them are
+     * taken out of the list and put back, with their windows widened to fit the alarms left.
+     */
+    private void removeMarkedAlarmsLocked() {
+        final ArraySet<Alarm> removed = mTmpRemovedAlarms;
+        final ArraySet<Batch> changed = mTmpChangedBatches;
+        for (int i = removed.size() - 1; i >= 0; i--) {
+            final Batch batch = removed.valueAt(i).batch;
+            if (batch != null) {
+                changed.add(batch);
+            }
+        }
+        boolean lostBatch = false;
+        for (int i = changed.size() - 1; i >= 0; i--) {
+            final Batch batch = changed.valueAt(i);
+            if (!mAlarmBatches.remove(batch)) {
+                lostBatch = true;
+                continue;
+            }
+            batch.remove(removed);
+            if (batch.size() > 0) {
+                mAlarmBatches.add(batch);
+            }
+        }
+        changed.clear();
+        removed.clear();
+        if (lostBatch) {
+            Slog.wtf(TAG, "Removed alarms weren't in a scheduled batch; rebatching");
+            rebatchAllAlarmsLocked(false);
+        }
+        if (DEBUG_VALIDATE) {
+            if (!validateConsistencyLocked()) {
+                rebatchAllAlarmsLocked(false);
+            }
+        }
+    }
+
     void interactiveStateChangedLocked(boolean interactive) {
         if (mInteractive != interactive) {
             mInteractive = interactive;
@@ -2200,11 +2298,8 @@ class AlarmManagerService extends SystemService {
     }
 
     boolean lookForPackageLocked(String packageName) {
-        for (int i = 0; i < mAlarmBatches.size(); i++) {
-            Batch b = mAlarmBatches.get(i);
-            if (b.hasPackage(packageName)) {
-                return true;
-            }
+        if (mAlarmIndex.getForPackage(packageName) != null) {
+            return true;
         }
         for (int i = 0; i < mPendingWhileIdleAlarms.size(); i++) {
             final Alarm a = mPendingWhileIdleAlarms.get(i);
@@ -2296,6 +2391,9 @@ class AlarmManagerService extends SystemService {
             mAlarmBatches.remove(0);
 
             final int N = batch.size();
+            for (int i = 0; i < N; i++) {
+                mAlarmIndex.remove(batch.get(i));
+            }
             for (int i = 0; i < N; i++) {
                 Alarm alarm = batch.get(i);
 
@@ -2402,7 +2500,8 @@ class AlarmManagerService extends SystemService {
         }
     }
     
-    private static class Alarm {
+    @VisibleForTesting
+    static class Alarm {
         public final int type;
         public final long origWhen;
         public final boolean wakeup;
@@ -2416,6 +2515,7 @@ class AlarmManagerService extends SystemService {
         public final int uid;
         public final int creatorUid;
         public final String packageName;
+        public final String targetPackage;
         public int count;
         public long when;
         public long windowLength;
@@ -2423,6 +2523,8 @@ class AlarmManagerService extends SystemService {
         public long maxWhenElapsed; // also in the elapsed time base
         public long repeatInterval;
         public PriorityClass priorityClass;
+        // The batch holding this alarm while it's scheduled.
+        Batch batch;
 
         public Alarm(int _type, long _when, long _whenElapsed, long _windowLength, long _maxWhen,
                 long _interval, PendingIntent _op, IAlarmListener _rec, String _listenerTag,
@@ -2448,6 +2550,15 @@ class AlarmManagerService extends SystemService {
             packageName = _pkgName;
 
             creatorUid = (operation != null) ? operation.getCreatorUid() : uid;
+            targetPackage = (operation != null) ? operation.getTargetPackage() : packageName;
+        }
+
+        /**
+         * @return the key under which {@link #matches(PendingIntent, IAlarmListener)} finds
+         *         this alarm.
+         */
+        Object getTargetKey() {
+            return (operation != null) ? operation : listener.asBinder();
         }
 
         public static String makeTag(PendingIntent pi, String tag, int type) {
@@ -2471,9 +2582,7 @@ class AlarmManagerService extends SystemService {
         }
 
         public boolean matches(String packageName) {
-            return (operation != null)
-                    ? packageName.equals(operation.getTargetPackage())
-                    : packageName.equals(this.packageName);
+            return packageName.equals(targetPackage);
         }
 
         @Override
@@ -2526,7 +2635,9 @@ class AlarmManagerService extends SystemService {
         }
     }
 
-    void recordWakeupAlarms(ArrayList<Batch> batches, long nowELAPSED, long nowRTC) {
+    void recordWakeupAlarms(AlarmBatchList<Batch> batchList, long nowELAPSED, long nowRTC) {
+        final ArrayList<Batch> batches = new ArrayList<>(batchList.size());
+        batchList.toList(batches);
         final int numBatches = batches.size();
         for (int nextBatch = 0; nextBatch < numBatches; nextBatch++) {
             Batch b = batches.get(nextBatch);
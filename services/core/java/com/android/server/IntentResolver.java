@@ -68,6 +68,9 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             register_intent_filter(f, f.actionsIterator(),
                     mTypedActionToFilter, "      TypedAction: ");
         }
+        if (numS != 0) {
+            register_scheme_hosts(f, "      SchemeHost: ");
+        }
     }
 
     private boolean filterEquals(IntentFilter f1, IntentFilter f2) {
@@ -211,6 +214,9 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             unregister_intent_filter(f, f.actionsIterator(),
                     mTypedActionToFilter, "      TypedAction: ");
         }
+        if (numS != 0) {
+            unregister_scheme_hosts(f, "      SchemeHost: ");
+        }
     }
 
     boolean dumpMap(PrintWriter out, String titlePrefix, String title,
@@ -386,6 +392,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         F[] secondTypeCut = null;
         F[] thirdTypeCut = null;
         F[] schemeCut = null;
+        F[] schemeAnyHostCut = null;
 
         // If the intent includes a MIME type, then we want to collect all of
         // the filters that match that MIME type.
@@ -428,9 +435,22 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         // If the intent includes a data URI, then we want to collect all of
         // the filters that match its scheme (we will further refine matches
         // on the authority and path by directly matching each resulting filter).
+        // When the URI has a host, filters restricted to other hosts are skipped
+        // by only looking at those registered for that host, plus the filters
+        // that may match any host.
         if (scheme != null) {
-            schemeCut = mSchemeToFilter.get(scheme);
-            if (debug) Slog.v(TAG, "Scheme list: " + Arrays.toString(schemeCut));
+            final Uri data = intent.getData();
+            final String host = data != null ? data.getHost() : null;
+            if (host != null) {
+                schemeCut = mSchemeHostToFilter.get(schemeHostKey(scheme, host));
+                if (debug) Slog.v(TAG, "Scheme host list: " + Arrays.toString(schemeCut));
+                schemeAnyHostCut = mSchemeAnyHostToFilter.get(scheme);
+                if (debug) Slog.v(TAG, "Scheme any host list: "
+                        + Arrays.toString(schemeAnyHostCut));
+            } else {
+                schemeCut = mSchemeToFilter.get(scheme);
+                if (debug) Slog.v(TAG, "Scheme list: " + Arrays.toString(schemeCut));
+            }
         }
 
         // If the intent does not specify any data -- either a MIME type or
@@ -458,6 +478,10 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
                     scheme, schemeCut, finalList, userId);
         }
+        if (schemeAnyHostCut != null) {
+            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
+                    scheme, schemeAnyHostCut, finalList, userId);
+        }
         filterResults(finalList);
         sortResults(finalList);
 
@@ -657,6 +681,76 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         return num;
     }
 
+    /**
+     * Returns whether {@code filter} can only match URIs whose host is one of the exact hosts
+     * of its authorities, in which case it can be indexed by host.
+     */
+    private static boolean isHostIndexable(IntentFilter filter) {
+        final int numAuthorities = filter.countDataAuthorities();
+        if (numAuthorities == 0 || filter.countDataSchemeSpecificParts() != 0) {
+            // Matches any host, or may match on the scheme specific part only
+            return false;
+        }
+        for (int i = 0; i < numAuthorities; i++) {
+            final String host = filter.getDataAuthority(i).getHost();
+            if (host.length() > 0 && host.charAt(0) == '*') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the key of {@link #mSchemeHostToFilter} for the given scheme and host. Hosts are
+     * folded the same way {@link IntentFilter.AuthorityEntry#match(Uri)} compares them.
+     */
+    private static String schemeHostKey(String scheme, String host) {
+        final StringBuilder sb = new StringBuilder(scheme.length() + 3 + host.length());
+        sb.append(scheme).append("://");
+        for (int i = 0; i < host.length(); i++) {
+            sb.append(Character.toLowerCase(Character.toUpperCase(host.charAt(i))));
+        }
+        return sb.toString();
+    }
+
+    private final ArraySet<String> collectSchemeHostKeys(F filter) {
+        final ArraySet<String> keys = new ArraySet<>();
+        final Iterator<String> schemes = filter.schemesIterator();
+        while (schemes.hasNext()) {
+            final String scheme = schemes.next();
+            for (int i = 0; i < filter.countDataAuthorities(); i++) {
+                keys.add(schemeHostKey(scheme, filter.getDataAuthority(i).getHost()));
+            }
+        }
+        return keys;
+    }
+
+    private final void register_scheme_hosts(F filter, String prefix) {
+        if (isHostIndexable(filter)) {
+            final ArraySet<String> keys = collectSchemeHostKeys(filter);
+            for (int i = 0; i < keys.size(); i++) {
+                if (localLOGV) Slog.v(TAG, prefix + keys.valueAt(i));
+                addFilter(mSchemeHostToFilter, keys.valueAt(i), filter);
+            }
+        } else {
+            register_intent_filter(filter, filter.schemesIterator(),
+                    mSchemeAnyHostToFilter, prefix);
+        }
+    }
+
+    private final void unregister_scheme_hosts(F filter, String prefix) {
+        if (isHostIndexable(filter)) {
+            final ArraySet<String> keys = collectSchemeHostKeys(filter);
+            for (int i = 0; i < keys.size(); i++) {
+                if (localLOGV) Slog.v(TAG, prefix + keys.valueAt(i));
+                remove_all_objects(mSchemeHostToFilter, keys.valueAt(i), filter);
+            }
+        } else {
+            unregister_intent_filter(filter, filter.schemesIterator(),
+                    mSchemeAnyHostToFilter, prefix);
+        }
+    }
+
     private final void remove_all_objects(ArrayMap<String, F[]> map, String name,
             Object object) {
         F[] array = map.get(name);
@@ -838,6 +932,20 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
      */
     private final ArrayMap<String, F[]> mSchemeToFilter = new ArrayMap<String, F[]>();
 
+    /**
+     * Filters with schemes whose authorities all name an exact host, keyed by
+     * "scheme://host" for each of their schemes and hosts.  Used to narrow
+     * down {@link #mSchemeToFilter} when the intent's data has a host.
+     */
+    private final ArrayMap<String, F[]> mSchemeHostToFilter = new ArrayMap<String, F[]>();
+
+    /**
+     * Filters with schemes that may match any host (no authority, a wildcard
+     * host or a scheme specific part), keyed by scheme.  Together with
+     * {@link #mSchemeHostToFilter} this partitions {@link #mSchemeToFilter}.
+     */
+    private final ArrayMap<String, F[]> mSchemeAnyHostToFilter = new ArrayMap<String, F[]>();
+
     /**
      * All of the actions that have been registered, but only those that did
      * not specify data.
@@ -1552,8 +1552,14 @@ public final class ActiveServices {
 
         final long origId = Binder.clearCallingIdentity();
         try {
+            // Removing a connection can also bring the service down, so remember the hosts
+            // up front to recompute their importance afterwards.
+            final ArraySet<ProcessRecord> hosts = new ArraySet<>();
             while (clist.size() > 0) {
                 ConnectionRecord r = clist.get(0);
+                if (r.binding.service.app != null) {
+                    hosts.add(r.binding.service.app);
+                }
                 removeConnectionLocked(r, null, null);
                 if (clist.size() > 0 && clist.get(0) == r) {
                     // In case it didn't get removed above, do it now.
@@ -1572,11 +1578,10 @@ public final class ActiveServices {
                                 r.binding.service.app.hasClientActivities
                                 || r.binding.service.app.treatLikeActivity, null);
                     }
-                    mAm.updateOomAdjLocked(r.binding.service.app, false);
                 }
             }
 
-            mAm.updateOomAdjLocked();
+            mAm.updateOomAdjLocked(hosts);
 
         } finally {
             Binder.restoreCallingIdentity(origId);
@@ -2272,6 +2277,7 @@ public final class ActiveServices {
         r.restartTime = r.lastActivity = SystemClock.uptimeMillis();
 
         final boolean newService = app.services.add(r);
+        mAm.mProcessPrewarmer.onProcessUsedLocked(app);
         bumpServiceExecutingLocked(r, execInFg, "create");
         mAm.updateLruProcessLocked(app, false, null);
         updateServiceForegroundLocked(r.app, /* oomAdj= */ false);
@@ -3415,7 +3421,7 @@ public final class ActiveServices {
                     nextTime = sr.executingStart;
                 }
             }
-            if (timeout != null && mAm.mLruProcesses.contains(proc)) {
+            if (timeout != null && mAm.getLruProcessIndexLocked(proc) >= 0) {
                 Slog.w(TAG, "Timeout executing service: " + timeout);
                 StringWriter sw = new StringWriter();
                 PrintWriter pw = new FastPrintWriter(sw, false, 1024);
@@ -68,6 +68,9 @@ final class ActivityManagerConstants extends ContentObserver {
     static final String KEY_BG_START_TIMEOUT = "service_bg_start_timeout";
     static final String KEY_BOUND_SERVICE_CRASH_RESTART_DURATION = "service_crash_restart_duration";
     static final String KEY_BOUND_SERVICE_CRASH_MAX_RETRY = "service_crash_max_retry";
+    static final String KEY_BACKGROUND_BROADCAST_LANES = "background_broadcast_lanes";
+    static final String KEY_PROCESS_PREWARM = "process_prewarm";
+    static final String KEY_BINDER_CALL_STATS = "binder_call_stats";
 
     private static final int DEFAULT_MAX_CACHED_PROCESSES =
             SystemProperties.getInt("ro.vendor.qti.sys.fw.bg_apps_limit",32);
@@ -96,6 +99,9 @@ final class ActivityManagerConstants extends ContentObserver {
     private static final long DEFAULT_BG_START_TIMEOUT = 15*1000;
     private static final long DEFAULT_BOUND_SERVICE_CRASH_RESTART_DURATION = 30*60_000;
     private static final int DEFAULT_BOUND_SERVICE_CRASH_MAX_RETRY = 16;
+    private static final boolean DEFAULT_BACKGROUND_BROADCAST_LANES = false;
+    private static final boolean DEFAULT_PROCESS_PREWARM = false;
+    private static final boolean DEFAULT_BINDER_CALL_STATS = false;
 
 
     // Maximum number of cached processes we will allow.
@@ -205,6 +211,19 @@ final class ActivityManagerConstants extends ContentObserver {
     // Maximum number of retries for bound foreground services that crash soon after start
     public long BOUND_SERVICE_MAX_CRASH_RETRY = DEFAULT_BOUND_SERVICE_CRASH_MAX_RETRY;
 
+    // Whether non-ordered background broadcasts to manifest receivers are spread over
+    // per-process lanes instead of being delivered one receiver at a time on the
+    // background queue.
+    public boolean BACKGROUND_BROADCAST_LANES = DEFAULT_BACKGROUND_BROADCAST_LANES;
+
+    // Whether the process of the app most likely to be launched next is started ahead of
+    // time, based on the app usage history.
+    public boolean PROCESS_PREWARM = DEFAULT_PROCESS_PREWARM;
+
+    // Whether the latency of binder calls into the activity manager and the time its lock is
+    // held are collected, see dumpsys activity binder-stats.
+    public boolean BINDER_CALL_STATS = DEFAULT_BINDER_CALL_STATS;
+
     private final ActivityManagerService mService;
     private ContentResolver mResolver;
     private final KeyValueListParser mParser = new KeyValueListParser(',');
@@ -359,6 +378,12 @@ final class ActivityManagerConstants extends ContentObserver {
                 DEFAULT_BOUND_SERVICE_CRASH_RESTART_DURATION);
             BOUND_SERVICE_MAX_CRASH_RETRY = mParser.getInt(KEY_BOUND_SERVICE_CRASH_MAX_RETRY,
                 DEFAULT_BOUND_SERVICE_CRASH_MAX_RETRY);
+            BACKGROUND_BROADCAST_LANES = mParser.getBoolean(KEY_BACKGROUND_BROADCAST_LANES,
+                DEFAULT_BACKGROUND_BROADCAST_LANES);
+            PROCESS_PREWARM = mParser.getBoolean(KEY_PROCESS_PREWARM, DEFAULT_PROCESS_PREWARM);
+            BINDER_CALL_STATS = mParser.getBoolean(KEY_BINDER_CALL_STATS,
+                DEFAULT_BINDER_CALL_STATS);
+            ActivityManagerService.sBinderCallStats.setEnabled(BINDER_CALL_STATS);
 
             updateMaxCachedProcesses();
         }
@@ -430,6 +455,12 @@ final class ActivityManagerConstants extends ContentObserver {
         pw.println(MAX_SERVICE_INACTIVITY);
         pw.print("  "); pw.print(KEY_BG_START_TIMEOUT); pw.print("=");
         pw.println(BG_START_TIMEOUT);
+        pw.print("  "); pw.print(KEY_BACKGROUND_BROADCAST_LANES); pw.print("=");
+        pw.println(BACKGROUND_BROADCAST_LANES);
+        pw.print("  "); pw.print(KEY_PROCESS_PREWARM); pw.print("=");
+        pw.println(PROCESS_PREWARM);
+        pw.print("  "); pw.print(KEY_BINDER_CALL_STATS); pw.print("=");
+        pw.println(BINDER_CALL_STATS);
 
         pw.println();
         if (mOverrideMaxCachedProcesses >= 0) {
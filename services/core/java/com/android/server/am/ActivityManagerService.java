@@ -353,6 +353,7 @@ import android.util.SparseArray;
 import android.util.SparseIntArray;
 import android.util.TimeUtils;
 import android.util.Xml;
+import android.util.proto.ProtoOutputStream;
 import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -531,6 +532,9 @@ public class ActivityManagerService extends IActivityManager.Stub
     static final int BROADCAST_FG_TIMEOUT = 10*1000;
     static final int BROADCAST_BG_TIMEOUT = 60*1000;
 
+    // How many background broadcast lanes manifest broadcasts can be spread over.
+    static final int BROADCAST_BG_LANE_COUNT = 2;
+
     // How long we wait until we timeout on key dispatching.
     static final int KEY_DISPATCHING_TIMEOUT = 5*1000;
 
@@ -646,6 +650,40 @@ public class ActivityManagerService extends IActivityManager.Stub
 
     private final VrController mVrController;
 
+    /** Starts the processes of the apps likely to be launched next. */
+    final ProcessPrewarmer mProcessPrewarmer;
+
+    /**
+     * How long processes took from the start request to the zygote until they attached, for
+     * processes started from a zygote's pool and for processes forked for the request.
+     */
+    @GuardedBy("this")
+    final ProcessAttachLatency mPoolAttachLatency = new ProcessAttachLatency();
+    @GuardedBy("this")
+    final ProcessAttachLatency mForkAttachLatency = new ProcessAttachLatency();
+
+    /**
+     * Count, mean and max of the time from a process start request until the process attached.
+     */
+    static final class ProcessAttachLatency {
+        private long mCount;
+        private long mTotalMillis;
+        private long mMaxMillis;
+
+        void add(long millis) {
+            mCount++;
+            mTotalMillis += millis;
+            mMaxMillis = Math.max(mMaxMillis, millis);
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + mCount
+                    + " meanMs=" + (mCount > 0 ? mTotalMillis / mCount : 0)
+                    + " maxMs=" + mMaxMillis;
+        }
+    }
+
     // VR Vr2d Display Id.
     int mVr2dDisplayId = INVALID_DISPLAY;
 
@@ -654,9 +692,12 @@ public class ActivityManagerService extends IActivityManager.Stub
 
     BroadcastQueue mFgBroadcastQueue;
     BroadcastQueue mBgBroadcastQueue;
+    // Additional background queues that broadcasts to manifest receivers are split over
+    // by receiving process, see enqueueOnBroadcastLanesLocked().
+    final BroadcastQueue[] mBgBroadcastLanes = new BroadcastQueue[BROADCAST_BG_LANE_COUNT];
     // Convenient for easy iteration over the queues. Foreground is first
     // so that dispatch of foreground broadcasts gets precedence.
-    final BroadcastQueue[] mBroadcastQueues = new BroadcastQueue[2];
+    final BroadcastQueue[] mBroadcastQueues = new BroadcastQueue[2 + BROADCAST_BG_LANE_COUNT];
 
     BroadcastStats mLastBroadcastStats;
     BroadcastStats mCurBroadcastStats;
@@ -737,11 +778,19 @@ public class ActivityManagerService extends IActivityManager.Stub
     private static ThreadPriorityBooster sThreadPriorityBooster = new ThreadPriorityBooster(
             THREAD_PRIORITY_FOREGROUND, LockGuard.INDEX_ACTIVITY);
 
+    static final BinderCallStats sBinderCallStats = new BinderCallStats();
+
     static void boostPriorityForLockedSection() {
         sThreadPriorityBooster.boost();
+        if (sBinderCallStats.isEnabled()) {
+            sBinderCallStats.onLockAcquired();
+        }
     }
 
     static void resetPriorityAfterLockedSection() {
+        if (sBinderCallStats.isEnabled()) {
+            sBinderCallStats.onLockReleased();
+        }
         sThreadPriorityBooster.reset();
     }
 
@@ -899,6 +948,12 @@ public class ActivityManagerService extends IActivityManager.Stub
      */
     int mLruProcessServiceStart = 0;
 
+    /**
+     * How far from its last known position {@link #getLruProcessIndexLocked} looks for a
+     * process before scanning all of mLruProcesses.
+     */
+    static final int LRU_INDEX_HINT_SLOP = 8;
+
     /**
      * List of processes that should gc as soon as things are idle.
      */
@@ -2804,6 +2859,7 @@ public class ActivityManagerService extends IActivityManager.Stub
         mUiHandler = injector.getUiHandler(null);
         mUserController = null;
         mVrController = null;
+        mProcessPrewarmer = new ProcessPrewarmer(this, mHandler);
         mSwipeToScreenshotObserver = null;
     }
 
@@ -2845,6 +2901,11 @@ public class ActivityManagerService extends IActivityManager.Stub
                 "background", BROADCAST_BG_TIMEOUT, true);
         mBroadcastQueues[0] = mFgBroadcastQueue;
         mBroadcastQueues[1] = mBgBroadcastQueue;
+        for (int i = 0; i < BROADCAST_BG_LANE_COUNT; i++) {
+            mBgBroadcastLanes[i] = new BroadcastQueue(this, mHandler,
+                    "background-lane" + i, BROADCAST_BG_TIMEOUT, true);
+            mBroadcastQueues[2 + i] = mBgBroadcastLanes[i];
+        }
 
         mServices = new ActiveServices(this);
         mProviderMap = new ProviderMap(this);
@@ -2883,6 +2944,8 @@ public class ActivityManagerService extends IActivityManager.Stub
 
         mVrController = new VrController(this);
 
+        mProcessPrewarmer = new ProcessPrewarmer(this, mHandler);
+
         GL_ES_VERSION = SystemProperties.getInt("ro.opengles.version",
             ConfigurationInfo.GL_ES_VERSION_UNDEFINED);
 
@@ -2999,6 +3062,21 @@ public class ActivityManagerService extends IActivityManager.Stub
     @Override
     public boolean onTransact(int code, Parcel data, Parcel reply, int flags)
             throws RemoteException {
+        final boolean trackCall = sBinderCallStats.isEnabled();
+        if (trackCall) {
+            sBinderCallStats.onCallStarted(code);
+        }
+        try {
+            return onTransactInner(code, data, reply, flags);
+        } finally {
+            if (trackCall) {
+                sBinderCallStats.onCallEnded();
+            }
+        }
+    }
+
+    private boolean onTransactInner(int code, Parcel data, Parcel reply, int flags)
+            throws RemoteException {
         if (code == SYSPROPS_TRANSACTION) {
             // We need to tell all apps about the system property change.
             ArrayList<IBinder> procs = new ArrayList<IBinder>();
@@ -3100,12 +3178,10 @@ public class ActivityManagerService extends IActivityManager.Stub
                         if (bstats.startAddingCpuLocked()) {
                             int totalUTime = 0;
                             int totalSTime = 0;
-                            final int N = mProcessCpuTracker.countStats();
+                            final int N = mProcessCpuTracker.countUnsortedWorkingStats();
                             for (int i=0; i<N; i++) {
-                                ProcessCpuTracker.Stats st = mProcessCpuTracker.getStats(i);
-                                if (!st.working) {
-                                    continue;
-                                }
+                                ProcessCpuTracker.Stats st =
+                                        mProcessCpuTracker.getUnsortedWorkingStats(i);
                                 ProcessRecord pr = mPidsSelfLocked.get(st.pid);
                                 totalUTime += st.rel_utime;
                                 totalSTime += st.rel_stime;
@@ -3416,6 +3492,40 @@ public class ActivityManagerService extends IActivityManager.Stub
         }
     }
 
+    /**
+     * Returns the index of {@code app} in {@link #mLruProcesses}, or -1 if it isn't on the list.
+     * Processes usually only shift by a few slots between updates, so look around the position
+     * the process was last placed at before falling back to scanning the whole list.
+     *
+     * <p>This only makes finding a process cheap: moving it still shifts the ArrayList, which
+     * stays O(n) but is a single array copy over a few hundred entries at most. See
+     * LruProcessListPerfTest in ServicesPerfTests for both costs.
+     */
+    final int getLruProcessIndexLocked(ProcessRecord app) {
+        final int index = indexOfNear(mLruProcesses, app, app.lruIndexHint);
+        app.lruIndexHint = index;
+        return index;
+    }
+
+    /**
+     * Returns the last index of {@code item} in {@code list}, looking within
+     * {@link #LRU_INDEX_HINT_SLOP} of {@code hint} first, or -1 if it isn't on the list.
+     */
+    @VisibleForTesting
+    static int indexOfNear(ArrayList<?> list, Object item, int hint) {
+        final int N = list.size();
+        if (hint >= 0 && hint < N + LRU_INDEX_HINT_SLOP) {
+            final int end = Math.min(N - 1, hint + LRU_INDEX_HINT_SLOP);
+            final int start = Math.max(0, hint - LRU_INDEX_HINT_SLOP);
+            for (int i = end; i >= start; i--) {
+                if (list.get(i) == item) {
+                    return i;
+                }
+            }
+        }
+        return list.lastIndexOf(item);
+    }
+
     private int updateLruProcessInternalLocked(ProcessRecord app, long now, int index,
             String what, Object obj, ProcessRecord srcApp) {
         app.lastActivityTime = now;
@@ -3425,7 +3535,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             return index;
         }
 
-        int lrui = mLruProcesses.lastIndexOf(app);
+        int lrui = getLruProcessIndexLocked(app);
         if (lrui < 0) {
             Slog.wtf(TAG, "Adding dependent process " + app + " not on LRU list: "
                     + what + " " + obj + " from " + srcApp);
@@ -3450,6 +3560,7 @@ public class ActivityManagerService extends IActivityManager.Stub
         if (DEBUG_LRU) Slog.d(TAG_LRU, "Moving dep from " + lrui + " to " + index
                 + " in LRU list: " + app);
         mLruProcesses.add(index, app);
+        app.lruIndexHint = index;
         return index;
     }
 
@@ -3464,7 +3575,7 @@ public class ActivityManagerService extends IActivityManager.Stub
     }
 
     final void removeLruProcessLocked(ProcessRecord app) {
-        int lrui = mLruProcesses.lastIndexOf(app);
+        int lrui = getLruProcessIndexLocked(app);
         if (lrui >= 0) {
             if (!app.killed) {
                 Slog.wtfStack(TAG, "Removing process that hasn't been killed: " + app);
@@ -3514,7 +3625,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             }
         }
 
-        int lrui = mLruProcesses.lastIndexOf(app);
+        int lrui = getLruProcessIndexLocked(app);
 
         if (app.persistent && lrui >= 0) {
             // We don't care about the position of persistent processes, as long as
@@ -3595,6 +3706,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                 if (DEBUG_LRU) Slog.d(TAG_LRU,
                         "Adding to second-top of LRU activity list: " + app);
                 mLruProcesses.add(N - 1, app);
+                app.lruIndexHint = N - 1;
                 // To keep it from spamming the LRU list (by making a bunch of clients),
                 // we will push down any other entries owned by the app.
                 final int uid = app.info.uid;
@@ -3621,6 +3733,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             } else {
                 // Process has activities, put it at the very tipsy-top.
                 if (DEBUG_LRU) Slog.d(TAG_LRU, "Adding to top of LRU activity list: " + app);
+                app.lruIndexHint = mLruProcesses.size();
                 mLruProcesses.add(app);
             }
             nextIndex = mLruProcessServiceStart;
@@ -3628,6 +3741,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             // Process has services, put it at the top of the service list.
             if (DEBUG_LRU) Slog.d(TAG_LRU, "Adding to top of LRU service list: " + app);
             mLruProcesses.add(mLruProcessActivityStart, app);
+            app.lruIndexHint = mLruProcessActivityStart;
             nextIndex = mLruProcessServiceStart;
             mLruProcessActivityStart++;
         } else  {
@@ -3636,7 +3750,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             if (client != null) {
                 // If there is a client, don't allow the process to be moved up higher
                 // in the list than that client.
-                int clientIndex = mLruProcesses.lastIndexOf(client);
+                int clientIndex = getLruProcessIndexLocked(client);
                 if (DEBUG_LRU && clientIndex < 0) Slog.d(TAG_LRU, "Unknown client " + client
                         + " when updating " + app);
                 if (clientIndex <= lrui) {
@@ -3650,6 +3764,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             }
             if (DEBUG_LRU) Slog.d(TAG_LRU, "Adding at " + index + " of LRU list: " + app);
             mLruProcesses.add(index, app);
+            app.lruIndexHint = index;
             nextIndex = index-1;
             mLruProcessActivityStart++;
             mLruProcessServiceStart++;
@@ -4044,6 +4159,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             Trace.traceBegin(Trace.TRACE_TAG_ACTIVITY_MANAGER, "Start proc: " +
                     app.processName);
             checkTime(startTime, "startProcess: asking zygote to start proc");
+            final long startRequestTime = SystemClock.elapsedRealtime();
             ProcessStartResult startResult;
             if (hostingType.equals("webview_service")) {
                 startResult = startWebView(entryPoint,
@@ -4118,6 +4234,8 @@ public class ActivityManagerService extends IActivityManager.Stub
 
             app.setPid(startResult.pid);
             app.usingWrapper = startResult.usingWrapper;
+            app.startRequestTime = startRequestTime;
+            app.startUsedPool = startResult.usedPool;
             app.removed = false;
             app.killed = false;
             app.killedByAm = false;
@@ -4172,6 +4290,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             synchronized (stats) {
                 stats.noteActivityResumedLocked(component.app.uid);
             }
+            mProcessPrewarmer.onActivityResumedLocked(component);
         } else {
             if (mUsageStatsService != null) {
                 mUsageStatsService.reportEvent(component.realActivity, component.userId,
@@ -6935,6 +7054,9 @@ public class ActivityManagerService extends IActivityManager.Stub
         // newly created process and we don't want to destroy the new one.
         if ((expecting == null) || (old == expecting)) {
             mProcessNames.remove(name, uid);
+            if (old != null) {
+                mProcessPrewarmer.onProcessRemovedLocked(old);
+            }
         }
         if (old != null && old.uidRecord != null) {
             int decremented = --old.uidRecord.numSchedGroup[old.setSchedGroup];
@@ -7174,6 +7296,12 @@ public class ActivityManagerService extends IActivityManager.Stub
 
         EventLog.writeEvent(EventLogTags.AM_PROC_BOUND, app.userId, app.pid, app.processName);
 
+        if (app.startRequestTime != 0) {
+            final long latency = SystemClock.elapsedRealtime() - app.startRequestTime;
+            (app.startUsedPool ? mPoolAttachLatency : mForkAttachLatency).add(latency);
+            app.startRequestTime = 0;
+        }
+
         app.makeActive(thread, mProcessStats);
         app.curAdj = app.setAdj = app.verifiedAdj = ProcessList.INVALID_ADJ;
         app.curSchedGroup = app.setSchedGroup = ProcessList.SCHED_GROUP_DEFAULT;
@@ -11750,6 +11878,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                 // In this case the provider instance already exists, so we can
                 // return it right away.
                 conn = incProviderCountLocked(r, cpr, token, stable);
+                mProcessPrewarmer.onProcessUsedLocked(cpr.proc);
                 if (conn != null && (conn.stableCount+conn.unstableCount) == 1) {
                     if (cpr.proc != null && r.setAdj <= ProcessList.PERCEPTIBLE_APP_ADJ) {
                         // If this is a perceptible app accessing the provider,
@@ -11971,6 +12100,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                         }
                         cpr.launchingApp = proc;
                         mLaunchingProviders.add(cpr);
+                        mProcessPrewarmer.onProcessUsedLocked(proc);
                     } finally {
                         Binder.restoreCallingIdentity(origId);
                     }
@@ -12131,8 +12261,10 @@ public class ActivityManagerService extends IActivityManager.Stub
                 if (conn == null) {
                     throw new NullPointerException("connection is null");
                 }
-                if (decProviderCountLocked(conn, null, null, stable)) {
-                    updateOomAdjLocked();
+                // Only the process hosting the provider can become less important.
+                final ProcessRecord host = conn.provider.proc;
+                if (decProviderCountLocked(conn, null, null, stable) && host != null) {
+                    updateOomAdjLocked(host, true);
                 }
             }
         } finally {
@@ -12166,7 +12298,9 @@ public class ActivityManagerService extends IActivityManager.Stub
             ContentProviderRecord localCpr = mProviderMap.getProviderByClass(comp, userId);
             if (localCpr.hasExternalProcessHandles()) {
                 if (localCpr.removeExternalProcessHandleLocked(token)) {
-                    updateOomAdjLocked();
+                    if (localCpr.proc != null) {
+                        updateOomAdjLocked(localCpr.proc, true);
+                    }
                 } else {
                     Slog.e(TAG, "Attmpt to remove content provider " + localCpr
                             + " with no external reference for token: "
@@ -15525,6 +15659,17 @@ public class ActivityManagerService extends IActivityManager.Stub
                 }
             } else if ("locks".equals(cmd)) {
                 LockGuard.dump(fd, pw, args);
+            } else if ("binder-stats".equals(cmd)) {
+                if (opti < args.length && "--proto".equals(args[opti])) {
+                    final ProtoOutputStream proto = new ProtoOutputStream(fd);
+                    sBinderCallStats.dumpProto(proto);
+                    proto.flush();
+                } else if (opti < args.length && "--reset".equals(args[opti])) {
+                    sBinderCallStats.reset();
+                    pw.println("Binder stats reset.");
+                } else {
+                    sBinderCallStats.dump(pw);
+                }
             } else {
                 // Dumping a single activity?
                 if (!dumpActivity(fd, pw, cmd, args, opti, dumpAll, dumpVisibleStacksOnly,
@@ -16207,6 +16352,10 @@ public class ActivityManagerService extends IActivityManager.Stub
             }
         }
         pw.println("  mVrController=" + mVrController);
+        mProcessPrewarmer.dumpLocked(pw);
+        pw.print("  Process start to attach latency (pool): "); pw.println(mPoolAttachLatency);
+        pw.print("  Process start to attach latency (fork): "); pw.println(mForkAttachLatency);
+        Process.zygoteProcess.dumpStartLatency(pw, "  ");
         if (mDebugApp != null || mOrigDebugApp != null || mDebugTransient
                 || mOrigWaitForDebugger) {
             if (dumpPackage == null || dumpPackage.equals(mDebugApp)
@@ -18969,8 +19118,93 @@ public class ActivityManagerService extends IActivityManager.Stub
     }
 
     boolean isPendingBroadcastProcessLocked(int pid) {
-        return mFgBroadcastQueue.isPendingBroadcastProcessLocked(pid)
-                || mBgBroadcastQueue.isPendingBroadcastProcessLocked(pid);
+        for (BroadcastQueue queue : mBroadcastQueues) {
+            if (queue.isPendingBroadcastProcessLocked(pid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if {@code queue} has to hold off on delivering to {@code processName}.
+     * Apps report finished receivers by their thread and foreground flag only, which can't
+     * tell the background queue and its lanes apart, so only one of them may be waiting on a
+     * process at a time. The background queue also waits while the process's lane still has
+     * receivers queued, as those were sent before anything the background queue has for it.
+     */
+    boolean isBackgroundBroadcastProcessBusyLocked(BroadcastQueue queue, String processName) {
+        if (queue == mFgBroadcastQueue) {
+            return false;
+        }
+        if (queue == mBgBroadcastQueue) {
+            return mBgBroadcastLanes[broadcastLaneForProcess(processName)]
+                    .hasPendingReceiverForProcessLocked(processName);
+        }
+        return mBgBroadcastQueue.isDeliveringToProcessLocked(processName);
+    }
+
+    /**
+     * Returns the index of the background lane all broadcasts to {@code processName} that
+     * are split over the lanes go to, so that they are delivered in the order they were sent.
+     */
+    private static int broadcastLaneForProcess(String processName) {
+        return (processName.hashCode() & Integer.MAX_VALUE) % BROADCAST_BG_LANE_COUNT;
+    }
+
+    /**
+     * Spreads the manifest receivers of a background broadcast over the background lanes by
+     * receiving process, so that a slow receiver only holds up the broadcasts queued on its
+     * own lane rather than every serialized background broadcast. Receivers in the same
+     * process always land on the same lane and keep their order.
+     *
+     * <p>Ordered broadcasts are never split: a receiver may abort them, which has to stop
+     * every receiver after it, whichever lane it would be on.
+     *
+     * @return false if the broadcast can't be split and must go on its own queue.
+     */
+    private boolean enqueueOnBroadcastLanesLocked(BroadcastRecord r, boolean replacePending) {
+        if (!mConstants.BACKGROUND_BROADCAST_LANES || r.queue != mBgBroadcastQueue
+                || r.ordered || r.resultTo != null || replacePending || r.receivers == null) {
+            return false;
+        }
+        final int N = r.receivers.size();
+        final ArrayList[] laneReceivers = new ArrayList[BROADCAST_BG_LANE_COUNT];
+        for (int i = 0; i < N; i++) {
+            final Object receiver = r.receivers.get(i);
+            if (!(receiver instanceof ResolveInfo)) {
+                return false;
+            }
+            final ResolveInfo info = (ResolveInfo) receiver;
+            final String processName = info.activityInfo.processName;
+            if (mBgBroadcastQueue.hasPendingReceiverForProcessLocked(processName)) {
+                // Something sent earlier is still waiting for this process on the
+                // background queue; this broadcast must not overtake it.
+                return false;
+            }
+            final int lane = broadcastLaneForProcess(processName);
+            if (laneReceivers[lane] == null) {
+                laneReceivers[lane] = new ArrayList();
+            }
+            laneReceivers[lane].add(receiver);
+        }
+        for (int i = 0; i < BROADCAST_BG_LANE_COUNT; i++) {
+            if (laneReceivers[i] == null) {
+                continue;
+            }
+            final BroadcastQueue lane = mBgBroadcastLanes[i];
+            // Each lane gets its own copy of the intent, as dispatch sets the component on it.
+            final BroadcastRecord laneRecord = new BroadcastRecord(lane, new Intent(r.intent),
+                    r.callerApp, r.callerPackage, r.callingPid, r.callingUid,
+                    r.callerInstantApp, r.resolvedType, r.requiredPermissions, r.appOp,
+                    r.options, laneReceivers[i], null, r.resultCode, r.resultData,
+                    r.resultExtras, false, r.sticky, r.initialSticky, r.userId);
+            if (DEBUG_BROADCAST) Slog.v(TAG_BROADCAST, "Enqueueing " + laneRecord
+                    + " on " + lane + " with " + laneReceivers[i].size() + " receivers");
+            lane.enqueueOrderedBroadcastLocked(laneRecord);
+            lane.scheduleBroadcastsLocked();
+        }
+        return true;
     }
 
     void skipPendingBroadcastLocked(int pid) {
@@ -20005,7 +20239,7 @@ public class ActivityManagerService extends IActivityManager.Stub
 
                     }
                 }
-            } else {
+            } else if (!enqueueOnBroadcastLanesLocked(r, replacePending)) {
                 queue.enqueueOrderedBroadcastLocked(r);
                 queue.scheduleBroadcastsLocked();
             }
@@ -20053,6 +20287,11 @@ public class ActivityManagerService extends IActivityManager.Stub
         mCurBroadcastStats.addBroadcast(action, srcPackage, receiveCount, skipCount, dispatchTime);
     }
 
+    final void addBroadcastCoalescedStatLocked(String action, int count) {
+        rotateBroadcastStatsIfNeededLocked();
+        mCurBroadcastStats.addCoalescedDeliveries(action, count);
+    }
+
     final void addBackgroundCheckViolationLocked(String action, String targetPackage) {
         rotateBroadcastStatsIfNeededLocked();
         mCurBroadcastStats.addBackgroundCheckViolation(action, targetPackage);
@@ -20206,9 +20445,14 @@ public class ActivityManagerService extends IActivityManager.Stub
             BroadcastRecord r;
 
             synchronized(this) {
-                BroadcastQueue queue = (flags & Intent.FLAG_RECEIVER_FOREGROUND) != 0
-                        ? mFgBroadcastQueue : mBgBroadcastQueue;
-                r = queue.getMatchingOrderedReceiver(who);
+                if ((flags & Intent.FLAG_RECEIVER_FOREGROUND) != 0) {
+                    r = mFgBroadcastQueue.getMatchingOrderedReceiver(who);
+                } else {
+                    r = mBgBroadcastQueue.getMatchingOrderedReceiver(who);
+                    for (int i = 0; r == null && i < mBgBroadcastLanes.length; i++) {
+                        r = mBgBroadcastLanes[i].getMatchingOrderedReceiver(who);
+                    }
+                }
                 if (r != null) {
                     doNext = r.queue.finishReceiverLocked(r, resultCode,
                         resultData, resultExtras, resultAbort, true);
@@ -22779,7 +23023,8 @@ public class ActivityManagerService extends IActivityManager.Stub
     }
 
     /**
-     * Update OomAdj for a specific process.
+     * Update OomAdj for a specific process, and for the processes whose services or providers
+     * it uses if its own importance changed.
      * @param app The process to update
      * @param oomAdjAll If it's ok to call updateOomAdjLocked() for all running apps
      *                  if necessary, or skip.
@@ -22788,27 +23033,156 @@ public class ActivityManagerService extends IActivityManager.Stub
     final boolean updateOomAdjLocked(ProcessRecord app, boolean oomAdjAll) {
         final ActivityRecord TOP_ACT = resumedAppLocked();
         final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
-        final boolean wasCached = app.cached;
+        final long now = SystemClock.uptimeMillis();
 
         mAdjSeq++;
 
+        boolean success = updateSingleOomAdjLocked(app, TOP_APP, now);
+        boolean cachedChanged = app.cached != mTmpOomAdjWasCached
+                || app.curRawAdj == ProcessList.UNKNOWN_ADJ;
+        int numVisited = 1;
+        ArraySet<UidRecord> changedUids = null;
+        if (mTmpOomAdjChanged && app.uidRecord != null) {
+            changedUids = new ArraySet<>();
+            changedUids.add(app.uidRecord);
+        }
+        if (success && !cachedChanged && mTmpOomAdjChanged) {
+            // Services and providers hosted elsewhere get their importance from their
+            // clients, so bring the ones this process is using up to date as well.
+            final ArrayList<ProcessRecord> dependents = new ArrayList<>();
+            final ArraySet<ProcessRecord> queued = new ArraySet<>();
+            queued.add(app);
+            collectOomAdjDependentsLocked(app, dependents, queued);
+            for (int i = 0; i < dependents.size() && !cachedChanged; i++) {
+                final ProcessRecord dependent = dependents.get(i);
+                if (!updateSingleOomAdjLocked(dependent, TOP_APP, now)) {
+                    continue;
+                }
+                numVisited++;
+                cachedChanged = dependent.cached != mTmpOomAdjWasCached
+                        || dependent.curRawAdj == ProcessList.UNKNOWN_ADJ;
+                if (mTmpOomAdjChanged) {
+                    if (dependent.uidRecord != null) {
+                        if (changedUids == null) {
+                            changedUids = new ArraySet<>();
+                        }
+                        changedUids.add(dependent.uidRecord);
+                    }
+                    collectOomAdjDependentsLocked(dependent, dependents, queued);
+                }
+            }
+        }
+        Trace.traceCounter(Trace.TRACE_TAG_ACTIVITY_MANAGER, "oomAdjVisited", numVisited);
+        if (oomAdjAll && cachedChanged) {
+            // Changed to/from cached state, so apps after it in the LRU
+            // list may also be changed.
+            updateOomAdjLocked();
+        } else if (changedUids != null) {
+            updateUidsLocked(changedUids, SystemClock.elapsedRealtime());
+        }
+        return success;
+    }
+
+    /**
+     * Update OomAdj for the processes hosting the services and providers in {@code hosts}
+     * after a client let go of them. The client's connection has already been removed at
+     * this point, so the hosts can't be reached from the client any more.
+     */
+    final void updateOomAdjLocked(ArraySet<ProcessRecord> hosts) {
+        for (int i = hosts.size() - 1; i >= 0; i--) {
+            updateOomAdjLocked(hosts.valueAt(i), true);
+        }
+    }
+
+    // Set by updateSingleOomAdjLocked() to avoid returning multiple values.
+    private boolean mTmpOomAdjWasCached;
+    private boolean mTmpOomAdjChanged;
+
+    private boolean updateSingleOomAdjLocked(ProcessRecord app, ProcessRecord TOP_APP,
+            long now) {
+        final int oldAdj = app.curRawAdj;
+        final int oldProcState = app.curProcState;
+        mTmpOomAdjWasCached = app.cached;
+
         // This is the desired cached adjusment we want to tell it to use.
         // If our app is currently cached, we know it, and that is it.  Otherwise,
         // we don't know it yet, and it needs to now be cached we will then
         // need to do a complete oom adj.
         final int cachedAdj = app.curRawAdj >= ProcessList.CACHED_APP_MIN_ADJ
                 ? app.curRawAdj : ProcessList.UNKNOWN_ADJ;
-        boolean success = updateOomAdjLocked(app, cachedAdj, TOP_APP, false,
-                SystemClock.uptimeMillis());
-        if (oomAdjAll
-                && (wasCached != app.cached || app.curRawAdj == ProcessList.UNKNOWN_ADJ)) {
-            // Changed to/from cached state, so apps after it in the LRU
-            // list may also be changed.
-            updateOomAdjLocked();
-        }
+        final boolean success = updateOomAdjLocked(app, cachedAdj, TOP_APP, false, now);
+        mTmpOomAdjChanged = app.curRawAdj != oldAdj || app.curProcState != oldProcState;
         return success;
     }
 
+    /**
+     * Adds the processes hosting services or providers {@code client} is connected to, and
+     * that are not yet in {@code queued}, to {@code outDependents} and {@code queued}.
+     */
+    private static void collectOomAdjDependentsLocked(ProcessRecord client,
+            ArrayList<ProcessRecord> outDependents, ArraySet<ProcessRecord> queued) {
+        for (int i = client.connections.size() - 1; i >= 0; i--) {
+            final ProcessRecord dependent = client.connections.valueAt(i).binding.service.app;
+            if (dependent != null && queued.add(dependent)) {
+                outDependents.add(dependent);
+            }
+        }
+        for (int i = client.conProviders.size() - 1; i >= 0; i--) {
+            final ProcessRecord dependent = client.conProviders.get(i).provider.proc;
+            if (dependent != null && queued.add(dependent)) {
+                outDependents.add(dependent);
+            }
+        }
+    }
+
+    /**
+     * Recomputes the state of {@code uids} from their running processes and dispatches the
+     * changes, the way the full updateOomAdjLocked() does for every active uid.
+     */
+    private void updateUidsLocked(ArraySet<UidRecord> uids, long nowElapsed) {
+        for (int i = uids.size() - 1; i >= 0; i--) {
+            uids.valueAt(i).reset();
+        }
+        for (int i = mLruProcesses.size() - 1; i >= 0; i--) {
+            final ProcessRecord app = mLruProcesses.get(i);
+            final UidRecord uidRec = app.uidRecord;
+            if (uidRec == null || app.killedByAm || app.thread == null
+                    || !uids.contains(uidRec)) {
+                continue;
+            }
+            uidRec.ephemeral = app.info.isInstantApp();
+            if (uidRec.curProcState > app.curProcState) {
+                uidRec.curProcState = app.curProcState;
+            }
+            if (app.foregroundServices) {
+                uidRec.foregroundServices = true;
+            }
+        }
+
+        ArrayList<UidRecord> becameIdle = null;
+        if (mLocalPowerManager != null) {
+            mLocalPowerManager.startUidChanges();
+        }
+        for (int i = uids.size() - 1; i >= 0; i--) {
+            final UidRecord uidRec = uids.valueAt(i);
+            if (applyUidChangeLocked(uidRec, nowElapsed)) {
+                if (becameIdle == null) {
+                    becameIdle = new ArrayList<>();
+                }
+                becameIdle.add(uidRec);
+            }
+        }
+        if (mLocalPowerManager != null) {
+            mLocalPowerManager.finishUidChanges();
+        }
+
+        if (becameIdle != null) {
+            for (int i = becameIdle.size() - 1; i >= 0; i--) {
+                mServices.stopInBackgroundLocked(becameIdle.get(i).uid);
+            }
+        }
+    }
+
     final void updateOomAdjLocked() {
         final ActivityRecord TOP_ACT = resumedAppLocked();
         final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
@@ -23231,61 +23605,11 @@ public class ActivityManagerService extends IActivityManager.Stub
         }
         for (int i=mActiveUids.size()-1; i>=0; i--) {
             final UidRecord uidRec = mActiveUids.valueAt(i);
-            int uidChange = UidRecord.CHANGE_PROCSTATE;
-            if (uidRec.curProcState != ActivityManager.PROCESS_STATE_NONEXISTENT
-                    && (uidRec.setProcState != uidRec.curProcState
-                           || uidRec.setWhitelist != uidRec.curWhitelist)) {
-                if (DEBUG_UID_OBSERVERS) Slog.i(TAG_UID_OBSERVERS,
-                        "Changes in " + uidRec + ": proc state from " + uidRec.setProcState
-                        + " to " + uidRec.curProcState + ", whitelist from " + uidRec.setWhitelist
-                        + " to " + uidRec.curWhitelist);
-                if (ActivityManager.isProcStateBackground(uidRec.curProcState)
-                        && !uidRec.curWhitelist) {
-                    // UID is now in the background (and not on the temp whitelist).  Was it
-                    // previously in the foreground (or on the temp whitelist)?
-                    if (!ActivityManager.isProcStateBackground(uidRec.setProcState)
-                            || uidRec.setWhitelist) {
-                        uidRec.lastBackgroundTime = nowElapsed;
-                        if (!mHandler.hasMessages(IDLE_UIDS_MSG)) {
-                            // Note: the background settle time is in elapsed realtime, while
-                            // the handler time base is uptime.  All this means is that we may
-                            // stop background uids later than we had intended, but that only
-                            // happens because the device was sleeping so we are okay anyway.
-                            mHandler.sendEmptyMessageDelayed(IDLE_UIDS_MSG,
-                                    mConstants.BACKGROUND_SETTLE_TIME);
-                        }
-                    }
-                    if (uidRec.idle && !uidRec.setIdle) {
-                        uidChange = UidRecord.CHANGE_IDLE;
-                        if (becameIdle == null) {
-                            becameIdle = new ArrayList<>();
-                        }
-                        becameIdle.add(uidRec);
-                    }
-                } else {
-                    if (uidRec.idle) {
-                        uidChange = UidRecord.CHANGE_ACTIVE;
-                        EventLogTags.writeAmUidActive(uidRec.uid);
-                        uidRec.idle = false;
-                    }
-                    uidRec.lastBackgroundTime = 0;
-                }
-                final boolean wasCached = uidRec.setProcState
-                        > ActivityManager.PROCESS_STATE_RECEIVER;
-                final boolean isCached = uidRec.curProcState
-                        > ActivityManager.PROCESS_STATE_RECEIVER;
-                if (wasCached != isCached ||
-                        uidRec.setProcState == ActivityManager.PROCESS_STATE_NONEXISTENT) {
-                    uidChange |= isCached ? UidRecord.CHANGE_CACHED : UidRecord.CHANGE_UNCACHED;
-                }
-                uidRec.setProcState = uidRec.curProcState;
-                uidRec.setWhitelist = uidRec.curWhitelist;
-                uidRec.setIdle = uidRec.idle;
-                enqueueUidChangeLocked(uidRec, -1, uidChange);
-                noteUidProcessState(uidRec.uid, uidRec.curProcState);
-                if (uidRec.foregroundServices) {
-                    mServices.foregroundServiceProcStateChangedLocked(uidRec);
+            if (applyUidChangeLocked(uidRec, nowElapsed)) {
+                if (becameIdle == null) {
+                    becameIdle = new ArrayList<>();
                 }
+                becameIdle.add(uidRec);
             }
         }
         if (mLocalPowerManager != null) {
@@ -23310,6 +23634,8 @@ public class ActivityManagerService extends IActivityManager.Stub
             });
         }
 
+        Trace.traceCounter(Trace.TRACE_TAG_ACTIVITY_MANAGER, "oomAdjVisited", N);
+
         if (DEBUG_OOM_ADJ) {
             final long duration = SystemClock.uptimeMillis() - now;
             if (false) {
@@ -23321,6 +23647,68 @@ public class ActivityManagerService extends IActivityManager.Stub
         }
     }
 
+    /**
+     * Dispatches a change in the state of {@code uidRec} since it was last applied, if any.
+     * @return whether the uid became idle.
+     */
+    private boolean applyUidChangeLocked(UidRecord uidRec, long nowElapsed) {
+        boolean becameIdle = false;
+        int uidChange = UidRecord.CHANGE_PROCSTATE;
+        if (uidRec.curProcState != ActivityManager.PROCESS_STATE_NONEXISTENT
+                && (uidRec.setProcState != uidRec.curProcState
+                       || uidRec.setWhitelist != uidRec.curWhitelist)) {
+            if (DEBUG_UID_OBSERVERS) Slog.i(TAG_UID_OBSERVERS,
+                    "Changes in " + uidRec + ": proc state from " + uidRec.setProcState
+                    + " to " + uidRec.curProcState + ", whitelist from " + uidRec.setWhitelist
+                    + " to " + uidRec.curWhitelist);
+            if (ActivityManager.isProcStateBackground(uidRec.curProcState)
+                    && !uidRec.curWhitelist) {
+                // UID is now in the background (and not on the temp whitelist).  Was it
+                // previously in the foreground (or on the temp whitelist)?
+                if (!ActivityManager.isProcStateBackground(uidRec.setProcState)
+                        || uidRec.setWhitelist) {
+                    uidRec.lastBackgroundTime = nowElapsed;
+                    if (!mHandler.hasMessages(IDLE_UIDS_MSG)) {
+                        // Note: the background settle time is in elapsed realtime, while
+                        // the handler time base is uptime.  All this means is that we may
+                        // stop background uids later than we had intended, but that only
+                        // happens because the device was sleeping so we are okay anyway.
+                        mHandler.sendEmptyMessageDelayed(IDLE_UIDS_MSG,
+                                mConstants.BACKGROUND_SETTLE_TIME);
+                    }
+                }
+                if (uidRec.idle && !uidRec.setIdle) {
+                    uidChange = UidRecord.CHANGE_IDLE;
+                    becameIdle = true;
+                }
+            } else {
+                if (uidRec.idle) {
+                    uidChange = UidRecord.CHANGE_ACTIVE;
+                    EventLogTags.writeAmUidActive(uidRec.uid);
+                    uidRec.idle = false;
+                }
+                uidRec.lastBackgroundTime = 0;
+            }
+            final boolean wasCached = uidRec.setProcState
+                    > ActivityManager.PROCESS_STATE_RECEIVER;
+            final boolean isCached = uidRec.curProcState
+                    > ActivityManager.PROCESS_STATE_RECEIVER;
+            if (wasCached != isCached ||
+                    uidRec.setProcState == ActivityManager.PROCESS_STATE_NONEXISTENT) {
+                uidChange |= isCached ? UidRecord.CHANGE_CACHED : UidRecord.CHANGE_UNCACHED;
+            }
+            uidRec.setProcState = uidRec.curProcState;
+            uidRec.setWhitelist = uidRec.curWhitelist;
+            uidRec.setIdle = uidRec.idle;
+            enqueueUidChangeLocked(uidRec, -1, uidChange);
+            noteUidProcessState(uidRec.uid, uidRec.curProcState);
+            if (uidRec.foregroundServices) {
+                mServices.foregroundServiceProcStateChangedLocked(uidRec);
+            }
+        }
+        return becameIdle;
+    }
+
     @Override
     public void makePackageIdle(String packageName, int userId) {
         if (checkCallingPermission(android.Manifest.permission.FORCE_STOP_PACKAGES)
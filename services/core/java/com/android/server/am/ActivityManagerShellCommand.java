@@ -2648,6 +2648,7 @@ final class ActivityManagerShellCommand extends ShellCommand {
             pw.println("    s[ervices] [COMP_SPEC ...]: service state");
             pw.println("    as[sociations]: tracked app associations");
             pw.println("    settings: currently applied config settings");
+            pw.println("    binder-stats [--proto | --reset]: binder call latencies, lock holds");
             pw.println("    service [COMP_SPEC]: service client-side state");
             pw.println("    package [PACKAGE_NAME]: all state related to given package");
             pw.println("    all: dump all activities");
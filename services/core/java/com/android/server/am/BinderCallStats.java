@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.app.IActivityManager;
+import android.os.SystemClock;
+import android.service.activity.ActivityManagerBinderStatsProto;
+import android.service.activity.BinderTransactionStatsProto;
+import android.service.activity.DurationHistogramProto;
+import android.service.activity.LockHoldStatsProto;
+import android.util.SparseArray;
+import android.util.TimeUtils;
+import android.util.proto.ProtoOutputStream;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.ExponentiallyBucketedHistogram;
+
+import java.io.PrintWriter;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * Opt-in latency histograms of the binder calls into the activity manager, by transaction
+ * code, and of how long the activity manager lock is held.
+ *
+ * <p>Lock holds are reported by {@link ActivityManagerService#boostPriorityForLockedSection}
+ * and {@link ActivityManagerService#resetPriorityAfterLockedSection}, which are called right
+ * after the lock is acquired and right before it is released. The time spent waiting for the
+ * lock can't be observed there, so for binder calls the time spent outside of the lock, which
+ * includes it, is reported instead.
+ *
+ * <p>When disabled, the only cost to the callers is reading {@link #isEnabled}.
+ */
+final class BinderCallStats {
+    /** Durations are in microseconds, the last bucket holds the ones longer than ~1s. */
+    private static final int HISTOGRAM_BUCKETS = 22;
+
+    private volatile boolean mEnabled;
+
+    /**
+     * Incremented whenever collection is enabled, so that threads drop the state of calls and
+     * lock holds they were in when it was last disabled.
+     */
+    private volatile int mGeneration;
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final SparseArray<CallStats> mCallStats = new SparseArray<>();
+
+    @GuardedBy("mLock")
+    private final HoldStats mLockHolds = new HoldStats();
+
+    @GuardedBy("mLock")
+    private long mResetTime = SystemClock.elapsedRealtime();
+
+    @GuardedBy("mLock")
+    private SparseArray<String> mTransactionNames;
+
+    private final ThreadLocal<ThreadState> mThreadState = new ThreadLocal<ThreadState>() {
+        @Override protected ThreadState initialValue() {
+            return new ThreadState();
+        }
+    };
+
+    private static final class ThreadState {
+        int generation;
+
+        // Outermost binder call this thread is executing. Calls into the activity manager
+        // made while handling it are accounted to it.
+        int callDepth;
+        int callCode;
+        long callStartNanos;
+        long callLockHoldNanos;
+
+        // Outermost locked section this thread is in.
+        int lockDepth;
+        long lockStartNanos;
+    }
+
+    private static final class HoldStats {
+        long count;
+        long totalMicros;
+        long maxMicros;
+        final ExponentiallyBucketedHistogram histogram =
+                new ExponentiallyBucketedHistogram(HISTOGRAM_BUCKETS);
+
+        void add(long micros) {
+            count++;
+            totalMicros += micros;
+            maxMicros = Math.max(maxMicros, micros);
+            histogram.add((int) Math.min(micros, Integer.MAX_VALUE));
+        }
+    }
+
+    private static final class CallStats {
+        final int code;
+        final HoldStats latency = new HoldStats();
+        final HoldStats lockHold = new HoldStats();
+        final ExponentiallyBucketedHistogram outsideLock =
+                new ExponentiallyBucketedHistogram(HISTOGRAM_BUCKETS);
+
+        CallStats(int code) {
+            this.code = code;
+        }
+    }
+
+    boolean isEnabled() {
+        return mEnabled;
+    }
+
+    void setEnabled(boolean enabled) {
+        if (enabled && !mEnabled) {
+            mGeneration++;
+        }
+        mEnabled = enabled;
+    }
+
+    /**
+     * Called when a binder call into the activity manager starts, only if {@link #isEnabled}.
+     */
+    void onCallStarted(int code) {
+        final ThreadState state = getThreadState();
+        if (state.callDepth++ == 0) {
+            state.callCode = code;
+            state.callStartNanos = System.nanoTime();
+            state.callLockHoldNanos = 0;
+        }
+    }
+
+    /**
+     * Called when a binder call started with {@link #onCallStarted} returns.
+     */
+    void onCallEnded() {
+        final ThreadState state = getThreadState();
+        if (state.callDepth == 0 || --state.callDepth != 0) {
+            return;
+        }
+        final long latencyMicros = (System.nanoTime() - state.callStartNanos) / 1000;
+        final long lockHoldMicros = state.callLockHoldNanos / 1000;
+        synchronized (mLock) {
+            CallStats stats = mCallStats.get(state.callCode);
+            if (stats == null) {
+                stats = new CallStats(state.callCode);
+                mCallStats.put(state.callCode, stats);
+            }
+            stats.latency.add(latencyMicros);
+            stats.lockHold.add(lockHoldMicros);
+            stats.outsideLock.add((int) Math.min(latencyMicros - lockHoldMicros,
+                    Integer.MAX_VALUE));
+        }
+    }
+
+    /**
+     * Called right after the activity manager lock was acquired, only if {@link #isEnabled}.
+     */
+    void onLockAcquired() {
+        final ThreadState state = getThreadState();
+        if (state.lockDepth++ == 0) {
+            state.lockStartNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Called right before the activity manager lock is released, only if {@link #isEnabled}.
+     */
+    void onLockReleased() {
+        final ThreadState state = getThreadState();
+        if (state.lockDepth == 0 || --state.lockDepth != 0) {
+            return;
+        }
+        final long holdNanos = System.nanoTime() - state.lockStartNanos;
+        if (state.callDepth > 0) {
+            state.callLockHoldNanos += holdNanos;
+        }
+        synchronized (mLock) {
+            mLockHolds.add(holdNanos / 1000);
+        }
+    }
+
+    void reset() {
+        synchronized (mLock) {
+            mCallStats.clear();
+            mLockHolds.count = mLockHolds.totalMicros = mLockHolds.maxMicros = 0;
+            mLockHolds.histogram.reset();
+            mResetTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    @VisibleForTesting
+    long getCallCount(int code) {
+        synchronized (mLock) {
+            final CallStats stats = mCallStats.get(code);
+            return stats != null ? stats.latency.count : 0;
+        }
+    }
+
+    @VisibleForTesting
+    long getLockHoldCount() {
+        synchronized (mLock) {
+            return mLockHolds.count;
+        }
+    }
+
+    private ThreadState getThreadState() {
+        final ThreadState state = mThreadState.get();
+        final int generation = mGeneration;
+        if (state.generation != generation) {
+            state.generation = generation;
+            state.callDepth = 0;
+            state.lockDepth = 0;
+        }
+        return state;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("ACTIVITY MANAGER BINDER STATS (dumpsys activity binder-stats)");
+        pw.print("  enabled="); pw.print(mEnabled);
+        if (!mEnabled) {
+            pw.print(" (set "); pw.print(ActivityManagerConstants.KEY_BINDER_CALL_STATS);
+            pw.print("=true in activity_manager_constants to collect)");
+        }
+        pw.println();
+        synchronized (mLock) {
+            pw.print("  duration=");
+            TimeUtils.formatDuration(SystemClock.elapsedRealtime() - mResetTime, pw);
+            pw.println();
+
+            pw.print("  Lock holds: "); dumpHoldStats(pw, mLockHolds);
+            pw.print("    hold: "); dumpHistogram(pw, mLockHolds.histogram);
+
+            final ArrayList<CallStats> calls = getCallsByTotalLatencyLocked();
+            if (calls.size() > 0) {
+                pw.println("  Calls by total latency:");
+            }
+            for (int i = 0; i < calls.size(); i++) {
+                final CallStats stats = calls.get(i);
+                pw.print("    #"); pw.print(stats.code);
+                final String name = getTransactionName(stats.code);
+                if (name != null) {
+                    pw.print(" "); pw.print(name);
+                }
+                pw.print(": "); dumpHoldStats(pw, stats.latency);
+                pw.print("      latency: "); dumpHistogram(pw, stats.latency.histogram);
+                pw.print("      lock hold: total="); pw.print(stats.lockHold.totalMicros);
+                pw.print("us max="); pw.print(stats.lockHold.maxMicros); pw.println("us");
+                pw.print("        "); dumpHistogram(pw, stats.lockHold.histogram);
+                pw.print("      outside lock: "); dumpHistogram(pw, stats.outsideLock);
+            }
+        }
+    }
+
+    void dumpProto(ProtoOutputStream proto) {
+        proto.write(ActivityManagerBinderStatsProto.ENABLED, mEnabled);
+        synchronized (mLock) {
+            proto.write(ActivityManagerBinderStatsProto.DURATION_MS,
+                    SystemClock.elapsedRealtime() - mResetTime);
+            final ArrayList<CallStats> calls = getCallsByTotalLatencyLocked();
+            for (int i = 0; i < calls.size(); i++) {
+                final CallStats stats = calls.get(i);
+                final long token = proto.start(ActivityManagerBinderStatsProto.TRANSACTIONS);
+                proto.write(BinderTransactionStatsProto.CODE, stats.code);
+                final String name = getTransactionName(stats.code);
+                if (name != null) {
+                    proto.write(BinderTransactionStatsProto.NAME, name);
+                }
+                proto.write(BinderTransactionStatsProto.CALL_COUNT, stats.latency.count);
+                proto.write(BinderTransactionStatsProto.TOTAL_LATENCY_MICROS,
+                        stats.latency.totalMicros);
+                proto.write(BinderTransactionStatsProto.MAX_LATENCY_MICROS,
+                        stats.latency.maxMicros);
+                writeHistogram(proto, BinderTransactionStatsProto.LATENCY,
+                        stats.latency.histogram);
+                proto.write(BinderTransactionStatsProto.TOTAL_LOCK_HOLD_MICROS,
+                        stats.lockHold.totalMicros);
+                writeHistogram(proto, BinderTransactionStatsProto.LOCK_HOLD,
+                        stats.lockHold.histogram);
+                writeHistogram(proto, BinderTransactionStatsProto.OUTSIDE_LOCK,
+                        stats.outsideLock);
+                proto.end(token);
+            }
+
+            final long token = proto.start(ActivityManagerBinderStatsProto.LOCK);
+            proto.write(LockHoldStatsProto.ACQUISITIONS, mLockHolds.count);
+            proto.write(LockHoldStatsProto.TOTAL_HOLD_MICROS, mLockHolds.totalMicros);
+            proto.write(LockHoldStatsProto.MAX_HOLD_MICROS, mLockHolds.maxMicros);
+            writeHistogram(proto, LockHoldStatsProto.HOLD, mLockHolds.histogram);
+            proto.end(token);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private ArrayList<CallStats> getCallsByTotalLatencyLocked() {
+        final ArrayList<CallStats> calls = new ArrayList<>(mCallStats.size());
+        for (int i = 0; i < mCallStats.size(); i++) {
+            calls.add(mCallStats.valueAt(i));
+        }
+        Collections.sort(calls, (a, b) -> Long.compare(b.latency.totalMicros,
+                a.latency.totalMicros));
+        return calls;
+    }
+
+    private static void dumpHoldStats(PrintWriter pw, HoldStats stats) {
+        pw.print("count="); pw.print(stats.count);
+        pw.print(" total="); pw.print(stats.totalMicros);
+        pw.print("us max="); pw.print(stats.maxMicros); pw.println("us");
+    }
+
+    private static void dumpHistogram(PrintWriter pw, ExponentiallyBucketedHistogram histogram) {
+        final int buckets = histogram.getBucketCount();
+        pw.print('[');
+        boolean printed = false;
+        for (int i = 0; i < buckets; i++) {
+            final int count = histogram.getCount(i);
+            if (count == 0) {
+                continue;
+            }
+            if (printed) {
+                pw.print(", ");
+            }
+            if (i < buckets - 1) {
+                pw.print('<'); pw.print(1 << i);
+            } else {
+                pw.print(">="); pw.print(1 << (i - 1));
+            }
+            pw.print("us: "); pw.print(count);
+            printed = true;
+        }
+        pw.println(']');
+    }
+
+    private static void writeHistogram(ProtoOutputStream proto, long fieldId,
+            ExponentiallyBucketedHistogram histogram) {
+        final long token = proto.start(fieldId);
+        for (int i = 0; i < histogram.getBucketCount(); i++) {
+            proto.write(DurationHistogramProto.BUCKET_COUNTS, histogram.getCount(i));
+        }
+        proto.end(token);
+    }
+
+    private String getTransactionName(int code) {
+        if (mTransactionNames == null) {
+            final SparseArray<String> names = new SparseArray<>();
+            for (Field field : IActivityManager.Stub.class.getDeclaredFields()) {
+                final String name = field.getName();
+                if (!name.startsWith("TRANSACTION_") || field.getType() != int.class
+                        || !Modifier.isStatic(field.getModifiers())) {
+                    continue;
+                }
+                try {
+                    field.setAccessible(true);
+                    names.put(field.getInt(null), name.substring("TRANSACTION_".length()));
+                } catch (IllegalAccessException e) {
+                    // Only the code will be printed.
+                }
+            }
+            mTransactionNames = names;
+        }
+        return mTransactionNames.get(code);
+    }
+}
@@ -24,6 +24,7 @@ import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Set;
 
 import android.app.ActivityManager;
@@ -39,6 +40,7 @@ import android.content.IntentSender;
 import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
+import android.net.ConnectivityManager;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
@@ -48,6 +50,8 @@ import android.os.Process;
 import android.os.RemoteException;
 import android.os.SystemClock;
 import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.EventLog;
 import android.util.Slog;
 import android.util.TimeUtils;
@@ -152,6 +156,43 @@ public final class BroadcastQueue {
      */
     int mPendingBroadcastRecvIndex;
 
+    /**
+     * Set when the next serialized receiver is held back because another background queue
+     * is busy with its process; that queue reschedules us when it moves on.
+     */
+    boolean mWaitingOnBusyProcess;
+
+    /**
+     * When we started waiting on a busy process, so that the wait isn't held against the
+     * broadcast once its receiver is finally dispatched.
+     */
+    long mWaitingOnBusyProcessSince;
+
+    /**
+     * Upper bounds of the buckets of {@link #mReceiverLatencyHistogram}; the last bucket
+     * counts everything slower.
+     */
+    static final long[] RECEIVER_LATENCY_BUCKETS_MS = { 10, 50, 100, 500, 1000, 5000, 10000 };
+
+    /**
+     * How long serialized receivers took to report back that they finished.
+     */
+    final long[] mReceiverLatencyHistogram = new long[RECEIVER_LATENCY_BUCKETS_MS.length + 1];
+
+    /**
+     * Non-ordered broadcasts that only report the latest value of some state, mapped to the
+     * int extras telling apart the different states they report on. A delivery of one of these
+     * still waiting in the queue is dropped when a newer broadcast about the same state is
+     * enqueued for the same receiver.
+     */
+    static final ArrayMap<String, String[]> COALESCED_BROADCASTS = new ArrayMap<>();
+    static {
+        COALESCED_BROADCASTS.put(Intent.ACTION_BATTERY_CHANGED, new String[0]);
+        COALESCED_BROADCASTS.put(Intent.ACTION_TIME_TICK, new String[0]);
+        COALESCED_BROADCASTS.put(ConnectivityManager.CONNECTIVITY_ACTION,
+                new String[] { ConnectivityManager.EXTRA_NETWORK_TYPE });
+    }
+
     static final int BROADCAST_INTENT_MSG = ActivityManagerService.FIRST_BROADCAST_QUEUE_MSG;
     static final int BROADCAST_TIMEOUT_MSG = ActivityManagerService.FIRST_BROADCAST_QUEUE_MSG + 1;
 
@@ -212,16 +253,145 @@ public final class BroadcastQueue {
         return mPendingBroadcast != null && mPendingBroadcast.curApp.pid == pid;
     }
 
+    /**
+     * Returns true if the current serialized broadcast is being delivered to, or is waiting
+     * for the start of, a process named {@code processName}.
+     */
+    boolean isDeliveringToProcessLocked(String processName) {
+        if (mOrderedBroadcasts.size() == 0) {
+            return false;
+        }
+        final BroadcastRecord r = mOrderedBroadcasts.get(0);
+        return r.state != BroadcastRecord.IDLE && r.curApp != null
+                && processName.equals(r.curApp.processName);
+    }
+
+    /**
+     * Returns true if a serialized broadcast still has to be delivered, or is being delivered,
+     * to a manifest receiver in a process named {@code processName}.
+     */
+    boolean hasPendingReceiverForProcessLocked(String processName) {
+        for (int i = mOrderedBroadcasts.size() - 1; i >= 0; i--) {
+            final BroadcastRecord r = mOrderedBroadcasts.get(i);
+            if (r.receivers == null) {
+                continue;
+            }
+            final int N = r.receivers.size();
+            final int first = r.state != BroadcastRecord.IDLE && r.nextReceiver > 0
+                    ? r.nextReceiver - 1 : r.nextReceiver;
+            for (int j = first; j < N; j++) {
+                final Object receiver = r.receivers.get(j);
+                if (receiver instanceof ResolveInfo && processName.equals(
+                        ((ResolveInfo) receiver).activityInfo.processName)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Lets queues held back by {@link #mWaitingOnBusyProcess} look again now that this
+     * queue has moved on from a process.
+     */
+    private void scheduleQueuesWaitingOnBusyProcessLocked() {
+        for (BroadcastQueue queue : mService.mBroadcastQueues) {
+            if (queue != this && queue.mWaitingOnBusyProcess) {
+                queue.scheduleBroadcastsLocked();
+            }
+        }
+    }
+
     public void enqueueParallelBroadcastLocked(BroadcastRecord r) {
+        coalescePendingBroadcastsLocked(mParallelBroadcasts, 0, r);
         mParallelBroadcasts.add(r);
         enqueueBroadcastHelper(r);
     }
 
     public void enqueueOrderedBroadcastLocked(BroadcastRecord r) {
+        // The first ordered broadcast may already be in the middle of being delivered.
+        coalescePendingBroadcastsLocked(mOrderedBroadcasts, 1, r);
         mOrderedBroadcasts.add(r);
         enqueueBroadcastHelper(r);
     }
 
+    /**
+     * Drops the receivers of {@code r} from the broadcasts in {@code queue}, starting at
+     * {@code start}, that report an older value of the same state as {@code r} and have not
+     * been delivered yet. Broadcasts left without receivers are removed altogether.
+     * See {@link #COALESCED_BROADCASTS}.
+     */
+    private void coalescePendingBroadcastsLocked(ArrayList<BroadcastRecord> queue, int start,
+            BroadcastRecord r) {
+        if (queue.size() <= start || !isCoalescable(r)) {
+            return;
+        }
+        final String[] stateKeys = COALESCED_BROADCASTS.get(r.intent.getAction());
+        ArraySet<Object> receiverKeys = null;
+        int suppressed = 0;
+        for (int i = queue.size() - 1; i >= start; i--) {
+            final BroadcastRecord old = queue.get(i);
+            if (!isCoalescable(old) || old.nextReceiver != 0 || old.userId != r.userId
+                    || old.callingUid != r.callingUid || !r.intent.filterEquals(old.intent)
+                    || !hasSameStateExtras(r.intent, old.intent, stateKeys)) {
+                continue;
+            }
+            if (receiverKeys == null) {
+                receiverKeys = new ArraySet<>(r.receivers.size());
+                for (int j = r.receivers.size() - 1; j >= 0; j--) {
+                    receiverKeys.add(getReceiverKey(r.receivers.get(j)));
+                }
+            }
+            final List receivers = old.receivers;
+            for (int j = receivers.size() - 1; j >= 0; j--) {
+                if (receiverKeys.contains(getReceiverKey(receivers.get(j)))) {
+                    receivers.remove(j);
+                    suppressed++;
+                }
+            }
+            if (receivers.isEmpty()) {
+                if (DEBUG_BROADCAST) Slog.v(TAG_BROADCAST, "Coalesced [" + mQueueName
+                        + "] " + old + " into " + r);
+                queue.remove(i);
+                if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
+                    Trace.asyncTraceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER,
+                        createBroadcastTraceTitle(old, BroadcastRecord.DELIVERY_PENDING),
+                        System.identityHashCode(old));
+                }
+            }
+        }
+        if (suppressed > 0) {
+            mService.addBroadcastCoalescedStatLocked(r.intent.getAction(), suppressed);
+        }
+    }
+
+    private static boolean isCoalescable(BroadcastRecord r) {
+        return !r.ordered && r.resultTo == null && !r.initialSticky && r.receivers != null
+                && COALESCED_BROADCASTS.containsKey(r.intent.getAction());
+    }
+
+    private static boolean hasSameStateExtras(Intent a, Intent b, String[] keys) {
+        for (String key : keys) {
+            if (a.getIntExtra(key, -1) != b.getIntExtra(key, -1)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns an object identifying the receiver, for comparing receivers across
+     * broadcasts: registered receivers keep their filter, but manifest receivers are
+     * resolved again for every broadcast.
+     */
+    private static Object getReceiverKey(Object receiver) {
+        if (receiver instanceof ResolveInfo) {
+            final ActivityInfo info = ((ResolveInfo) receiver).activityInfo;
+            return info.applicationInfo.uid + "/" + info.packageName + "/" + info.name;
+        }
+        return receiver;
+    }
+
     /**
      * Don't call this method directly; call enqueueParallelBroadcastLocked or
      * enqueueOrderedBroadcastLocked.
@@ -284,6 +454,7 @@ public final class BroadcastQueue {
         r.receiver = app.thread.asBinder();
         r.curApp = app;
         app.curReceivers.add(r);
+        mService.mProcessPrewarmer.onProcessUsedLocked(app);
         app.forceProcessStateUpTo(ActivityManager.PROCESS_STATE_RECEIVER);
         mService.updateLruProcessLocked(app, false, null);
         mService.updateOomAdjLocked();
@@ -351,6 +522,7 @@ public final class BroadcastQueue {
             br.nextReceiver = mPendingBroadcastRecvIndex;
             mPendingBroadcast = null;
             scheduleBroadcastsLocked();
+            scheduleQueuesWaitingOnBusyProcessLocked();
         }
     }
 
@@ -409,7 +581,11 @@ public final class BroadcastQueue {
         r.state = BroadcastRecord.IDLE;
         if (state == BroadcastRecord.IDLE) {
             Slog.w(TAG, "finishReceiver [" + mQueueName + "] called but state is IDLE");
+        } else if (waitForServices && r.receiverTime > 0) {
+            // The receiver itself reported back, as opposed to being skipped or timed out.
+            noteReceiverLatencyLocked(SystemClock.uptimeMillis() - r.receiverTime);
         }
+        final boolean hadApp = r.curApp != null;
         r.receiver = null;
         r.intent.setComponent(null);
         if (r.curApp != null && r.curApp.curReceivers.contains(r)) {
@@ -422,6 +598,9 @@ public final class BroadcastQueue {
         r.curReceiver = null;
         r.curApp = null;
         mPendingBroadcast = null;
+        if (hadApp) {
+            scheduleQueuesWaitingOnBusyProcessLocked();
+        }
 
         r.resultCode = resultCode;
         r.resultData = resultData;
@@ -887,6 +1066,7 @@ public final class BroadcastQueue {
                     mPendingBroadcast.state = BroadcastRecord.IDLE;
                     mPendingBroadcast.nextReceiver = mPendingBroadcastRecvIndex;
                     mPendingBroadcast = null;
+                    scheduleQueuesWaitingOnBusyProcessLocked();
                 }
             }
 
@@ -916,7 +1096,7 @@ public final class BroadcastQueue {
                 // one time heavy lifting after system upgrades and can take
                 // significant amounts of time.
                 int numReceivers = (r.receivers != null) ? r.receivers.size() : 0;
-                if (mService.mProcessesReady && r.dispatchTime > 0) {
+                if (mService.mProcessesReady && r.dispatchTime > 0 && !mWaitingOnBusyProcess) {
                     long now = SystemClock.uptimeMillis();
                     if ((numReceivers > 0) &&
                             (now > r.dispatchTime + (2*mTimeoutPeriod*numReceivers))) {
@@ -982,12 +1162,36 @@ public final class BroadcastQueue {
                                 r.manifestCount, r.manifestSkipCount, r.finishTime-r.dispatchTime);
                     }
                     mOrderedBroadcasts.remove(0);
+                    scheduleQueuesWaitingOnBusyProcessLocked();
                     r = null;
                     looped = true;
                     continue;
                 }
             } while (r == null);
 
+            // Don't start on a receiver in a process another background queue is
+            // already delivering to; we will be rescheduled once it is done there.
+            final Object peekReceiver = r.receivers.get(r.nextReceiver);
+            if (peekReceiver instanceof ResolveInfo
+                    && mService.isBackgroundBroadcastProcessBusyLocked(this,
+                            ((ResolveInfo) peekReceiver).activityInfo.processName)) {
+                if (DEBUG_BROADCAST) Slog.v(TAG_BROADCAST, "processNextBroadcast ["
+                        + mQueueName + "]: waiting for busy process of " + peekReceiver);
+                if (!mWaitingOnBusyProcess) {
+                    mWaitingOnBusyProcess = true;
+                    mWaitingOnBusyProcessSince = SystemClock.uptimeMillis();
+                }
+                return;
+            }
+            if (mWaitingOnBusyProcess) {
+                mWaitingOnBusyProcess = false;
+                if (r.dispatchTime > 0) {
+                    // Nothing of this broadcast ran while we waited, so don't let the wait
+                    // count towards declaring it hung.
+                    r.dispatchTime += SystemClock.uptimeMillis() - mWaitingOnBusyProcessSince;
+                }
+            }
+
             // Get the next receiver...
             int recIdx = r.nextReceiver++;
 
@@ -1420,10 +1624,12 @@ public final class BroadcastQueue {
         long now = SystemClock.uptimeMillis();
         BroadcastRecord r = mOrderedBroadcasts.get(0);
         if (fromMsg) {
-            if (!mService.mProcessesReady) {
+            if (!mService.mProcessesReady || mWaitingOnBusyProcess) {
                 // Only process broadcast timeouts if the system is ready. That way
                 // PRE_BOOT_COMPLETED broadcasts can't timeout as they are intended
-                // to do heavy lifting for system up.
+                // to do heavy lifting for system up. Nothing of ours is running while
+                // we wait on another queue's process either; the timeout is set up
+                // again when we move on to the next receiver.
                 return;
             }
 
@@ -1596,6 +1802,28 @@ public final class BroadcastQueue {
                 record.intent == null ? "" : record.intent.getAction());
     }
 
+    private void noteReceiverLatencyLocked(long latency) {
+        int bucket = 0;
+        while (bucket < RECEIVER_LATENCY_BUCKETS_MS.length
+                && latency >= RECEIVER_LATENCY_BUCKETS_MS[bucket]) {
+            bucket++;
+        }
+        mReceiverLatencyHistogram[bucket]++;
+    }
+
+    private void dumpReceiverLatencyLocked(PrintWriter pw) {
+        pw.print("  Receiver latency [" + mQueueName + "]:");
+        for (int i = 0; i < mReceiverLatencyHistogram.length; i++) {
+            if (i < RECEIVER_LATENCY_BUCKETS_MS.length) {
+                pw.print(" <"); pw.print(RECEIVER_LATENCY_BUCKETS_MS[i]); pw.print("ms=");
+            } else {
+                pw.print(" >="); pw.print(RECEIVER_LATENCY_BUCKETS_MS[i - 1]); pw.print("ms=");
+            }
+            pw.print(mReceiverLatencyHistogram[i]);
+        }
+        pw.println();
+    }
+
     final boolean isIdle() {
         return mParallelBroadcasts.isEmpty() && mOrderedBroadcasts.isEmpty()
                 && (mPendingBroadcast == null);
@@ -1656,6 +1884,18 @@ public final class BroadcastQueue {
             }
         }
 
+        if (dumpPackage == null) {
+            if (needSep) {
+                pw.println();
+            }
+            dumpReceiverLatencyLocked(pw);
+            if (mWaitingOnBusyProcess) {
+                pw.println("  Waiting for another queue to finish with the next receiver's"
+                        + " process");
+            }
+            needSep = true;
+        }
+
         int i;
         boolean printed = false;
 
@@ -0,0 +1,483 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.am;
+
+import static android.text.format.DateUtils.DAY_IN_MILLIS;
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+import static com.android.server.am.ActivityManagerDebugConfig.TAG_AM;
+import static com.android.server.am.ActivityManagerDebugConfig.TAG_WITH_CLASS_NAME;
+import static com.android.server.am.ActivityManagerService.STOCK_PM_FLAGS;
+
+import android.app.AppGlobals;
+import android.app.usage.UsageEvents;
+import android.app.usage.UsageStatsManagerInternal;
+import android.content.Intent;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ResolveInfo;
+import android.os.Handler;
+import android.os.RemoteException;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.IntArray;
+import android.util.Slog;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.app.procstats.ProcessStats;
+import com.android.internal.os.BackgroundThread;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Starts the process of the app the user is most likely to switch to next, so that launching
+ * it doesn't wait for the process to be forked and bound.
+ * <p>Predictions come from the transitions between foreground packages, per user and per time
+ * of day. They are seeded from the {@link UsageStatsManagerInternal} event history and kept up
+ * to date as activities are resumed. Prewarmed processes are regular empty processes in the
+ * cached tier, and are only started while memory isn't under pressure.</p>
+ * <p>Must be called with the {@link ActivityManagerService} lock held.</p>
+ */
+final class ProcessPrewarmer {
+    private static final String TAG = TAG_WITH_CLASS_NAME ? "ProcessPrewarmer" : TAG_AM;
+
+    /** The day is split in this many buckets of equal duration. */
+    @VisibleForTesting
+    static final int TIME_BUCKETS = 6;
+
+    /** How far back the usage history is read when seeding the predictions. */
+    private static final long HISTORY_DURATION = 7 * DAY_IN_MILLIS;
+
+    /**
+     * How long after a resume the predicted process is started, and how long to wait again
+     * while the resumed activity isn't idle yet.
+     */
+    private static final long PREWARM_DELAY_MS = 1000;
+
+    /** How many times to wait for the resumed activity to become idle before giving up. */
+    private static final int MAX_PREWARM_RETRIES = 5;
+
+    private final ActivityManagerService mService;
+    private final Handler mHandler;
+    private final Runnable mPrewarmRunnable = this::prewarm;
+
+    /** Transition models, by user id. */
+    private final SparseArray<TransitionModel> mModels = new SparseArray<>();
+
+    /**
+     * Prewarmed processes that weren't brought to the foreground yet, and don't host any other
+     * component either.
+     */
+    private final ArraySet<ProcessRecord> mPrewarmedProcs = new ArraySet<>();
+
+    /** The package waiting to be prewarmed by {@link #mPrewarmRunnable}, if any. */
+    private String mPendingPackage;
+    private int mPendingUserId;
+    private int mPendingRetries;
+
+    private long mPredictions;
+    private long mStarts;
+    private long mHits;
+    private long mWasted;
+    private long mUsedOtherwise;
+    private long mSkippedNoHeadroom;
+
+    ProcessPrewarmer(ActivityManagerService service, Handler handler) {
+        mService = service;
+        mHandler = handler;
+    }
+
+    /**
+     * Called when {@code r} is resumed. Learns the transition from the previous foreground
+     * package and prewarms the process of the predicted next one.
+     */
+    void onActivityResumedLocked(ActivityRecord r) {
+        if (r.app != null && mPrewarmedProcs.remove(r.app)) {
+            mHits++;
+        }
+        if (!mService.mConstants.PROCESS_PREWARM) {
+            return;
+        }
+        onForegroundLocked(r.packageName, r.userId,
+                r.isHomeActivity() || r.isRecentsActivity());
+    }
+
+    @VisibleForTesting
+    void onForegroundLocked(String packageName, int userId, boolean homeOrRecents) {
+        final long now = System.currentTimeMillis();
+        TransitionModel model = mModels.get(userId);
+        if (model == null) {
+            model = new TransitionModel();
+            mModels.put(userId, model);
+            scheduleHistoryLoadLocked(userId, now);
+        }
+        if (homeOrRecents) {
+            // Users go through these between apps, they aren't part of the sequence.
+            model.ignorePackage(packageName);
+            return;
+        }
+
+        final int bucket = getTimeBucket(now);
+        model.noteForeground(packageName, bucket);
+        final String next = model.predict(packageName, bucket);
+        if (next != null) {
+            mPredictions++;
+            // Starting a process forks the zygote under our lock, so stay off the path of
+            // the launch that got us here and only do it once things have settled.
+            mPendingPackage = next;
+            mPendingUserId = userId;
+            mPendingRetries = 0;
+            mHandler.removeCallbacks(mPrewarmRunnable);
+            mHandler.postDelayed(mPrewarmRunnable, PREWARM_DELAY_MS);
+        }
+    }
+
+    @VisibleForTesting
+    boolean isPrewarmPendingLocked() {
+        return mPendingPackage != null;
+    }
+
+    /**
+     * Called when {@code app} is given a service, broadcast receiver or content provider to
+     * run. A prewarmed process put to use that way isn't waiting for its activity anymore, so
+     * it counts neither as a hit nor as wasted.
+     */
+    void onProcessUsedLocked(ProcessRecord app) {
+        if (mPrewarmedProcs.remove(app)) {
+            mUsedOtherwise++;
+        }
+    }
+
+    /**
+     * Called when the record of {@code app} is removed, whether it died or was killed.
+     */
+    void onProcessRemovedLocked(ProcessRecord app) {
+        if (mPrewarmedProcs.remove(app)) {
+            mWasted++;
+        }
+    }
+
+    /**
+     * Starts the process of {@link #mPendingPackage}. Runs on {@link #mHandler} without any
+     * lock held.
+     */
+    private void prewarm() {
+        final String packageName;
+        final int userId;
+        synchronized (mService) {
+            if (mPendingPackage == null) {
+                return;
+            }
+            if (!mService.mConstants.PROCESS_PREWARM) {
+                mPendingPackage = null;
+                return;
+            }
+            final ActivityRecord resumed = mService.mStackSupervisor.getResumedActivityLocked();
+            if (resumed != null && !resumed.idle) {
+                if (++mPendingRetries > MAX_PREWARM_RETRIES) {
+                    mPendingPackage = null;
+                } else {
+                    mHandler.postDelayed(mPrewarmRunnable, PREWARM_DELAY_MS);
+                }
+                return;
+            }
+            packageName = mPendingPackage;
+            userId = mPendingUserId;
+        }
+
+        final ApplicationInfo info;
+        try {
+            info = AppGlobals.getPackageManager().getApplicationInfo(packageName,
+                    STOCK_PM_FLAGS, userId);
+        } catch (RemoteException e) {
+            // Can't happen; package manager is in the same process
+            return;
+        }
+
+        synchronized (mService) {
+            if (!packageName.equals(mPendingPackage) || userId != mPendingUserId) {
+                // Another prediction came in meanwhile, leave it to its own run.
+                return;
+            }
+            mPendingPackage = null;
+            prewarmLocked(info);
+        }
+    }
+
+    private void prewarmLocked(ApplicationInfo info) {
+        if (info == null || info.isInstantApp()
+                || (info.flags & ApplicationInfo.FLAG_STOPPED) != 0) {
+            return;
+        }
+        final int numCached = mService.mNumCachedHiddenProcs;
+        final int numEmpty = mService.mLruProcesses.size() - mService.mNumNonCachedProcs
+                - numCached;
+        if (!hasHeadroom(mService.mLastMemoryLevel, numCached, numEmpty,
+                mService.mConstants.CUR_MAX_CACHED_PROCESSES,
+                mService.mConstants.CUR_MAX_EMPTY_PROCESSES)) {
+            mSkippedNoHeadroom++;
+            return;
+        }
+        if (mService.getProcessRecordLocked(info.processName, info.uid, true) != null) {
+            return;
+        }
+
+        final ProcessRecord app = mService.startProcessLocked(info.processName, info,
+                false /* knownToBeDead */, Intent.FLAG_FROM_BACKGROUND, "prewarm",
+                null /* hostingName */, false /* allowWhileBooting */, false /* isolated */,
+                true /* keepIfLarge */);
+        if (app != null) {
+            onProcessPrewarmedLocked(app);
+        }
+    }
+
+    @VisibleForTesting
+    void onProcessPrewarmedLocked(ProcessRecord app) {
+        mPrewarmedProcs.add(app);
+        mStarts++;
+    }
+
+    @VisibleForTesting
+    boolean isPrewarmedLocked(ProcessRecord app) {
+        return mPrewarmedProcs.contains(app);
+    }
+
+    /**
+     * Returns whether a prewarmed process, which starts out as an empty cached process, fits
+     * without pushing out other cached or empty processes.
+     *
+     * @param maxCached the maximum number of cached and empty processes together.
+     * @param maxEmpty the maximum number of empty processes.
+     */
+    @VisibleForTesting
+    static boolean hasHeadroom(int memFactor, int numCached, int numEmpty, int maxCached,
+            int maxEmpty) {
+        return memFactor <= ProcessStats.ADJ_MEM_FACTOR_NORMAL
+                && numCached + numEmpty < maxCached / 2
+                && numEmpty < maxEmpty / 2;
+    }
+
+    /**
+     * Loads the usage history of {@code userId} up to {@code end}, when its model was created.
+     * Everything from then on is added to the model as it happens.
+     */
+    private void scheduleHistoryLoadLocked(int userId, long end) {
+        final UsageStatsManagerInternal usageStats = mService.mUsageStatsService;
+        if (usageStats == null) {
+            return;
+        }
+        final Intent homeIntent = mService.getHomeIntent();
+        BackgroundThread.getHandler().post(
+                () -> loadHistory(usageStats, homeIntent, userId, end));
+    }
+
+    /**
+     * Seeds the model of {@code userId} from its usage history. Called without any lock held.
+     */
+    private void loadHistory(UsageStatsManagerInternal usageStats, Intent homeIntent,
+            int userId, long end) {
+        final UsageEvents events = usageStats.queryEventsForUser(userId,
+                end - HISTORY_DURATION, end, true /* obfuscateInstantApps */);
+        if (events == null) {
+            return;
+        }
+
+        String homePackage = null;
+        try {
+            final ResolveInfo ri = AppGlobals.getPackageManager().resolveIntent(homeIntent,
+                    null, STOCK_PM_FLAGS, userId);
+            if (ri != null && ri.activityInfo != null) {
+                homePackage = ri.activityInfo.packageName;
+            }
+        } catch (RemoteException e) {
+            // Can't happen; package manager is in the same process
+        }
+
+        final ArrayList<String> packages = new ArrayList<>();
+        final IntArray buckets = new IntArray();
+        final UsageEvents.Event event = new UsageEvents.Event();
+        while (events.hasNextEvent()) {
+            events.getNextEvent(event);
+            if (event.getEventType() != UsageEvents.Event.MOVE_TO_FOREGROUND
+                    || event.getPackageName().equals(homePackage)) {
+                continue;
+            }
+            packages.add(event.getPackageName());
+            buckets.add(getTimeBucket(event.getTimeStamp()));
+        }
+
+        synchronized (mService) {
+            final TransitionModel model = mModels.get(userId);
+            if (model != null) {
+                model.addHistory(packages, buckets);
+                if (ActivityManagerDebugConfig.DEBUG_PROCESSES) {
+                    Slog.d(TAG, "Loaded " + packages.size() + " foreground events for user "
+                            + userId);
+                }
+            }
+        }
+    }
+
+    @VisibleForTesting
+    static int getTimeBucket(long currentTimeMillis) {
+        final long localTime = currentTimeMillis
+                + TimeZone.getDefault().getOffset(currentTimeMillis);
+        final int hourOfDay = (int) ((localTime / HOUR_IN_MILLIS) % 24);
+        return hourOfDay / (24 / TIME_BUCKETS);
+    }
+
+    void dumpLocked(PrintWriter pw) {
+        pw.print("  mProcessPrewarmer: predictions="); pw.print(mPredictions);
+        pw.print(" started="); pw.print(mStarts);
+        pw.print(" hits="); pw.print(mHits);
+        pw.print(" wasted="); pw.print(mWasted);
+        pw.print(" usedOtherwise="); pw.print(mUsedOtherwise);
+        pw.print(" skippedNoHeadroom="); pw.print(mSkippedNoHeadroom);
+        pw.print(" pending="); pw.println(mPrewarmedProcs.size());
+        for (int i = 0; i < mModels.size(); i++) {
+            pw.print("    u"); pw.print(mModels.keyAt(i)); pw.print(": ");
+            pw.print(mModels.valueAt(i).size()); pw.println(" packages with transitions");
+        }
+    }
+
+    /**
+     * Counts of the transitions between foreground packages of a user, per time bucket.
+     */
+    @VisibleForTesting
+    static final class TransitionModel {
+        /** Minimum number of times a transition must have been seen to be predicted. */
+        static final int MIN_TRANSITIONS = 3;
+
+        private static final int MAX_PREDECESSORS = 256;
+        private static final int MAX_SUCCESSORS = 8;
+
+        /** Per predecessor package, per successor package, counts per time bucket. */
+        private final ArrayMap<String, ArrayMap<String, int[]>> mTransitions = new ArrayMap<>();
+
+        /** Packages the user goes through between apps, like home. */
+        private final ArraySet<String> mIgnoredPackages = new ArraySet<>();
+
+        private String mLastPackage;
+
+        void ignorePackage(String packageName) {
+            if (mIgnoredPackages.add(packageName)) {
+                mTransitions.remove(packageName);
+                for (int i = mTransitions.size() - 1; i >= 0; i--) {
+                    mTransitions.valueAt(i).remove(packageName);
+                }
+            }
+        }
+
+        void noteForeground(String packageName, int bucket) {
+            if (mIgnoredPackages.contains(packageName)) {
+                return;
+            }
+            if (mLastPackage != null && !mLastPackage.equals(packageName)) {
+                addTransition(mLastPackage, packageName, bucket);
+            }
+            mLastPackage = packageName;
+        }
+
+        /**
+         * Adds the transitions of a past sequence of foreground packages, oldest first.
+         */
+        void addHistory(List<String> packages, IntArray buckets) {
+            String last = null;
+            for (int i = 0; i < packages.size(); i++) {
+                final String packageName = packages.get(i);
+                if (mIgnoredPackages.contains(packageName)) {
+                    continue;
+                }
+                if (last != null && !last.equals(packageName)) {
+                    addTransition(last, packageName, buckets.get(i));
+                }
+                last = packageName;
+            }
+        }
+
+        /**
+         * @return the package most likely to be brought to the foreground after
+         *         {@code packageName} in {@code bucket}, or {@code null} if there isn't a
+         *         clear one.
+         */
+        String predict(String packageName, int bucket) {
+            final ArrayMap<String, int[]> successors = mTransitions.get(packageName);
+            if (successors == null) {
+                return null;
+            }
+            String best = null;
+            int bestCount = 0;
+            int total = 0;
+            for (int i = successors.size() - 1; i >= 0; i--) {
+                final int count = successors.valueAt(i)[bucket];
+                total += count;
+                if (count > bestCount) {
+                    best = successors.keyAt(i);
+                    bestCount = count;
+                }
+            }
+            // Only predict a transition taken most of the time.
+            if (bestCount < MIN_TRANSITIONS || bestCount * 2 <= total) {
+                return null;
+            }
+            return best;
+        }
+
+        int size() {
+            return mTransitions.size();
+        }
+
+        private void addTransition(String from, String to, int bucket) {
+            ArrayMap<String, int[]> successors = mTransitions.get(from);
+            if (successors == null) {
+                if (mTransitions.size() >= MAX_PREDECESSORS) {
+                    return;
+                }
+                successors = new ArrayMap<>();
+                mTransitions.put(from, successors);
+            }
+            int[] counts = successors.get(to);
+            if (counts == null) {
+                if (successors.size() >= MAX_SUCCESSORS) {
+                    // Make room by dropping the least taken transition.
+                    successors.removeAt(indexOfLeastTaken(successors));
+                }
+                counts = new int[TIME_BUCKETS];
+                successors.put(to, counts);
+            }
+            counts[bucket]++;
+        }
+
+        private static int indexOfLeastTaken(ArrayMap<String, int[]> successors) {
+            int leastIndex = 0;
+            int leastTotal = Integer.MAX_VALUE;
+            for (int i = successors.size() - 1; i >= 0; i--) {
+                int total = 0;
+                for (int count : successors.valueAt(i)) {
+                    total += count;
+                }
+                if (total < leastTotal) {
+                    leastIndex = i;
+                    leastTotal = total;
+                }
+            }
+            return leastIndex;
+        }
+    }
+}
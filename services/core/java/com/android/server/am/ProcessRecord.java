@@ -78,6 +78,8 @@ final class ProcessRecord {
     String requiredAbi;         // The ABI this process was launched with
     String instructionSet;      // The instruction set this process was launched with
     boolean starting;           // True if the process is being started
+    long startRequestTime;      // When the zygote was asked to start it; 0 once attached
+    boolean startUsedPool;      // Whether the zygote started it from its pool
     long lastActivityTime;      // For managing the LRU list
     long lastPssTime;           // Last time we retrieved PSS data
     long nextPssTime;           // Next time we want to request PSS data
@@ -140,6 +142,7 @@ final class ProcessRecord {
     Object forcingToImportant;  // Token that is forcing this process to be important
     int adjSeq;                 // Sequence id for identifying oom_adj assignment cycles
     int lruSeq;                 // Sequence id for identifying LRU update cycles
+    int lruIndexHint = -1;      // Last known position in mLruProcesses, may be stale
     CompatibilityInfo compat;   // last used compatibility mode
     IBinder.DeathRecipient deathRecipient; // Who is watching for the death.
     ActiveInstrumentation instr;// Set to currently active instrumentation running in process
@@ -40,15 +40,24 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -80,6 +89,10 @@ public class TaskPersister {
 
     private static final String TASKS_DIRNAME = "recent_tasks";
     private static final String TASK_FILENAME_SUFFIX = "_task.xml";
+    // Must not contain '_', see removeObsoleteFiles().
+    private static final String TASKS_FILENAME = "tasks.bin";
+    private static final String BAD_TASKS_FILENAME = "tasks.bin.bad";
+    private static final int TASKS_FILE_VERSION = 1;
     private static final String IMAGES_DIRNAME = "recent_images";
     private static final String PERSISTED_TASK_IDS_FILENAME = "persisted_taskIds.txt";
     static final String IMAGE_EXTENSION = ".png";
@@ -94,6 +107,43 @@ public class TaskPersister {
     // To lock file operations in TaskPersister
     private final Object mIoLock = new Object();
 
+    // To lock the in-memory copies of the tasks files. Tasks files are only written out by
+    // LazyTaskWriterThread, and never with this lock held, so that callers holding the
+    // mService lock don't have to wait for a tasks file to reach the disk.
+    private final Object mUserTasksLock = new Object();
+
+    /**
+     * The serialized form of every persisted task of a user, by task id, as last read from or
+     * written to the user's tasks file. All tasks of a user are kept in that single file so that
+     * restoring them and writing out a batch of changed tasks only takes one file operation.
+     * The file is a snapshot, not a log: every write replaces it with all the tasks of the user,
+     * changed or not. That is bounded by the recent tasks limit, so it stays a few kilobytes.
+     * An entry stays here while it is being written out, so its file is only read when nothing
+     * is writing it. Guarded by mUserTasksLock.
+     */
+    private final SparseArray<SparseArray<byte[]>> mUserTasks = new SparseArray<>();
+
+    /**
+     * Users whose tasks file has changes that aren't written out yet. Guarded by
+     * mUserTasksLock.
+     */
+    private final SparseBooleanArray mDirtyUserTasks = new SparseBooleanArray();
+
+    /** Users whose tasks file is being written out right now. Guarded by mUserTasksLock. */
+    private final SparseBooleanArray mUserTasksBeingWritten = new SparseBooleanArray();
+
+    /**
+     * Users that were unloaded before their tasks file was written out. Their tasks are
+     * dropped from memory once it is. Guarded by mUserTasksLock.
+     */
+    private final SparseBooleanArray mUnloadedUserTasks = new SparseBooleanArray();
+
+    /**
+     * Users with per-task files from before the tasks file, deleted once the tasks file holding
+     * them is written. Guarded by mUserTasksLock.
+     */
+    private final SparseBooleanArray mUsersWithTaskFiles = new SparseBooleanArray();
+
     /**
      * Value determines write delay mode as follows: < 0 We are Flushing. No delays between writes
      * until the image queue is drained and all tasks needing persisting are written to disk. There
@@ -251,6 +301,215 @@ public class TaskPersister {
 
     void unloadUserDataFromMemory(int userId) {
         mTaskIdsInFile.delete(userId);
+        final boolean needsWrite;
+        synchronized (mUserTasksLock) {
+            needsWrite = mDirtyUserTasks.get(userId);
+            if (needsWrite || mUserTasksBeingWritten.get(userId)) {
+                // We are called with the mService lock held, so leave the last write to
+                // LazyTaskWriterThread. It drops the user's tasks once they are written out.
+                mUnloadedUserTasks.put(userId, true);
+            } else {
+                mUserTasks.remove(userId);
+                mUsersWithTaskFiles.delete(userId);
+            }
+        }
+        if (needsWrite) {
+            wakeup(null, false);
+        }
+    }
+
+    /**
+     * Returns the persisted tasks of {@code userId}, reading its tasks file in first if needed.
+     * Tasks still in their own file are added to them. Returns null if there is a tasks file
+     * that can't be read and
+     * can't be moved out of the way either, in which case nothing must be written for the user.
+     * Must be called with mUserTasksLock held.
+     */
+    private SparseArray<byte[]> getUserTasks(int userId) {
+        SparseArray<byte[]> snapshot = mUserTasks.get(userId);
+        if (snapshot != null) {
+            return snapshot;
+        }
+        final File userTasksDir = getUserTasksDir(userId);
+        final AtomicFile tasksFile = new AtomicFile(
+                new File(userTasksDir, TASKS_FILENAME));
+        FileInputStream in = null;
+        try {
+            in = tasksFile.openRead();
+            snapshot = readUserTasks(new BufferedInputStream(in));
+        } catch (FileNotFoundException e) {
+            // No tasks persisted yet, or only in task files.
+        } catch (IOException e) {
+            // Writing a new tasks file would replace this one and every task in it, so keep it
+            // around under another name instead.
+            final File badTasksFile = new File(userTasksDir, BAD_TASKS_FILENAME);
+            Slog.wtf(TAG, "Unable to read " + tasksFile.getBaseFile() + ", moving it to "
+                    + badTasksFile, e);
+            IoUtils.closeQuietly(in);
+            in = null;
+            if (!tasksFile.getBaseFile().renameTo(badTasksFile)) {
+                Slog.e(TAG, "Unable to move " + tasksFile.getBaseFile() + " aside, not"
+                        + " persisting tasks of user " + userId);
+                return null;
+            }
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+        if (snapshot == null) {
+            snapshot = new SparseArray<>();
+        }
+
+        final File[] taskFiles = userTasksDir.listFiles();
+        if (taskFiles != null) {
+            for (File taskFile : taskFiles) {
+                final String filename = taskFile.getName();
+                if (!filename.endsWith(TASK_FILENAME_SUFFIX)) {
+                    continue;
+                }
+                mUsersWithTaskFiles.put(userId, true);
+                try {
+                    final int taskId = Integer.parseInt(filename.substring(0,
+                            filename.length() - TASK_FILENAME_SUFFIX.length()));
+                    if (snapshot.get(taskId) == null) {
+                        snapshot.put(taskId,
+                                IoUtils.readFileAsByteArray(taskFile.getAbsolutePath()));
+                        mDirtyUserTasks.put(userId, true);
+                    }
+                } catch (NumberFormatException | IOException e) {
+                    Slog.w(TAG, "Unable to read task file " + taskFile, e);
+                }
+            }
+        }
+        mUserTasks.put(userId, snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Replaces the tasks file of {@code userId} with {@code snapshot}, deleting the user's
+     * task files afterwards if {@code deleteTaskFiles}. Only called on LazyTaskWriterThread.
+     *
+     * @return whether the snapshot was written.
+     */
+    private boolean writeUserTasks(int userId, SparseArray<byte[]> snapshot,
+            boolean deleteTaskFiles) {
+        final File userTasksDir = getUserTasksDir(userId);
+        final AtomicFile tasksFile = new AtomicFile(
+                new File(userTasksDir, TASKS_FILENAME));
+        FileOutputStream out = null;
+        try {
+            out = tasksFile.startWrite();
+            final BufferedOutputStream bufferedOut = new BufferedOutputStream(out);
+            writeUserTasks(bufferedOut, snapshot);
+            bufferedOut.flush();
+            tasksFile.finishWrite(out);
+        } catch (IOException e) {
+            if (out != null) {
+                tasksFile.failWrite(out);
+            }
+            Slog.e(TAG, "Unable to write " + tasksFile.getBaseFile(), e);
+            return false;
+        }
+        if (DEBUG) Slog.d(TAG, "Wrote " + snapshot.size() + " tasks for user " + userId);
+
+        if (deleteTaskFiles) {
+            // Everything in the task files is in the tasks file now.
+            final File[] taskFiles = userTasksDir.listFiles();
+            if (taskFiles != null) {
+                for (File taskFile : taskFiles) {
+                    if (taskFile.getName().endsWith(TASK_FILENAME_SUFFIX)) {
+                        taskFile.delete();
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes out every tasks file with unwritten changes. Only called on
+     * LazyTaskWriterThread, without holding any lock.
+     */
+    private void writeDirtyUserTasks() {
+        final int[] userIds;
+        synchronized (mUserTasksLock) {
+            userIds = new int[mDirtyUserTasks.size()];
+            for (int i = 0; i < userIds.length; i++) {
+                userIds[i] = mDirtyUserTasks.keyAt(i);
+            }
+        }
+        for (int userId : userIds) {
+            final SparseArray<byte[]> snapshot;
+            final boolean deleteTaskFiles;
+            synchronized (mUserTasksLock) {
+                final SparseArray<byte[]> userTasks = mUserTasks.get(userId);
+                mDirtyUserTasks.delete(userId);
+                if (userTasks == null) {
+                    continue;
+                }
+                // The serialized tasks are never modified, so a shallow copy is enough to
+                // write from while tasks keep changing.
+                snapshot = userTasks.clone();
+                deleteTaskFiles = mUsersWithTaskFiles.get(userId);
+                mUserTasksBeingWritten.put(userId, true);
+            }
+            final boolean written = writeUserTasks(userId, snapshot, deleteTaskFiles);
+            synchronized (mUserTasksLock) {
+                mUserTasksBeingWritten.delete(userId);
+                if (!written) {
+                    // Try again with the next write.
+                    mDirtyUserTasks.put(userId, true);
+                    continue;
+                }
+                if (deleteTaskFiles) {
+                    mUsersWithTaskFiles.delete(userId);
+                }
+                if (mUnloadedUserTasks.get(userId) && !mDirtyUserTasks.get(userId)) {
+                    mUnloadedUserTasks.delete(userId);
+                    mUserTasks.remove(userId);
+                    mUsersWithTaskFiles.delete(userId);
+                }
+            }
+        }
+    }
+
+    @VisibleForTesting
+    static void writeUserTasks(OutputStream os, SparseArray<byte[]> snapshot)
+            throws IOException {
+        final DataOutputStream out = new DataOutputStream(os);
+        out.writeInt(TASKS_FILE_VERSION);
+        out.writeInt(snapshot.size());
+        for (int i = 0; i < snapshot.size(); i++) {
+            final byte[] task = snapshot.valueAt(i);
+            out.writeInt(snapshot.keyAt(i));
+            out.writeInt(task.length);
+            out.write(task);
+        }
+        out.flush();
+    }
+
+    @VisibleForTesting
+    static SparseArray<byte[]> readUserTasks(InputStream is) throws IOException {
+        final DataInputStream in = new DataInputStream(is);
+        final int version = in.readInt();
+        if (version != TASKS_FILE_VERSION) {
+            throw new IOException("Unknown tasks file version " + version);
+        }
+        final int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Bad task count " + count);
+        }
+        final SparseArray<byte[]> snapshot = new SparseArray<>(count);
+        for (int i = 0; i < count; i++) {
+            final int taskId = in.readInt();
+            final int length = in.readInt();
+            if (length < 0) {
+                throw new IOException("Bad length " + length + " of task " + taskId);
+            }
+            final byte[] task = new byte[length];
+            in.readFully(task);
+            snapshot.put(taskId, task);
+        }
+        return snapshot;
     }
 
     void wakeup(TaskRecord task, boolean flush) {
@@ -380,23 +639,6 @@ public class TaskPersister {
         return stringWriter;
     }
 
-    private String fileToString(File file) {
-        final String newline = System.lineSeparator();
-        try {
-            BufferedReader reader = new BufferedReader(new FileReader(file));
-            StringBuffer sb = new StringBuffer((int) file.length() * 2);
-            String line;
-            while ((line = reader.readLine()) != null) {
-                sb.append(line + newline);
-            }
-            reader.close();
-            return sb.toString();
-        } catch (IOException ioe) {
-            Slog.e(TAG, "Couldn't read file " + file.getName());
-            return null;
-        }
-    }
-
     private TaskRecord taskIdToTask(int taskId, ArrayList<TaskRecord> tasks) {
         if (taskId < 0) {
             return null;
@@ -415,44 +657,32 @@ public class TaskPersister {
         final ArrayList<TaskRecord> tasks = new ArrayList<TaskRecord>();
         ArraySet<Integer> recoveredTaskIds = new ArraySet<Integer>();
 
-        File userTasksDir = getUserTasksDir(userId);
-
-        File[] recentFiles = userTasksDir.listFiles();
-        if (recentFiles == null) {
-            Slog.e(TAG, "restoreTasksForUserLocked: Unable to list files from " + userTasksDir);
-            return tasks;
+        final File userTasksDir = getUserTasksDir(userId);
+        final SparseArray<byte[]> snapshot;
+        synchronized (mUserTasksLock) {
+            final SparseArray<byte[]> userTasks = getUserTasks(userId);
+            snapshot = userTasks != null ? userTasks.clone() : new SparseArray<>();
+            // The user is back before its tasks were dropped from memory, keep them.
+            mUnloadedUserTasks.delete(userId);
         }
 
-        for (int taskNdx = 0; taskNdx < recentFiles.length; ++taskNdx) {
-            File taskFile = recentFiles[taskNdx];
+        for (int taskNdx = 0; taskNdx < snapshot.size(); ++taskNdx) {
+            final int storedTaskId = snapshot.keyAt(taskNdx);
             if (DEBUG) {
                 Slog.d(TAG, "restoreTasksForUserLocked: userId=" + userId
-                        + ", taskFile=" + taskFile.getName());
+                        + ", taskId=" + storedTaskId);
             }
-
-            if (!taskFile.getName().endsWith(TASK_FILENAME_SUFFIX)) {
-                continue;
-            }
-            try {
-                final int taskId = Integer.parseInt(taskFile.getName().substring(
-                        0 /* beginIndex */,
-                        taskFile.getName().length() - TASK_FILENAME_SUFFIX.length()));
-                if (preaddedTasks.get(taskId, false)) {
-                    Slog.w(TAG, "Task #" + taskId +
-                            " has already been created so we don't restore again");
-                    continue;
-                }
-            } catch (NumberFormatException e) {
-                Slog.w(TAG, "Unexpected task file name", e);
+            if (preaddedTasks.get(storedTaskId, false)) {
+                Slog.w(TAG, "Task #" + storedTaskId +
+                        " has already been created so we don't restore again");
                 continue;
             }
 
-            BufferedReader reader = null;
-            boolean deleteFile = false;
+            final byte[] taskBytes = snapshot.valueAt(taskNdx);
+            boolean deleteTask = false;
             try {
-                reader = new BufferedReader(new FileReader(taskFile));
                 final XmlPullParser in = Xml.newPullParser();
-                in.setInput(reader);
+                in.setInput(new ByteArrayInputStream(taskBytes), StandardCharsets.UTF_8.name());
 
                 int event;
                 while (((event = in.next()) != XmlPullParser.END_DOCUMENT) &&
@@ -488,8 +718,8 @@ public class TaskPersister {
                                     recoveredTaskIds.add(taskId);
                                 }
                             } else {
-                                Slog.e(TAG, "restoreTasksForUserLocked: Unable to restore taskFile="
-                                        + taskFile + ": " + fileToString(taskFile));
+                                Slog.e(TAG, "restoreTasksForUserLocked: Unable to restore task #"
+                                        + storedTaskId + ": " + new String(taskBytes));
                             }
                         } else {
                             Slog.wtf(TAG, "restoreTasksForUserLocked: Unknown xml event=" + event
@@ -499,14 +729,19 @@ public class TaskPersister {
                     XmlUtils.skipCurrentTag(in);
                 }
             } catch (Exception e) {
-                Slog.wtf(TAG, "Unable to parse " + taskFile + ". Error ", e);
-                Slog.e(TAG, "Failing file: " + fileToString(taskFile));
-                deleteFile = true;
+                Slog.wtf(TAG, "Unable to parse task #" + storedTaskId + ". Error ", e);
+                Slog.e(TAG, "Failing task: " + new String(taskBytes));
+                deleteTask = true;
             } finally {
-                IoUtils.closeQuietly(reader);
-                if (deleteFile) {
-                    if (DEBUG) Slog.d(TAG, "Deleting file=" + taskFile.getName());
-                    taskFile.delete();
+                if (deleteTask) {
+                    if (DEBUG) Slog.d(TAG, "Deleting task #" + storedTaskId);
+                    synchronized (mUserTasksLock) {
+                        final SparseArray<byte[]> userTasks = getUserTasks(userId);
+                        if (userTasks != null) {
+                            userTasks.remove(storedTaskId);
+                            mDirtyUserTasks.put(userId, true);
+                        }
+                    }
                 }
             }
         }
@@ -599,6 +834,23 @@ public class TaskPersister {
             removeObsoleteFiles(persistentTaskIds, getUserImagesDir(userId).listFiles());
             removeObsoleteFiles(persistentTaskIds, getUserTasksDir(userId).listFiles());
         }
+        synchronized (mUserTasksLock) {
+            for (int userId : candidateUserIds) {
+                final SparseArray<byte[]> snapshot = getUserTasks(userId);
+                if (snapshot == null) {
+                    continue;
+                }
+                for (int i = snapshot.size() - 1; i >= 0; i--) {
+                    if (!persistentTaskIds.contains(snapshot.keyAt(i))) {
+                        if (DEBUG) Slog.d(TAG, "removeObsoleteFiles: dropping task #"
+                                + snapshot.keyAt(i) + " from tasks file");
+                        snapshot.removeAt(i);
+                        mDirtyUserTasks.put(userId, true);
+                    }
+                }
+            }
+        }
+        writeDirtyUserTasks();
     }
 
     static Bitmap restoreImage(String filename) {
@@ -691,6 +943,7 @@ public class TaskPersister {
 
             // If mNextWriteTime, then don't delay between each call to saveToXml().
             final WriteQueueItem item;
+            final ArrayList<TaskRecord> tasks = new ArrayList<>();
             synchronized (TaskPersister.this) {
                 if (mNextWriteTime != FLUSH_QUEUE) {
                     // The next write we don't have to wait so long.
@@ -727,7 +980,20 @@ public class TaskPersister {
                     now = SystemClock.uptimeMillis();
                 }
 
-                // Got something to do.
+                // Got something to do. Tasks all go to the same tasks file, so write out every
+                // task waiting in the queue at once.
+                if (item instanceof TaskWriteQueueItem) {
+                    tasks.add(((TaskWriteQueueItem) item).mTask);
+                    for (int queueNdx = 0; queueNdx < mWriteQueue.size(); ) {
+                        final WriteQueueItem queued = mWriteQueue.get(queueNdx);
+                        if (queued instanceof TaskWriteQueueItem) {
+                            tasks.add(((TaskWriteQueueItem) queued).mTask);
+                            mWriteQueue.remove(queueNdx);
+                        } else {
+                            queueNdx++;
+                        }
+                    }
+                }
             }
 
             if (item instanceof ImageWriteQueueItem) {
@@ -749,42 +1015,42 @@ public class TaskPersister {
                     IoUtils.closeQuietly(imageFile);
                 }
             } else if (item instanceof TaskWriteQueueItem) {
-                // Write out one task.
-                StringWriter stringWriter = null;
-                TaskRecord task = ((TaskWriteQueueItem) item).mTask;
-                if (DEBUG) Slog.d(TAG, "Writing task=" + task);
+                // Write out the tasks.
+                final SparseArray<byte[]> serializedTasks = new SparseArray<>(tasks.size());
                 synchronized (mService) {
-                    if (task.inRecents) {
+                    for (int taskNdx = tasks.size() - 1; taskNdx >= 0; --taskNdx) {
+                        final TaskRecord task = tasks.get(taskNdx);
+                        if (!task.inRecents) {
+                            tasks.remove(taskNdx);
+                            continue;
+                        }
                         // Still there.
                         try {
                             if (DEBUG) Slog.d(TAG, "Saving task=" + task);
-                            stringWriter = saveToXml(task);
+                            serializedTasks.put(task.taskId,
+                                    saveToXml(task).toString().getBytes(StandardCharsets.UTF_8));
                         } catch (IOException e) {
                         } catch (XmlPullParserException e) {
                         }
                     }
                 }
-                if (stringWriter != null) {
-                    // Write out xml file while not holding mService lock.
-                    FileOutputStream file = null;
-                    AtomicFile atomicFile = null;
-                    try {
-                        atomicFile = new AtomicFile(new File(
-                                getUserTasksDir(task.userId),
-                                String.valueOf(task.taskId) + TASK_FILENAME_SUFFIX));
-                        file = atomicFile.startWrite();
-                        file.write(stringWriter.toString().getBytes());
-                        file.write('\n');
-                        atomicFile.finishWrite(file);
-                    } catch (IOException e) {
-                        if (file != null) {
-                            atomicFile.failWrite(file);
+                // Update the tasks files while not holding mService lock.
+                synchronized (mUserTasksLock) {
+                    for (int taskNdx = tasks.size() - 1; taskNdx >= 0; --taskNdx) {
+                        final TaskRecord task = tasks.get(taskNdx);
+                        final byte[] serializedTask = serializedTasks.get(task.taskId);
+                        final SparseArray<byte[]> snapshot = serializedTask != null
+                                ? getUserTasks(task.userId) : null;
+                        if (snapshot != null) {
+                            snapshot.put(task.taskId, serializedTask);
+                            mDirtyUserTasks.put(task.userId, true);
                         }
-                        Slog.e(TAG,
-                                "Unable to open " + atomicFile + " for persisting. " + e);
                     }
                 }
             }
+
+            // Also picks up the last changes of users that were unloaded since.
+            writeDirtyUserTasks();
         }
     }
 }
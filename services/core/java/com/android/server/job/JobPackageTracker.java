@@ -64,6 +64,8 @@ public final class JobPackageTracker {
     }
 
     DataSet mCurDataSet = new DataSet();
+    // Number of jobs currently running.
+    int mActiveJobCount;
     DataSet[] mLastDataSets = new DataSet[NUM_HISTORY];
 
     final static class PackageEntry {
@@ -117,17 +119,24 @@ public final class JobPackageTracker {
         long mSummedTime;
         int mMaxTotalActive;
         int mMaxFgActive;
+        // Time spent with each number of jobs running, indexed by that number.
+        final long[] mActiveCountTime = new long[JobSchedulerService.MAX_JOB_CONTEXTS_COUNT + 1];
+        int mActiveCount;
+        // When mActiveCount last changed, or -1 once this data set no longer tracks it.
+        long mActiveCountStartTime;
 
         public DataSet(DataSet otherTimes) {
             mStartUptimeTime = otherTimes.mStartUptimeTime;
             mStartElapsedTime = otherTimes.mStartElapsedTime;
             mStartClockTime = otherTimes.mStartClockTime;
+            mActiveCountStartTime = -1;
         }
 
         public DataSet() {
             mStartUptimeTime = SystemClock.uptimeMillis();
             mStartElapsedTime = SystemClock.elapsedRealtime();
             mStartClockTime = System.currentTimeMillis();
+            mActiveCountStartTime = mStartUptimeTime;
         }
 
         private PackageEntry getOrCreateEntry(int uid, String pkg) {
@@ -214,7 +223,19 @@ public final class JobPackageTracker {
             pe.stopReasons.put(stopReason, count+1);
         }
 
+        void setActiveCount(int count, long now) {
+            if (mActiveCountStartTime >= 0) {
+                mActiveCountTime[mActiveCount] += now - mActiveCountStartTime;
+                mActiveCountStartTime = now;
+            }
+            mActiveCount = Math.max(0, Math.min(count, mActiveCountTime.length - 1));
+        }
+
         void finish(DataSet next, long now) {
+            setActiveCount(mActiveCount, now);
+            next.mActiveCount = mActiveCount;
+            next.mActiveCountStartTime = now;
+            mActiveCountStartTime = -1;
             for (int i = mEntries.size() - 1; i >= 0; i--) {
                 ArrayMap<String, PackageEntry> uidMap = mEntries.valueAt(i);
                 for (int j = uidMap.size() - 1; j >= 0; j--) {
@@ -284,6 +305,12 @@ public final class JobPackageTracker {
             if (mMaxFgActive > out.mMaxFgActive) {
                 out.mMaxFgActive = mMaxFgActive;
             }
+            for (int i = 0; i < mActiveCountTime.length; i++) {
+                out.mActiveCountTime[i] += mActiveCountTime[i];
+            }
+            if (mActiveCountStartTime >= 0) {
+                out.mActiveCountTime[mActiveCount] += now - mActiveCountStartTime;
+            }
         }
 
         void printDuration(PrintWriter pw, long period, long duration, int count, String suffix) {
@@ -360,6 +387,24 @@ public final class JobPackageTracker {
             pw.print(prefix); pw.print("  Max concurrency: ");
             pw.print(mMaxTotalActive); pw.print(" total, ");
             pw.print(mMaxFgActive); pw.println(" foreground");
+            // A slot is in use whenever at least that many jobs are running.
+            long slotTime = 0;
+            int maxSlot = 0;
+            for (int i = 1; i < mActiveCountTime.length; i++) {
+                slotTime += mActiveCountTime[i];
+                if (mActiveCountTime[i] > 0) {
+                    maxSlot = i;
+                }
+            }
+            if (maxSlot > 0 && period > 0) {
+                pw.print(prefix); pw.print("  Slot utilization:");
+                for (int i = 1; i <= maxSlot; i++) {
+                    pw.print(" #"); pw.print(i); pw.print(" ");
+                    pw.print((int) ((slotTime * 100f / period) + .5f)); pw.print("%");
+                    slotTime -= mActiveCountTime[i];
+                }
+                pw.println();
+            }
         }
     }
 
@@ -392,6 +437,7 @@ public final class JobPackageTracker {
         final long now = SystemClock.uptimeMillis();
         job.madeActive = now;
         rebatchIfNeeded(now);
+        mCurDataSet.setActiveCount(++mActiveJobCount, now);
         if (job.lastEvaluatedPriority >= JobInfo.PRIORITY_TOP_APP) {
             mCurDataSet.incActiveTop(job.getSourceUid(), job.getSourcePackageName(), now);
         } else {
@@ -409,6 +455,10 @@ public final class JobPackageTracker {
         } else {
             mCurDataSet.decActive(job.getSourceUid(), job.getSourcePackageName(), now, stopReason);
         }
+        if (mActiveJobCount > 0) {
+            mActiveJobCount--;
+        }
+        mCurDataSet.setActiveCount(mActiveJobCount, now);
         rebatchIfNeeded(now);
         addEvent(job.getJob().isPeriodic() ? EVENT_STOP_JOB :  EVENT_STOP_PERIODIC_JOB,
                 job.getSourceUid(), job.getBatteryName(), job.getJobId(), stopReason);
@@ -53,6 +53,7 @@ import android.net.Uri;
 import android.os.BatteryStats;
 import android.os.Binder;
 import android.os.Handler;
+import android.os.HardwarePropertiesManager;
 import android.os.Looper;
 import android.os.Message;
 import android.os.Process;
@@ -110,7 +111,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
     public static final boolean DEBUG = false;
 
     /** The maximum number of concurrent jobs we run at one time. */
-    private static final int MAX_JOB_CONTEXTS_COUNT = 16;
+    static final int MAX_JOB_CONTEXTS_COUNT = 16;
     /** Enforce a per-app limit on scheduled jobs? */
     private static final boolean ENFORCE_MAX_JOBS = true;
     /** The maximum number of jobs that we allow an unprivileged app to schedule */
@@ -171,6 +172,37 @@ public final class JobSchedulerService extends com.android.server.SystemService
      */
     int mMaxActiveJobs = 1;
 
+    /**
+     * Number of online CPUs, used to scale the number of background jobs run at once. Sampled
+     * with the thermal state, as cores can be hotplugged.
+     */
+    volatile int mCpuCount = Runtime.getRuntime().availableProcessors();
+
+    static final int THERMAL_STATE_NORMAL = 0;
+    static final int THERMAL_STATE_WARM = 1;
+    static final int THERMAL_STATE_THROTTLING = 2;
+
+    /** Temperatures this close to their throttling threshold, in Celsius, count as warm. */
+    private static final float THERMAL_WARM_HEADROOM = 5f;
+    /** How often we look at the device temperatures and CPUs while assigning jobs. */
+    private static final long THERMAL_SAMPLE_INTERVAL_MILLIS = 60 * 1000;
+    private static final int[] THERMAL_SENSOR_TYPES = {
+            HardwarePropertiesManager.DEVICE_TEMPERATURE_CPU,
+            HardwarePropertiesManager.DEVICE_TEMPERATURE_SKIN,
+    };
+
+    /**
+     * Null if the platform can't tell us about device temperatures.
+     */
+    volatile HardwarePropertiesManager mHardwareProperties;
+
+    /**
+     * Last thermal state, sampled on the job handler before it assigns jobs.
+     */
+    volatile int mThermalState = THERMAL_STATE_NORMAL;
+    // Only touched on the job handler.
+    long mLastThermalSampleElapsed = -THERMAL_SAMPLE_INTERVAL_MILLIS;
+
     /**
      * Which uids are currently in the foreground.
      */
@@ -220,6 +252,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
         private static final String KEY_BG_MODERATE_JOB_COUNT = "bg_moderate_job_count";
         private static final String KEY_BG_LOW_JOB_COUNT = "bg_low_job_count";
         private static final String KEY_BG_CRITICAL_JOB_COUNT = "bg_critical_job_count";
+        private static final String KEY_MAX_BG_JOBS_PER_CPU = "max_bg_jobs_per_cpu";
         private static final String KEY_MAX_STANDARD_RESCHEDULE_COUNT
                 = "max_standard_reschedule_count";
         private static final String KEY_MAX_WORK_RESCHEDULE_COUNT = "max_work_reschedule_count";
@@ -240,6 +273,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
         private static final int DEFAULT_BG_MODERATE_JOB_COUNT = 4;
         private static final int DEFAULT_BG_LOW_JOB_COUNT = 1;
         private static final int DEFAULT_BG_CRITICAL_JOB_COUNT = 1;
+        private static final int DEFAULT_MAX_BG_JOBS_PER_CPU = 2;
         private static final int DEFAULT_MAX_STANDARD_RESCHEDULE_COUNT = Integer.MAX_VALUE;
         private static final int DEFAULT_MAX_WORK_RESCHEDULE_COUNT = Integer.MAX_VALUE;
         private static final long DEFAULT_MIN_LINEAR_BACKOFF_TIME = JobInfo.MIN_BACKOFF_MILLIS;
@@ -314,6 +348,12 @@ public final class JobSchedulerService extends com.android.server.SystemService
          * memory state.
          */
         int BG_CRITICAL_JOB_COUNT = DEFAULT_BG_CRITICAL_JOB_COUNT;
+        /**
+         * The number of background jobs we allow per CPU. When memory isn't under pressure
+         * this can raise the limit above {@link #BG_NORMAL_JOB_COUNT}, up to the contexts not
+         * reserved for the foreground; otherwise it can only lower the memory limit.
+         */
+        int MAX_BG_JOBS_PER_CPU = DEFAULT_MAX_BG_JOBS_PER_CPU;
         /**
          * The maximum number of times we allow a job to have itself rescheduled before
          * giving up on it, for standard jobs.
@@ -403,6 +443,8 @@ public final class JobSchedulerService extends com.android.server.SystemService
                 if ((FG_JOB_COUNT+BG_CRITICAL_JOB_COUNT) > MAX_JOB_CONTEXTS_COUNT) {
                     BG_CRITICAL_JOB_COUNT = MAX_JOB_CONTEXTS_COUNT - FG_JOB_COUNT;
                 }
+                MAX_BG_JOBS_PER_CPU = mParser.getInt(KEY_MAX_BG_JOBS_PER_CPU,
+                        DEFAULT_MAX_BG_JOBS_PER_CPU);
                 MAX_STANDARD_RESCHEDULE_COUNT = mParser.getInt(KEY_MAX_STANDARD_RESCHEDULE_COUNT,
                         DEFAULT_MAX_STANDARD_RESCHEDULE_COUNT);
                 MAX_WORK_RESCHEDULE_COUNT = mParser.getInt(KEY_MAX_WORK_RESCHEDULE_COUNT,
@@ -459,6 +501,9 @@ public final class JobSchedulerService extends com.android.server.SystemService
             pw.print("    "); pw.print(KEY_BG_CRITICAL_JOB_COUNT); pw.print("=");
             pw.print(BG_CRITICAL_JOB_COUNT); pw.println();
 
+            pw.print("    "); pw.print(KEY_MAX_BG_JOBS_PER_CPU); pw.print("=");
+            pw.print(MAX_BG_JOBS_PER_CPU); pw.println();
+
             pw.print("    "); pw.print(KEY_MAX_STANDARD_RESCHEDULE_COUNT); pw.print("=");
             pw.print(MAX_STANDARD_RESCHEDULE_COUNT); pw.println();
 
@@ -1018,7 +1063,10 @@ public final class JobSchedulerService extends com.android.server.SystemService
                         BatteryStats.SERVICE_NAME));
                 mLocalDeviceIdleController
                         = LocalServices.getService(DeviceIdleController.LocalService.class);
-                // Create the "runners".
+                mHardwareProperties = getContext().getSystemService(
+                        HardwarePropertiesManager.class);
+                // Create the "runners". The pool is fixed, and mMaxActiveJobs caps how many of
+                // them run background jobs at once.
                 for (int i = 0; i < MAX_JOB_CONTEXTS_COUNT; i++) {
                     mActiveServices.add(
                             new JobServiceContext(this, mBatteryStats, mJobPackageTracker,
@@ -1303,6 +1351,8 @@ public final class JobSchedulerService extends com.android.server.SystemService
 
         @Override
         public void handleMessage(Message message) {
+            // Done before taking the lock, since reading the sensors can be slow.
+            maybeSampleDeviceState();
             synchronized (mLock) {
                 if (!mReadyToRock) {
                     return;
@@ -1366,7 +1416,8 @@ public final class JobSchedulerService extends com.android.server.SystemService
         noteJobsNonpending(mPendingJobs);
         mPendingJobs.clear();
         stopNonReadyActiveJobsLocked();
-        mJobs.forEachJob(mReadyQueueFunctor);
+        noteReadyJobsCheckLocked();
+        mJobs.forEachReadyJob(mReadyQueueFunctor);
         mReadyQueueFunctor.postProcess();
 
         if (DEBUG) {
@@ -1408,6 +1459,12 @@ public final class JobSchedulerService extends com.android.server.SystemService
     }
     private final ReadyJobQueueFunctor mReadyQueueFunctor = new ReadyJobQueueFunctor();
 
+    // Stats of the checks for jobs to run, for dumpsys.
+    private int mReadyJobsCheckCount;
+    private int mLastReadyJobsEvaluated;
+    private long mTotalReadyJobsEvaluated;
+    private long mTotalJobsSkippedNotReady;
+
     /**
      * The state of at least one job has changed. Here is where we could enforce various
      * policies on when we want to execute jobs.
@@ -1520,10 +1577,23 @@ public final class JobSchedulerService extends com.android.server.SystemService
         noteJobsNonpending(mPendingJobs);
         mPendingJobs.clear();
         stopNonReadyActiveJobsLocked();
-        mJobs.forEachJob(mMaybeQueueFunctor);
+        noteReadyJobsCheckLocked();
+        mJobs.forEachReadyJob(mMaybeQueueFunctor);
         mMaybeQueueFunctor.postProcess();
     }
 
+    /**
+     * Counts the jobs looked at when checking for jobs to run. Only the jobs whose constraints
+     * are satisfied are evaluated, the others are skipped without being looked at.
+     */
+    private void noteReadyJobsCheckLocked() {
+        final int evaluated = mJobs.countReadyJobs();
+        mReadyJobsCheckCount++;
+        mLastReadyJobsEvaluated = evaluated;
+        mTotalReadyJobsEvaluated += evaluated;
+        mTotalJobsSkippedNotReady += mJobs.size() - evaluated;
+    }
+
     /**
      * Criteria for moving a job into the pending queue:
      *      - It's ready.
@@ -1650,27 +1720,30 @@ public final class JobSchedulerService extends com.android.server.SystemService
         } catch (RemoteException e) {
             memLevel = ProcessStats.ADJ_MEM_FACTOR_NORMAL;
         }
+        final int memoryLimit;
         switch (memLevel) {
             case ProcessStats.ADJ_MEM_FACTOR_MODERATE:
-                mMaxActiveJobs = mConstants.BG_MODERATE_JOB_COUNT;
+                memoryLimit = mConstants.BG_MODERATE_JOB_COUNT;
                 break;
             case ProcessStats.ADJ_MEM_FACTOR_LOW:
-                mMaxActiveJobs = mConstants.BG_LOW_JOB_COUNT;
+                memoryLimit = mConstants.BG_LOW_JOB_COUNT;
                 break;
             case ProcessStats.ADJ_MEM_FACTOR_CRITICAL:
-                mMaxActiveJobs = mConstants.BG_CRITICAL_JOB_COUNT;
+                memoryLimit = mConstants.BG_CRITICAL_JOB_COUNT;
                 break;
             default:
-                mMaxActiveJobs = mConstants.BG_NORMAL_JOB_COUNT;
+                memoryLimit = mConstants.BG_NORMAL_JOB_COUNT;
                 break;
         }
+        mMaxActiveJobs = adjustMaxActiveJobsLocked(memLevel, memoryLimit);
+        final int numContexts = mActiveServices.size();
 
         JobStatus[] contextIdToJobMap = mTmpAssignContextIdToJobMap;
         boolean[] act = mTmpAssignAct;
         int[] preferredUidForContext = mTmpAssignPreferredUidForContext;
         int numActive = 0;
         int numForeground = 0;
-        for (int i=0; i<MAX_JOB_CONTEXTS_COUNT; i++) {
+        for (int i=0; i<numContexts; i++) {
             final JobServiceContext js = mActiveServices.get(i);
             final JobStatus status = js.getRunningJobLocked();
             if ((contextIdToJobMap[i] = status) != null) {
@@ -1703,7 +1776,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
             // (sharing the same Uid as nextPending)
             int minPriority = Integer.MAX_VALUE;
             int minPriorityContextId = -1;
-            for (int j=0; j<MAX_JOB_CONTEXTS_COUNT; j++) {
+            for (int j=0; j<numContexts; j++) {
                 JobStatus job = contextIdToJobMap[j];
                 int preferredUid = preferredUidForContext[j];
                 if (job == null) {
@@ -1746,7 +1819,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
             Slog.d(TAG, printContextIdToJobMap(contextIdToJobMap, "running jobs final"));
         }
         mJobPackageTracker.noteConcurrency(numActive, numForeground);
-        for (int i=0; i<MAX_JOB_CONTEXTS_COUNT; i++) {
+        for (int i=0; i<numContexts; i++) {
             boolean preservePreferredUid = false;
             if (act[i]) {
                 JobStatus js = mActiveServices.get(i).getRunningJobLocked();
@@ -1780,6 +1853,82 @@ public final class JobSchedulerService extends com.android.server.SystemService
         }
     }
 
+    /**
+     * Scales the background job limit of the memory state with the number of CPUs, and lowers
+     * it when the device is getting hot.
+     */
+    private int adjustMaxActiveJobsLocked(int memLevel, int memoryLimit) {
+        final int cpuLimit = Math.max(1, mCpuCount * mConstants.MAX_BG_JOBS_PER_CPU);
+        int limit;
+        if (memLevel == ProcessStats.ADJ_MEM_FACTOR_NORMAL) {
+            // More CPUs may run more jobs, as long as contexts are left for the foreground.
+            limit = Math.max(memoryLimit, Math.min(cpuLimit,
+                    MAX_JOB_CONTEXTS_COUNT - mConstants.FG_JOB_COUNT));
+        } else {
+            limit = Math.min(memoryLimit, cpuLimit);
+        }
+        switch (mThermalState) {
+            case THERMAL_STATE_WARM:
+                limit = (limit + 1) / 2;
+                break;
+            case THERMAL_STATE_THROTTLING:
+                limit = Math.min(limit, mConstants.BG_CRITICAL_JOB_COUNT);
+                break;
+        }
+        return limit;
+    }
+
+    /**
+     * Refreshes the thermal state and CPU count, at most once per
+     * {@link #THERMAL_SAMPLE_INTERVAL_MILLIS}. Called on the job handler without the lock, so
+     * that the jobs it assigns next use the new values.
+     */
+    private void maybeSampleDeviceState() {
+        final long nowElapsed = SystemClock.elapsedRealtime();
+        if (nowElapsed - mLastThermalSampleElapsed < THERMAL_SAMPLE_INTERVAL_MILLIS) {
+            return;
+        }
+        mLastThermalSampleElapsed = nowElapsed;
+        mCpuCount = Runtime.getRuntime().availableProcessors();
+        final HardwarePropertiesManager hardwareProperties = mHardwareProperties;
+        if (hardwareProperties == null) {
+            return;
+        }
+        final int newState = readThermalState(hardwareProperties);
+        if (DEBUG && newState != mThermalState) {
+            Slog.d(TAG, "Thermal state changed from " + mThermalState + " to " + newState);
+        }
+        mThermalState = newState;
+    }
+
+    private int readThermalState(HardwarePropertiesManager hardwareProperties) {
+        int state = THERMAL_STATE_NORMAL;
+        try {
+            for (int type : THERMAL_SENSOR_TYPES) {
+                final float[] current = hardwareProperties.getDeviceTemperatures(type,
+                        HardwarePropertiesManager.TEMPERATURE_CURRENT);
+                final float[] throttling = hardwareProperties.getDeviceTemperatures(type,
+                        HardwarePropertiesManager.TEMPERATURE_THROTTLING);
+                final int count = Math.min(current.length, throttling.length);
+                for (int i = 0; i < count; i++) {
+                    if (current[i] == HardwarePropertiesManager.UNDEFINED_TEMPERATURE
+                            || throttling[i] == HardwarePropertiesManager.UNDEFINED_TEMPERATURE) {
+                        continue;
+                    }
+                    if (current[i] >= throttling[i]) {
+                        return THERMAL_STATE_THROTTLING;
+                    }
+                    if (current[i] >= throttling[i] - THERMAL_WARM_HEADROOM) {
+                        state = THERMAL_STATE_WARM;
+                    }
+                }
+            }
+        } catch (SecurityException e) {
+            Slog.w(TAG, "Unable to read device temperatures", e);
+        }
+        return state;
+    }
+
     int findJobContextIdFromMap(JobStatus jobStatus, JobStatus[] map) {
         for (int i=0; i<map.length; i++) {
             if (map[i] != null && map[i].matches(jobStatus.getUid(), jobStatus.getJobId())) {
@@ -2092,9 +2241,9 @@ public final class JobSchedulerService extends com.android.server.SystemService
                     return JobSchedulerShellCommand.CMD_ERR_NO_JOB;
                 }
 
-                js.overrideState = (force) ? JobStatus.OVERRIDE_FULL : JobStatus.OVERRIDE_SOFT;
+                js.setOverrideState((force) ? JobStatus.OVERRIDE_FULL : JobStatus.OVERRIDE_SOFT);
                 if (!js.isConstraintsSatisfied()) {
-                    js.overrideState = 0;
+                    js.setOverrideState(0);
                     return JobSchedulerShellCommand.CMD_ERR_CONSTRAINTS;
                 }
 
@@ -2377,6 +2526,12 @@ public final class JobSchedulerService extends com.android.server.SystemService
             } else {
                 pw.println("  None.");
             }
+            pw.println();
+            pw.print("Ready job checks: "); pw.println(mReadyJobsCheckCount);
+            pw.print("  ready now="); pw.print(mJobs.countReadyJobs());
+            pw.print(" last evaluated="); pw.print(mLastReadyJobsEvaluated);
+            pw.print(" total evaluated="); pw.print(mTotalReadyJobsEvaluated);
+            pw.print(" total skipped not ready="); pw.println(mTotalJobsSkippedNotReady);
             for (int i=0; i<mControllers.size(); i++) {
                 pw.println();
                 mControllers.get(i).dumpControllerStateLocked(pw, filterUidFinal);
@@ -2469,6 +2624,9 @@ public final class JobSchedulerService extends com.android.server.SystemService
                 pw.print("mReadyToRock="); pw.println(mReadyToRock);
                 pw.print("mReportedActive="); pw.println(mReportedActive);
                 pw.print("mMaxActiveJobs="); pw.println(mMaxActiveJobs);
+                pw.print("mCpuCount="); pw.println(mCpuCount);
+                pw.print("mThermalState="); pw.println(mThermalState);
+                pw.print("Job contexts: "); pw.println(mActiveServices.size());
             }
             pw.println();
             pw.print("PersistStats: ");
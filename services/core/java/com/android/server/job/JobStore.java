@@ -22,6 +22,7 @@ import android.content.ComponentName;
 import android.app.job.JobInfo;
 import android.content.Context;
 import android.os.Environment;
+import android.os.FileUtils;
 import android.os.Handler;
 import android.os.PersistableBundle;
 import android.os.Process;
@@ -30,6 +31,7 @@ import android.os.UserHandle;
 import android.text.format.DateUtils;
 import android.util.AtomicFile;
 import android.util.ArraySet;
+import android.util.LongSparseArray;
 import android.util.Pair;
 import android.util.Slog;
 import android.util.SparseArray;
@@ -42,7 +44,12 @@ import com.android.server.IoThread;
 import com.android.server.job.JobSchedulerInternal.JobStorePersistStats;
 import com.android.server.job.controllers.JobStatus;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -52,16 +59,24 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.zip.CRC32;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import libcore.io.IoUtils;
+
 /**
  * Maintains the master list of jobs that the job scheduler is tracking. These jobs are compared by
  * reference, so none of the functions in this class should make a copy.
  * Also handles read/write of persisted jobs.
  *
+ * Persisted jobs are stored as a snapshot of all of them in jobs.xml, followed by a journal of
+ * the jobs added and removed since the snapshot was written. Changes are appended to the
+ * journal; the snapshot is only rewritten, and the journal emptied, once the journal has grown
+ * about as large as the snapshot.
+ *
  * Note on locking:
  *      All callers to this class must <strong>lock on the class object they are calling</strong>.
  *      This is important b/c {@link com.android.server.job.JobStore.WriteJobsMapToDiskRunnable}
@@ -85,8 +100,25 @@ public final class JobStore {
 
     private int mDirtyOperations;
 
+    // Changes to persisted jobs not appended to the journal yet.
+    private final ArrayList<JournalOp> mPendingJournalOps = new ArrayList<>();
+    // Set when the next write must rewrite the snapshot rather than append to the journal.
+    private boolean mCompactionRequested;
+
+    // The following are only used on the IoThread, once the store is constructed.
+    // Generation of the snapshot; the journal is only replayed over the same generation.
+    private long mJournalGeneration;
+    // Number of records in the journal.
+    private int mJournalRecords;
+    // Number of jobs in the snapshot.
+    private int mSnapshotJobCount;
+    // Set when the journal doesn't start with the header of the current generation.
+    private boolean mJournalNeedsReset;
+    private boolean mCompactionScheduled;
+
     private static final Object sSingletonLock = new Object();
     private final AtomicFile mJobsFile;
+    private final File mJournalFile;
     /** Handler backed by IoThread for writing to disk. */
     private final Handler mIoHandler = IoThread.getHandler();
     private static JobStore sSingleton;
@@ -126,6 +158,7 @@ public final class JobStore {
         File jobDir = new File(systemDir, "job");
         jobDir.mkdirs();
         mJobsFile = new AtomicFile(new File(jobDir, "jobs.xml"));
+        mJournalFile = new File(jobDir, "jobs.journal");
 
         mJobSet = new JobSet();
 
@@ -140,10 +173,21 @@ public final class JobStore {
         // an incorrect historical timestamp.  That's fine; at worst we'll reboot with
         // a *correct* timestamp, see a bunch of overdue jobs, and run them; then
         // settle into normal operation.
-        mXmlTimestamp = mJobsFile.getLastModifiedTime();
+        mXmlTimestamp = Math.max(mJobsFile.getLastModifiedTime(), mJournalFile.lastModified());
         mRtcGood = (System.currentTimeMillis() > mXmlTimestamp);
 
-        readJobMapFromDisk(mJobSet, mRtcGood);
+        final ReadJobMapFromDiskRunnable reader = new ReadJobMapFromDiskRunnable(mJobSet, mRtcGood);
+        reader.run();
+        mJournalGeneration = reader.generation;
+        mJournalRecords = reader.journalRecords;
+        mSnapshotJobCount = reader.snapshotJobCount;
+        mJournalNeedsReset = !reader.journalValid;
+        if (reader.needsCompaction) {
+            // Records appended after a partial one, or to an unreadable snapshot, would be
+            // lost on the next boot; start from a new snapshot.
+            mCompactionRequested = true;
+            mIoHandler.post(mWriteRunnable);
+        }
     }
 
     public boolean jobTimesInflatedValid() {
@@ -187,6 +231,7 @@ public final class JobStore {
         boolean replaced = mJobSet.remove(jobStatus);
         mJobSet.add(jobStatus);
         if (jobStatus.isPersisted()) {
+            mPendingJournalOps.add(new JournalOp(jobStatus, true));
             maybeWriteStatusToDiskAsync();
         }
         if (DEBUG) {
@@ -224,8 +269,12 @@ public final class JobStore {
             }
             return false;
         }
-        if (writeBack && jobStatus.isPersisted()) {
-            maybeWriteStatusToDiskAsync();
+        if (jobStatus.isPersisted()) {
+            // Without writeBack the removal goes to disk along with the next change.
+            mPendingJournalOps.add(new JournalOp(jobStatus, false));
+            if (writeBack) {
+                maybeWriteStatusToDiskAsync();
+            }
         }
         return removed;
     }
@@ -241,6 +290,8 @@ public final class JobStore {
     @VisibleForTesting
     public void clear() {
         mJobSet.clear();
+        mPendingJournalOps.clear();
+        mCompactionRequested = true;
         maybeWriteStatusToDiskAsync();
     }
 
@@ -283,12 +334,37 @@ public final class JobStore {
         mJobSet.forEachJob(uid, functor);
     }
 
+    /**
+     * Iterate over the jobs whose constraints are currently satisfied, see
+     * {@link JobStatus#isReady()}. The functor must not change the readiness of any job.
+     */
+    public void forEachReadyJob(JobStatusFunctor functor) {
+        mJobSet.forEachReadyJob(functor);
+    }
+
+    public int countReadyJobs() {
+        return mJobSet.countReadyJobs();
+    }
+
     public interface JobStatusFunctor {
         public void process(JobStatus jobStatus);
     }
 
     /** Version of the db schema. */
     private static final int JOBS_FILE_VERSION = 0;
+    /** Journal file header: magic ("JBJN"), version and snapshot generation. */
+    private static final int JOURNAL_MAGIC = 0x4a424a4e;
+    private static final int JOURNAL_VERSION = 1;
+    /** Journal record ops, each followed by the uid and id of the job. */
+    private static final byte JOURNAL_OP_ADD = 1;
+    private static final byte JOURNAL_OP_REMOVE = 2;
+    /** Journal records are op, uid and job id, followed by the job xml for additions. */
+    private static final int JOURNAL_RECORD_MIN_LENGTH = 9;
+    private static final int JOURNAL_RECORD_MAX_LENGTH = 1024 * 1024;
+    /** Least number of journal records before it's compacted into the snapshot. */
+    private static final int MIN_JOURNAL_RECORDS_BEFORE_COMPACTION = 64;
+    /** Delay before compacting, so that a burst of changes only leads to one snapshot. */
+    private static final long COMPACTION_DELAY_MILLIS = 10 * 1000;
     /** Tag corresponds to constraints this job needs. */
     private static final String XML_TAG_PARAMS_CONSTRAINTS = "constraints";
     /** Tag corresponds to execution parameters. */
@@ -297,8 +373,8 @@ public final class JobStore {
     private static final String XML_TAG_EXTRAS = "extras";
 
     /**
-     * Every time the state changes we write all the jobs in one swath, instead of trying to
-     * track incremental changes.
+     * Every time the state changes the pending changes are appended to the journal, which is
+     * compacted into a new snapshot of all the jobs once it has grown large enough.
      */
     private void maybeWriteStatusToDiskAsync() {
         mDirtyOperations++;
@@ -316,34 +392,211 @@ public final class JobStore {
         new ReadJobMapFromDiskRunnable(jobSet, rtcGood).run();
     }
 
+    private static long jobKey(int uid, int jobId) {
+        return ((long) uid << 32) | (jobId & 0xffffffffL);
+    }
+
+    /**
+     * A change to the persisted jobs, waiting to be appended to the journal.
+     */
+    private static final class JournalOp {
+        final int uid;
+        final int jobId;
+        // Copy of the added job, or null if the job was removed.
+        final JobStatus job;
+
+        JournalOp(JobStatus jobStatus, boolean added) {
+            uid = jobStatus.getUid();
+            jobId = jobStatus.getJobId();
+            // Clone the job so we can release the lock before writing.
+            job = added ? new JobStatus(jobStatus) : null;
+        }
+    }
+
+    private final WriteJobsMapToDiskRunnable mWriteRunnable = new WriteJobsMapToDiskRunnable(false);
+    private final WriteJobsMapToDiskRunnable mCompactRunnable =
+            new WriteJobsMapToDiskRunnable(true);
+
     /**
-     * Runnable that writes {@link #mJobSet} out to xml.
+     * Runnable that writes the changes to {@link #mJobSet} to the journal, or writes all of it
+     * out to xml as a new snapshot when compacting.
      * NOTE: This Runnable locks on mLock
      */
-    private final Runnable mWriteRunnable = new Runnable() {
+    private final class WriteJobsMapToDiskRunnable implements Runnable {
+        private final boolean mCompact;
+
+        WriteJobsMapToDiskRunnable(boolean compact) {
+            mCompact = compact;
+        }
+
         @Override
         public void run() {
             final long startElapsed = SystemClock.elapsedRealtime();
             final List<JobStatus> storeCopy = new ArrayList<JobStatus>();
+            final ArrayList<JournalOp> ops = new ArrayList<>();
+            final boolean compact;
             synchronized (mLock) {
-                // Clone the jobs so we can release the lock before writing.
-                mJobSet.forEachJob(new JobStatusFunctor() {
-                    @Override
-                    public void process(JobStatus job) {
-                        if (job.isPersisted()) {
-                            storeCopy.add(new JobStatus(job));
+                compact = mCompact || mCompactionRequested;
+                if (compact) {
+                    // The snapshot covers all the pending changes.
+                    mCompactionRequested = false;
+                    mPendingJournalOps.clear();
+                    // Clone the jobs so we can release the lock before writing.
+                    mJobSet.forEachJob(new JobStatusFunctor() {
+                        @Override
+                        public void process(JobStatus job) {
+                            if (job.isPersisted()) {
+                                storeCopy.add(new JobStatus(job));
+                            }
                         }
-                    }
-                });
+                    });
+                } else {
+                    ops.addAll(mPendingJournalOps);
+                    mPendingJournalOps.clear();
+                    countPersistedJobsLocked();
+                }
+            }
+            if (compact) {
+                writeSnapshot(storeCopy);
+            } else if (!ops.isEmpty()) {
+                appendToJournal(ops);
             }
-            writeJobsMapImpl(storeCopy);
             if (DEBUG) {
-                Slog.v(TAG, "Finished writing, took " + (SystemClock.elapsedRealtime()
-                        - startElapsed) + "ms");
+                Slog.v(TAG, "Finished writing " + (compact ? "snapshot" : "journal") + ", took "
+                        + (SystemClock.elapsedRealtime() - startElapsed) + "ms");
+            }
+        }
+
+        private void countPersistedJobsLocked() {
+            final int[] counts = new int[3];
+            mJobSet.forEachJob(new JobStatusFunctor() {
+                @Override
+                public void process(JobStatus job) {
+                    if (job.isPersisted()) {
+                        counts[0]++;
+                        if (job.getUid() == Process.SYSTEM_UID) {
+                            counts[1]++;
+                            if (isSyncJob(job)) {
+                                counts[2]++;
+                            }
+                        }
+                    }
+                }
+            });
+            mPersistInfo.countAllJobsSaved = counts[0];
+            mPersistInfo.countSystemServerJobsSaved = counts[1];
+            mPersistInfo.countSystemSyncManagerJobsSaved = counts[2];
+        }
+
+        private void writeSnapshot(List<JobStatus> jobList) {
+            mIoHandler.removeCallbacks(mCompactRunnable);
+            mCompactionScheduled = false;
+            final long generation = mJournalGeneration + 1;
+            if (!writeJobsMapImpl(jobList, generation)) {
+                // Try again with the next change.
+                synchronized (mLock) {
+                    mCompactionRequested = true;
+                }
+                return;
+            }
+            mJournalGeneration = generation;
+            mSnapshotJobCount = jobList.size();
+            // If this fails, the journal is ignored on boot as it's of an older generation.
+            resetJournal();
+        }
+
+        private boolean resetJournal() {
+            FileOutputStream fos = null;
+            try {
+                fos = new FileOutputStream(mJournalFile, false);
+                final DataOutputStream out = new DataOutputStream(fos);
+                out.writeInt(JOURNAL_MAGIC);
+                out.writeInt(JOURNAL_VERSION);
+                out.writeLong(mJournalGeneration);
+                out.flush();
+                FileUtils.sync(fos);
+                mJournalRecords = 0;
+                mJournalNeedsReset = false;
+                return true;
+            } catch (IOException e) {
+                Slog.w(TAG, "Error resetting job journal.", e);
+                mJournalNeedsReset = true;
+                return false;
+            } finally {
+                IoUtils.closeQuietly(fos);
+            }
+        }
+
+        private void appendToJournal(List<JournalOp> ops) {
+            if (mJournalNeedsReset && !resetJournal()) {
+                compactNow();
+                return;
+            }
+            FileOutputStream fos = null;
+            try {
+                final ByteArrayOutputStream records = new ByteArrayOutputStream();
+                final DataOutputStream out = new DataOutputStream(records);
+                final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+                final CRC32 crc = new CRC32();
+                for (int i = 0; i < ops.size(); i++) {
+                    payload.reset();
+                    writeJournalRecord(payload, ops.get(i));
+                    crc.reset();
+                    crc.update(payload.toByteArray(), 0, payload.size());
+                    out.writeInt(payload.size());
+                    out.writeInt((int) crc.getValue());
+                    payload.writeTo(out);
+                }
+                out.flush();
+
+                fos = new FileOutputStream(mJournalFile, true);
+                records.writeTo(fos);
+                FileUtils.sync(fos);
+                mJournalRecords += ops.size();
+                mDirtyOperations = 0;
+            } catch (IOException | XmlPullParserException e) {
+                // The journal may end with a partial record now, and misses these changes.
+                Slog.w(TAG, "Error appending to job journal.", e);
+                compactNow();
+                return;
+            } finally {
+                IoUtils.closeQuietly(fos);
+            }
+
+            if (!mCompactionScheduled && mJournalRecords
+                    >= Math.max(MIN_JOURNAL_RECORDS_BEFORE_COMPACTION, mSnapshotJobCount)) {
+                mCompactionScheduled = true;
+                mIoHandler.postDelayed(mCompactRunnable, COMPACTION_DELAY_MILLIS);
+            }
+        }
+
+        private void compactNow() {
+            synchronized (mLock) {
+                mCompactionRequested = true;
+            }
+            mIoHandler.removeCallbacks(mCompactRunnable);
+            mIoHandler.post(mCompactRunnable);
+            mCompactionScheduled = true;
+        }
+
+        private void writeJournalRecord(ByteArrayOutputStream payload, JournalOp op)
+                throws IOException, XmlPullParserException {
+            final DataOutputStream out = new DataOutputStream(payload);
+            out.writeByte(op.job != null ? JOURNAL_OP_ADD : JOURNAL_OP_REMOVE);
+            out.writeInt(op.uid);
+            out.writeInt(op.jobId);
+            out.flush();
+            if (op.job != null) {
+                XmlSerializer xml = new FastXmlSerializer();
+                xml.setOutput(payload, StandardCharsets.UTF_8.name());
+                xml.startDocument(null, true);
+                writeJobToXml(xml, op.job);
+                xml.endDocument();
             }
         }
 
-        private void writeJobsMapImpl(List<JobStatus> jobList) {
+        private boolean writeJobsMapImpl(List<JobStatus> jobList, long generation) {
+            boolean success = false;
             int numJobs = 0;
             int numSystemJobs = 0;
             int numSyncJobs = 0;
@@ -356,17 +609,10 @@ public final class JobStore {
 
                 out.startTag(null, "job-info");
                 out.attribute(null, "version", Integer.toString(JOBS_FILE_VERSION));
+                out.attribute(null, "journal-generation", Long.toString(generation));
                 for (int i=0; i<jobList.size(); i++) {
                     JobStatus jobStatus = jobList.get(i);
-                    if (DEBUG) {
-                        Slog.d(TAG, "Saving job " + jobStatus.getJobId());
-                    }
-                    out.startTag(null, "job");
-                    addAttributesToJobTag(out, jobStatus);
-                    writeConstraintsToXml(out, jobStatus);
-                    writeExecutionCriteriaToXml(out, jobStatus);
-                    writeBundleToXml(jobStatus.getJob().getExtras(), out);
-                    out.endTag(null, "job");
+                    writeJobToXml(out, jobStatus);
 
                     numJobs++;
                     if (jobStatus.getUid() == Process.SYSTEM_UID) {
@@ -384,6 +630,7 @@ public final class JobStore {
                 fos.write(baos.toByteArray());
                 mJobsFile.finishWrite(fos);
                 mDirtyOperations = 0;
+                success = true;
             } catch (IOException e) {
                 if (DEBUG) {
                     Slog.v(TAG, "Error writing out job data.", e);
@@ -397,6 +644,20 @@ public final class JobStore {
                 mPersistInfo.countSystemServerJobsSaved = numSystemJobs;
                 mPersistInfo.countSystemSyncManagerJobsSaved = numSyncJobs;
             }
+            return success;
+        }
+
+        private void writeJobToXml(XmlSerializer out, JobStatus jobStatus)
+                throws IOException, XmlPullParserException {
+            if (DEBUG) {
+                Slog.d(TAG, "Saving job " + jobStatus.getJobId());
+            }
+            out.startTag(null, "job");
+            addAttributesToJobTag(out, jobStatus);
+            writeConstraintsToXml(out, jobStatus);
+            writeExecutionCriteriaToXml(out, jobStatus);
+            writeBundleToXml(jobStatus.getJob().getExtras(), out);
+            out.endTag(null, "job");
         }
 
         /** Write out a tag with data comprising the required fields and priority of this job and
@@ -527,7 +788,7 @@ public final class JobStore {
                 out.endTag(null, XML_TAG_ONEOFF);
             }
         }
-    };
+    }
 
     /**
      * Translate the supplied RTC times to the elapsed timebase, with clamping appropriate
@@ -554,13 +815,22 @@ public final class JobStore {
     }
 
     /**
-     * Runnable that reads list of persisted job from xml. This is run once at start up, so doesn't
-     * need to go through {@link JobStore#add(com.android.server.job.controllers.JobStatus)}.
+     * Runnable that reads list of persisted job from xml, and replays the journal over it. This
+     * is run once at start up, so doesn't need to go through
+     * {@link JobStore#add(com.android.server.job.controllers.JobStatus)}.
      */
     private final class ReadJobMapFromDiskRunnable implements Runnable {
         private final JobSet jobSet;
         private final boolean rtcGood;
 
+        // What was found on disk.
+        long generation;
+        int snapshotJobCount;
+        int journalRecords;
+        boolean journalValid;
+        // Set if the snapshot or journal can't be appended to as they are.
+        boolean needsCompaction;
+
         /**
          * @param jobSet Reference to the (empty) set of JobStatus objects that back the JobStore,
          *               so that after disk read we can populate it directly.
@@ -576,36 +846,50 @@ public final class JobStore {
             int numSystemJobs = 0;
             int numSyncJobs = 0;
             try {
-                List<JobStatus> jobs;
-                FileInputStream fis = mJobsFile.openRead();
                 synchronized (mLock) {
-                    jobs = readJobMapImpl(fis, rtcGood);
-                    if (jobs != null) {
-                        long now = SystemClock.elapsedRealtime();
-                        IActivityManager am = ActivityManager.getService();
-                        for (int i=0; i<jobs.size(); i++) {
-                            JobStatus js = jobs.get(i);
-                            js.prepareLocked(am);
-                            js.enqueueTime = now;
-                            this.jobSet.add(js);
-
-                            numJobs++;
-                            if (js.getUid() == Process.SYSTEM_UID) {
-                                numSystemJobs++;
-                                if (isSyncJob(js)) {
-                                    numSyncJobs++;
-                                }
+                    // Keyed by uid and job id, see jobKey().
+                    final LongSparseArray<JobStatus> jobs = new LongSparseArray<>();
+                    boolean snapshotValid = true;
+                    try {
+                        FileInputStream fis = mJobsFile.openRead();
+                        try {
+                            snapshotValid = readJobMapImpl(fis, rtcGood, jobs);
+                        } finally {
+                            fis.close();
+                        }
+                    } catch (FileNotFoundException e) {
+                        if (DEBUG) {
+                            Slog.d(TAG, "Could not find jobs file, probably there was nothing"
+                                    + " to load.");
+                        }
+                    }
+                    snapshotJobCount = jobs.size();
+                    if (snapshotValid) {
+                        readJournal(jobs);
+                    } else {
+                        needsCompaction = true;
+                    }
+
+                    long now = SystemClock.elapsedRealtime();
+                    IActivityManager am = ActivityManager.getService();
+                    for (int i=0; i<jobs.size(); i++) {
+                        JobStatus js = jobs.valueAt(i);
+                        js.prepareLocked(am);
+                        js.enqueueTime = now;
+                        this.jobSet.add(js);
+
+                        numJobs++;
+                        if (js.getUid() == Process.SYSTEM_UID) {
+                            numSystemJobs++;
+                            if (isSyncJob(js)) {
+                                numSyncJobs++;
                             }
                         }
                     }
                 }
-                fis.close();
-            } catch (FileNotFoundException e) {
-                if (DEBUG) {
-                    Slog.d(TAG, "Could not find jobs file, probably there was nothing to load.");
-                }
             } catch (XmlPullParserException | IOException e) {
                 Slog.wtf(TAG, "Error jobstore xml.", e);
+                needsCompaction = true;
             } finally {
                 if (mPersistInfo.countAllJobsLoaded < 0) { // Only set them once.
                     mPersistInfo.countAllJobsLoaded = numJobs;
@@ -613,11 +897,110 @@ public final class JobStore {
                     mPersistInfo.countSystemSyncManagerJobsLoaded = numSyncJobs;
                 }
             }
-            Slog.i(TAG, "Read " + numJobs + " jobs");
+            Slog.i(TAG, "Read " + numJobs + " jobs, " + journalRecords + " journal records");
         }
 
-        private List<JobStatus> readJobMapImpl(FileInputStream fis, boolean rtcIsGood)
-                throws XmlPullParserException, IOException {
+        /**
+         * Replays the journal written since the snapshot over the jobs read from it. Stops at
+         * the first record that wasn't completely written.
+         */
+        private void readJournal(LongSparseArray<JobStatus> jobs) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(mJournalFile)));
+                if (in.readInt() != JOURNAL_MAGIC || in.readInt() != JOURNAL_VERSION
+                        || in.readLong() != generation) {
+                    Slog.i(TAG, "Ignoring job journal of another snapshot.");
+                    return;
+                }
+                journalValid = true;
+                final CRC32 crc = new CRC32();
+                while (true) {
+                    final int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (length < JOURNAL_RECORD_MIN_LENGTH
+                            || length > JOURNAL_RECORD_MAX_LENGTH) {
+                        throw new EOFException("Bad journal record length " + length);
+                    }
+                    final int checksum = in.readInt();
+                    final byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    crc.reset();
+                    crc.update(payload, 0, length);
+                    if ((int) crc.getValue() != checksum) {
+                        throw new EOFException("Bad journal record checksum");
+                    }
+                    readJournalRecord(payload, jobs);
+                    journalRecords++;
+                }
+            } catch (FileNotFoundException e) {
+                if (DEBUG) {
+                    Slog.d(TAG, "Could not find job journal.");
+                }
+            } catch (EOFException e) {
+                if (journalValid) {
+                    Slog.w(TAG, "Job journal ends with a partial record after " + journalRecords
+                            + " records.", e);
+                    needsCompaction = true;
+                }
+            } catch (IOException e) {
+                Slog.wtf(TAG, "Error reading job journal.", e);
+                needsCompaction = journalValid;
+            } finally {
+                IoUtils.closeQuietly(in);
+            }
+        }
+
+        private void readJournalRecord(byte[] payload, LongSparseArray<JobStatus> jobs)
+                throws IOException {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            final byte op = in.readByte();
+            final long key = jobKey(in.readInt(), in.readInt());
+            if (op == JOURNAL_OP_REMOVE) {
+                jobs.remove(key);
+                return;
+            }
+            if (op != JOURNAL_OP_ADD) {
+                Slog.w(TAG, "Unknown job journal op " + op + ", skipping.");
+                return;
+            }
+            try {
+                XmlPullParser parser = Xml.newPullParser();
+                parser.setInput(in, StandardCharsets.UTF_8.name());
+                int eventType = parser.getEventType();
+                while (eventType != XmlPullParser.START_TAG
+                        && eventType != XmlPullParser.END_DOCUMENT) {
+                    eventType = parser.next();
+                }
+                JobStatus persistedJob = null;
+                if (eventType == XmlPullParser.START_TAG && "job".equals(parser.getName())) {
+                    persistedJob = restoreJobFromXml(rtcGood, parser);
+                }
+                if (persistedJob != null) {
+                    if (DEBUG) {
+                        Slog.d(TAG, "Read out " + persistedJob);
+                    }
+                    jobs.put(key, persistedJob);
+                } else {
+                    Slog.d(TAG, "Error reading job from journal.");
+                }
+            } catch (XmlPullParserException e) {
+                Slog.d(TAG, "Error reading job from journal.", e);
+            }
+        }
+
+        /**
+         * Reads the snapshot into {@code jobs}, and its generation into {@link #generation}.
+         *
+         * @return false if the snapshot couldn't be used, so the journal doesn't apply to it.
+         */
+        private boolean readJobMapImpl(FileInputStream fis, boolean rtcIsGood,
+                LongSparseArray<JobStatus> jobsOut) throws XmlPullParserException, IOException {
             XmlPullParser parser = Xml.newPullParser();
             parser.setInput(fis, StandardCharsets.UTF_8.name());
 
@@ -631,22 +1014,24 @@ public final class JobStore {
                 if (DEBUG) {
                     Slog.d(TAG, "No persisted jobs.");
                 }
-                return null;
+                return true;
             }
 
             String tagName = parser.getName();
             if ("job-info".equals(tagName)) {
-                final List<JobStatus> jobs = new ArrayList<JobStatus>();
                 // Read in version info.
                 try {
                     int version = Integer.parseInt(parser.getAttributeValue(null, "version"));
                     if (version != JOBS_FILE_VERSION) {
                         Slog.d(TAG, "Invalid version number, aborting jobs file read.");
-                        return null;
+                        return false;
                     }
+                    // Absent from files written before the journal existed.
+                    final String val = parser.getAttributeValue(null, "journal-generation");
+                    generation = (val != null) ? Long.parseLong(val) : 0;
                 } catch (NumberFormatException e) {
                     Slog.e(TAG, "Invalid version number, aborting jobs file read.");
-                    return null;
+                    return false;
                 }
                 eventType = parser.next();
                 do {
@@ -660,7 +1045,8 @@ public final class JobStore {
                                 if (DEBUG) {
                                     Slog.d(TAG, "Read out " + persistedJob);
                                 }
-                                jobs.add(persistedJob);
+                                jobsOut.put(jobKey(persistedJob.getUid(),
+                                        persistedJob.getJobId()), persistedJob);
                             } else {
                                 Slog.d(TAG, "Error reading job from file.");
                             }
@@ -668,9 +1054,9 @@ public final class JobStore {
                     }
                     eventType = parser.next();
                 } while (eventType != XmlPullParser.END_DOCUMENT);
-                return jobs;
+                return true;
             }
-            return null;
+            return false;
         }
 
         /**
@@ -961,14 +1347,25 @@ public final class JobStore {
         }
     }
 
-    static final class JobSet {
+    static final class JobSet implements JobStatus.ReadyStateListener {
         // Key is the getUid() originator of the jobs in each sheaf
         private SparseArray<ArraySet<JobStatus>> mJobs;
+        // The jobs of mJobs that are ready to run, kept up to date by the jobs themselves.
+        private final ArraySet<JobStatus> mReadyJobs = new ArraySet<>();
 
         public JobSet() {
             mJobs = new SparseArray<ArraySet<JobStatus>>();
         }
 
+        @Override
+        public void onReadyStateChanged(JobStatus job, boolean ready) {
+            if (ready) {
+                mReadyJobs.add(job);
+            } else {
+                mReadyJobs.remove(job);
+            }
+        }
+
         public List<JobStatus> getJobsByUid(int uid) {
             ArrayList<JobStatus> matchingJobs = new ArrayList<JobStatus>();
             ArraySet<JobStatus> jobs = mJobs.get(uid);
@@ -999,7 +1396,14 @@ public final class JobStore {
                 jobs = new ArraySet<JobStatus>();
                 mJobs.put(uid, jobs);
             }
-            return jobs.add(job);
+            final boolean added = jobs.add(job);
+            if (added) {
+                job.setReadyStateListener(this);
+                if (job.isReady()) {
+                    mReadyJobs.add(job);
+                }
+            }
+            return added;
         }
 
         public boolean remove(JobStatus job) {
@@ -1010,15 +1414,29 @@ public final class JobStore {
                 // no more jobs for this uid; let the now-empty set object be GC'd.
                 mJobs.remove(uid);
             }
+            if (didRemove) {
+                stopTrackingReadyState(job);
+            }
             return didRemove;
         }
 
+        private void stopTrackingReadyState(JobStatus job) {
+            mReadyJobs.remove(job);
+            if (job.getReadyStateListener() == this) {
+                job.setReadyStateListener(null);
+            }
+        }
+
         // Remove the jobs all users not specified by the whitelist of user ids
         public void removeJobsOfNonUsers(int[] whitelist) {
             for (int jobIndex = mJobs.size() - 1; jobIndex >= 0; jobIndex--) {
                 int jobUserId = UserHandle.getUserId(mJobs.keyAt(jobIndex));
                 // check if job's user id is not in the whitelist
                 if (!ArrayUtils.contains(whitelist, jobUserId)) {
+                    final ArraySet<JobStatus> jobs = mJobs.valueAt(jobIndex);
+                    for (int i = jobs.size() - 1; i >= 0; i--) {
+                        stopTrackingReadyState(jobs.valueAt(i));
+                    }
                     mJobs.removeAt(jobIndex);
                 }
             }
@@ -1061,6 +1479,12 @@ public final class JobStore {
         }
 
         public void clear() {
+            for (int uidIndex = mJobs.size() - 1; uidIndex >= 0; uidIndex--) {
+                final ArraySet<JobStatus> jobs = mJobs.valueAt(uidIndex);
+                for (int i = jobs.size() - 1; i >= 0; i--) {
+                    stopTrackingReadyState(jobs.valueAt(i));
+                }
+            }
             mJobs.clear();
         }
 
@@ -1105,5 +1529,15 @@ public final class JobStore {
                 }
             }
         }
+
+        public void forEachReadyJob(JobStatusFunctor functor) {
+            for (int i = mReadyJobs.size() - 1; i >= 0; i--) {
+                functor.process(mReadyJobs.valueAt(i));
+            }
+        }
+
+        public int countReadyJobs() {
+            return mReadyJobs.size();
+        }
     }
 }
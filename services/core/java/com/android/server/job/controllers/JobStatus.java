@@ -131,6 +131,17 @@ public final class JobStatus {
     // Set to true if doze constraint was satisfied due to app being whitelisted.
     public boolean dozeWhitelisted;
 
+    /**
+     * Told whenever the result of {@link #isReady()} changes for a job it listens to.
+     */
+    public interface ReadyStateListener {
+        void onReadyStateChanged(JobStatus job, boolean ready);
+    }
+
+    private ReadyStateListener mReadyStateListener;
+    // Last value of isReady() reported to mReadyStateListener.
+    private boolean mReady;
+
     /**
      * Flag for {@link #trackingControllers}: the battery controller is currently tracking this job.
      */
@@ -177,7 +188,7 @@ public final class JobStatus {
 
     public int nextPendingWorkId = 1;
 
-    // Used by shell commands
+    // Used by shell commands; set through setOverrideState()
     public int overrideState = 0;
 
     // When this job was enqueued, for ordering.  (in elapsedRealtimeMillis)
@@ -713,9 +724,38 @@ public final class JobStatus {
             return false;
         }
         satisfiedConstraints = (satisfiedConstraints&~constraint) | (state ? constraint : 0);
+        updateReadyState();
         return true;
     }
 
+    public void setOverrideState(int state) {
+        overrideState = state;
+        updateReadyState();
+    }
+
+    /**
+     * Sets the listener to report changes of {@link #isReady()} to, replacing any previous one.
+     */
+    public void setReadyStateListener(ReadyStateListener listener) {
+        mReadyStateListener = listener;
+        mReady = isReady();
+    }
+
+    public ReadyStateListener getReadyStateListener() {
+        return mReadyStateListener;
+    }
+
+    private void updateReadyState() {
+        if (mReadyStateListener == null) {
+            return;
+        }
+        final boolean ready = isReady();
+        if (ready != mReady) {
+            mReady = ready;
+            mReadyStateListener.onReadyStateChanged(this, ready);
+        }
+    }
+
     boolean isConstraintSatisfied(int constraint) {
         return (satisfiedConstraints&constraint) != 0;
     }
@@ -748,9 +788,8 @@ public final class JobStatus {
     /**
      * @return Whether or not this job is ready to run, based on its requirements. This is true if
      * the constraints are satisfied <strong>or</strong> the deadline on the job has expired.
-     * TODO: This function is called a *lot*.  We should probably just have it check an
-     * already-computed boolean, which we updated whenever we see one of the states it depends
-     * on here change.
+     * Changes of the result are reported to the {@link ReadyStateListener}, if any, so that the
+     * scheduler doesn't have to ask every job.
      */
     public boolean isReady() {
         // Deadline constraint trumps other constraints (except for periodic jobs where deadline
@@ -28,20 +28,33 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.BatteryManager;
 import android.os.Environment;
+import android.os.IThermalService;
 import android.os.Process;
+import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.SystemProperties;
 import android.os.storage.StorageManager;
 import android.util.ArraySet;
+import android.util.AtomicFile;
 import android.util.Log;
 
+import com.android.internal.os.BackgroundThread;
 import com.android.server.pm.dex.DexManager;
 import com.android.server.LocalServices;
 import com.android.server.PinnerService;
 import com.android.server.pm.dex.DexoptOptions;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.lang.Runnable;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.Semaphore;
@@ -76,6 +89,8 @@ public class BackgroundDexOptService extends JobService {
     private static final int OPTIMIZE_ABORT_BY_JOB_SCHEDULER = 2;
     // Optimizations should be aborted. No space left on device.
     private static final int OPTIMIZE_ABORT_NO_SPACE_LEFT = 3;
+    // Optimizations should be aborted. The device is thermal throttling.
+    private static final int OPTIMIZE_ABORT_THERMAL = 4;
 
     // Used for calculating space threshold for downgrading unused apps.
     private static final int LOW_THRESHOLD_MULTIPLIER_FOR_DOWNGRADE = 2;
@@ -86,6 +101,34 @@ public class BackgroundDexOptService extends JobService {
     static final ArraySet<String> sFailedPackageNamesPrimary = new ArraySet<String>();
     static final ArraySet<String> sFailedPackageNamesSecondary = new ArraySet<String>();
 
+    /**
+     * Set of packages already processed by an idle optimization pass that didn't complete.
+     * The next idle run skips them, so that passes interrupted by the end of the maintenance
+     * window resume where they stopped instead of starting over. Cleared once a pass
+     * completes, or once it is older than an optimization period. Saved to
+     * {@link #CHECKPOINT_FILE_NAME} so that a restart doesn't redo the work either.
+     */
+    static final ArraySet<String> sProcessedPackageNamesPrimary = new ArraySet<String>();
+    static final ArraySet<String> sProcessedPackageNamesSecondary = new ArraySet<String>();
+    // Wall clock time the interrupted pass started at, 0 if none. Guarded by
+    // sProcessedPackageNamesPrimary.
+    private static long sProcessedPackagesStartTime;
+    private static boolean sCheckpointLoaded;
+    // Serializes writes and deletion of the checkpoint file.
+    private static final Object sCheckpointLock = new Object();
+
+    private static final String CHECKPOINT_FILE_NAME = "background-dexopt-checkpoint.list";
+    private static final String CHECKPOINT_VERSION = "BACKGROUND_DEXOPT_CHECKPOINT_1";
+    private static final char CHECKPOINT_PRIMARY = 'p';
+    private static final char CHECKPOINT_SECONDARY = 's';
+
+    private static final Runnable sWriteCheckpoint = new Runnable() {
+        @Override
+        public void run() {
+            writeCheckpoint();
+        }
+    };
+
     /**
      * Atomics set to true if the JobScheduler requests an abort.
      */
@@ -99,6 +142,9 @@ public class BackgroundDexOptService extends JobService {
 
     private final File mDataDir = Environment.getDataDirectory();
 
+    // Looked up once per idle optimization run, null if there is no thermal service.
+    private IThermalService mThermalService;
+
     private static final long mDowngradeUnusedAppsThresholdInMillis =
             getDowngradeUnusedAppsThresholdInMillis();
 
@@ -139,6 +185,18 @@ public class BackgroundDexOptService extends JobService {
         synchronized (sFailedPackageNamesSecondary) {
             sFailedPackageNamesSecondary.remove(packageName);
         }
+        // Same for a package processed by an interrupted pass, it might need dexopt again.
+        boolean removed;
+        synchronized (sProcessedPackageNamesPrimary) {
+            removed = sProcessedPackageNamesPrimary.remove(packageName);
+        }
+        synchronized (sProcessedPackageNamesSecondary) {
+            removed |= sProcessedPackageNamesSecondary.remove(packageName);
+        }
+        if (removed) {
+            // Callers may hold the install lock, don't write the checkpoint from here.
+            BackgroundThread.getHandler().post(sWriteCheckpoint);
+        }
     }
 
     // Returns the current battery level as a 0-100 integer.
@@ -252,7 +310,10 @@ public class BackgroundDexOptService extends JobService {
             public void run() {
                 Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
                 int result = idleOptimization(pm, pkgs, BackgroundDexOptService.this);
-                if (result != OPTIMIZE_ABORT_BY_JOB_SCHEDULER) {
+                if (result == OPTIMIZE_ABORT_THERMAL) {
+                    // Try again later, the next run resumes where this one stopped.
+                    jobFinished(jobParams, /* reschedule */ true);
+                } else if (result != OPTIMIZE_ABORT_BY_JOB_SCHEDULER) {
                     Log.w(TAG, "Idle optimizations aborted because of space constraints.");
                     // If we didn't abort we ran to completion (or stopped because of space).
                     // Abandon our timeslice and do not reschedule.
@@ -272,11 +333,18 @@ public class BackgroundDexOptService extends JobService {
         mAbortIdleOptimization.set(false);
 
         long lowStorageThreshold = getLowStorageThreshold(context);
+        mThermalService = IThermalService.Stub.asInterface(
+                ServiceManager.getService("thermalservice"));
+        maybeResetProcessedPackages();
+        // Most recently used packages first, they benefit the most from being compiled
+        // before the maintenance window ends.
+        List<String> sortedPkgs = pm.sortPackageNamesByUsageDate(pkgs);
         // Optimize primary apks.
-        int result = optimizePackages(pm, pkgs, lowStorageThreshold, /*is_for_primary_dex*/ true,
-                sFailedPackageNamesPrimary);
+        int result = optimizePackages(pm, sortedPkgs, lowStorageThreshold,
+                /*is_for_primary_dex*/ true, sFailedPackageNamesPrimary,
+                sProcessedPackageNamesPrimary);
 
-        if (result == OPTIMIZE_ABORT_BY_JOB_SCHEDULER) {
+        if (isAborted(result)) {
             return result;
         }
 
@@ -286,12 +354,152 @@ public class BackgroundDexOptService extends JobService {
                 return result;
             }
 
-            result = optimizePackages(pm, pkgs, lowStorageThreshold, /*is_for_primary_dex*/ false,
-                    sFailedPackageNamesSecondary);
+            result = optimizePackages(pm, sortedPkgs, lowStorageThreshold,
+                    /*is_for_primary_dex*/ false, sFailedPackageNamesSecondary,
+                    sProcessedPackageNamesSecondary);
+            if (isAborted(result)) {
+                return result;
+            }
         }
+
+        // The pass completed, the next one starts from scratch.
+        clearProcessedPackages();
         return result;
     }
 
+    private static boolean isAborted(int result) {
+        return result == OPTIMIZE_ABORT_BY_JOB_SCHEDULER || result == OPTIMIZE_ABORT_THERMAL;
+    }
+
+    // Forget about packages processed by an interrupted pass if it was started more than an
+    // optimization period ago, they may well have new profile data by now.
+    private static void maybeResetProcessedPackages() {
+        loadCheckpoint();
+        final long now = System.currentTimeMillis();
+        synchronized (sProcessedPackageNamesPrimary) {
+            if (sProcessedPackagesStartTime != 0 && now >= sProcessedPackagesStartTime
+                    && now - sProcessedPackagesStartTime < IDLE_OPTIMIZATION_PERIOD) {
+                return;
+            }
+        }
+        clearProcessedPackages();
+        synchronized (sProcessedPackageNamesPrimary) {
+            sProcessedPackagesStartTime = now;
+        }
+    }
+
+    private static void clearProcessedPackages() {
+        synchronized (sProcessedPackageNamesPrimary) {
+            sProcessedPackageNamesPrimary.clear();
+            sProcessedPackagesStartTime = 0;
+        }
+        synchronized (sProcessedPackageNamesSecondary) {
+            sProcessedPackageNamesSecondary.clear();
+        }
+        synchronized (sCheckpointLock) {
+            getCheckpointFile().delete();
+        }
+    }
+
+    private static AtomicFile getCheckpointFile() {
+        return new AtomicFile(new File(Environment.getDataSystemDirectory(),
+                CHECKPOINT_FILE_NAME));
+    }
+
+    // Reads the packages processed by an interrupted pass before the last restart.
+    private static void loadCheckpoint() {
+        synchronized (sProcessedPackageNamesPrimary) {
+            if (sCheckpointLoaded) {
+                return;
+            }
+            sCheckpointLoaded = true;
+        }
+        final AtomicFile file = getCheckpointFile();
+        final ArraySet<String> primary = new ArraySet<>();
+        final ArraySet<String> secondary = new ArraySet<>();
+        long startTime;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                file.openRead(), StandardCharsets.UTF_8))) {
+            if (!CHECKPOINT_VERSION.equals(in.readLine())) {
+                file.delete();
+                return;
+            }
+            startTime = Long.parseLong(in.readLine());
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                if (line.length() < 2) {
+                    continue;
+                }
+                if (line.charAt(0) == CHECKPOINT_PRIMARY) {
+                    primary.add(line.substring(1));
+                } else if (line.charAt(0) == CHECKPOINT_SECONDARY) {
+                    secondary.add(line.substring(1));
+                }
+            }
+        } catch (FileNotFoundException expected) {
+            return;
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "Failed to read dexopt checkpoint, starting over", e);
+            file.delete();
+            return;
+        }
+        synchronized (sProcessedPackageNamesPrimary) {
+            sProcessedPackageNamesPrimary.addAll(primary);
+            sProcessedPackagesStartTime = startTime;
+        }
+        synchronized (sProcessedPackageNamesSecondary) {
+            sProcessedPackageNamesSecondary.addAll(secondary);
+        }
+    }
+
+    private static void writeCheckpoint() {
+        synchronized (sCheckpointLock) {
+            writeCheckpointLocked();
+        }
+    }
+
+    private static void writeCheckpointLocked() {
+        final ArraySet<String> primary;
+        final ArraySet<String> secondary;
+        final long startTime;
+        synchronized (sProcessedPackageNamesPrimary) {
+            if (sProcessedPackageNamesPrimary.isEmpty() && sProcessedPackagesStartTime == 0) {
+                // Cleared since this write was requested.
+                return;
+            }
+            primary = new ArraySet<>(sProcessedPackageNamesPrimary);
+            startTime = sProcessedPackagesStartTime;
+        }
+        synchronized (sProcessedPackageNamesSecondary) {
+            secondary = new ArraySet<>(sProcessedPackageNamesSecondary);
+        }
+        final AtomicFile file = getCheckpointFile();
+        FileOutputStream f = null;
+        try {
+            f = file.startWrite();
+            final BufferedWriter out = new BufferedWriter(
+                    new OutputStreamWriter(f, StandardCharsets.UTF_8));
+            out.write(CHECKPOINT_VERSION);
+            out.write('\n');
+            out.write(Long.toString(startTime));
+            out.write('\n');
+            for (int i = 0; i < primary.size(); i++) {
+                out.write(CHECKPOINT_PRIMARY);
+                out.write(primary.valueAt(i));
+                out.write('\n');
+            }
+            for (int i = 0; i < secondary.size(); i++) {
+                out.write(CHECKPOINT_SECONDARY);
+                out.write(secondary.valueAt(i));
+                out.write('\n');
+            }
+            out.flush();
+            file.finishWrite(f);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write dexopt checkpoint", e);
+            file.failWrite(f);
+        }
+    }
+
     private Semaphore mHandlerFlushCount = new Semaphore(0, true);
     private Runnable mHandlerFlusher = new Runnable() {
         @Override
@@ -300,9 +508,9 @@ public class BackgroundDexOptService extends JobService {
         }
     };
 
-    private int optimizePackages(PackageManagerService pm, ArraySet<String> pkgs,
+    private int optimizePackages(PackageManagerService pm, List<String> pkgs,
             long lowStorageThreshold, boolean is_for_primary_dex,
-            ArraySet<String> failedPackageNames) {
+            ArraySet<String> failedPackageNames, ArraySet<String> processedPackageNames) {
         ArraySet<String> updatedPackages = new ArraySet<>();
         Set<String> unusedPackages = pm.getUnusedPackages(mDowngradeUnusedAppsThresholdInMillis);
         // Only downgrade apps when space is low on device.
@@ -327,7 +535,8 @@ public class BackgroundDexOptService extends JobService {
             } while (interrupted);
 
             int abort_code = abortIdleOptimizations(lowStorageThreshold);
-            if (abort_code == OPTIMIZE_ABORT_BY_JOB_SCHEDULER) {
+            if (isAborted(abort_code)) {
+                notifyPinService(updatedPackages);
                 return abort_code;
             }
 
@@ -338,6 +547,13 @@ public class BackgroundDexOptService extends JobService {
                 }
             }
 
+            synchronized (processedPackageNames) {
+                if (!processedPackageNames.add(pkg)) {
+                    // Already processed by an earlier run of this pass
+                    continue;
+                }
+            }
+
             int reason;
             boolean downgrade;
             // Downgrade unused packages.
@@ -392,6 +608,8 @@ public class BackgroundDexOptService extends JobService {
                     failedPackageNames.remove(pkg);
                 }
             }
+            // Dexopt takes far longer than this write, so checkpoint after every package.
+            writeCheckpoint();
         }
         notifyPinService(updatedPackages);
         return OPTIMIZE_PROCESSED;
@@ -414,6 +632,11 @@ public class BackgroundDexOptService extends JobService {
             // JobScheduler requested an early abort.
             return OPTIMIZE_ABORT_BY_JOB_SCHEDULER;
         }
+        if (isThermalThrottling()) {
+            // Compiling would only make it worse and run slowly anyway.
+            Log.w(TAG, "Aborting background dex opt job due to thermal throttling");
+            return OPTIMIZE_ABORT_THERMAL;
+        }
         long usableSpace = mDataDir.getUsableSpace();
         if (usableSpace < lowStorageThreshold) {
             // Rather bail than completely fill up the disk.
@@ -424,6 +647,18 @@ public class BackgroundDexOptService extends JobService {
         return OPTIMIZE_CONTINUE;
     }
 
+    private boolean isThermalThrottling() {
+        final IThermalService thermalService = mThermalService;
+        if (thermalService == null) {
+            return false;
+        }
+        try {
+            return thermalService.isThrottling();
+        } catch (RemoteException e) {
+            return false;
+        }
+    }
+
     // Evaluate whether apps should be downgraded.
     private boolean shouldDowngrade(long lowStorageThresholdForDowngrade) {
         long usableSpace = mDataDir.getUsableSpace();
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.pm;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of application and component enabled states that can be read without holding the
+ * package manager lock, so that binder threads asking for them aren't blocked by installs or
+ * package scans holding the lock.
+ * <p>Entries are published into an immutable-by-generation snapshot: {@link #invalidate} and
+ * {@link Settings} state changes replace the whole snapshot, and readers only ever see a
+ * snapshot consistent with a single package state generation. Entries must only be added
+ * for non-instant callers querying non-instant targets, whose results don't depend on
+ * anything but the target's state.</p>
+ */
+final class ComponentEnabledStateCache {
+
+    /** Returned by {@link #get} when the state isn't cached. */
+    static final int UNKNOWN = Integer.MIN_VALUE;
+
+    private static final int MAX_ENTRIES = 1024;
+
+    private static final class Snapshot {
+        final int settingsGeneration;
+        final ConcurrentHashMap<Key, Integer> states = new ConcurrentHashMap<>();
+        /** Callers known not to be instant apps in this generation. */
+        final ConcurrentHashMap<Integer, Boolean> regularCallers = new ConcurrentHashMap<>();
+
+        Snapshot(int settingsGeneration) {
+            this.settingsGeneration = settingsGeneration;
+        }
+    }
+
+    private volatile Snapshot mSnapshot = new Snapshot(-1);
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private long mInvalidations;
+
+    /**
+     * Returns the cached enabled state of {@code className} in {@code packageName} (or of the
+     * application itself if {@code className} is null) as seen by {@code callingUid}, or
+     * {@link #UNKNOWN}. May be called without holding any lock.
+     */
+    int get(int callingUid, String packageName, String className, int userId,
+            int settingsGeneration) {
+        final Snapshot snapshot = mSnapshot;
+        if (snapshot.settingsGeneration == settingsGeneration
+                && snapshot.regularCallers.containsKey(callingUid)) {
+            final Integer state = snapshot.states.get(new Key(packageName, className, userId));
+            if (state != null) {
+                mHits.incrementAndGet();
+                return state;
+            }
+        }
+        mMisses.incrementAndGet();
+        return UNKNOWN;
+    }
+
+    /**
+     * Caches the enabled state computed for a non-instant caller and a non-instant target.
+     * Must be called with the package manager lock held.
+     */
+    void put(int callingUid, String packageName, String className, int userId,
+            int settingsGeneration, int state) {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot.settingsGeneration != settingsGeneration) {
+            snapshot = new Snapshot(settingsGeneration);
+            mSnapshot = snapshot;
+        }
+        if (snapshot.states.size() >= MAX_ENTRIES) {
+            return;
+        }
+        snapshot.regularCallers.put(callingUid, Boolean.TRUE);
+        snapshot.states.put(new Key(packageName, className, userId), state);
+    }
+
+    /**
+     * Drops all cached states. Must be called with the package manager lock held whenever
+     * package state changes.
+     */
+    void invalidate() {
+        final Snapshot snapshot = mSnapshot;
+        if (!snapshot.states.isEmpty()) {
+            mSnapshot = new Snapshot(snapshot.settingsGeneration);
+            mInvalidations++;
+        }
+    }
+
+    void dump(IndentingPrintWriter pw) {
+        pw.println("Component enabled state cache:");
+        pw.increaseIndent();
+        pw.print("entries="); pw.print(mSnapshot.states.size());
+        pw.print(" lock-free hits="); pw.print(mHits.get());
+        pw.print(" misses="); pw.print(mMisses.get());
+        pw.print(" invalidations="); pw.println(mInvalidations);
+        pw.decreaseIndent();
+    }
+
+    private static final class Key {
+        private final String mPackageName;
+        private final String mClassName;
+        private final int mUserId;
+
+        Key(String packageName, String className, int userId) {
+            mPackageName = packageName;
+            mClassName = className;
+            mUserId = userId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return mUserId == other.mUserId
+                    && mPackageName.equals(other.mPackageName)
+                    && Objects.equals(mClassName, other.mClassName);
+        }
+
+        @Override
+        public int hashCode() {
+            return (mPackageName.hashCode() * 31 + Objects.hashCode(mClassName)) * 31 + mUserId;
+        }
+    }
+}
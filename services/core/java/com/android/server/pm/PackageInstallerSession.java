@@ -80,6 +80,7 @@ import android.system.Os;
 import android.system.OsConstants;
 import android.system.StructStat;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.ExceptionUtils;
 import android.util.MathUtils;
@@ -89,6 +90,7 @@ import com.android.internal.annotations.GuardedBy;
 import com.android.internal.content.NativeLibraryHelper;
 import com.android.internal.content.PackageHelper;
 import com.android.internal.util.ArrayUtils;
+import com.android.internal.util.ConcurrentUtils;
 import com.android.internal.util.IndentingPrintWriter;
 import com.android.internal.util.Preconditions;
 import com.android.server.pm.Installer.InstallerException;
@@ -109,6 +111,7 @@ import java.security.cert.Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class PackageInstallerSession extends IPackageInstallerSession.Stub {
@@ -147,6 +150,14 @@ public class PackageInstallerSession extends IPackageInstallerSession.Stub {
     private static final String ATTR_NAME = "name";
     private static final String ATTR_INSTALL_REASON = "installRason";
 
+    /**
+     * Verifies staged APKs as soon as their writer is closed, so that the work doesn't
+     * have to happen on commit. Shared by all sessions.
+     */
+    private static final ExecutorService sPrevalidationExecutor =
+            ConcurrentUtils.newFixedThreadPool(1, "PackageInstallerPrevalidation",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+
     // TODO: enforce INSTALL_ALLOW_TEST
     // TODO: enforce INSTALL_ALLOW_DOWNGRADE
 
@@ -216,6 +227,16 @@ public class PackageInstallerSession extends IPackageInstallerSession.Stub {
     @GuardedBy("mLock")
     private final ArrayList<FileBridge> mBridges = new ArrayList<>();
 
+    /**
+     * Number of times each staged file was opened or closed for writing. Verification
+     * results are only kept if the file wasn't touched while they were computed.
+     */
+    @GuardedBy("mLock")
+    private final ArrayMap<File, Integer> mStagedFileGenerations = new ArrayMap<>();
+    /** Staged files verified in the background, see {@link #prevalidateStagedFile}. */
+    @GuardedBy("mLock")
+    private final ArrayMap<File, PrevalidatedApk> mPrevalidatedApks = new ArrayMap<>();
+
     @GuardedBy("mLock")
     private IPackageInstallObserver2 mRemoteObserver;
 
@@ -599,6 +620,11 @@ public class PackageInstallerSession extends IPackageInstallerSession.Stub {
             } finally {
                 Binder.restoreCallingIdentity(identity);
             }
+            final ParcelFileDescriptor.OnCloseListener onClose;
+            synchronized (mLock) {
+                final int generation = bumpStagedFileGenerationLocked(target);
+                onClose = (e) -> onStagedFileClosed(target, generation + 1, e);
+            }
 
             // TODO: this should delegate to DCS so the system process avoids
             // holding open FDs into containers.
@@ -618,9 +644,11 @@ public class PackageInstallerSession extends IPackageInstallerSession.Stub {
             }
 
             if (PackageInstaller.ENABLE_REVOCABLE_FD) {
+                fd.setOnCloseListener(onClose);
                 fd.init(mContext, targetFd);
                 return fd.getRevocableFileDescriptor();
             } else {
+                bridge.setOnCloseListener(onClose);
                 bridge.setTargetFile(targetFd);
                 bridge.start();
                 return new ParcelFileDescriptor(bridge.getClientSocket());
@@ -631,6 +659,79 @@ public class PackageInstallerSession extends IPackageInstallerSession.Stub {
         }
     }
 
+    /**
+     * Invalidates any verification result for {@code file}, which is being opened or was
+     * closed, and returns its previous generation.
+     */
+    @GuardedBy("mLock")
+    private int bumpStagedFileGenerationLocked(File file) {
+        mPrevalidatedApks.remove(file);
+        final Integer generation = mStagedFileGenerations.get(file);
+        final int previous = generation != null ? generation : 0;
+        mStagedFileGenerations.put(file, previous + 1);
+        return previous;
+    }
+
+    private void onStagedFileClosed(File file, int generation, IOException failure) {
+        synchronized (mLock) {
+            if (bumpStagedFileGenerationLocked(file) != generation) {
+                // Opened again in the meantime, the last writer will verify it
+                return;
+            }
+            if (failure != null || mSealed || mDestroyed) {
+                return;
+            }
+        }
+        final int closedGeneration = generation + 1;
+        sPrevalidationExecutor.execute(() -> prevalidateStagedFile(file, closedGeneration));
+    }
+
+    /**
+     * Parses and verifies the signatures of a staged file the same way
+     * {@link #validateInstallLocked} does, ahead of commit. Failures are ignored, commit
+     * will report them.
+     */
+    private void prevalidateStagedFile(File file, int generation) {
+        synchronized (mLock) {
+            if (mSealed || mDestroyed
+                    || !Integer.valueOf(generation).equals(mStagedFileGenerations.get(file))) {
+                return;
+            }
+        }
+        final int flags = getValidationParseFlags();
+        final ApkLite apk;
+        try {
+            apk = PackageParser.parseApkLite(file, flags);
+        } catch (PackageParserException e) {
+            return;
+        }
+        synchronized (mLock) {
+            if (!mDestroyed
+                    && Integer.valueOf(generation).equals(mStagedFileGenerations.get(file))) {
+                mPrevalidatedApks.put(file, new PrevalidatedApk(apk, flags));
+            }
+        }
+    }
+
+    /** Result of verifying a staged file ahead of commit. */
+    private static final class PrevalidatedApk {
+        final ApkLite apk;
+        final int parseFlags;
+
+        PrevalidatedApk(ApkLite apk, int parseFlags) {
+            this.apk = apk;
+            this.parseFlags = parseFlags;
+        }
+    }
+
+    private int getValidationParseFlags() {
+        int flags = PackageParser.PARSE_COLLECT_CERTIFICATES;
+        if ((params.installFlags & PackageManager.INSTALL_INSTANT_APP) != 0) {
+            flags |= PackageParser.PARSE_IS_EPHEMERAL;
+        }
+        return flags;
+    }
+
     @Override
     public ParcelFileDescriptor openRead(String name) {
         synchronized (mLock) {
@@ -991,15 +1092,17 @@ public class PackageInstallerSession extends IPackageInstallerSession.Stub {
         // Verify that all staged packages are internally consistent
         final ArraySet<String> stagedSplits = new ArraySet<>();
         for (File addedFile : addedFiles) {
+            final int flags = getValidationParseFlags();
+            final PrevalidatedApk prevalidated = mPrevalidatedApks.get(addedFile);
             final ApkLite apk;
-            try {
-                int flags = PackageParser.PARSE_COLLECT_CERTIFICATES;
-                if ((params.installFlags & PackageManager.INSTALL_INSTANT_APP) != 0) {
-                    flags |= PackageParser.PARSE_IS_EPHEMERAL;
+            if (prevalidated != null && prevalidated.parseFlags == flags) {
+                apk = prevalidated.apk;
+            } else {
+                try {
+                    apk = PackageParser.parseApkLite(addedFile, flags);
+                } catch (PackageParserException e) {
+                    throw PackageManagerException.from(e);
                 }
-                apk = PackageParser.parseApkLite(addedFile, flags);
-            } catch (PackageParserException e) {
-                throw PackageManagerException.from(e);
             }
 
             if (!stagedSplits.add(apk.splitName)) {
@@ -1554,6 +1657,7 @@ public class PackageInstallerSession extends IPackageInstallerSession.Stub {
         pw.printPair("mDestroyed", mDestroyed);
         pw.printPair("mFds", mFds.size());
         pw.printPair("mBridges", mBridges.size());
+        pw.printPair("mPrevalidatedApks", mPrevalidatedApks.size());
         pw.printPair("mFinalStatus", mFinalStatus);
         pw.printPair("mFinalMessage", mFinalMessage);
         pw.println();
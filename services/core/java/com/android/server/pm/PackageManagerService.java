@@ -343,6 +343,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -618,7 +619,7 @@ public class PackageManagerService extends IPackageManager.Stub
      * Version number for the package parser cache. Increment this whenever the format or
      * extent of cached data changes. See {@code PackageParser#setCacheDir}.
      */
-    private static final String PACKAGE_PARSER_CACHE_VERSION = "1";
+    private static final String PACKAGE_PARSER_CACHE_VERSION = "2";
 
     /**
      * Whether the package parser cache is enabled.
@@ -693,6 +694,11 @@ public class PackageManagerService extends IPackageManager.Stub
     final ArrayMap<String, PackageParser.Package> mPackages =
             new ArrayMap<String, PackageParser.Package>();
 
+    // Mirror of mPackages, so that permission checks can find packages without holding it.
+    // Only modified along with mPackages.
+    final ConcurrentHashMap<String, PackageParser.Package> mPackagesForPermissionChecks =
+            new ConcurrentHashMap<>();
+
     final ArrayMap<String, Set<String>> mKnownCodebase =
             new ArrayMap<String, Set<String>>();
 
@@ -919,6 +925,14 @@ public class PackageManagerService extends IPackageManager.Stub
     final ActivityIntentResolver mActivities =
             new ActivityIntentResolver();
 
+    // Cached results of resolving intents against mActivities.
+    @GuardedBy("mPackages")
+    final ResolveIntentCache mResolveIntentCache = new ResolveIntentCache();
+
+    // Application and component enabled states, readable without holding mPackages.
+    final ComponentEnabledStateCache mComponentEnabledStateCache =
+            new ComponentEnabledStateCache();
+
     // All available receivers, for your resolving pleasure.
     final ActivityIntentResolver mReceivers =
             new ActivityIntentResolver();
@@ -2296,7 +2310,17 @@ public class PackageManagerService extends IPackageManager.Stub
         return extras;
     }
 
+    /**
+     * Drops caches derived from package state. Must be called whenever the registered
+     * components or per-user package state change.
+     */
+    void invalidatePackageStateCachesLocked() {
+        mResolveIntentCache.invalidate();
+        mComponentEnabledStateCache.invalidate();
+    }
+
     void scheduleWriteSettingsLocked() {
+        invalidatePackageStateCachesLocked();
         if (!mHandler.hasMessages(WRITE_SETTINGS)) {
             mHandler.sendEmptyMessageDelayed(WRITE_SETTINGS, WRITE_SETTINGS_DELAY);
         }
@@ -2316,6 +2340,7 @@ public class PackageManagerService extends IPackageManager.Stub
     }
 
     void scheduleWritePackageRestrictionsLocked(int userId) {
+        invalidatePackageStateCachesLocked();
         final int[] userIds = (userId == UserHandle.USER_ALL)
                 ? sUserManager.getUserIds() : new int[]{userId};
         for (int nextUserId : userIds) {
@@ -2620,6 +2645,8 @@ public class PackageManagerService extends IPackageManager.Stub
             }
 
             mCacheDir = preparePackageParserCache(mIsUpgrade);
+            // Share read buffers and strings across cached packages while scanning at boot
+            PackageParser.setCacheSharingEnabled(mCacheDir != null);
 
             // Set flag to monitor and not change apk file paths when
             // scanning install directories.
@@ -2933,6 +2960,7 @@ public class PackageManagerService extends IPackageManager.Stub
             mPackageUsage.read(mPackages);
             mCompilerStats.read();
 
+            PackageParser.setCacheSharingEnabled(false);
             EventLog.writeEvent(EventLogTags.BOOT_PROGRESS_PMS_SCAN_END,
                     SystemClock.uptimeMillis());
             Slog.i(TAG, "Time to scan packages: "
@@ -5388,6 +5416,21 @@ public class PackageManagerService extends IPackageManager.Stub
         }
         final int callingUid = Binder.getCallingUid();
 
+        if (!isInstantAppWithoutLock(callingUid)) {
+            final PackageParser.Package p = mPackagesForPermissionChecks.get(pkgName);
+            if (p == null || p.mExtras == null) {
+                return PackageManager.PERMISSION_DENIED;
+            }
+            final PackageSetting ps = (PackageSetting) p.mExtras;
+            if (!ps.getInstantAppWithoutLock(userId)) {
+                final int result = checkPermissionWithoutLock(ps.getPermissionsState(),
+                        permName, userId);
+                if (result != PermissionsState.PERMISSION_CHECK_NEEDS_LOCK) {
+                    return result;
+                }
+            }
+        }
+
         synchronized (mPackages) {
             final PackageParser.Package p = mPackages.get(pkgName);
             if (p != null && p.mExtras != null) {
@@ -5422,13 +5465,31 @@ public class PackageManagerService extends IPackageManager.Stub
     public int checkUidPermission(String permName, int uid) {
         final int callingUid = Binder.getCallingUid();
         final int callingUserId = UserHandle.getUserId(callingUid);
-        final boolean isCallerInstantApp = getInstantAppPackageName(callingUid) != null;
-        final boolean isUidInstantApp = getInstantAppPackageName(uid) != null;
         final int userId = UserHandle.getUserId(uid);
         if (!sUserManager.exists(userId)) {
             return PackageManager.PERMISSION_DENIED;
         }
 
+        if (!isInstantAppWithoutLock(callingUid) && !isInstantAppWithoutLock(uid)) {
+            final Object obj = mSettings.getUserIdWithoutLock(UserHandle.getAppId(uid));
+            if (obj == null) {
+                // Not an app, the system permissions never change after boot.
+                return checkSystemPermission(permName, uid);
+            }
+            // The caller is only filtered out if the target is an instant app for it.
+            if (!(obj instanceof PackageSetting)
+                    || !((PackageSetting) obj).getInstantAppWithoutLock(callingUserId)) {
+                final int result = checkPermissionWithoutLock(
+                        ((SettingBase) obj).getPermissionsState(), permName, userId);
+                if (result != PermissionsState.PERMISSION_CHECK_NEEDS_LOCK) {
+                    return result;
+                }
+            }
+        }
+
+        final boolean isCallerInstantApp = getInstantAppPackageName(callingUid) != null;
+        final boolean isUidInstantApp = getInstantAppPackageName(uid) != null;
+
         synchronized (mPackages) {
             Object obj = mSettings.getUserIdLPr(UserHandle.getAppId(uid));
             if (obj != null) {
@@ -5460,22 +5521,66 @@ public class PackageManagerService extends IPackageManager.Stub
                     return PackageManager.PERMISSION_GRANTED;
                 }
             } else {
-                ArraySet<String> perms = mSystemPermissions.get(uid);
-                if (perms != null) {
-                    if (perms.contains(permName)) {
-                        return PackageManager.PERMISSION_GRANTED;
-                    }
-                    if (Manifest.permission.ACCESS_COARSE_LOCATION.equals(permName) && perms
-                            .contains(Manifest.permission.ACCESS_FINE_LOCATION)) {
-                        return PackageManager.PERMISSION_GRANTED;
-                    }
-                }
+                return checkSystemPermission(permName, uid);
             }
         }
 
         return PackageManager.PERMISSION_DENIED;
     }
 
+    private int checkSystemPermission(String permName, int uid) {
+        ArraySet<String> perms = mSystemPermissions.get(uid);
+        if (perms != null) {
+            if (perms.contains(permName)) {
+                return PackageManager.PERMISSION_GRANTED;
+            }
+            if (Manifest.permission.ACCESS_COARSE_LOCATION.equals(permName) && perms
+                    .contains(Manifest.permission.ACCESS_FINE_LOCATION)) {
+                return PackageManager.PERMISSION_GRANTED;
+            }
+        }
+        return PackageManager.PERMISSION_DENIED;
+    }
+
+    /**
+     * Whether {@code uid} is an instant app, for callers not holding mPackages. Isolated uids
+     * are reported as instant apps, as their owner is only known with mPackages held.
+     */
+    private boolean isInstantAppWithoutLock(int uid) {
+        if (Process.isIsolated(uid)) {
+            return true;
+        }
+        final Object obj = mSettings.getUserIdWithoutLock(UserHandle.getAppId(uid));
+        return obj instanceof PackageSetting
+                && ((PackageSetting) obj).getInstantAppWithoutLock(UserHandle.getUserId(uid));
+    }
+
+    /**
+     * Checks a permission of an app without holding mPackages. Only valid when neither the
+     * caller nor the app are instant apps, as permissions of instant apps depend on the
+     * permission definitions.
+     *
+     * @return the result of the check, or {@link PermissionsState#PERMISSION_CHECK_NEEDS_LOCK}.
+     */
+    private static int checkPermissionWithoutLock(PermissionsState permissionsState,
+            String permName, int userId) {
+        int result = permissionsState.checkPermissionWithoutLock(permName, userId);
+        // Special case: ACCESS_FINE_LOCATION permission includes ACCESS_COARSE_LOCATION
+        if (result == PermissionsState.PERMISSION_CHECK_DENIED
+                && Manifest.permission.ACCESS_COARSE_LOCATION.equals(permName)) {
+            result = permissionsState.checkPermissionWithoutLock(
+                    Manifest.permission.ACCESS_FINE_LOCATION, userId);
+        }
+        switch (result) {
+            case PermissionsState.PERMISSION_CHECK_GRANTED:
+                return PackageManager.PERMISSION_GRANTED;
+            case PermissionsState.PERMISSION_CHECK_DENIED:
+                return PackageManager.PERMISSION_DENIED;
+            default:
+                return PermissionsState.PERMISSION_CHECK_NEEDS_LOCK;
+        }
+    }
+
     @Override
     public boolean isPermissionRevokedByPolicy(String permission, String packageName, int userId) {
         if (UserHandle.getCallingUserId() != userId) {
@@ -7482,8 +7587,16 @@ public class PackageManagerService extends IPackageManager.Stub
                 }
 
                 // Check for results in the current profile.
-                result = filterIfNotSystemUser(mActivities.queryIntent(
-                        intent, resolvedType, flags, userId), userId);
+                final int settingsGeneration = mSettings.getStateGeneration();
+                List<ResolveInfo> currentProfileResult = mResolveIntentCache.get(
+                        intent, resolvedType, flags, userId, settingsGeneration);
+                if (currentProfileResult == null) {
+                    currentProfileResult = mActivities.queryIntent(
+                            intent, resolvedType, flags, userId);
+                    mResolveIntentCache.put(intent, resolvedType, flags, userId,
+                            settingsGeneration, currentProfileResult);
+                }
+                result = filterIfNotSystemUser(currentProfileResult, userId);
                 addEphemeral = !ephemeralDisabled
                         && isInstantAppAllowed(intent, result, userId, false /*skipPackageCheck*/);
                 // Check for cross profile results.
@@ -9243,8 +9356,8 @@ public class PackageManagerService extends IPackageManager.Stub
                 mSeparateProcesses, mOnlyCore, mMetrics, mCacheDir,
                 mParallelPackageParserCallback);
 
-        // Submit files for parsing in parallel
-        int fileCount = 0;
+        // Submit files for parsing in parallel, largest first to avoid a long tail
+        final ArrayList<File> packageFiles = new ArrayList<>(files.length);
         for (File file : files) {
             final boolean isPackage = (isApkFile(file) || file.isDirectory())
                     && !PackageHelper.isStageName(file.getName());
@@ -9252,6 +9365,11 @@ public class PackageManagerService extends IPackageManager.Stub
                 // Ignore entries which are not packages
                 continue;
             }
+            packageFiles.add(file);
+        }
+        ParallelPackageParser.sortLargestFirst(packageFiles);
+        int fileCount = 0;
+        for (File file : packageFiles) {
             parallelPackageParser.submit(file, parseFlags);
             fileCount++;
         }
@@ -9294,6 +9412,10 @@ public class PackageManagerService extends IPackageManager.Stub
                 removeCodePathLI(parseResult.scanFile);
             }
         }
+        if (DEBUG_PACKAGE_SCANNING || !mSystemReady) {
+            Slog.i(TAG, "Scanned app dir " + dir + ": "
+                    + parallelPackageParser.getTimingsSummary());
+        }
         parallelPackageParser.close();
     }
 
@@ -9608,6 +9730,7 @@ public class PackageManagerService extends IPackageManager.Stub
                     synchronized (mPackages) {
                         // Just remove the loaded entries from package lists.
                         mPackages.remove(ps.name);
+                        mPackagesForPermissionChecks.remove(ps.name);
                     }
 
                     logCriticalInfo(Log.WARN, "Package " + ps.name + " at " + scanFile
@@ -10233,6 +10356,28 @@ public class PackageManagerService extends IPackageManager.Stub
         return pkgs;
     }
 
+    /**
+     * Returns the names of the packages in {@code packageNames} that are still installed,
+     * most recently used first.
+     */
+    public List<String> sortPackageNamesByUsageDate(Collection<String> packageNames) {
+        final ArrayList<PackageParser.Package> pkgs = new ArrayList<>(packageNames.size());
+        synchronized (mPackages) {
+            for (String packageName : packageNames) {
+                final PackageParser.Package p = mPackages.get(packageName);
+                if (p != null) {
+                    pkgs.add(p);
+                }
+            }
+        }
+        PackageManagerServiceUtils.sortPackagesByUsageDate(pkgs, this);
+        final ArrayList<String> sorted = new ArrayList<>(pkgs.size());
+        for (int i = 0; i < pkgs.size(); i++) {
+            sorted.add(pkgs.get(i).packageName);
+        }
+        return sorted;
+    }
+
     private int performDexOptInternalWithDependenciesLI(PackageParser.Package p,
             DexoptOptions options) {
         // Select the dex optimizer based on the force parameter.
@@ -11913,6 +12058,7 @@ public class PackageManagerService extends IPackageManager.Stub
             mSettings.insertPackageSettingLPw(pkgSetting, pkg);
             // Add the new setting to mPackages
             mPackages.put(pkg.applicationInfo.packageName, pkg);
+            mPackagesForPermissionChecks.put(pkg.applicationInfo.packageName, pkg);
             // Make sure we don't accidentally delete its data.
             final Iterator<PackageCleanItem> iter = mSettings.mPackagesToBeCleaned.iterator();
             while (iter.hasNext()) {
@@ -12801,6 +12947,7 @@ public class PackageManagerService extends IPackageManager.Stub
         // writer
         synchronized (mPackages) {
             mPackages.remove(ps.name);
+            mPackagesForPermissionChecks.remove(ps.name);
             final PackageParser.Package pkg = ps.pkg;
             if (pkg != null) {
                 cleanPackageDataStructuresLILPw(pkg, chatty);
@@ -12818,6 +12965,7 @@ public class PackageManagerService extends IPackageManager.Stub
         synchronized (mPackages) {
             // Remove the parent package
             mPackages.remove(pkg.applicationInfo.packageName);
+            mPackagesForPermissionChecks.remove(pkg.applicationInfo.packageName);
             cleanPackageDataStructuresLILPw(pkg, chatty);
 
             // Remove the child packages
@@ -12825,6 +12973,7 @@ public class PackageManagerService extends IPackageManager.Stub
             for (int i = 0; i < childCount; i++) {
                 PackageParser.Package childPkg = pkg.childPackages.get(i);
                 mPackages.remove(childPkg.applicationInfo.packageName);
+                mPackagesForPermissionChecks.remove(childPkg.applicationInfo.packageName);
                 cleanPackageDataStructuresLILPw(childPkg, chatty);
             }
         }
@@ -14021,6 +14170,7 @@ public class PackageManagerService extends IPackageManager.Stub
         }
 
         public final void addActivity(PackageParser.Activity a, String type) {
+            invalidatePackageStateCachesLocked();
             mActivities.put(a.getComponentName(), a);
             if (DEBUG_SHOW_INFO)
                 Log.v(
@@ -14050,6 +14200,7 @@ public class PackageManagerService extends IPackageManager.Stub
         }
 
         public final void removeActivity(PackageParser.Activity a, String type) {
+            invalidatePackageStateCachesLocked();
             mActivities.remove(a.getComponentName());
             if (DEBUG_SHOW_INFO) {
                 Log.v(TAG, "  " + type + " "
@@ -22098,6 +22249,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
         synchronized (mPackages) {
             final PackageSetting pkgSetting = mSettings.mPackages.get(packageName);
             if (pkgSetting != null) {
+                invalidatePackageStateCachesLocked();
                 pkgSetting.setUpdateAvailable(updateAvailable);
             }
         }
@@ -22333,6 +22485,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
             }
             synchronized (mPackages) {
                 pkgSetting.setEnabled(newState, userId, callingPackage);
+                invalidatePackageStateCachesLocked();
             }
         } else {
             synchronized (mPackages) {
@@ -22370,6 +22523,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                         Slog.e(TAG, "Invalid new component state: " + newState);
                         return;
                 }
+                invalidatePackageStateCachesLocked();
             }
         }
         synchronized (mPackages) {
@@ -22509,12 +22663,24 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
         int callingUid = Binder.getCallingUid();
         enforceCrossUserPermission(callingUid, userId,
                 false /* requireFullPermission */, false /* checkShell */, "get enabled");
+        final int settingsGeneration = mSettings.getStateGeneration();
+        final int cachedState = mComponentEnabledStateCache.get(
+                callingUid, packageName, null, userId, settingsGeneration);
+        if (cachedState != ComponentEnabledStateCache.UNKNOWN) {
+            return cachedState;
+        }
         // reader
         synchronized (mPackages) {
-            if (filterAppAccessLPr(mSettings.getPackageLPr(packageName), callingUid, userId)) {
+            final PackageSetting ps = mSettings.getPackageLPr(packageName);
+            if (filterAppAccessLPr(ps, callingUid, userId)) {
                 return COMPONENT_ENABLED_STATE_DISABLED;
             }
-            return mSettings.getApplicationEnabledSettingLPr(packageName, userId);
+            final int state = mSettings.getApplicationEnabledSettingLPr(packageName, userId);
+            if (isEnabledStateCacheableLPr(ps, callingUid, userId)) {
+                mComponentEnabledStateCache.put(
+                        callingUid, packageName, null, userId, settingsGeneration, state);
+            }
+            return state;
         }
     }
 
@@ -22524,15 +22690,39 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
         int callingUid = Binder.getCallingUid();
         enforceCrossUserPermission(callingUid, userId,
                 false /*requireFullPermission*/, false /*checkShell*/, "getComponentEnabled");
+        final int settingsGeneration = mSettings.getStateGeneration();
+        final int cachedState = mComponentEnabledStateCache.get(callingUid,
+                component.getPackageName(), component.getClassName(), userId,
+                settingsGeneration);
+        if (cachedState != ComponentEnabledStateCache.UNKNOWN) {
+            return cachedState;
+        }
         synchronized (mPackages) {
-            if (filterAppAccessLPr(mSettings.getPackageLPr(component.getPackageName()), callingUid,
-                    component, TYPE_UNKNOWN, userId)) {
+            final PackageSetting ps = mSettings.getPackageLPr(component.getPackageName());
+            if (filterAppAccessLPr(ps, callingUid, component, TYPE_UNKNOWN, userId)) {
                 return COMPONENT_ENABLED_STATE_DISABLED;
             }
-            return mSettings.getComponentEnabledSettingLPr(component, userId);
+            final int state = mSettings.getComponentEnabledSettingLPr(component, userId);
+            if (isEnabledStateCacheableLPr(ps, callingUid, userId)) {
+                mComponentEnabledStateCache.put(callingUid, component.getPackageName(),
+                        component.getClassName(), userId, settingsGeneration, state);
+            }
+            return state;
         }
     }
 
+    /**
+     * Returns whether the enabled state of {@code ps} as seen by {@code callingUid} only
+     * depends on the state of {@code ps}, so it can be served from
+     * {@link #mComponentEnabledStateCache}.
+     */
+    private boolean isEnabledStateCacheableLPr(PackageSetting ps, int callingUid, int userId) {
+        return ps != null
+                && !Process.isIsolated(callingUid)
+                && !ps.getInstantApp(userId)
+                && getInstantAppPackageName(callingUid) == null;
+    }
+
     @Override
     public void enterSafeMode() {
         enforceSystemOrRoot("Only the system can request entering safe mode");
@@ -22741,6 +22931,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
         public static final int DUMP_COMPILER_STATS = 1 << 21;
         public static final int DUMP_CHANGES = 1 << 22;
         public static final int DUMP_VOLUMES = 1 << 23;
+        public static final int DUMP_RESOLVE_CACHE = 1 << 24;
 
         public static final int OPTION_SHOW_FILTERS = 1 << 0;
 
@@ -22852,6 +23043,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                 pw.println("    check-permission <permission> <package> [<user>]: does pkg hold perm?");
                 pw.println("    dexopt: dump dexopt state");
                 pw.println("    compiler-stats: dump compiler statistics");
+                pw.println("    resolve-cache: dump intent resolution and enabled state cache statistics");
                 pw.println("    enabled-overlays: dump list of enabled overlay packages");
                 pw.println("    <package.name>: info about given package");
                 return;
@@ -22986,6 +23178,8 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                 dumpState.setDump(DumpState.DUMP_DEXOPT);
             } else if ("compiler-stats".equals(cmd)) {
                 dumpState.setDump(DumpState.DUMP_COMPILER_STATS);
+            } else if ("resolve-cache".equals(cmd)) {
+                dumpState.setDump(DumpState.DUMP_RESOLVE_CACHE);
             } else if ("changes".equals(cmd)) {
                 dumpState.setDump(DumpState.DUMP_CHANGES);
             } else if ("write".equals(cmd)) {
@@ -23366,6 +23560,16 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                 ipw.decreaseIndent();
             }
 
+            if (!checkin && dumpState.isDumping(DumpState.DUMP_RESOLVE_CACHE)
+                    && packageName == null) {
+                if (dumpState.onTitlePrinted()) pw.println();
+
+                final IndentingPrintWriter ipw = new IndentingPrintWriter(pw, "  ", 120);
+                ipw.println();
+                mResolveIntentCache.dump(ipw);
+                mComponentEnabledStateCache.dump(ipw);
+            }
+
             if (!checkin && dumpState.isDumping(DumpState.DUMP_VOLUMES) && packageName == null) {
                 if (dumpState.onTitlePrinted()) pw.println();
 
@@ -25018,6 +25222,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
         synchronized (mPackages) {
             mDirtyUsers.remove(userHandle);
             mUserNeedsBadging.delete(userHandle);
+            invalidatePackageStateCachesLocked();
             mSettings.removeUserLPw(userHandle);
             mPendingBroadcasts.remove(userHandle);
             mInstantAppRegistry.onUserRemovedLPw(userHandle);
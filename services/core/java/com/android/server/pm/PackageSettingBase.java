@@ -31,6 +31,7 @@ import android.util.SparseArray;
 import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.ArrayUtils;
 import com.google.android.collect.Lists;
 
 import java.io.File;
@@ -39,6 +40,8 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 
+import libcore.util.EmptyArray;
+
 /**
  * Settings base class for pending and resolved classes.
  */
@@ -122,6 +125,12 @@ abstract class PackageSettingBase extends SettingBase {
     // started until explicitly launched by the user.
     private final SparseArray<PackageUserState> userState = new SparseArray<PackageUserState>();
 
+    /**
+     * Users for which this is an instant app, mirroring {@link PackageUserState#instantApp} so
+     * that it can be read without holding the package lock.
+     */
+    private volatile int[] mInstantAppUserIds = EmptyArray.INT;
+
     int installStatus = PKG_INSTALL_COMPLETE;
 
     /**
@@ -269,6 +278,7 @@ abstract class PackageSettingBase extends SettingBase {
         for (int i=0; i<orig.userState.size(); i++) {
             userState.put(orig.userState.keyAt(i), orig.userState.valueAt(i));
         }
+        updateInstantAppUserIds();
         verificationInfo = orig.verificationInfo;
         versionCode = orig.versionCode;
         volumeUuid = orig.volumeUuid;
@@ -418,6 +428,24 @@ abstract class PackageSettingBase extends SettingBase {
 
     void setInstantApp(boolean instantApp, int userId) {
         modifyUserState(userId).instantApp = instantApp;
+        updateInstantAppUserIds();
+    }
+
+    /**
+     * Same as {@link #getInstantApp}, for callers not holding the package lock.
+     */
+    boolean getInstantAppWithoutLock(int userId) {
+        return ArrayUtils.contains(mInstantAppUserIds, userId);
+    }
+
+    private void updateInstantAppUserIds() {
+        int[] userIds = EmptyArray.INT;
+        for (int i = 0; i < userState.size(); i++) {
+            if (userState.valueAt(i).instantApp) {
+                userIds = ArrayUtils.appendInt(userIds, userState.keyAt(i));
+            }
+        }
+        mInstantAppUserIds = userIds;
     }
 
     boolean getVirtulalPreload(int userId) {
@@ -449,6 +477,7 @@ abstract class PackageSettingBase extends SettingBase {
         state.installReason = installReason;
         state.instantApp = instantApp;
         state.virtualPreload = virtualPreload;
+        updateInstantAppUserIds();
     }
 
     ArraySet<String> getEnabledComponents(int userId) {
@@ -535,6 +564,7 @@ abstract class PackageSettingBase extends SettingBase {
 
     void removeUser(int userId) {
         userState.delete(userId);
+        updateInstantAppUserIds();
     }
 
     public int[] getNotInstalledUserIds() {
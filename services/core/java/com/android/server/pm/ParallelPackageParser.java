@@ -18,6 +18,7 @@ package com.android.server.pm;
 
 import android.content.pm.PackageParser;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.Trace;
 import android.util.DisplayMetrics;
 
@@ -25,22 +26,30 @@ import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ConcurrentUtils;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static android.os.Trace.TRACE_TAG_PACKAGE_MANAGER;
 
 /**
  * Helper class for parallel parsing of packages using {@link PackageParser}.
- * <p>Parsing requests are processed by a thread-pool of {@link #MAX_THREADS}.
- * At any time, at most {@link #QUEUE_CAPACITY} results are kept in RAM</p>
+ * <p>Parsing requests are processed by a thread-pool of {@link #MAX_THREADS}, which is sized
+ * to the number of available cores. At any time, at most {@link #QUEUE_CAPACITY} results are
+ * kept in RAM</p>
  */
 class ParallelPackageParser implements AutoCloseable {
 
-    private static final int QUEUE_CAPACITY = 10;
-    private static final int MAX_THREADS = 4;
+    private static final int MIN_THREADS = 4;
+    private static final int MAX_THREADS = Math.max(MIN_THREADS,
+            Math.min(Runtime.getRuntime().availableProcessors(), 8));
+    // Allow parsing to run ahead of the consumer so that scanPackageLI overlaps with parsing
+    private static final int QUEUE_CAPACITY = MAX_THREADS * 4;
 
     private final String[] mSeparateProcesses;
     private final boolean mOnlyCore;
@@ -49,6 +58,12 @@ class ParallelPackageParser implements AutoCloseable {
     private final PackageParser.Callback mPackageParserCallback;
     private volatile String mInterruptedInThread;
 
+    // Per-phase timings, exposed for boot-time logging
+    private final long mStartTime = SystemClock.uptimeMillis();
+    private final AtomicLong mParseTimeNanos = new AtomicLong();
+    private final AtomicInteger mParsedCount = new AtomicInteger();
+    private long mTakeWaitNanos;
+
     private final BlockingQueue<ParseResult> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
 
     private final ExecutorService mService = ConcurrentUtils.newFixedThreadPool(MAX_THREADS,
@@ -89,7 +104,10 @@ class ParallelPackageParser implements AutoCloseable {
             if (mInterruptedInThread != null) {
                 throw new InterruptedException("Interrupted in " + mInterruptedInThread);
             }
-            return mQueue.take();
+            final long start = System.nanoTime();
+            final ParseResult result = mQueue.take();
+            mTakeWaitNanos += System.nanoTime() - start;
+            return result;
         } catch (InterruptedException e) {
             // We cannot recover from interrupt here
             Thread.currentThread().interrupt();
@@ -105,6 +123,7 @@ class ParallelPackageParser implements AutoCloseable {
     public void submit(File scanFile, int parseFlags) {
         mService.submit(() -> {
             ParseResult pr = new ParseResult();
+            final long start = System.nanoTime();
             Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "parallel parsePackage [" + scanFile + "]");
             try {
                 PackageParser pp = new PackageParser();
@@ -119,6 +138,8 @@ class ParallelPackageParser implements AutoCloseable {
                 pr.throwable = e;
             } finally {
                 Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
+                mParseTimeNanos.addAndGet(System.nanoTime() - start);
+                mParsedCount.incrementAndGet();
             }
             try {
                 mQueue.put(pr);
@@ -132,6 +153,63 @@ class ParallelPackageParser implements AutoCloseable {
         });
     }
 
+    /**
+     * Orders the given package files so that the largest ones are submitted first. Large
+     * packages dominate the parsing time, so starting them early avoids a long tail where a
+     * single thread is still busy while the others are idle.
+     * @param files package files or directories to sort in place
+     */
+    static void sortLargestFirst(List<File> files) {
+        final int count = files.size();
+        final List<SizedFile> sizes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final File file = files.get(i);
+            sizes.add(new SizedFile(file, estimateSize(file)));
+        }
+        Collections.sort(sizes, (a, b) -> Long.compare(b.size, a.size));
+        for (int i = 0; i < count; i++) {
+            files.set(i, sizes.get(i).file);
+        }
+    }
+
+    private static long estimateSize(File file) {
+        if (!file.isDirectory()) {
+            return file.length();
+        }
+        long size = 0;
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (PackageParser.isApkFile(child)) {
+                    size += child.length();
+                }
+            }
+        }
+        return size;
+    }
+
+    private static class SizedFile {
+        final File file;
+        final long size;
+
+        SizedFile(File file, long size) {
+            this.file = file;
+            this.size = size;
+        }
+    }
+
+    /**
+     * @return summary of the time spent in each phase, suitable for logging
+     */
+    String getTimingsSummary() {
+        final int parsed = mParsedCount.get();
+        return "threads: " + MAX_THREADS
+                + ", parsed: " + parsed
+                + ", wall: " + (SystemClock.uptimeMillis() - mStartTime) + " ms"
+                + ", parse (all threads): " + (mParseTimeNanos.get() / 1000000) + " ms"
+                + ", consumer wait: " + (mTakeWaitNanos / 1000000) + " ms";
+    }
+
     @VisibleForTesting
     protected PackageParser.Package parsePackage(PackageParser packageParser, File scanFile,
             int parseFlags) throws PackageParser.PackageParserException {
@@ -30,6 +30,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class encapsulates the permissions for a package or a shared user.
@@ -48,6 +49,12 @@ import java.util.Set;
  * user for a package or a shared user. The gids are computed as a set of
  * the gids for all granted permissions' gids on a per user basis.
  * </p>
+ * <p>
+ * Grants are mirrored in immutable per user bitsets indexed by interned
+ * permission ids, so that {@link #hasPermission} is allocation-free and
+ * {@link #checkPermissionWithoutLock} can be called without holding the lock
+ * guarding modifications.
+ * </p>
  */
 public final class PermissionsState {
 
@@ -60,10 +67,38 @@ public final class PermissionsState {
     /** The permission operation succeeded and gids changed. */
     public static final int PERMISSION_OPERATION_SUCCESS_GIDS_CHANGED = 1;
 
+    /** {@link #checkPermissionWithoutLock} result: the permission isn't granted. */
+    public static final int PERMISSION_CHECK_DENIED = 0;
+
+    /** {@link #checkPermissionWithoutLock} result: the permission is granted. */
+    public static final int PERMISSION_CHECK_GRANTED = 1;
+
+    /**
+     * {@link #checkPermissionWithoutLock} result: only {@link #hasPermission} can tell. Distinct
+     * from the {@link android.content.pm.PackageManager} check results too.
+     */
+    public static final int PERMISSION_CHECK_NEEDS_LOCK = 2;
+
     private static final int[] NO_GIDS = {};
 
+    /**
+     * Maximum number of interned permission names. Apps can define permissions, including
+     * dynamic ones at runtime, so the table is bounded; names granted once it is full are
+     * only tracked in {@link #mPermissions}.
+     */
+    private static final int MAX_PERMISSION_IDS = 4096;
+
+    /**
+     * Ids of permission names granted while there was room, shared by all instances. Ids are
+     * never reassigned: bitsets of any instance may still refer to them.
+     */
+    private static final ConcurrentHashMap<String, Integer> sPermissionIds =
+            new ConcurrentHashMap<>();
+
     private ArrayMap<String, PermissionData> mPermissions;
 
+    private volatile GrantedPermissions mGrantedPermissions = GrantedPermissions.EMPTY;
+
     private int[] mGlobalGids = NO_GIDS;
 
     private SparseBooleanArray mPermissionReviewRequired;
@@ -114,6 +149,7 @@ public final class PermissionsState {
                 mPermissions.put(name, new PermissionData(permissionData));
             }
         }
+        mGrantedPermissions = other.mGrantedPermissions;
 
         mGlobalGids = NO_GIDS;
         if (other.mGlobalGids != NO_GIDS) {
@@ -266,12 +302,49 @@ public final class PermissionsState {
     public boolean hasPermission(String name, int userId) {
         enforceValidUserId(userId);
 
-        if (mPermissions == null) {
-            return false;
+        final Integer permissionId = sPermissionIds.get(name);
+        if (permissionId == null) {
+            // Not interned, only known to the map
+            if (mPermissions == null) {
+                return false;
+            }
+            PermissionData permissionData = mPermissions.get(name);
+            return permissionData != null && permissionData.isGranted(userId);
         }
 
-        PermissionData permissionData = mPermissions.get(name);
-        return permissionData != null && permissionData.isGranted(userId);
+        return isGranted(permissionId, userId);
+    }
+
+    private boolean isGranted(int permissionId, int userId) {
+        // Install permissions are granted to all users, runtime ones to specific users
+        final GrantedPermissions grantedPermissions = mGrantedPermissions;
+        return grantedPermissions.isGranted(permissionId, UserHandle.USER_ALL)
+                || (userId != UserHandle.USER_ALL
+                        && grantedPermissions.isGranted(permissionId, userId));
+    }
+
+    /**
+     * Same as {@link #hasPermission}, but safe to call without holding the lock guarding
+     * modifications.
+     *
+     * @param name The permission name.
+     * @param userId The device user id.
+     * @return {@link #PERMISSION_CHECK_GRANTED} or {@link #PERMISSION_CHECK_DENIED}, or
+     *     {@link #PERMISSION_CHECK_NEEDS_LOCK} for permissions that aren't interned.
+     */
+    public int checkPermissionWithoutLock(String name, int userId) {
+        enforceValidUserId(userId);
+
+        final Integer permissionId = sPermissionIds.get(name);
+        if (permissionId == null) {
+            // Granted permissions are interned while there is room, and the table never
+            // shrinks: while it isn't full, this one can't have been granted.
+            return sPermissionIds.size() < MAX_PERMISSION_IDS
+                    ? PERMISSION_CHECK_DENIED : PERMISSION_CHECK_NEEDS_LOCK;
+        }
+
+        return isGranted(permissionId, userId)
+                ? PERMISSION_CHECK_GRANTED : PERMISSION_CHECK_DENIED;
     }
 
     /**
@@ -520,6 +593,7 @@ public final class PermissionsState {
     public void reset() {
         mGlobalGids = NO_GIDS;
         mPermissions = null;
+        mGrantedPermissions = GrantedPermissions.EMPTY;
         mPermissionReviewRequired = null;
     }
 
@@ -569,6 +643,7 @@ public final class PermissionsState {
         if (!permissionData.grant(userId)) {
             return PERMISSION_OPERATION_FAILURE;
         }
+        setGranted(permission.name, userId, true);
 
         if (hasGids) {
             final int[] newGids = computeGids(userId);
@@ -593,6 +668,7 @@ public final class PermissionsState {
         if (!permissionData.revoke(userId)) {
             return PERMISSION_OPERATION_FAILURE;
         }
+        setGranted(permission.name, userId, false);
 
         if (permissionData.isDefault()) {
             ensureNoPermissionData(permission.name);
@@ -608,6 +684,35 @@ public final class PermissionsState {
         return PERMISSION_OPERATION_SUCCESS;
     }
 
+    private void setGranted(String name, int userId, boolean granted) {
+        final int permissionId = getOrCreatePermissionId(name);
+        if (permissionId >= 0) {
+            mGrantedPermissions = mGrantedPermissions.withGranted(permissionId, userId, granted);
+        }
+    }
+
+    /**
+     * @return the id of the permission, or -1 if it isn't interned and there is no room left.
+     */
+    private static int getOrCreatePermissionId(String name) {
+        Integer permissionId = sPermissionIds.get(name);
+        if (permissionId != null) {
+            return permissionId;
+        }
+        synchronized (sPermissionIds) {
+            permissionId = sPermissionIds.get(name);
+            if (permissionId == null) {
+                final int size = sPermissionIds.size();
+                if (size >= MAX_PERMISSION_IDS) {
+                    return -1;
+                }
+                permissionId = size;
+                sPermissionIds.put(name, permissionId);
+            }
+            return permissionId;
+        }
+    }
+
     // TODO: fix this to use arraycopy and append all ints in one go
     private static int[] appendInts(int[] current, int[] added) {
         if (current != null && added != null) {
@@ -779,6 +884,47 @@ public final class PermissionsState {
         }
     }
 
+    /**
+     * Immutable set of granted permission ids per user, {@link UserHandle#USER_ALL}
+     * holding the install permissions. Modifications return a new instance sharing
+     * the bitsets of the users that didn't change.
+     */
+    private static final class GrantedPermissions {
+        static final GrantedPermissions EMPTY = new GrantedPermissions(new SparseArray<>());
+
+        private final SparseArray<long[]> mUserBits;
+
+        private GrantedPermissions(SparseArray<long[]> userBits) {
+            mUserBits = userBits;
+        }
+
+        boolean isGranted(int permissionId, int userId) {
+            final long[] bits = mUserBits.get(userId);
+            final int index = permissionId >>> 6;
+            return bits != null && index < bits.length
+                    && (bits[index] & (1L << permissionId)) != 0;
+        }
+
+        GrantedPermissions withGranted(int permissionId, int userId, boolean granted) {
+            if (isGranted(permissionId, userId) == granted) {
+                return this;
+            }
+            final long[] bits = mUserBits.get(userId);
+            final int index = permissionId >>> 6;
+            final long[] newBits = bits != null
+                    ? Arrays.copyOf(bits, Math.max(bits.length, index + 1))
+                    : new long[index + 1];
+            if (granted) {
+                newBits[index] |= 1L << permissionId;
+            } else {
+                newBits[index] &= ~(1L << permissionId);
+            }
+            final SparseArray<long[]> newUserBits = mUserBits.clone();
+            newUserBits.put(userId, newBits);
+            return new GrantedPermissions(newUserBits);
+        }
+    }
+
     public static final class PermissionState {
         private final String mName;
         private boolean mGranted;
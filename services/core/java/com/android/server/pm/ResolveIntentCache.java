@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.pm;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+import android.util.ArraySet;
+import android.util.LruCache;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Cache of activity intent resolution results, keyed by the parts of the intent relevant to
+ * matching, the resolved type, the resolve flags and the user.
+ * <p>Results depend on the registered activities as well as on per-user package state
+ * (enabled, stopped, instant app, ...). Callers must {@link #invalidate} the cache whenever
+ * either changes; entries computed from an older {@link Settings} state generation are also
+ * dropped on lookup. All methods must be called with the package manager lock held.</p>
+ */
+final class ResolveIntentCache {
+
+    private static final int MAX_ENTRIES = 128;
+
+    private final LruCache<Key, List<ResolveInfo>> mCache = new LruCache<>(MAX_ENTRIES);
+
+    /** {@link Settings} state generation the cached entries were computed from. */
+    private int mSettingsGeneration;
+
+    private long mHits;
+    private long mMisses;
+    private long mInvalidations;
+
+    /**
+     * Returns a copy of the cached results for the given query, or {@code null} if the query
+     * isn't cached.
+     */
+    List<ResolveInfo> get(Intent intent, String resolvedType, int flags, int userId,
+            int settingsGeneration) {
+        if (!isCacheable(intent)) {
+            return null;
+        }
+        if (settingsGeneration != mSettingsGeneration) {
+            invalidate();
+            mSettingsGeneration = settingsGeneration;
+        }
+        final List<ResolveInfo> cached = mCache.get(new Key(intent, resolvedType, flags, userId));
+        if (cached == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return copyOf(cached);
+    }
+
+    /**
+     * Caches a copy of {@code results} for the given query.
+     */
+    void put(Intent intent, String resolvedType, int flags, int userId, int settingsGeneration,
+            List<ResolveInfo> results) {
+        if (results == null || !isCacheable(intent)
+                || settingsGeneration != mSettingsGeneration) {
+            return;
+        }
+        mCache.put(new Key(intent, resolvedType, flags, userId), copyOf(results));
+    }
+
+    /**
+     * Drops all cached results.
+     */
+    void invalidate() {
+        if (mCache.size() > 0) {
+            mCache.evictAll();
+            mInvalidations++;
+        }
+    }
+
+    void dump(IndentingPrintWriter pw) {
+        pw.println("Resolve intent cache:");
+        pw.increaseIndent();
+        pw.print("entries="); pw.print(mCache.size());
+        pw.print(" hits="); pw.print(mHits);
+        pw.print(" misses="); pw.print(mMisses);
+        pw.print(" invalidations="); pw.println(mInvalidations);
+        pw.decreaseIndent();
+    }
+
+    private static boolean isCacheable(Intent intent) {
+        // Resolution is logged for debugging, always resolve
+        return (intent.getFlags() & Intent.FLAG_DEBUG_LOG_RESOLUTION) == 0;
+    }
+
+    private static List<ResolveInfo> copyOf(List<ResolveInfo> results) {
+        final int count = results.size();
+        final ArrayList<ResolveInfo> copy = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final ResolveInfo orig = results.get(i);
+            final ResolveInfo ri = new ResolveInfo(orig);
+            ri.isDefault = orig.isDefault;
+            if (orig.activityInfo != null) {
+                ri.activityInfo = new ActivityInfo(orig.activityInfo);
+            }
+            copy.add(ri);
+        }
+        return copy;
+    }
+
+    private static final class Key {
+        private final String mAction;
+        private final Uri mData;
+        private final String mType;
+        private final String mPackage;
+        private final ComponentName mComponent;
+        private final ArraySet<String> mCategories;
+        private final boolean mExcludingStopped;
+        private final String mResolvedType;
+        private final int mFlags;
+        private final int mUserId;
+        private final int mHashCode;
+
+        Key(Intent intent, String resolvedType, int flags, int userId) {
+            mAction = intent.getAction();
+            mData = intent.getData();
+            mType = intent.getType();
+            mPackage = intent.getPackage();
+            mComponent = intent.getComponent();
+            final Set<String> categories = intent.getCategories();
+            mCategories = categories != null ? new ArraySet<>(categories) : null;
+            mExcludingStopped = intent.isExcludingStopped();
+            mResolvedType = resolvedType;
+            mFlags = flags;
+            mUserId = userId;
+            mHashCode = Objects.hash(mAction, mData, mType, mPackage, mComponent, mCategories,
+                    mExcludingStopped, mResolvedType, mFlags, mUserId);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return mFlags == other.mFlags
+                    && mUserId == other.mUserId
+                    && mExcludingStopped == other.mExcludingStopped
+                    && Objects.equals(mAction, other.mAction)
+                    && Objects.equals(mData, other.mData)
+                    && Objects.equals(mType, other.mType)
+                    && Objects.equals(mPackage, other.mPackage)
+                    && Objects.equals(mComponent, other.mComponent)
+                    && Objects.equals(mCategories, other.mCategories)
+                    && Objects.equals(mResolvedType, other.mResolvedType);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+}
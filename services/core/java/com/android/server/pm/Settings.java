@@ -101,6 +101,7 @@ import org.xmlpull.v1.XmlSerializer;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -263,6 +264,13 @@ final class Settings {
     /** The top level directory in configfs for sdcardfs to push the package->uid,userId mappings */
     private final File mKernelMappingFilename;
 
+    /**
+     * Incremented each time package state is persisted, which happens after every change to
+     * it. Allows caching values derived from package state, see {@link ResolveIntentCache}.
+     * Only written with the lock held, but may be read without it.
+     */
+    private volatile int mStateGeneration;
+
     /** Map from package name to settings */
     final ArrayMap<String, PackageSetting> mPackages = new ArrayMap<>();
 
@@ -373,6 +381,12 @@ final class Settings {
     private final SparseArray<Object> mOtherUserIds =
             new SparseArray<Object>();
 
+    /**
+     * Copy of {@link #mUserIds} and {@link #mOtherUserIds} keyed by uid, replaced whenever
+     * they change so that it can be read without holding the package lock.
+     */
+    private volatile SparseArray<Object> mUserIdsSnapshot = new SparseArray<>();
+
     // For reading/writing settings file.
     private final ArrayList<Signature> mPastSignatures =
             new ArrayList<Signature>();
@@ -1211,6 +1225,7 @@ final class Settings {
             }
             mOtherUserIds.put(uid, obj);
         }
+        publishUserIdLPw(uid, obj);
         return true;
     }
 
@@ -1224,6 +1239,23 @@ final class Settings {
         }
     }
 
+    /**
+     * Same as {@link #getUserIdLPr}, for callers not holding the package lock.
+     */
+    Object getUserIdWithoutLock(int uid) {
+        return mUserIdsSnapshot.get(uid);
+    }
+
+    private void publishUserIdLPw(int uid, Object obj) {
+        final SparseArray<Object> userIds = mUserIdsSnapshot.clone();
+        if (obj != null) {
+            userIds.put(uid, obj);
+        } else {
+            userIds.remove(uid);
+        }
+        mUserIdsSnapshot = userIds;
+    }
+
     private void removeUserIdLPw(int uid) {
         if (uid >= Process.FIRST_APPLICATION_UID) {
             final int N = mUserIds.size();
@@ -1232,6 +1264,7 @@ final class Settings {
         } else {
             mOtherUserIds.remove(uid);
         }
+        publishUserIdLPw(uid, null);
         setFirstAvailableUid(uid+1);
     }
 
@@ -1243,6 +1276,7 @@ final class Settings {
         } else {
             mOtherUserIds.put(uid, obj);
         }
+        publishUserIdLPw(uid, getUserIdLPr(uid));
     }
 
     PreferredIntentResolver editPreferredActivitiesLPw(int userId) {
@@ -2056,33 +2090,10 @@ final class Settings {
         if (DEBUG_MU) {
             Log.i(TAG, "Writing package restrictions for user=" + userId);
         }
-        // Keep the old stopped packages around until we know the new ones have
-        // been successfully written.
-        File userPackagesStateFile = getUserPackagesStateFile(userId);
-        File backupFile = getUserPackagesStateBackupFile(userId);
-        new File(userPackagesStateFile.getParent()).mkdirs();
-        if (userPackagesStateFile.exists()) {
-            // Presence of backup settings file indicates that we failed
-            // to persist packages earlier. So preserve the older
-            // backup for future reference since the current packages
-            // might have been corrupted.
-            if (!backupFile.exists()) {
-                if (!userPackagesStateFile.renameTo(backupFile)) {
-                    Slog.wtf(PackageManagerService.TAG,
-                            "Unable to backup user packages state file, "
-                            + "current changes will be lost at reboot");
-                    return;
-                }
-            } else {
-                userPackagesStateFile.delete();
-                Slog.w(PackageManagerService.TAG, "Preserving older stopped packages backup");
-            }
-        }
-
+        mStateGeneration++;
+        // Serialize to memory first, so that the file is left untouched when nothing changed.
+        final ByteArrayOutputStream str = new ByteArrayOutputStream();
         try {
-            final FileOutputStream fstr = new FileOutputStream(userPackagesStateFile);
-            final BufferedOutputStream str = new BufferedOutputStream(fstr);
-
             final XmlSerializer serializer = new FastXmlSerializer();
             serializer.setOutput(str, StandardCharsets.UTF_8.name());
             serializer.startDocument(null, true);
@@ -2172,10 +2183,48 @@ final class Settings {
             serializer.endTag(null, TAG_PACKAGE_RESTRICTIONS);
 
             serializer.endDocument();
+        } catch (java.io.IOException e) {
+            Slog.wtf(PackageManagerService.TAG,
+                    "Unable to write package manager user packages state, "
+                    + " current changes will be lost at reboot", e);
+            return;
+        }
+
+        final byte[] contents = str.toByteArray();
+        File userPackagesStateFile = getUserPackagesStateFile(userId);
+        File backupFile = getUserPackagesStateBackupFile(userId);
+        if (isUpToDate(userPackagesStateFile, backupFile, contents)) {
+            if (DEBUG_MU) {
+                Log.i(TAG, "Package restrictions unchanged for user=" + userId);
+            }
+            return;
+        }
+        new File(userPackagesStateFile.getParent()).mkdirs();
+        // Keep the old stopped packages around until we know the new ones have
+        // been successfully written.
+        if (userPackagesStateFile.exists()) {
+            // Presence of backup settings file indicates that we failed
+            // to persist packages earlier. So preserve the older
+            // backup for future reference since the current packages
+            // might have been corrupted.
+            if (!backupFile.exists()) {
+                if (!userPackagesStateFile.renameTo(backupFile)) {
+                    Slog.wtf(PackageManagerService.TAG,
+                            "Unable to backup user packages state file, "
+                            + "current changes will be lost at reboot");
+                    return;
+                }
+            } else {
+                userPackagesStateFile.delete();
+                Slog.w(PackageManagerService.TAG, "Preserving older stopped packages backup");
+            }
+        }
 
-            str.flush();
+        try {
+            final FileOutputStream fstr = new FileOutputStream(userPackagesStateFile);
+            fstr.write(contents);
             FileUtils.sync(fstr);
-            str.close();
+            fstr.close();
 
             // New settings successfully written, old ones are no longer
             // needed.
@@ -2437,32 +2486,13 @@ final class Settings {
     void writeLPr() {
         //Debug.startMethodTracing("/data/system/packageprof", 8 * 1024 * 1024);
 
-        // Keep the old settings around until we know the new ones have
-        // been successfully written.
-        if (mSettingsFilename.exists()) {
-            // Presence of backup settings file indicates that we failed
-            // to persist settings earlier. So preserve the older
-            // backup for future reference since the current settings
-            // might have been corrupted.
-            if (!mBackupSettingsFilename.exists()) {
-                if (!mSettingsFilename.renameTo(mBackupSettingsFilename)) {
-                    Slog.wtf(PackageManagerService.TAG,
-                            "Unable to backup package manager settings, "
-                            + " current changes will be lost at reboot");
-                    return;
-                }
-            } else {
-                mSettingsFilename.delete();
-                Slog.w(PackageManagerService.TAG, "Preserving older settings backup");
-            }
-        }
+        mStateGeneration++;
 
         mPastSignatures.clear();
 
+        // Serialize to memory first, so that the file is left untouched when nothing changed.
+        final ByteArrayOutputStream str = new ByteArrayOutputStream();
         try {
-            FileOutputStream fstr = new FileOutputStream(mSettingsFilename);
-            BufferedOutputStream str = new BufferedOutputStream(fstr);
-
             //XmlSerializer serializer = XmlUtils.serializerInstance();
             XmlSerializer serializer = new FastXmlSerializer();
             serializer.setOutput(str, StandardCharsets.UTF_8.name());
@@ -2569,18 +2599,52 @@ final class Settings {
             serializer.endTag(null, "packages");
 
             serializer.endDocument();
+        } catch (XmlPullParserException | java.io.IOException e) {
+            Slog.wtf(PackageManagerService.TAG, "Unable to write package manager settings, "
+                    + "current changes will be lost at reboot", e);
+            return;
+        }
 
-            str.flush();
-            FileUtils.sync(fstr);
-            str.close();
+        final byte[] contents = str.toByteArray();
+        final boolean upToDate = isUpToDate(mSettingsFilename, mBackupSettingsFilename,
+                contents);
+        if (!upToDate) {
+            // Keep the old settings around until we know the new ones have
+            // been successfully written.
+            if (mSettingsFilename.exists()) {
+                // Presence of backup settings file indicates that we failed
+                // to persist settings earlier. So preserve the older
+                // backup for future reference since the current settings
+                // might have been corrupted.
+                if (!mBackupSettingsFilename.exists()) {
+                    if (!mSettingsFilename.renameTo(mBackupSettingsFilename)) {
+                        Slog.wtf(PackageManagerService.TAG,
+                                "Unable to backup package manager settings, "
+                                + " current changes will be lost at reboot");
+                        return;
+                    }
+                } else {
+                    mSettingsFilename.delete();
+                    Slog.w(PackageManagerService.TAG, "Preserving older settings backup");
+                }
+            }
+        }
 
-            // New settings successfully written, old ones are no longer
-            // needed.
-            mBackupSettingsFilename.delete();
-            FileUtils.setPermissions(mSettingsFilename.toString(),
-                    FileUtils.S_IRUSR|FileUtils.S_IWUSR
-                    |FileUtils.S_IRGRP|FileUtils.S_IWGRP,
-                    -1, -1);
+        try {
+            if (!upToDate) {
+                FileOutputStream fstr = new FileOutputStream(mSettingsFilename);
+                fstr.write(contents);
+                FileUtils.sync(fstr);
+                fstr.close();
+
+                // New settings successfully written, old ones are no longer
+                // needed.
+                mBackupSettingsFilename.delete();
+                FileUtils.setPermissions(mSettingsFilename.toString(),
+                        FileUtils.S_IRUSR|FileUtils.S_IWUSR
+                        |FileUtils.S_IRGRP|FileUtils.S_IWGRP,
+                        -1, -1);
+            }
 
             writeKernelMappingLPr();
             writePackageListLPr();
@@ -2588,7 +2652,7 @@ final class Settings {
             writeAllRuntimePermissionsLPr();
             return;
 
-        } catch(XmlPullParserException | java.io.IOException e) {
+        } catch (java.io.IOException e) {
             Slog.wtf(PackageManagerService.TAG, "Unable to write package manager settings, "
                     + "current changes will be lost at reboot", e);
         }
@@ -2603,6 +2667,41 @@ final class Settings {
         //Debug.stopMethodTracing();
     }
 
+    int getStateGeneration() {
+        return mStateGeneration;
+    }
+
+    /**
+     * Returns whether {@code file} already holds {@code contents}, in which case it doesn't
+     * need to be rewritten. The file is read back rather than keeping a copy of it in memory;
+     * the read is much cheaper than the rewrite and sync it saves.
+     */
+    private static boolean isUpToDate(File file, File backupFile, byte[] contents) {
+        if (backupFile.exists() || file.length() != contents.length) {
+            return false;
+        }
+        final byte[] buffer = new byte[8192];
+        try (FileInputStream in = new FileInputStream(file)) {
+            int offset = 0;
+            while (offset < contents.length) {
+                final int read = in.read(buffer, 0,
+                        Math.min(buffer.length, contents.length - offset));
+                if (read <= 0) {
+                    return false;
+                }
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] != contents[offset + i]) {
+                        return false;
+                    }
+                }
+                offset += read;
+            }
+            return in.read() == -1;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
     private void writeKernelRemoveUserLPr(int userId) {
         if (mKernelMappingFilename == null) return;
 
@@ -4308,6 +4407,7 @@ final class Settings {
         for (int i = mFirstAvailableUid; i < N; i++) {
             if (mUserIds.get(i) == null) {
                 mUserIds.set(i, obj);
+                publishUserIdLPw(Process.FIRST_APPLICATION_UID + i, obj);
                 return Process.FIRST_APPLICATION_UID + i;
             }
         }
@@ -4318,6 +4418,7 @@ final class Settings {
         }
 
         mUserIds.add(obj);
+        publishUserIdLPw(Process.FIRST_APPLICATION_UID + N, obj);
         return Process.FIRST_APPLICATION_UID + N;
     }
 
@@ -485,7 +485,7 @@ class ShortcutPackage extends ShortcutPackageItem {
             return false;
         }
         mApiCallCount++;
-        s.scheduleSaveUser(getOwnerUserId());
+        s.scheduleSavePackage(getOwnerUserId(), getPackageName());
         return true;
     }
 
@@ -495,7 +495,7 @@ class ShortcutPackage extends ShortcutPackageItem {
         }
         if (mApiCallCount > 0) {
             mApiCallCount = 0;
-            mShortcutUser.mService.scheduleSaveUser(getOwnerUserId());
+            mShortcutUser.mService.scheduleSavePackage(getOwnerUserId(), getPackageName());
         }
     }
 
@@ -189,6 +189,12 @@ public class ShortcutService extends IShortcutService.Stub {
 
     static final String DIRECTORY_BITMAPS = "bitmaps";
 
+    /** Directory holding one file per publisher package, next to the per-user file. */
+    @VisibleForTesting
+    static final String DIRECTORY_PACKAGES = "packages";
+
+    private static final String PACKAGE_FILE_SUFFIX = ".xml";
+
     private static final String TAG_ROOT = "root";
     private static final String TAG_LAST_RESET_TIME = "last_reset_time";
 
@@ -323,6 +329,18 @@ public class ShortcutService extends IShortcutService.Stub {
     @GuardedBy("mLock")
     private List<Integer> mDirtyUserIds = new ArrayList<>();
 
+    /**
+     * User ID -> packages whose file needs to be rewritten on the next save of the user.
+     */
+    @GuardedBy("mLock")
+    private final SparseArray<ArraySet<String>> mDirtyPackages = new SparseArray<>();
+
+    /**
+     * Users whose package files all need to be rewritten on the next save.
+     */
+    @GuardedBy("mLock")
+    private final SparseBooleanArray mAllPackagesDirty = new SparseBooleanArray();
+
     private final AtomicBoolean mBootCompleted = new AtomicBoolean();
 
     private static final int PACKAGE_MATCH_FLAGS =
@@ -636,8 +654,11 @@ public class ShortcutService extends IShortcutService.Stub {
         // Save all dirty information.
         saveDirtyInfo();
 
-        // Unload
+        // Unload, packages that still couldn't be saved are lost.
         mUsers.delete(userId);
+        mDirtyUserIds.remove(Integer.valueOf(userId));
+        mAllPackagesDirty.delete(userId);
+        mDirtyPackages.remove(userId);
     }
 
     /** Return the base state file name */
@@ -933,6 +954,11 @@ public class ShortcutService extends IShortcutService.Stub {
         return new File(injectUserDataPath(userId), FILENAME_USER_PACKAGES);
     }
 
+    @VisibleForTesting
+    final File getUserPackagesDir(@UserIdInt int userId) {
+        return new File(injectUserDataPath(userId), DIRECTORY_PACKAGES);
+    }
+
     private void saveUserLocked(@UserIdInt int userId) {
         final File path = getUserFile(userId);
         if (DEBUG) {
@@ -941,6 +967,9 @@ public class ShortcutService extends IShortcutService.Stub {
 
         mShortcutBitmapSaver.waitForAllSavesLocked();
 
+        // Write the package files first, so that they are never older than the per-user file.
+        savePackagesLocked(userId);
+
         path.getParentFile().mkdirs();
         final AtomicFile file = new AtomicFile(path);
         FileOutputStream os = null;
@@ -959,6 +988,81 @@ public class ShortcutService extends IShortcutService.Stub {
         }
     }
 
+    /**
+     * Rewrites the files of the packages of the user that changed since the last save, and
+     * removes the files of packages that are gone. Packages whose file couldn't be written
+     * stay dirty, and are saved in the per-user file meanwhile.
+     */
+    private void savePackagesLocked(@UserIdInt int userId) {
+        final boolean allDirty = mAllPackagesDirty.get(userId);
+        final ArraySet<String> dirtyPackages = mDirtyPackages.get(userId);
+        if (!allDirty && dirtyPackages == null) {
+            return;
+        }
+
+        final ShortcutUser user = getUserShortcutsLocked(userId);
+        final File dir = getUserPackagesDir(userId);
+        dir.mkdirs();
+        final ArraySet<String> failedPackages = new ArraySet<>();
+        user.forAllPackages(p -> {
+            if (allDirty || dirtyPackages.contains(p.getPackageName())) {
+                final boolean saved = savePackageLocked(dir, p);
+                if (!saved) {
+                    failedPackages.add(p.getPackageName());
+                }
+                // Until its own file is written, the package is kept in the per-user file so
+                // that it's not lost.
+                user.setPackageSavedInline(p.getPackageName(), !saved);
+            }
+        });
+
+        // Only forget about the packages that were written, the others are retried on the
+        // next save.
+        if (failedPackages.isEmpty()) {
+            mAllPackagesDirty.delete(userId);
+            mDirtyPackages.remove(userId);
+        } else if (!allDirty) {
+            mDirtyPackages.put(userId, failedPackages);
+        }
+
+        if (allDirty) {
+            final File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    final String name = file.getName();
+                    if (name.endsWith(PACKAGE_FILE_SUFFIX) && !user.hasPackage(name.substring(
+                            0, name.length() - PACKAGE_FILE_SUFFIX.length()))) {
+                        new AtomicFile(file).delete();
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean savePackageLocked(File dir, ShortcutPackage p) {
+        final AtomicFile file = new AtomicFile(
+                new File(dir, p.getPackageName() + PACKAGE_FILE_SUFFIX));
+        FileOutputStream os = null;
+        try {
+            os = file.startWrite();
+
+            final BufferedOutputStream bos = new BufferedOutputStream(os);
+            XmlSerializer out = new FastXmlSerializer();
+            out.setOutput(bos, StandardCharsets.UTF_8.name());
+            out.startDocument(null, true);
+            p.saveToXml(out, /* forBackup= */ false);
+            out.endDocument();
+            bos.flush();
+
+            file.finishWrite(os);
+            return true;
+        } catch (XmlPullParserException | IOException e) {
+            Slog.e(TAG, "Failed to write to file " + file.getBaseFile(), e);
+            file.failWrite(os);
+            return false;
+        }
+    }
+
     private void saveUserInternalLocked(@UserIdInt int userId, OutputStream os,
             boolean forBackup) throws IOException, XmlPullParserException {
 
@@ -1002,15 +1106,62 @@ public class ShortcutService extends IShortcutService.Stub {
             }
             return null;
         }
+        final ShortcutUser ret;
         try {
-            final ShortcutUser ret = loadUserInternal(userId, in, /* forBackup= */ false);
-            return ret;
+            ret = loadUserInternal(userId, in, /* forBackup= */ false);
         } catch (IOException | XmlPullParserException | InvalidFileFormatException e) {
             Slog.e(TAG, "Failed to read file " + file.getBaseFile(), e);
             return null;
         } finally {
             IoUtils.closeQuietly(in);
         }
+        if (ret == null) {
+            return null;
+        }
+        if (ret.getPackageCount() > 0) {
+            // Packages saved in the per-user file by an older version, move them to their
+            // own files on the next save.
+            mAllPackagesDirty.put(userId, true);
+        }
+        loadPackagesLocked(ret);
+        return ret;
+    }
+
+    private void loadPackagesLocked(ShortcutUser user) {
+        final File[] files = getUserPackagesDir(user.getUserId()).listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File path : files) {
+            if (!path.getName().endsWith(PACKAGE_FILE_SUFFIX)) {
+                continue;
+            }
+            final AtomicFile file = new AtomicFile(path);
+            FileInputStream in = null;
+            try {
+                in = file.openRead();
+                final XmlPullParser parser = Xml.newPullParser();
+                parser.setInput(new BufferedInputStream(in), StandardCharsets.UTF_8.name());
+
+                int type;
+                while ((type = parser.next()) != XmlPullParser.END_DOCUMENT) {
+                    if (type != XmlPullParser.START_TAG) {
+                        continue;
+                    }
+                    final int depth = parser.getDepth();
+                    final String tag = parser.getName();
+                    if ((depth == 1) && ShortcutPackage.TAG_ROOT.equals(tag)) {
+                        user.loadPackageFromXml(parser);
+                        continue;
+                    }
+                    throwForInvalidTag(depth, tag);
+                }
+            } catch (IOException | XmlPullParserException | RuntimeException e) {
+                Slog.e(TAG, "Failed to read file " + file.getBaseFile(), e);
+            } finally {
+                IoUtils.closeQuietly(in);
+            }
+        }
     }
 
     private ShortcutUser loadUserInternal(@UserIdInt int userId, InputStream is,
@@ -1049,6 +1200,25 @@ public class ShortcutService extends IShortcutService.Stub {
     }
 
     void scheduleSaveUser(@UserIdInt int userId) {
+        synchronized (mLock) {
+            mAllPackagesDirty.put(userId, true);
+        }
+        scheduleSaveInner(userId);
+    }
+
+    /**
+     * Same as {@link #scheduleSaveUser}, for changes that only affect the per-user state and
+     * the shortcuts of {@code packageName}, so that other packages don't need to be rewritten.
+     */
+    void scheduleSavePackage(@UserIdInt int userId, @NonNull String packageName) {
+        synchronized (mLock) {
+            ArraySet<String> dirtyPackages = mDirtyPackages.get(userId);
+            if (dirtyPackages == null) {
+                dirtyPackages = new ArraySet<>();
+                mDirtyPackages.put(userId, dirtyPackages);
+            }
+            dirtyPackages.add(packageName);
+        }
         scheduleSaveInner(userId);
     }
 
@@ -1085,6 +1255,14 @@ public class ShortcutService extends IShortcutService.Stub {
                     }
                 }
                 mDirtyUserIds.clear();
+                // Users with package files that couldn't be written are saved again along
+                // with the next change, rather than retried right away.
+                for (int i = mUsers.size() - 1; i >= 0; i--) {
+                    final int userId = mUsers.keyAt(i);
+                    if (mAllPackagesDirty.get(userId) || mDirtyPackages.get(userId) != null) {
+                        mDirtyUserIds.add(userId);
+                    }
+                }
             }
         } catch (Exception e) {
             wtf("Exception in saveDirtyInfo", e);
@@ -1585,7 +1763,7 @@ public class ShortcutService extends IShortcutService.Stub {
      */
     void packageShortcutsChanged(@NonNull String packageName, @UserIdInt int userId) {
         notifyListeners(packageName, userId);
-        scheduleSaveUser(userId);
+        scheduleSavePackage(userId, packageName);
     }
 
     private void notifyListeners(@NonNull String packageName, @UserIdInt int userId) {
@@ -2208,6 +2386,7 @@ public class ShortcutService extends IShortcutService.Stub {
 
             getPackageShortcutsLocked(packageName, userId)
                     .resetRateLimitingForCommandLineNoSaving();
+            mAllPackagesDirty.put(userId, true);
             saveUserLocked(userId);
         }
     }
@@ -3465,6 +3644,7 @@ public class ShortcutService extends IShortcutService.Stub {
                 pw.println();
             });
 
+            mAllPackagesDirty.put(userId, true);
             saveUserLocked(userId);
         }
     }
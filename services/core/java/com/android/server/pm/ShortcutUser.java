@@ -23,6 +23,7 @@ import android.content.pm.ShortcutManager;
 import android.text.TextUtils;
 import android.text.format.Formatter;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Log;
 import android.util.Slog;
 
@@ -109,6 +110,12 @@ class ShortcutUser {
 
     private final ArrayMap<String, ShortcutPackage> mPackages = new ArrayMap<>();
 
+    /**
+     * Packages that are saved in the per-user file, because their own file hasn't been written
+     * yet.
+     */
+    private final ArraySet<String> mPackagesSavedInline = new ArraySet<>();
+
     private final ArrayMap<PackageWithUser, ShortcutLauncher> mLaunchers = new ArrayMap<>();
 
     /**
@@ -163,6 +170,22 @@ class ShortcutUser {
         return mPackages.containsKey(packageName);
     }
 
+    public int getPackageCount() {
+        return mPackages.size();
+    }
+
+    /**
+     * Sets whether {@code packageName} is to be saved in the per-user file, rather than only
+     * in its own file.
+     */
+    public void setPackageSavedInline(@NonNull String packageName, boolean inline) {
+        if (inline) {
+            mPackagesSavedInline.add(packageName);
+        } else {
+            mPackagesSavedInline.remove(packageName);
+        }
+    }
+
     private void addPackage(@NonNull ShortcutPackage p) {
         p.replaceUser(this);
         mPackages.put(p.getPackageName(), p);
@@ -349,11 +372,22 @@ class ShortcutUser {
                 saveShortcutPackageItem(out, mLaunchers.valueAt(i), forBackup);
             }
         }
-        {
+        if (forBackup) {
             final int size = mPackages.size();
             for (int i = 0; i < size; i++) {
                 saveShortcutPackageItem(out, mPackages.valueAt(i), forBackup);
             }
+        } else {
+            // Otherwise packages are saved in their own files by ShortcutService, and only the
+            // ones whose file hasn't been written yet are kept here.
+            for (int i = mPackagesSavedInline.size() - 1; i >= 0; i--) {
+                final ShortcutPackage p = mPackages.get(mPackagesSavedInline.valueAt(i));
+                if (p == null) {
+                    mPackagesSavedInline.removeAt(i);
+                    continue;
+                }
+                saveShortcutPackageItem(out, p, forBackup);
+            }
         }
 
         out.endTag(null, TAG_ROOT);
@@ -411,6 +445,11 @@ class ShortcutUser {
 
                             // Don't use addShortcut(), we don't need to save the icon.
                             ret.mPackages.put(shortcuts.getPackageName(), shortcuts);
+                            if (!fromBackup) {
+                                // Its own file is missing or older, keep it here until that
+                                // file is written.
+                                ret.mPackagesSavedInline.add(shortcuts.getPackageName());
+                            }
                             continue;
                         }
 
@@ -430,6 +469,22 @@ class ShortcutUser {
         return ret;
     }
 
+    /**
+     * Loads a package saved in its own file. A package with the same name loaded from the
+     * per-user file wins, as it's only saved there while its own file couldn't be written.
+     */
+    public void loadPackageFromXml(XmlPullParser parser)
+            throws IOException, XmlPullParserException {
+        final ShortcutPackage shortcuts = ShortcutPackage.loadFromXml(
+                mService, this, parser, /* fromBackup= */ false);
+        if (mPackagesSavedInline.contains(shortcuts.getPackageName())) {
+            return;
+        }
+
+        // Don't use addShortcut(), we don't need to save the icon.
+        mPackages.put(shortcuts.getPackageName(), shortcuts);
+    }
+
     public ComponentName getLastKnownLauncher() {
         return mLastKnownLauncher;
     }
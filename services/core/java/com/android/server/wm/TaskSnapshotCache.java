@@ -17,39 +17,109 @@
 package com.android.server.wm;
 
 import android.annotation.Nullable;
+import android.app.ActivityManager;
 import android.app.ActivityManager.TaskSnapshot;
+import android.graphics.GraphicBuffer;
+import android.os.Handler;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.LruCache;
 
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.os.BackgroundThread;
+
 import java.io.PrintWriter;
 import java.util.Map;
-import java.util.Map.Entry;
 
 /**
  * Caches snapshots. See {@link TaskSnapshotController}.
  * <p>
+ * The cache has two tiers, each with a byte budget: the running tier holds the snapshots taken
+ * while the system is up, and the reduced tier holds reduced resolution snapshots restored
+ * from disk. When the running tier is over budget, its least recently used entries are
+ * evicted and their reduced resolution snapshot is decoded from disk in the background.
+ * <p>
  * Access to this class should be guarded by the global window manager lock.
  */
 class TaskSnapshotCache {
 
+    /** Byte budget of the running tier. */
+    private static final int MAX_RUNNING_BYTES = 64 * 1024 * 1024;
+    private static final int MAX_RUNNING_BYTES_LOW_RAM = 8 * 1024 * 1024;
+
+    /** Byte budget of the reduced tier. */
+    private static final int MAX_REDUCED_BYTES = 8 * 1024 * 1024;
+    private static final int MAX_REDUCED_BYTES_LOW_RAM = 2 * 1024 * 1024;
+
     private final WindowManagerService mService;
     private final TaskSnapshotLoader mLoader;
+    private final Handler mDecodeHandler;
     private final ArrayMap<AppWindowToken, Integer> mAppTaskMap = new ArrayMap<>();
-    private final ArrayMap<Integer, CacheEntry> mRunningCache = new ArrayMap<>();
+    private final LruCache<Integer, CacheEntry> mRunningCache;
+    private final LruCache<Integer, TaskSnapshot> mReducedCache;
+
+    /** Tasks whose reduced resolution snapshot is being decoded in the background. */
+    private final ArraySet<Integer> mPendingDecodes = new ArraySet<>();
+
+    private long mRunningHits;
+    private long mReducedHits;
+    private long mMisses;
+    private long mDiskLoads;
+    private long mRunningEvictions;
+    private int mPeakBytes;
 
     TaskSnapshotCache(WindowManagerService service, TaskSnapshotLoader loader) {
+        this(service, loader,
+                ActivityManager.isLowRamDeviceStatic()
+                        ? MAX_RUNNING_BYTES_LOW_RAM : MAX_RUNNING_BYTES,
+                ActivityManager.isLowRamDeviceStatic()
+                        ? MAX_REDUCED_BYTES_LOW_RAM : MAX_REDUCED_BYTES,
+                BackgroundThread.getHandler());
+    }
+
+    @VisibleForTesting
+    TaskSnapshotCache(WindowManagerService service, TaskSnapshotLoader loader,
+            int maxRunningBytes, int maxReducedBytes, Handler decodeHandler) {
         mService = service;
         mLoader = loader;
+        mDecodeHandler = decodeHandler;
+        mRunningCache = new LruCache<Integer, CacheEntry>(maxRunningBytes) {
+            @Override
+            protected int sizeOf(Integer taskId, CacheEntry entry) {
+                return getByteCount(entry.snapshot);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Integer taskId, CacheEntry oldValue,
+                    CacheEntry newValue) {
+                if (newValue == null || newValue.topApp != oldValue.topApp) {
+                    mAppTaskMap.remove(oldValue.topApp);
+                }
+                if (evicted) {
+                    mRunningEvictions++;
+                    scheduleReducedDecode(taskId, oldValue.userId);
+                }
+            }
+        };
+        mReducedCache = new LruCache<Integer, TaskSnapshot>(maxReducedBytes) {
+            @Override
+            protected int sizeOf(Integer taskId, TaskSnapshot snapshot) {
+                return getByteCount(snapshot);
+            }
+        };
     }
 
     void putSnapshot(Task task, TaskSnapshot snapshot) {
-        final CacheEntry entry = mRunningCache.get(task.mTaskId);
-        if (entry != null) {
-            mAppTaskMap.remove(entry.topApp);
-        }
         final AppWindowToken top = task.getTopChild();
+        removeReducedEntry(task.mTaskId);
+        mRunningCache.put(task.mTaskId, new CacheEntry(snapshot, top, task.mUserId));
         mAppTaskMap.put(top, task.mTaskId);
-        mRunningCache.put(task.mTaskId, new CacheEntry(snapshot, task.getTopChild()));
+
+        // A snapshot larger than the whole budget isn't kept.
+        if (mRunningCache.get(task.mTaskId) == null) {
+            mAppTaskMap.remove(top);
+        }
+        updatePeakBytes();
     }
 
     /**
@@ -62,8 +132,19 @@ class TaskSnapshotCache {
             // Try the running cache.
             final CacheEntry entry = mRunningCache.get(taskId);
             if (entry != null) {
+                mRunningHits++;
                 return entry.snapshot;
             }
+
+            // Reduced resolution snapshots restored from disk only serve reduced requests.
+            if (reducedResolution) {
+                final TaskSnapshot reduced = mReducedCache.get(taskId);
+                if (reduced != null) {
+                    mReducedHits++;
+                    return reduced;
+                }
+            }
+            mMisses++;
         }
 
         // Try to restore from disk if asked.
@@ -81,9 +162,40 @@ class TaskSnapshotCache {
         if (snapshot == null) {
             return null;
         }
+        synchronized (mService.mWindowMap) {
+            mDiskLoads++;
+            if (reducedResolution && mRunningCache.get(taskId) == null) {
+                mReducedCache.put(taskId, snapshot);
+                updatePeakBytes();
+            }
+        }
         return snapshot;
     }
 
+    /**
+     * Decodes the reduced resolution snapshot of a task evicted from the running tier, so the
+     * next reduced request for it doesn't have to hit the disk.
+     */
+    private void scheduleReducedDecode(int taskId, int userId) {
+        if (!mPendingDecodes.add(taskId)) {
+            return;
+        }
+        mDecodeHandler.post(() -> {
+            final TaskSnapshot snapshot = mLoader.loadTask(taskId, userId,
+                    true /* reducedResolution */);
+            synchronized (mService.mWindowMap) {
+                // The task may have been removed or snapshotted again in the meantime.
+                if (!mPendingDecodes.remove(taskId) || snapshot == null
+                        || mRunningCache.get(taskId) != null) {
+                    return;
+                }
+                mDiskLoads++;
+                mReducedCache.put(taskId, snapshot);
+                updatePeakBytes();
+            }
+        });
+    }
+
     /**
      * Called when an app token has been removed
      */
@@ -106,26 +218,57 @@ class TaskSnapshotCache {
 
     void onTaskRemoved(int taskId) {
         removeRunningEntry(taskId);
+        removeReducedEntry(taskId);
     }
 
     private void removeRunningEntry(int taskId) {
-        final CacheEntry entry = mRunningCache.get(taskId);
-        if (entry != null) {
-            mAppTaskMap.remove(entry.topApp);
-            mRunningCache.remove(taskId);
+        // Also unmaps the top app, see entryRemoved.
+        mRunningCache.remove(taskId);
+    }
+
+    private void removeReducedEntry(int taskId) {
+        mReducedCache.remove(taskId);
+        mPendingDecodes.remove(taskId);
+    }
+
+    private void updatePeakBytes() {
+        mPeakBytes = Math.max(mPeakBytes, mRunningCache.size() + mReducedCache.size());
+    }
+
+    /**
+     * @return the approximate number of bytes pinned by the buffer of {@param snapshot}.
+     */
+    private static int getByteCount(TaskSnapshot snapshot) {
+        final GraphicBuffer buffer = snapshot.getSnapshot();
+        if (buffer == null) {
+            return 0;
         }
+        // Snapshots are always captured as RGBA_8888.
+        return buffer.getWidth() * buffer.getHeight() * 4;
     }
 
     void dump(PrintWriter pw, String prefix) {
         final String doublePrefix = prefix + "  ";
         final String triplePrefix = doublePrefix + "  ";
+        final long requests = mRunningHits + mReducedHits + mMisses;
         pw.println(prefix + "SnapshotCache");
-        for (int i = mRunningCache.size() - 1; i >= 0; i--) {
-            final CacheEntry entry = mRunningCache.valueAt(i);
-            pw.println(doublePrefix + "Entry taskId=" + mRunningCache.keyAt(i));
+        pw.println(doublePrefix + "running=" + mRunningCache.size() + "/"
+                + mRunningCache.maxSize() + " bytes, reduced=" + mReducedCache.size() + "/"
+                + mReducedCache.maxSize() + " bytes, peak=" + mPeakBytes + " bytes");
+        pw.println(doublePrefix + "runningHits=" + mRunningHits + " reducedHits=" + mReducedHits
+                + " misses=" + mMisses + " hitRatio="
+                + (requests > 0 ? (mRunningHits + mReducedHits) * 100 / requests : 0) + "%"
+                + " diskLoads=" + mDiskLoads + " runningEvictions=" + mRunningEvictions);
+        for (Map.Entry<Integer, CacheEntry> e : mRunningCache.snapshot().entrySet()) {
+            final CacheEntry entry = e.getValue();
+            pw.println(doublePrefix + "Entry taskId=" + e.getKey());
             pw.println(triplePrefix + "topApp=" + entry.topApp);
             pw.println(triplePrefix + "snapshot=" + entry.snapshot);
         }
+        for (Map.Entry<Integer, TaskSnapshot> e : mReducedCache.snapshot().entrySet()) {
+            pw.println(doublePrefix + "Reduced entry taskId=" + e.getKey());
+            pw.println(triplePrefix + "snapshot=" + e.getValue());
+        }
     }
 
     private static final class CacheEntry {
@@ -136,9 +279,13 @@ class TaskSnapshotCache {
         /** The app token that was on top of the task when the snapshot was taken */
         final AppWindowToken topApp;
 
-        CacheEntry(TaskSnapshot snapshot, AppWindowToken topApp) {
+        /** The user the task belongs to */
+        final int userId;
+
+        CacheEntry(TaskSnapshot snapshot, AppWindowToken topApp, int userId) {
             this.snapshot = snapshot;
             this.topApp = topApp;
+            this.userId = userId;
         }
     }
 }
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Tests for {@link AlarmBatchList}
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class AlarmBatchListTest {
+
+    static final class TestBatch implements AlarmBatchList.Window {
+        final long start;
+        final long end;
+        final boolean standalone;
+        final boolean wakeup;
+
+        TestBatch(long start, long end, boolean standalone, boolean wakeup) {
+            this.start = start;
+            this.end = end;
+            this.standalone = standalone;
+            this.wakeup = wakeup;
+        }
+
+        @Override
+        public long getStart() {
+            return start;
+        }
+
+        @Override
+        public long getEnd() {
+            return end;
+        }
+
+        @Override
+        public boolean isCoalescable() {
+            return !standalone;
+        }
+
+        @Override
+        public boolean hasWakeups() {
+            return wakeup;
+        }
+    }
+
+    private final AlarmBatchList<TestBatch> mList = new AlarmBatchList<>();
+
+    @Test
+    public void testSameStartKeepsInsertionOrder() {
+        final TestBatch first = new TestBatch(10, 20, false, false);
+        final TestBatch second = new TestBatch(10, 30, false, false);
+        final TestBatch earlier = new TestBatch(5, 30, false, false);
+        assertEquals(0, mList.add(first));
+        assertEquals(1, mList.add(second));
+        assertEquals(0, mList.add(earlier));
+
+        assertSame(earlier, mList.get(0));
+        assertSame(first, mList.get(1));
+        assertSame(second, mList.get(2));
+    }
+
+    @Test
+    public void testFindFirstCoalescable() {
+        mList.add(new TestBatch(0, 5, false, false));
+        mList.add(new TestBatch(10, 100, true, false));
+        mList.add(new TestBatch(20, 40, false, false));
+        mList.add(new TestBatch(30, 35, false, false));
+
+        // The standalone batch isn't picked even though its window overlaps
+        assertEquals(2, mList.findFirstCoalescable(32, 50));
+        assertEquals(0, mList.findFirstCoalescable(0, 50));
+        assertEquals(-1, mList.findFirstCoalescable(41, 50));
+        assertEquals(-1, mList.findFirstCoalescable(6, 15));
+    }
+
+    @Test
+    public void testFindFirstWithWakeups() {
+        assertNull(mList.findFirstWithWakeups());
+        final TestBatch wakeup = new TestBatch(20, 30, false, true);
+        mList.add(new TestBatch(10, 30, false, false));
+        mList.add(wakeup);
+        mList.add(new TestBatch(25, 30, false, true));
+        assertSame(wakeup, mList.findFirstWithWakeups());
+
+        mList.remove(1);
+        assertEquals(25, mList.findFirstWithWakeups().start);
+    }
+
+    @Test
+    public void testRemoveBatch() {
+        final TestBatch first = new TestBatch(10, 20, false, false);
+        final TestBatch second = new TestBatch(10, 30, false, false);
+        final TestBatch third = new TestBatch(10, 40, false, false);
+        final TestBatch later = new TestBatch(50, 60, false, false);
+        mList.add(later);
+        mList.add(first);
+        mList.add(second);
+        mList.add(third);
+
+        assertEquals(2, mList.indexOf(third));
+        assertEquals(-1, mList.indexOf(new TestBatch(10, 20, false, false)));
+        assertTrue(mList.remove(second));
+        assertFalse(mList.remove(second));
+        assertEquals(3, mList.size());
+        assertSame(first, mList.get(0));
+        assertSame(third, mList.get(1));
+        assertSame(later, mList.get(2));
+    }
+
+    @Test
+    public void testMatchesLinearScan() {
+        final Random random = new Random(42);
+        final ArrayList<TestBatch> expected = new ArrayList<>();
+        for (int op = 0; op < 2000; op++) {
+            if (expected.size() > 0 && random.nextInt(3) == 0) {
+                final int index = random.nextInt(expected.size());
+                assertSame(expected.remove(index), mList.remove(index));
+            } else {
+                final long start = random.nextInt(1000);
+                final TestBatch batch = new TestBatch(start, start + random.nextInt(200),
+                        random.nextInt(10) == 0, random.nextBoolean());
+                int index = 0;
+                while (index < expected.size() && expected.get(index).start <= start) {
+                    index++;
+                }
+                expected.add(index, batch);
+                assertEquals(index, mList.add(batch));
+            }
+
+            assertEquals(expected.size(), mList.size());
+            final long when = random.nextInt(1200);
+            final long maxWhen = when + random.nextInt(100);
+            int expectedIndex = -1;
+            TestBatch expectedWakeup = null;
+            for (int i = 0; i < expected.size(); i++) {
+                final TestBatch b = expected.get(i);
+                if (expectedIndex < 0 && !b.standalone && b.end >= when && b.start <= maxWhen) {
+                    expectedIndex = i;
+                }
+                if (expectedWakeup == null && b.wakeup) {
+                    expectedWakeup = b;
+                }
+            }
+            assertEquals(expectedIndex, mList.findFirstCoalescable(when, maxWhen));
+            assertSame(expectedWakeup, mList.findFirstWithWakeups());
+        }
+
+        final ArrayList<TestBatch> all = new ArrayList<>();
+        mList.toList(all);
+        assertEquals(expected, all);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import static android.app.AlarmManager.ELAPSED_REALTIME;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.app.IAlarmCompleteListener;
+import android.app.IAlarmListener;
+import android.os.UserHandle;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.ArraySet;
+
+import com.android.server.AlarmManagerService.Alarm;
+import com.android.server.AlarmManagerService.AlarmIndex;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Tests for {@link AlarmIndex}
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class AlarmIndexTest {
+
+    private static final int UID_1 = UserHandle.getUid(0, 10001);
+    private static final int UID_2 = UserHandle.getUid(10, 10002);
+
+    private final AlarmIndex mIndex = new AlarmIndex();
+
+    private static final class TestListener extends IAlarmListener.Stub {
+        @Override
+        public void doAlarm(IAlarmCompleteListener callback) {
+        }
+    }
+
+    private static Alarm createAlarm(IAlarmListener listener, int uid, String packageName) {
+        return new Alarm(ELAPSED_REALTIME, 0, 0, 0, 0, 0, null, listener, "test", null, 0,
+                null, uid, packageName);
+    }
+
+    @Test
+    public void testAddAndRemove() {
+        final IAlarmListener listener = new TestListener();
+        final Alarm first = createAlarm(listener, UID_1, "a");
+        final Alarm second = createAlarm(listener, UID_2, "b");
+        mIndex.add(first);
+        mIndex.add(second);
+
+        assertEquals(2, mIndex.size());
+        assertEquals(2, mIndex.getForTarget(listener.asBinder()).size());
+        assertTrue(mIndex.getForPackage("a").contains(first));
+        assertTrue(mIndex.getForUid(UID_2).contains(second));
+        assertTrue(mIndex.getForUser(10).contains(second));
+        assertNull(mIndex.getForTarget(null));
+
+        mIndex.remove(first);
+        assertEquals(1, mIndex.size());
+        assertFalse(mIndex.contains(first));
+        assertTrue(mIndex.contains(second));
+        assertNull(mIndex.getForPackage("a"));
+        assertNull(mIndex.getForUid(UID_1));
+        assertNull(mIndex.getForUser(0));
+        assertEquals(1, mIndex.getForTarget(listener.asBinder()).size());
+
+        mIndex.remove(second);
+        assertEquals(0, mIndex.size());
+        assertNull(mIndex.getForTarget(listener.asBinder()));
+        assertNull(mIndex.getForPackage("b"));
+    }
+
+    @Test
+    public void testMatchesScheduledAlarms() {
+        final Random random = new Random(42);
+        final IAlarmListener[] listeners = new IAlarmListener[5];
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i] = new TestListener();
+        }
+        final int[] uids = { UID_1, UID_2, UserHandle.getUid(10, 10001) };
+        final ArrayList<Alarm> scheduled = new ArrayList<>();
+
+        for (int op = 0; op < 500; op++) {
+            final int action = random.nextInt(10);
+            if (action == 0) {
+                // Rebatch: the index is rebuilt from the alarms still scheduled.
+                mIndex.clear();
+                for (int i = 0; i < scheduled.size(); i++) {
+                    mIndex.add(scheduled.get(i));
+                }
+            } else if (action < 4 && scheduled.size() > 0) {
+                mIndex.remove(scheduled.remove(random.nextInt(scheduled.size())));
+            } else {
+                final Alarm a = createAlarm(listeners[random.nextInt(listeners.length)],
+                        uids[random.nextInt(uids.length)], "p" + random.nextInt(4));
+                scheduled.add(a);
+                mIndex.add(a);
+            }
+
+            assertEquals(scheduled.size(), mIndex.size());
+            for (IAlarmListener listener : listeners) {
+                final ArraySet<Alarm> expected = new ArraySet<>();
+                for (int i = 0; i < scheduled.size(); i++) {
+                    if (scheduled.get(i).listener == listener) {
+                        expected.add(scheduled.get(i));
+                    }
+                }
+                assertIndexed(expected, mIndex.getForTarget(listener.asBinder()));
+            }
+            for (int uid : uids) {
+                final ArraySet<Alarm> expectedForUid = new ArraySet<>();
+                final ArraySet<Alarm> expectedForUser = new ArraySet<>();
+                for (int i = 0; i < scheduled.size(); i++) {
+                    final Alarm a = scheduled.get(i);
+                    if (a.uid == uid) {
+                        expectedForUid.add(a);
+                    }
+                    if (UserHandle.getUserId(a.creatorUid) == UserHandle.getUserId(uid)) {
+                        expectedForUser.add(a);
+                    }
+                }
+                assertIndexed(expectedForUid, mIndex.getForUid(uid));
+                assertIndexed(expectedForUser, mIndex.getForUser(UserHandle.getUserId(uid)));
+            }
+            for (int p = 0; p < 4; p++) {
+                final ArraySet<Alarm> expected = new ArraySet<>();
+                for (int i = 0; i < scheduled.size(); i++) {
+                    if (scheduled.get(i).targetPackage.equals("p" + p)) {
+                        expected.add(scheduled.get(i));
+                    }
+                }
+                assertIndexed(expected, mIndex.getForPackage("p" + p));
+            }
+        }
+    }
+
+    private static void assertIndexed(ArraySet<Alarm> expected, ArraySet<Alarm> actual) {
+        if (expected.isEmpty()) {
+            // Empty entries are dropped from the index.
+            assertNull(actual);
+        } else {
+            assertEquals(expected, actual);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+/**
+ * Tests for {@link IntentResolver}
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class IntentResolverTest {
+
+    private TestIntentResolver mResolver;
+
+    private IntentFilter mExampleFilter;
+    private IntentFilter mOtherFilter;
+    private IntentFilter mAnyHostFilter;
+    private IntentFilter mWildcardHostFilter;
+
+    @Before
+    public void setUp() {
+        mResolver = new TestIntentResolver();
+        mExampleFilter = newViewFilter("example.com");
+        mOtherFilter = newViewFilter("other.com");
+        mAnyHostFilter = newViewFilter(null);
+        mWildcardHostFilter = newViewFilter("*.example.com");
+        mResolver.addFilter(mExampleFilter);
+        mResolver.addFilter(mOtherFilter);
+        mResolver.addFilter(mAnyHostFilter);
+        mResolver.addFilter(mWildcardHostFilter);
+    }
+
+    @Test
+    public void testQueryByHost() {
+        List<IntentFilter> results = query("http://example.com/foo");
+        assertEquals(2, results.size());
+        assertTrue(results.contains(mExampleFilter));
+        assertTrue(results.contains(mAnyHostFilter));
+
+        results = query("https://www.EXAMPLE.com/foo");
+        assertEquals(2, results.size());
+        assertTrue(results.contains(mWildcardHostFilter));
+        assertTrue(results.contains(mAnyHostFilter));
+
+        results = query("http://OTHER.com");
+        assertEquals(2, results.size());
+        assertTrue(results.contains(mOtherFilter));
+        assertTrue(results.contains(mAnyHostFilter));
+    }
+
+    @Test
+    public void testRemoveFilter() {
+        mResolver.removeFilter(mExampleFilter);
+        List<IntentFilter> results = query("http://example.com/foo");
+        assertEquals(1, results.size());
+        assertTrue(results.contains(mAnyHostFilter));
+
+        mResolver.removeFilter(mAnyHostFilter);
+        assertEquals(0, query("http://example.com/foo").size());
+    }
+
+    private List<IntentFilter> query(String uri) {
+        return mResolver.queryIntent(new Intent(Intent.ACTION_VIEW, Uri.parse(uri)), null,
+                false /* defaultOnly */, 0 /* userId */);
+    }
+
+    private static IntentFilter newViewFilter(String host) {
+        IntentFilter filter = new IntentFilter(Intent.ACTION_VIEW);
+        filter.addDataScheme("http");
+        filter.addDataScheme("https");
+        if (host != null) {
+            filter.addDataAuthority(host, null);
+            filter.addDataAuthority(host, "8080");
+        }
+        return filter;
+    }
+
+    private static class TestIntentResolver extends IntentResolver<IntentFilter, IntentFilter> {
+        @Override
+        protected boolean isPackageForFilter(String packageName, IntentFilter filter) {
+            return false;
+        }
+
+        @Override
+        protected IntentFilter[] newArray(int size) {
+            return new IntentFilter[size];
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Tests for {@link BinderCallStats}
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class BinderCallStatsTest {
+
+    private final BinderCallStats mStats = new BinderCallStats();
+
+    @Test
+    public void testNestedCallsAndLocksCountedOnce() {
+        mStats.setEnabled(true);
+        mStats.onCallStarted(10);
+        mStats.onLockAcquired();
+        mStats.onCallStarted(20);
+        mStats.onLockAcquired();
+        mStats.onLockReleased();
+        mStats.onCallEnded();
+        mStats.onLockReleased();
+        mStats.onCallEnded();
+
+        assertEquals(1, mStats.getCallCount(10));
+        assertEquals(0, mStats.getCallCount(20));
+        assertEquals(1, mStats.getLockHoldCount());
+    }
+
+    @Test
+    public void testStateDroppedWhenReenabled() {
+        mStats.setEnabled(true);
+        mStats.onCallStarted(10);
+        mStats.onLockAcquired();
+        // Disabled before the call returned, its end isn't reported.
+        mStats.setEnabled(false);
+        mStats.setEnabled(true);
+
+        mStats.onCallStarted(11);
+        mStats.onLockAcquired();
+        mStats.onLockReleased();
+        mStats.onCallEnded();
+
+        assertEquals(0, mStats.getCallCount(10));
+        assertEquals(1, mStats.getCallCount(11));
+        assertEquals(1, mStats.getLockHoldCount());
+    }
+
+    @Test
+    public void testReset() {
+        mStats.setEnabled(true);
+        mStats.onCallStarted(10);
+        mStats.onCallEnded();
+        mStats.reset();
+
+        assertEquals(0, mStats.getCallCount(10));
+
+        final StringWriter sw = new StringWriter();
+        mStats.dump(new PrintWriter(sw));
+        assertTrue(sw.toString().contains("enabled=true"));
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.am;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.IntArray;
+
+import com.android.internal.app.procstats.ProcessStats;
+import com.android.server.am.ProcessPrewarmer.TransitionModel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+/**
+ * Tests for {@link ProcessPrewarmer}
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ProcessPrewarmerTest {
+
+    private final TransitionModel mModel = new TransitionModel();
+
+    private HandlerThread mHandlerThread;
+    private Handler mHandler;
+
+    @Before
+    public void setUp() {
+        mHandlerThread = new HandlerThread("ProcessPrewarmerTest");
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+    }
+
+    @After
+    public void tearDown() {
+        // Nothing behind the mocked service can actually start a process.
+        mHandler.removeCallbacksAndMessages(null);
+        mHandlerThread.quit();
+    }
+
+    @Test
+    public void testPredictRepeatedTransition() {
+        for (int i = 0; i < TransitionModel.MIN_TRANSITIONS; i++) {
+            assertNull(mModel.predict("a", 0));
+            mModel.noteForeground("a", 0);
+            mModel.noteForeground("b", 0);
+        }
+        assertEquals("b", mModel.predict("a", 0));
+
+        // Transitions are per time bucket
+        assertNull(mModel.predict("a", 1));
+    }
+
+    @Test
+    public void testNoPredictionWithoutMajority() {
+        for (int i = 0; i < TransitionModel.MIN_TRANSITIONS; i++) {
+            mModel.noteForeground("a", 0);
+            mModel.noteForeground("b", 0);
+            mModel.noteForeground("a", 0);
+            mModel.noteForeground("c", 0);
+        }
+        assertNull(mModel.predict("a", 0));
+    }
+
+    @Test
+    public void testIgnoredPackages() {
+        mModel.ignorePackage("home");
+        for (int i = 0; i <= TransitionModel.MIN_TRANSITIONS; i++) {
+            mModel.noteForeground("a", 0);
+            mModel.noteForeground("home", 0);
+            mModel.noteForeground("b", 0);
+            mModel.noteForeground("home", 0);
+        }
+        assertNull(mModel.predict("home", 0));
+        assertEquals("b", mModel.predict("a", 0));
+        assertEquals("a", mModel.predict("b", 0));
+    }
+
+    @Test
+    public void testAddHistory() {
+        final ArrayList<String> packages = new ArrayList<>();
+        final IntArray buckets = new IntArray();
+        for (int i = 0; i < TransitionModel.MIN_TRANSITIONS; i++) {
+            packages.add("a");
+            buckets.add(2);
+            packages.add("a");
+            buckets.add(2);
+            packages.add("b");
+            buckets.add(2);
+        }
+        mModel.addHistory(packages, buckets);
+        assertEquals("b", mModel.predict("a", 2));
+        assertEquals(2, mModel.size());
+    }
+
+    @Test
+    public void testTimeBucketRange() {
+        final long now = System.currentTimeMillis();
+        for (int hour = 0; hour < 24; hour++) {
+            final int bucket = ProcessPrewarmer.getTimeBucket(now + hour * 60 * 60 * 1000L);
+            assertTrue(bucket >= 0 && bucket < ProcessPrewarmer.TIME_BUCKETS);
+        }
+    }
+
+    @Test
+    public void testPrewarmIsPostedFromResume() {
+        final ProcessPrewarmer prewarmer = new ProcessPrewarmer(
+                mock(ActivityManagerService.class), mHandler);
+        for (int i = 0; i < TransitionModel.MIN_TRANSITIONS; i++) {
+            prewarmer.onForegroundLocked("a", 0, false /* homeOrRecents */);
+            assertFalse(prewarmer.isPrewarmPendingLocked());
+            prewarmer.onForegroundLocked("home", 0, true /* homeOrRecents */);
+            prewarmer.onForegroundLocked("b", 0, false /* homeOrRecents */);
+        }
+        prewarmer.onForegroundLocked("a", 0, false /* homeOrRecents */);
+
+        // The process isn't started from the resume itself, only later on the handler.
+        assertTrue(prewarmer.isPrewarmPendingLocked());
+    }
+
+    @Test
+    public void testProcessUsedByOtherComponent() {
+        final ProcessPrewarmer prewarmer = new ProcessPrewarmer(
+                mock(ActivityManagerService.class), mHandler);
+        final ProcessRecord app = new ProcessRecord(null,
+                InstrumentationRegistry.getContext().getApplicationInfo(), "name", 12345);
+        prewarmer.onProcessPrewarmedLocked(app);
+        assertTrue(prewarmer.isPrewarmedLocked(app));
+
+        // A service, receiver or provider put the process to use before any activity did.
+        prewarmer.onProcessUsedLocked(app);
+        assertFalse(prewarmer.isPrewarmedLocked(app));
+    }
+
+    @Test
+    public void testHeadroom() {
+        final int normal = ProcessStats.ADJ_MEM_FACTOR_NORMAL;
+        assertTrue(ProcessPrewarmer.hasHeadroom(normal, 3, 2, 32, 16));
+        // Empty processes count towards the cached limit as well as their own.
+        assertFalse(ProcessPrewarmer.hasHeadroom(normal, 8, 8, 32, 16));
+        assertFalse(ProcessPrewarmer.hasHeadroom(normal, 0, 8, 32, 16));
+        assertFalse(ProcessPrewarmer.hasHeadroom(ProcessStats.ADJ_MEM_FACTOR_MODERATE,
+                0, 0, 32, 16));
+    }
+}
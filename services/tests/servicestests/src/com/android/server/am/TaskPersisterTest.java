@@ -22,11 +22,16 @@ import android.os.UserHandle;
 import android.os.UserManager;
 import android.test.AndroidTestCase;
 import android.util.Log;
+import android.util.SparseArray;
 import android.util.SparseBooleanArray;
 
 import com.android.server.am.TaskPersister;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Random;
 
 public class TaskPersisterTest extends AndroidTestCase {
@@ -69,6 +74,41 @@ public class TaskPersisterTest extends AndroidTestCase {
                 taskIdsOnFile.equals(newTaskIdsOnFile));
     }
 
+    public void testUserTasksRoundTrip() throws IOException {
+        SparseArray<byte[]> snapshot = new SparseArray<>();
+        for (int i = 0; i < 20; i++) {
+            final int taskId = getRandomTaskIdForUser(testUserId);
+            snapshot.put(taskId, ("<task task_id=\"" + taskId + "\" />").getBytes());
+        }
+        snapshot.put(getRandomTaskIdForUser(testUserId), new byte[0]);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TaskPersister.writeUserTasks(out, snapshot);
+        SparseArray<byte[]> readTasks = TaskPersister.readUserTasks(
+                new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals(snapshot.size(), readTasks.size());
+        for (int i = 0; i < snapshot.size(); i++) {
+            assertEquals(snapshot.keyAt(i), readTasks.keyAt(i));
+            assertTrue("Task #" + snapshot.keyAt(i) + " differs after reading back",
+                    Arrays.equals(snapshot.valueAt(i), readTasks.valueAt(i)));
+        }
+    }
+
+    public void testUserTasksTruncated() throws IOException {
+        SparseArray<byte[]> snapshot = new SparseArray<>();
+        snapshot.put(getRandomTaskIdForUser(testUserId), "<task />".getBytes());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TaskPersister.writeUserTasks(out, snapshot);
+        byte[] bytes = Arrays.copyOf(out.toByteArray(), out.size() - 1);
+
+        try {
+            TaskPersister.readUserTasks(new ByteArrayInputStream(bytes));
+            fail("Truncated tasks file should not be read");
+        } catch (IOException expected) {
+        }
+    }
+
     private int createUser(String name, int flags) {
         UserInfo user = mUserManager.createUser(name, flags);
         if (user == null) {
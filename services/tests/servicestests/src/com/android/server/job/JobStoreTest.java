@@ -128,6 +128,34 @@ public class JobStoreTest extends AndroidTestCase {
 
     }
 
+    public void testJournalReplayedOverSnapshot() throws Exception {
+        final JobInfo task1 = new Builder(8, mComponent)
+                .setMinimumLatency(5000L)
+                .setPersisted(true)
+                .build();
+        final JobInfo task2 = new Builder(12, mComponent)
+                .setRequiresCharging(true)
+                .setOverrideDeadline(30000L)
+                .setPersisted(true)
+                .build();
+        final JobStatus taskStatus1 = JobStatus.createFromJobInfo(task1, SOME_UID, null, -1, null);
+        final JobStatus taskStatus2 = JobStatus.createFromJobInfo(task2, SOME_UID, null, -1, null);
+        mTaskStoreUnderTest.add(taskStatus1);
+        Thread.sleep(IO_WAIT);
+        // These only go to the journal written after the snapshot holding task1.
+        mTaskStoreUnderTest.add(taskStatus2);
+        mTaskStoreUnderTest.remove(taskStatus1, true);
+        Thread.sleep(IO_WAIT);
+
+        final JobSet jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Incorrect # of persisted tasks.", 1, jobStatusSet.size());
+        final JobStatus loaded = jobStatusSet.getAllJobs().get(0);
+        assertTasksEqual(task2, loaded.getJob());
+        compareTimestampsSubjectToIoLatency("Late run-times not the same after read.",
+                taskStatus2.getLatestRunTimeElapsed(), loaded.getLatestRunTimeElapsed());
+    }
+
     public void testWritingTaskWithExtras() throws Exception {
         JobInfo.Builder b = new Builder(8, mComponent)
                 .setRequiresDeviceIdle(true)
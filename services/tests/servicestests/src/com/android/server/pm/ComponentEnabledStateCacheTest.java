@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.pm;
+
+import static android.content.pm.PackageManager.COMPONENT_ENABLED_STATE_DISABLED;
+import static android.content.pm.PackageManager.COMPONENT_ENABLED_STATE_ENABLED;
+
+import static com.android.server.pm.ComponentEnabledStateCache.UNKNOWN;
+
+import static org.junit.Assert.assertEquals;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests for {@link ComponentEnabledStateCache}
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ComponentEnabledStateCacheTest {
+
+    private static final int CALLER = 10001;
+    private static final String PACKAGE = "com.example";
+    private static final String CLASS = "com.example.Activity";
+
+    private final ComponentEnabledStateCache mCache = new ComponentEnabledStateCache();
+
+    @Test
+    public void testApplicationAndComponentKeyedSeparately() {
+        mCache.put(CALLER, PACKAGE, null, 0, 0, COMPONENT_ENABLED_STATE_ENABLED);
+        mCache.put(CALLER, PACKAGE, CLASS, 0, 0, COMPONENT_ENABLED_STATE_DISABLED);
+
+        assertEquals(COMPONENT_ENABLED_STATE_ENABLED, mCache.get(CALLER, PACKAGE, null, 0, 0));
+        assertEquals(COMPONENT_ENABLED_STATE_DISABLED, mCache.get(CALLER, PACKAGE, CLASS, 0, 0));
+        assertEquals(UNKNOWN, mCache.get(CALLER, PACKAGE, null, 10, 0));
+    }
+
+    @Test
+    public void testUnknownCaller() {
+        mCache.put(CALLER, PACKAGE, null, 0, 0, COMPONENT_ENABLED_STATE_ENABLED);
+        // Callers must have been vetted by the package manager at least once
+        assertEquals(UNKNOWN, mCache.get(CALLER + 1, PACKAGE, null, 0, 0));
+    }
+
+    @Test
+    public void testInvalidation() {
+        mCache.put(CALLER, PACKAGE, null, 0, 0, COMPONENT_ENABLED_STATE_ENABLED);
+        mCache.invalidate();
+        assertEquals(UNKNOWN, mCache.get(CALLER, PACKAGE, null, 0, 0));
+
+        // Entries from an older settings generation are ignored
+        mCache.put(CALLER, PACKAGE, null, 0, 0, COMPONENT_ENABLED_STATE_ENABLED);
+        assertEquals(UNKNOWN, mCache.get(CALLER, PACKAGE, null, 0, 1));
+    }
+}
@@ -139,6 +139,29 @@ public class PackageManagerSettingsTests {
         assertThat(ps.getEnabled(1), is(COMPONENT_ENABLED_STATE_DEFAULT));
     }
 
+    @Test
+    public void testUnchangedPackageRestrictionsNotRewritten() {
+        writeOldFiles();
+        Settings settings =
+                new Settings(InstrumentationRegistry.getContext().getFilesDir(), new Object());
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+        settings.writePackageRestrictionsLPr(0);
+
+        final File restrictionsFile = new File(InstrumentationRegistry.getContext().getFilesDir(),
+                "system/users/0/package-restrictions.xml");
+        assertTrue(restrictionsFile.setLastModified(0));
+
+        // Nothing changed, the file is left alone
+        settings.writePackageRestrictionsLPr(0);
+        assertEquals(0, restrictionsFile.lastModified());
+
+        // The state changed, the file is rewritten
+        settings.getPackageLPr(PACKAGE_NAME_1).setEnabled(COMPONENT_ENABLED_STATE_DISABLED, 0,
+                null);
+        settings.writePackageRestrictionsLPr(0);
+        assertThat(restrictionsFile.lastModified(), is(not(0L)));
+    }
+
     @Test
     public void testEnableDisable() {
         // Write the package files and make sure they're parsed properly the first time
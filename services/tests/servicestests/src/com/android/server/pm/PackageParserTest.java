@@ -33,7 +33,9 @@ import android.test.suitebuilder.annotation.MediumTest;
 import java.io.File;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.security.cert.Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -57,6 +59,10 @@ public class PackageParserTest {
     private File mTmpDir;
     private static final File FRAMEWORK = new File("/system/framework/framework-res.apk");
 
+    /** Layout of the header PackageParser writes in front of each cache entry. */
+    private static final int CACHE_ENTRY_MAGIC = 0x504b4743;
+    private static final int CACHE_ENTRY_HEADER_SIZE = 12;
+
     @Before
     public void setUp() {
         // Create a new temporary directory for each of our tests.
@@ -99,6 +105,27 @@ public class PackageParserTest {
         pkg = pp.parsePackage(FRAMEWORK, 0 /* parseFlags */, false /* useCaches */);
         assertEquals("android", pkg.packageName);
 
+        // The entry on disk is the header followed by the parser's payload.
+        final File[] entries = mTmpDir.listFiles();
+        assertEquals(1, entries.length);
+        final byte[] payload = "cache_android".getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer entry = ByteBuffer.wrap(Files.readAllBytes(entries[0].toPath()));
+        assertEquals(CACHE_ENTRY_HEADER_SIZE + payload.length, entry.remaining());
+        assertEquals(CACHE_ENTRY_MAGIC, entry.getInt());
+        final int version = entry.getInt();
+        assertEquals(payload.length, entry.getInt());
+        final byte[] actualPayload = new byte[payload.length];
+        entry.get(actualPayload);
+        assertArrayEquals(payload, actualPayload);
+
+        // An entry written with another layout version is ignored and regenerated.
+        entry.putInt(4, version + 1);
+        Files.write(entries[0].toPath(), entry.array());
+        pkg = pp.parsePackage(FRAMEWORK, 0 /* parseFlags */, true /* useCaches */);
+        assertEquals("android", pkg.packageName);
+        pkg = pp.parsePackage(FRAMEWORK, 0 /* parseFlags */, true /* useCaches */);
+        assertEquals("cache_android", pkg.packageName);
+
         // We haven't set a cache directory here : the parse should still succeed,
         // just not using the cached results.
         pp = new CachePackageNameParser();
@@ -180,8 +207,8 @@ public class PackageParserTest {
         }
 
         @Override
-        public Package fromCacheEntry(byte[] cacheEntry) {
-            return new Package(new String(cacheEntry, StandardCharsets.UTF_8));
+        public Package fromCacheEntry(byte[] bytes, int offset, int length) {
+            return new Package(new String(bytes, offset, length, StandardCharsets.UTF_8));
         }
     }
 
@@ -27,7 +27,11 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -66,6 +70,32 @@ public class ParallelPackageParserTest {
         }
     }
 
+    @Test
+    public void testSortLargestFirst() throws IOException {
+        File dir = new File(System.getProperty("java.io.tmpdir"), TAG);
+        dir.mkdirs();
+        List<File> files = new ArrayList<>();
+        for (int size : new int[] {10, 300, 0, 42}) {
+            File file = new File(dir, "f" + size + ".apk");
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(new byte[size]);
+            }
+            files.add(file);
+        }
+        try {
+            ParallelPackageParser.sortLargestFirst(files);
+            Assert.assertEquals(300, files.get(0).length());
+            Assert.assertEquals(42, files.get(1).length());
+            Assert.assertEquals(10, files.get(2).length());
+            Assert.assertEquals(0, files.get(3).length());
+        } finally {
+            for (File file : files) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
     class TestParallelPackageParser extends ParallelPackageParser {
 
         TestParallelPackageParser() {
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.pm;
+
+import static com.android.server.pm.PermissionsState.PERMISSION_OPERATION_FAILURE;
+import static com.android.server.pm.PermissionsState.PERMISSION_OPERATION_SUCCESS;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.UserHandle;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests for {@link PermissionsState}
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class PermissionsStateTest {
+
+    private static final BasePermission INSTALL_PERMISSION = new BasePermission(
+            "com.example.permission.INSTALL", "com.example", BasePermission.TYPE_NORMAL);
+    private static final BasePermission RUNTIME_PERMISSION = new BasePermission(
+            "com.example.permission.RUNTIME", "com.example", BasePermission.TYPE_NORMAL);
+
+    @Test
+    public void testInstallPermissionGrantedToAllUsers() {
+        final PermissionsState state = new PermissionsState();
+        assertEquals(PERMISSION_OPERATION_SUCCESS,
+                state.grantInstallPermission(INSTALL_PERMISSION));
+
+        assertTrue(state.hasInstallPermission(INSTALL_PERMISSION.name));
+        assertTrue(state.hasPermission(INSTALL_PERMISSION.name, UserHandle.USER_SYSTEM));
+        assertTrue(state.hasPermission(INSTALL_PERMISSION.name, 10));
+        assertFalse(state.hasRuntimePermission(INSTALL_PERMISSION.name, UserHandle.USER_SYSTEM));
+
+        assertEquals(PERMISSION_OPERATION_SUCCESS,
+                state.revokeInstallPermission(INSTALL_PERMISSION));
+        assertFalse(state.hasPermission(INSTALL_PERMISSION.name, UserHandle.USER_SYSTEM));
+    }
+
+    @Test
+    public void testRuntimePermissionGrantedPerUser() {
+        final PermissionsState state = new PermissionsState();
+        assertEquals(PERMISSION_OPERATION_SUCCESS,
+                state.grantRuntimePermission(RUNTIME_PERMISSION, UserHandle.USER_SYSTEM));
+        assertEquals(PERMISSION_OPERATION_FAILURE,
+                state.grantRuntimePermission(RUNTIME_PERMISSION, UserHandle.USER_SYSTEM));
+
+        assertTrue(state.hasRuntimePermission(RUNTIME_PERMISSION.name, UserHandle.USER_SYSTEM));
+        assertFalse(state.hasPermission(RUNTIME_PERMISSION.name, 10));
+        assertFalse(state.hasInstallPermission(RUNTIME_PERMISSION.name));
+
+        state.revokeRuntimePermission(RUNTIME_PERMISSION, UserHandle.USER_SYSTEM);
+        assertFalse(state.hasPermission(RUNTIME_PERMISSION.name, UserHandle.USER_SYSTEM));
+    }
+
+    @Test
+    public void testCopyIsIndependent() {
+        final PermissionsState state = new PermissionsState();
+        state.grantRuntimePermission(RUNTIME_PERMISSION, UserHandle.USER_SYSTEM);
+
+        final PermissionsState copy = new PermissionsState(state);
+        assertTrue(copy.hasPermission(RUNTIME_PERMISSION.name, UserHandle.USER_SYSTEM));
+
+        copy.revokeRuntimePermission(RUNTIME_PERMISSION, UserHandle.USER_SYSTEM);
+        assertFalse(copy.hasPermission(RUNTIME_PERMISSION.name, UserHandle.USER_SYSTEM));
+        assertTrue(state.hasPermission(RUNTIME_PERMISSION.name, UserHandle.USER_SYSTEM));
+
+        state.reset();
+        assertFalse(state.hasPermission(RUNTIME_PERMISSION.name, UserHandle.USER_SYSTEM));
+    }
+
+    @Test
+    public void testCheckPermissionWithoutLock() {
+        final PermissionsState state = new PermissionsState();
+        state.grantInstallPermission(INSTALL_PERMISSION);
+        state.grantRuntimePermission(RUNTIME_PERMISSION, UserHandle.USER_SYSTEM);
+
+        assertEquals(PermissionsState.PERMISSION_CHECK_GRANTED,
+                state.checkPermissionWithoutLock(INSTALL_PERMISSION.name, 10));
+        assertEquals(PermissionsState.PERMISSION_CHECK_GRANTED,
+                state.checkPermissionWithoutLock(RUNTIME_PERMISSION.name, UserHandle.USER_SYSTEM));
+        assertEquals(PermissionsState.PERMISSION_CHECK_DENIED,
+                state.checkPermissionWithoutLock(RUNTIME_PERMISSION.name, 10));
+        assertEquals(PermissionsState.PERMISSION_CHECK_DENIED,
+                state.checkPermissionWithoutLock("com.example.permission.UNKNOWN",
+                        UserHandle.USER_SYSTEM));
+    }
+
+    @Test
+    public void testUnknownPermission() {
+        final PermissionsState state = new PermissionsState();
+        assertFalse(state.hasPermission("com.example.permission.UNKNOWN", UserHandle.USER_SYSTEM));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.pm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link ResolveIntentCache}
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ResolveIntentCacheTest {
+
+    private final ResolveIntentCache mCache = new ResolveIntentCache();
+
+    @Test
+    public void testHitReturnsCopy() {
+        final Intent intent = new Intent(Intent.ACTION_VIEW, Uri.parse("http://example.com"));
+        final List<ResolveInfo> results = newResults();
+        mCache.put(intent, null, 0, 0, 0, results);
+
+        final List<ResolveInfo> cached = mCache.get(
+                new Intent(Intent.ACTION_VIEW, Uri.parse("http://example.com")), null, 0, 0, 0);
+        assertNotNull(cached);
+        assertEquals(1, cached.size());
+        assertNotSame(results.get(0), cached.get(0));
+        assertEquals(results.get(0).activityInfo.name, cached.get(0).activityInfo.name);
+        assertEquals(results.get(0).isDefault, cached.get(0).isDefault);
+
+        // Modifying the returned list doesn't affect the cache
+        cached.clear();
+        assertEquals(1, mCache.get(intent, null, 0, 0, 0).size());
+    }
+
+    @Test
+    public void testKeyIncludesQuery() {
+        final Intent intent = new Intent(Intent.ACTION_VIEW, Uri.parse("http://example.com"));
+        mCache.put(intent, null, 0, 0, 0, newResults());
+
+        assertNull(mCache.get(intent, "text/plain", 0, 0, 0));
+        assertNull(mCache.get(intent, null, 1, 0, 0));
+        assertNull(mCache.get(intent, null, 0, 10, 0));
+        assertNull(mCache.get(new Intent(intent).addCategory(Intent.CATEGORY_BROWSABLE),
+                null, 0, 0, 0));
+        assertNull(mCache.get(new Intent(intent).addFlags(Intent.FLAG_EXCLUDE_STOPPED_PACKAGES),
+                null, 0, 0, 0));
+    }
+
+    @Test
+    public void testInvalidation() {
+        final Intent intent = new Intent(Intent.ACTION_MAIN);
+        mCache.put(intent, null, 0, 0, 0, newResults());
+        mCache.invalidate();
+        assertNull(mCache.get(intent, null, 0, 0, 0));
+
+        // Entries from an older settings generation are dropped
+        mCache.put(intent, null, 0, 0, 0, newResults());
+        assertNull(mCache.get(intent, null, 0, 0, 1));
+        assertNull(mCache.get(intent, null, 0, 0, 0));
+    }
+
+    private static List<ResolveInfo> newResults() {
+        final ResolveInfo ri = new ResolveInfo();
+        ri.activityInfo = new ActivityInfo();
+        ri.activityInfo.packageName = "com.example";
+        ri.activityInfo.name = "com.example.Activity";
+        ri.isDefault = true;
+        final List<ResolveInfo> results = new ArrayList<>();
+        results.add(ri);
+        return results;
+    }
+}
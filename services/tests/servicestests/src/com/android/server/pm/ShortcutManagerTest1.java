@@ -3249,6 +3249,103 @@ public class ShortcutManagerTest1 extends BaseShortcutManagerTest {
         // TODO Check all other fields
     }
 
+    public void testSaveOnlyChangedPackages() {
+        runWithCaller(CALLING_PACKAGE_1, USER_0, () -> {
+            assertTrue(mManager.setDynamicShortcuts(list(makeShortcut("s1"))));
+        });
+        runWithCaller(CALLING_PACKAGE_2, USER_0, () -> {
+            assertTrue(mManager.setDynamicShortcuts(list(makeShortcut("s2"))));
+        });
+        mService.saveDirtyInfo();
+
+        final File packagesDir = mService.getUserPackagesDir(USER_0);
+        final File file1 = new File(packagesDir, CALLING_PACKAGE_1 + ".xml");
+        final File file2 = new File(packagesDir, CALLING_PACKAGE_2 + ".xml");
+        assertTrue(file1.exists());
+        assertTrue(file2.exists());
+        assertTrue(file1.setLastModified(0));
+        assertTrue(file2.setLastModified(0));
+
+        // Only the package that changed is rewritten.
+        runWithCaller(CALLING_PACKAGE_1, USER_0, () -> {
+            assertTrue(mManager.addDynamicShortcuts(list(makeShortcut("s3"))));
+        });
+        mService.saveDirtyInfo();
+        assertTrue(file1.lastModified() != 0);
+        assertEquals(0, file2.lastModified());
+
+        // Both packages are loaded back.
+        initService();
+        mService.handleUnlockUser(USER_0);
+        runWithCaller(CALLING_PACKAGE_1, USER_0, () -> {
+            assertShortcutIds(mManager.getDynamicShortcuts(), "s1", "s3");
+        });
+        runWithCaller(CALLING_PACKAGE_2, USER_0, () -> {
+            assertShortcutIds(mManager.getDynamicShortcuts(), "s2");
+        });
+
+        // Files of removed packages are deleted.
+        mService.mPackageMonitor.onReceive(getTestContext(),
+                genPackageDeleteIntent(CALLING_PACKAGE_2, USER_0));
+        mService.saveDirtyInfo();
+        assertFalse(file2.exists());
+    }
+
+    public void testFailedPackageSaveRetried() {
+        runWithCaller(CALLING_PACKAGE_1, USER_0, () -> {
+            assertTrue(mManager.setDynamicShortcuts(list(makeShortcut("s1"))));
+        });
+        mService.saveDirtyInfo();
+
+        final File packagesDir = mService.getUserPackagesDir(USER_0);
+        final File file1 = new File(packagesDir, CALLING_PACKAGE_1 + ".xml");
+        assertTrue(file1.setLastModified(0));
+
+        runWithCaller(CALLING_PACKAGE_1, USER_0, () -> {
+            assertTrue(mManager.addDynamicShortcuts(list(makeShortcut("s2"))));
+        });
+        assertTrue(packagesDir.setWritable(false));
+        try {
+            mService.saveDirtyInfo();
+        } finally {
+            assertTrue(packagesDir.setWritable(true));
+        }
+        assertEquals(0, file1.lastModified());
+
+        // The package is still dirty, and written by the next save.
+        mService.saveDirtyInfo();
+        assertTrue(file1.lastModified() != 0);
+
+        initService();
+        mService.handleUnlockUser(USER_0);
+        runWithCaller(CALLING_PACKAGE_1, USER_0, () -> {
+            assertShortcutIds(mManager.getDynamicShortcuts(), "s1", "s2");
+        });
+    }
+
+    public void testFailedPackageSaveKeptInline() {
+        runWithCaller(CALLING_PACKAGE_1, USER_0, () -> {
+            assertTrue(mManager.setDynamicShortcuts(list(makeShortcut("s1"))));
+        });
+
+        // The package file can't be written, so the package is kept in the per-user file.
+        final File packagesDir = mService.getUserPackagesDir(USER_0);
+        packagesDir.mkdirs();
+        assertTrue(packagesDir.setWritable(false));
+        try {
+            mService.saveDirtyInfo();
+        } finally {
+            assertTrue(packagesDir.setWritable(true));
+        }
+        assertFalse(new File(packagesDir, CALLING_PACKAGE_1 + ".xml").exists());
+
+        initService();
+        mService.handleUnlockUser(USER_0);
+        runWithCaller(CALLING_PACKAGE_1, USER_0, () -> {
+            assertShortcutIds(mManager.getDynamicShortcuts(), "s1");
+        });
+    }
+
     public void testCleanupPackage() {
         runWithCaller(CALLING_PACKAGE_1, USER_0, () -> {
             assertTrue(mManager.setDynamicShortcuts(list(
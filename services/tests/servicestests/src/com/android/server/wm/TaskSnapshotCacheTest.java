@@ -20,10 +20,13 @@ import static android.view.WindowManager.LayoutParams.FIRST_APPLICATION_WINDOW;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertNull;
 
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.platform.test.annotations.Presubmit;
 import android.support.test.filters.SmallTest;
 import android.support.test.runner.AndroidJUnit4;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -38,12 +41,25 @@ import org.junit.runner.RunWith;
 @RunWith(AndroidJUnit4.class)
 public class TaskSnapshotCacheTest extends TaskSnapshotPersisterTestBase {
 
+    /** Bytes pinned by a snapshot from {@link #createSnapshot}. */
+    private static final int SNAPSHOT_BYTES = 100 * 100 * 4;
+
     private TaskSnapshotCache mCache;
+    private HandlerThread mDecodeThread;
+    private Handler mDecodeHandler;
 
     @Before
     public void setUp() throws Exception {
         super.setUp();
         mCache = new TaskSnapshotCache(sWm, mLoader);
+        mDecodeThread = new HandlerThread("TaskSnapshotCacheTest");
+        mDecodeThread.start();
+        mDecodeHandler = new Handler(mDecodeThread.getLooper());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDecodeThread.quitSafely();
     }
 
     @Test
@@ -108,4 +124,47 @@ public class TaskSnapshotCacheTest extends TaskSnapshotPersisterTestBase {
         assertNotNull(mCache.getSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId,
                 true /* restoreFromDisk */, false /* reducedResolution */));
     }
+
+    @Test
+    public void testReduced_cachedAfterRestore() throws Exception {
+        final WindowState window = createWindow(null, FIRST_APPLICATION_WINDOW, "window");
+        mPersister.persistSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId, createSnapshot());
+        mPersister.waitForQueueEmpty();
+        assertNotNull(mCache.getSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId,
+                true /* restoreFromDisk */, true /* reducedResolution */));
+
+        // Reduced requests are now served from memory
+        assertNotNull(mCache.getSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId,
+                false /* restoreFromDisk */, true /* reducedResolution */));
+        mCache.onTaskRemoved(window.getTask().mTaskId);
+        assertNull(mCache.getSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId,
+                false /* restoreFromDisk */, true /* reducedResolution */));
+    }
+
+    @Test
+    public void testRunningBudget_evictsToReduced() throws Exception {
+        mCache = new TaskSnapshotCache(sWm, mLoader, 2 * SNAPSHOT_BYTES /* maxRunningBytes */,
+                2 * SNAPSHOT_BYTES /* maxReducedBytes */, mDecodeHandler);
+        final WindowState window1 = createWindow(null, FIRST_APPLICATION_WINDOW, "window1");
+        final WindowState window2 = createWindow(null, FIRST_APPLICATION_WINDOW, "window2");
+        final WindowState window3 = createWindow(null, FIRST_APPLICATION_WINDOW, "window3");
+        mPersister.persistSnapshot(window1.getTask().mTaskId, sWm.mCurrentUserId,
+                createSnapshot());
+        mPersister.waitForQueueEmpty();
+
+        mCache.putSnapshot(window1.getTask(), createSnapshot());
+        mCache.putSnapshot(window2.getTask(), createSnapshot());
+        mCache.putSnapshot(window3.getTask(), createSnapshot());
+        mDecodeHandler.runWithScissors(() -> {}, 0 /* timeout */);
+
+        // The least recently used snapshot was evicted and its reduced one decoded from disk
+        assertNull(mCache.getSnapshot(window1.getTask().mTaskId, sWm.mCurrentUserId,
+                false /* restoreFromDisk */, false /* reducedResolution */));
+        assertNotNull(mCache.getSnapshot(window1.getTask().mTaskId, sWm.mCurrentUserId,
+                false /* restoreFromDisk */, true /* reducedResolution */));
+        assertNotNull(mCache.getSnapshot(window2.getTask().mTaskId, sWm.mCurrentUserId,
+                false /* restoreFromDisk */, false /* reducedResolution */));
+        assertNotNull(mCache.getSnapshot(window3.getTask().mTaskId, sWm.mCurrentUserId,
+                false /* restoreFromDisk */, false /* reducedResolution */));
+    }
 }
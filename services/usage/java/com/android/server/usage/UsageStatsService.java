@@ -1700,5 +1700,12 @@ public class UsageStatsService extends SystemService implements
             return UsageStatsService.this.queryUsageStats(
                     userId, intervalType, beginTime, endTime, obfuscateInstantApps);
         }
+
+        @Override
+        public UsageEvents queryEventsForUser(int userId, long beginTime, long endTime,
+                boolean obfuscateInstantApps) {
+            return UsageStatsService.this.queryEvents(
+                    userId, beginTime, endTime, obfuscateInstantApps);
+        }
     }
 }